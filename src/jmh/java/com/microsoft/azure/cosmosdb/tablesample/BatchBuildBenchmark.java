@@ -0,0 +1,74 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.TableBatchOperation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building entity group transactions of different sizes, including the payload estimate
+ * the bulk loader computes for every entity.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchBuildBenchmark {
+
+    @Param({ "1", "10", "100" })
+    public int batchSize;
+
+    private CustomerEntity[] customers;
+
+    @Setup
+    public void setup() {
+        this.customers = new CustomerEntity[this.batchSize];
+        for (int i = 0; i < this.batchSize; i++) {
+            this.customers[i] = BenchmarkTables.newCustomer(1, i);
+        }
+    }
+
+    @Benchmark
+    public TableBatchOperation buildBatch() {
+        TableBatchOperation batch = new TableBatchOperation();
+        for (CustomerEntity customer : this.customers) {
+            batch.insertOrReplace(customer);
+        }
+        return batch;
+    }
+
+    @Benchmark
+    public int estimateBatchPayload() throws StorageException {
+        int size = 0;
+        for (CustomerEntity customer : this.customers) {
+            size += BatchPayloadEstimator.estimateBytes(customer);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.CloudTable;
+
+import java.util.UUID;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Creates and fills the tables used by the benchmarks that talk to a table endpoint.
+ * The endpoint is taken from config.properties.
+ */
+final class BenchmarkTables {
+
+    private BenchmarkTables() { }
+
+    /**
+     * Creates a new table with a randomized name.
+     *
+     * @param prefix The prefix of the table name
+     * @return The new table
+     */
+    static CloudTable create(String prefix) throws Exception {
+        CloudTable table = TableClientProvider.getTableClientReference()
+                .getTableReference(prefix + UUID.randomUUID().toString().replace("-", ""));
+        table.createIfNotExists();
+        return table;
+    }
+
+    /**
+     * Inserts customers named Customer00/0000, Customer00/0001, ... into the table.
+     *
+     * @param table The table to fill
+     * @param partitions The number of partitions
+     * @param rowsPerPartition The number of entities per partition
+     */
+    static void loadCustomers(CloudTable table, int partitions, int rowsPerPartition) throws Exception {
+        Stream<CustomerEntity> customers = IntStream.range(0, partitions * rowsPerPartition)
+                .mapToObj(i -> newCustomer(i / rowsPerPartition, i % rowsPerPartition));
+        new TableBulkLoader(table, 8).load(customers);
+    }
+
+    static CustomerEntity newCustomer(int partition, int row) {
+        CustomerEntity customer = new CustomerEntity(partitionKey(partition), rowKey(row));
+        customer.setEmail(String.format("customer%02d.%04d@contoso.com", partition, row));
+        customer.setHomePhoneNumber(String.format("425-555-%04d", row));
+        customer.setWorkPhoneNumber(String.format("425-556-%04d", row));
+        return customer;
+    }
+
+    static String partitionKey(int partition) {
+        return String.format("Customer%02d", partition);
+    }
+
+    static String rowKey(int row) {
+        return String.format("%04d", row);
+    }
+}
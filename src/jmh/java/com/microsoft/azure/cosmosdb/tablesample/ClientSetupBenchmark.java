@@ -0,0 +1,60 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.CloudTableClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares creating a table client and table reference for every call with the shared instances
+ * kept by {@link TableClientProvider}.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClientSetupBenchmark {
+
+    private static final String CONNECTION_STRING = "UseDevelopmentStorage=true";
+
+    @Benchmark
+    public CloudTable newClientPerCall() throws Exception {
+        CloudTableClient tableClient = CloudStorageAccount.parse(CONNECTION_STRING).createCloudTableClient();
+        return tableClient.getTableReference("benchmark");
+    }
+
+    @Benchmark
+    public CloudTable sharedClient() throws Exception {
+        return TableClientProvider.getTableClientReference(CONNECTION_STRING).getTableReference("benchmark");
+    }
+
+    @Benchmark
+    public CloudTable sharedTableReference() throws Exception {
+        return TableClientProvider.getTableReference("benchmark");
+    }
+}
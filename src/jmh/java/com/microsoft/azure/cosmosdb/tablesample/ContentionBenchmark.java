@@ -0,0 +1,127 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.TableOperation;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of read-modify-write updates of a few hot entities by 1 to 64 concurrent
+ * writers, with every update written on its own and with concurrent updates combined into batches.
+ * The conflicts and writes per update are reported as secondary results.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContentionBenchmark {
+
+    private static final int HOT_ENTITIES = 4;
+    private static final int UPDATES_PER_INVOCATION = 256;
+
+    @Param({ "1", "4", "16", "64" })
+    public int writers;
+
+    @Param({ "false", "true" })
+    public boolean combining;
+
+    /**
+     * The conflicts and writes of the updater, counted per update.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class UpdaterCounters {
+        public long conflicts;
+        public long writes;
+    }
+
+    private CloudTable table;
+    private OptimisticUpdater<DynamicTableEntity> updater;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.table = BenchmarkTables.create("jmhcontention");
+        for (int row = 0; row < HOT_ENTITIES; row++) {
+            DynamicTableEntity entity = new DynamicTableEntity("Hot", BenchmarkTables.rowKey(row));
+            entity.getProperties().put("Count", new EntityProperty(0L));
+            this.table.execute(TableOperation.insertOrReplace(entity));
+        }
+
+        this.updater = new OptimisticUpdater<DynamicTableEntity>(this.table, DynamicTableEntity.class);
+        this.updater.setCombining(this.combining);
+        this.updater.setMaxAttempts(Integer.MAX_VALUE);
+        this.executor = Executors.newFixedThreadPool(this.writers);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.executor.shutdown();
+        this.table.deleteIfExists();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(UPDATES_PER_INVOCATION)
+    public void increment(UpdaterCounters counters) throws Exception {
+        long conflicts = this.updater.getConflictCount();
+        long writes = this.updater.getWriteCount();
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(this.writers);
+        for (int writer = 0; writer < this.writers; writer++) {
+            futures.add(this.executor.submit(() -> {
+                for (int update = 0; update < UPDATES_PER_INVOCATION / this.writers; update++) {
+                    this.updater.update("Hot", BenchmarkTables.rowKey(ThreadLocalRandom.current().nextInt(HOT_ENTITIES)), entity -> {
+                        EntityProperty count = entity.getProperties().get("Count");
+                        count.setValue(count.getValueAsLong() + 1);
+                        return true;
+                    });
+                }
+                return null;
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+
+        counters.conflicts += this.updater.getConflictCount() - conflicts;
+        counters.writes += this.updater.getWriteCount() - writes;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableQuery.QueryComparisons;
+import com.microsoft.azure.storage.table.TableResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures insert, point read and range query round trips against the table endpoint configured
+ * in config.properties.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+
+    private static final int PARTITIONS = 10;
+    private static final int ROWS_PER_PARTITION = 100;
+
+    private static final FilterTemplate PARTITION_RANGE = FilterTemplate.compile(FilterTemplate.and(
+        FilterTemplate.condition("PartitionKey", QueryComparisons.EQUAL, FilterTemplate.ParameterType.STRING),
+        FilterTemplate.condition("RowKey", QueryComparisons.GREATER_THAN_OR_EQUAL, FilterTemplate.ParameterType.STRING),
+        FilterTemplate.condition("RowKey", QueryComparisons.LESS_THAN, FilterTemplate.ParameterType.STRING)));
+
+    private CloudTable table;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.table = BenchmarkTables.create("jmhendtoend");
+        BenchmarkTables.loadCustomers(this.table, PARTITIONS, ROWS_PER_PARTITION);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.table.deleteIfExists();
+    }
+
+    @Benchmark
+    public TableResult insertOrReplace() throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        CustomerEntity customer = BenchmarkTables.newCustomer(random.nextInt(PARTITIONS), random.nextInt(ROWS_PER_PARTITION));
+        return this.table.execute(TableOperation.insertOrReplace(customer));
+    }
+
+    @Benchmark
+    public CustomerEntity retrieve() throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return this.table.execute(TableOperation.retrieve(
+                BenchmarkTables.partitionKey(random.nextInt(PARTITIONS)),
+                BenchmarkTables.rowKey(random.nextInt(ROWS_PER_PARTITION)),
+                CustomerEntity.class)).getResultAsType();
+    }
+
+    @Benchmark
+    public int partitionRangeQuery() throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int start = random.nextInt(ROWS_PER_PARTITION - 20);
+        TableQuery<CustomerEntity> query = PARTITION_RANGE.createQuery(CustomerEntity.class,
+                BenchmarkTables.partitionKey(random.nextInt(PARTITIONS)), BenchmarkTables.rowKey(start), BenchmarkTables.rowKey(start + 20));
+
+        int count = 0;
+        for (CustomerEntity customer : this.table.execute(query)) {
+            count++;
+        }
+        return count;
+    }
+}
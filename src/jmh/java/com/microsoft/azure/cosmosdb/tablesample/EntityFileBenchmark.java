@@ -0,0 +1,103 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast {@link EntityFileWriter} and {@link EntityFileReader} encode and decode customer
+ * entities, which bounds the export and import throughput on the client side.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EntityFileBenchmark {
+
+    private static final int ENTITIES = 10000;
+
+    private final List<DynamicTableEntity> entities = new ArrayList<DynamicTableEntity>(ENTITIES);
+    private Path writeFile;
+    private Path readFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        for (int i = 0; i < ENTITIES; i++) {
+            CustomerEntity customer = BenchmarkTables.newCustomer(i / 1000, i % 1000);
+            DynamicTableEntity entity = new DynamicTableEntity(customer.getPartitionKey(), customer.getRowKey(), customer.writeEntity(null));
+            entity.setTimestamp(new Date());
+            this.entities.add(entity);
+        }
+
+        this.writeFile = Files.createTempFile("entityfile", ".entities");
+        this.readFile = Files.createTempFile("entityfile", ".entities");
+        try (EntityFileWriter writer = EntityFileWriter.create(this.readFile)) {
+            for (DynamicTableEntity entity : this.entities) {
+                writer.write(entity);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(this.writeFile);
+        Files.deleteIfExists(this.readFile);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTITIES)
+    public long write() throws Exception {
+        try (EntityFileWriter writer = EntityFileWriter.create(this.writeFile)) {
+            for (DynamicTableEntity entity : this.entities) {
+                writer.write(entity);
+            }
+            return writer.getEntityCount();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTITIES)
+    public int read() throws Exception {
+        int count = 0;
+        try (EntityFileReader reader = new EntityFileReader(this.readFile)) {
+            while (reader.hasNext()) {
+                reader.next();
+                count++;
+            }
+        }
+        return count;
+    }
+}
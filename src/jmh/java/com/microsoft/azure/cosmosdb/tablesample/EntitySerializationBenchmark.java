@@ -0,0 +1,110 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.TableServiceEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the hand written property mapping of {@link CustomerEntity} and {@link WideEntity}
+ * with the reflection based mapping of {@link TableServiceEntity}.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EntitySerializationBenchmark {
+
+    private CustomerEntity customer;
+    private HashMap<String, EntityProperty> customerProperties;
+    private WideEntity wideEntity;
+    private HashMap<String, EntityProperty> wideProperties;
+
+    @Setup
+    public void setup() throws StorageException {
+        this.customer = BenchmarkTables.newCustomer(1, 1);
+        this.customerProperties = this.customer.writeEntity(null);
+        this.wideEntity = WideEntity.create(1);
+        this.wideProperties = this.wideEntity.writeEntity(null);
+    }
+
+    @Benchmark
+    public HashMap<String, EntityProperty> writeCustomer() throws StorageException {
+        return this.customer.writeEntity(null);
+    }
+
+    @Benchmark
+    public HashMap<String, EntityProperty> writeCustomerReflective() throws Exception {
+        return TableServiceEntity.writeEntityWithReflection(this.customer);
+    }
+
+    @Benchmark
+    public CustomerEntity readCustomer() throws StorageException {
+        CustomerEntity entity = new CustomerEntity();
+        entity.readEntity(this.customerProperties, null);
+        return entity;
+    }
+
+    @Benchmark
+    public CustomerEntity readCustomerReflective() throws Exception {
+        CustomerEntity entity = new CustomerEntity();
+        TableServiceEntity.readEntityWithReflection(entity, this.customerProperties, null);
+        return entity;
+    }
+
+    @Benchmark
+    public CustomerEntity resolveCustomer() throws StorageException {
+        return CustomerEntity.RESOLVER.resolve("Customer01", "0001", null, this.customerProperties, null);
+    }
+
+    @Benchmark
+    public HashMap<String, EntityProperty> writeWideEntity() throws StorageException {
+        return this.wideEntity.writeEntity(null);
+    }
+
+    @Benchmark
+    public HashMap<String, EntityProperty> writeWideEntityReflective() throws Exception {
+        return TableServiceEntity.writeEntityWithReflection(this.wideEntity);
+    }
+
+    @Benchmark
+    public WideEntity readWideEntity() throws StorageException {
+        WideEntity entity = new WideEntity();
+        entity.readEntity(this.wideProperties, null);
+        return entity;
+    }
+
+    @Benchmark
+    public WideEntity readWideEntityReflective() throws Exception {
+        WideEntity entity = new WideEntity();
+        TableServiceEntity.readEntityWithReflection(entity, this.wideProperties, null);
+        return entity;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableQuery.Operators;
+import com.microsoft.azure.storage.table.TableQuery.QueryComparisons;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building the filter string of a partition range query with the string builders of
+ * {@link TableQuery} and with a precompiled {@link FilterTemplate}. Run with -prof gc to compare
+ * the allocations per filter.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FilterBenchmark {
+
+    private static final FilterTemplate PARTITION_RANGE = FilterTemplate.compile(FilterTemplate.and(
+        FilterTemplate.condition("PartitionKey", QueryComparisons.EQUAL, FilterTemplate.ParameterType.STRING),
+        FilterTemplate.and(
+            FilterTemplate.condition("RowKey", QueryComparisons.GREATER_THAN_OR_EQUAL, FilterTemplate.ParameterType.STRING),
+            FilterTemplate.condition("RowKey", QueryComparisons.LESS_THAN_OR_EQUAL, FilterTemplate.ParameterType.STRING))));
+
+    private String[] partitionKeys;
+    private String[] rowKeys;
+    private int next;
+
+    @Setup
+    public void setup() {
+        this.partitionKeys = new String[64];
+        this.rowKeys = new String[64];
+        for (int i = 0; i < 64; i++) {
+            this.partitionKeys[i] = BenchmarkTables.partitionKey(i);
+            this.rowKeys[i] = BenchmarkTables.rowKey(i * 10);
+        }
+    }
+
+    @Benchmark
+    public String partitionRangeFilter() {
+        int i = this.next++ & 63;
+        return TableQuery.combineFilters(
+            TableQuery.generateFilterCondition("PartitionKey", QueryComparisons.EQUAL, this.partitionKeys[i]),
+            Operators.AND,
+            TableQuery.combineFilters(
+                TableQuery.generateFilterCondition("RowKey", QueryComparisons.GREATER_THAN_OR_EQUAL, this.rowKeys[i]),
+                Operators.AND,
+                TableQuery.generateFilterCondition("RowKey", QueryComparisons.LESS_THAN_OR_EQUAL, this.rowKeys[(i + 1) & 63])));
+    }
+
+    @Benchmark
+    public String partitionRangeTemplate() {
+        int i = this.next++ & 63;
+        return PARTITION_RANGE.bind(this.partitionKeys[i], this.rowKeys[i], this.rowKeys[(i + 1) & 63]);
+    }
+}
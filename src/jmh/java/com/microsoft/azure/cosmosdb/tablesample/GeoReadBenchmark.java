@@ -0,0 +1,91 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
+import com.microsoft.azure.storage.StorageLocation;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.CloudTableClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency distribution of point reads through {@link GeoReadRouter} against a local
+ * table server whose primary endpoint has a long latency tail. A staleness bound of 0 reads from
+ * the primary only; a bound of 60 seconds lets the router use and hedge with the secondary.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GeoReadBenchmark {
+
+    private static final int PARTITIONS = 4;
+    private static final int ROWS_PER_PARTITION = 50;
+
+    @Param({ "0", "60" })
+    public int maxStalenessSeconds;
+
+    private LocalTableServer server;
+    private CloudTable table;
+    private GeoReadRouter router;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.server = new LocalTableServer();
+        CloudTableClient client = new CloudTableClient(this.server.getStorageUri(),
+                new StorageCredentialsAccountAndKey(LocalTableServer.ACCOUNT_NAME, LocalTableServer.ACCOUNT_KEY));
+        this.table = client.getTableReference("jmhgeoreads");
+        this.table.create();
+        BenchmarkTables.loadCustomers(this.table, PARTITIONS, ROWS_PER_PARTITION);
+
+        this.server.setLatency(StorageLocation.PRIMARY, 2, 50, TimeUnit.MILLISECONDS);
+        this.server.setLatency(StorageLocation.SECONDARY, 8, 4, TimeUnit.MILLISECONDS);
+        this.server.setLastSyncTime(new Date());
+        this.router = new GeoReadRouter(client, 30, TimeUnit.SECONDS);
+        this.router.refreshLastSyncTime();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println();
+        System.out.println(this.router);
+        this.router.close();
+        this.server.close();
+    }
+
+    @Benchmark
+    public CustomerEntity retrieve() throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return this.router.retrieve(this.table, BenchmarkTables.partitionKey(random.nextInt(PARTITIONS)),
+                BenchmarkTables.rowKey(random.nextInt(ROWS_PER_PARTITION)), CustomerEntity.class, this.maxStalenessSeconds, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableQuery.QueryComparisons;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares looking up a customer by email address through an {@link IndexedTable} with a query that
+ * filters the whole table on the email address.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexBenchmark {
+
+    private static final int PARTITIONS = 10;
+    private static final int ROWS_PER_PARTITION = 500;
+
+    private CloudTable table;
+    private CloudTable indexTable;
+    private IndexedTable<CustomerEntity> indexedTable;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.table = BenchmarkTables.create("jmhindex");
+        this.indexTable = BenchmarkTables.create("jmhindexentries");
+        BenchmarkTables.loadCustomers(this.table, PARTITIONS, ROWS_PER_PARTITION);
+        this.indexedTable = new IndexedTable<CustomerEntity>(this.table, this.indexTable, CustomerEntity.class);
+        this.indexedTable.repair();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.table.deleteIfExists();
+        this.indexTable.deleteIfExists();
+    }
+
+    @Benchmark
+    public List<CustomerEntity> indexLookup() throws Exception {
+        return this.indexedTable.lookup("Email", this.randomEmail());
+    }
+
+    @Benchmark
+    public int tableScan() throws Exception {
+        TableQuery<CustomerEntity> query = TableQuery.from(CustomerEntity.class).where(
+            TableQuery.generateFilterCondition("Email", QueryComparisons.EQUAL, this.randomEmail()));
+        int count = 0;
+        for (CustomerEntity customer : this.table.execute(query)) {
+            count++;
+        }
+        return count;
+    }
+
+    private String randomEmail() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return BenchmarkTables.newCustomer(random.nextInt(PARTITIONS), random.nextInt(ROWS_PER_PARTITION)).getEmail();
+    }
+}
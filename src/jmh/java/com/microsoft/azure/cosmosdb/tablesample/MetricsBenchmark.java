@@ -0,0 +1,63 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost that recording a request in {@link TableMetrics} adds to every request, with 8
+ * threads recording into a few shared combinations of table, operation and status code, and the cost
+ * of reading the totals while requests are recorded.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private static final TableMetrics.Operation[] OPERATIONS = {
+        TableMetrics.Operation.INSERT, TableMetrics.Operation.RETRIEVE, TableMetrics.Operation.QUERY, TableMetrics.Operation.BATCH
+    };
+
+    private final TableMetrics metrics = new TableMetrics();
+
+    @Benchmark
+    public void record() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        this.metrics.record("customers", OPERATIONS[random.nextInt(OPERATIONS.length)], 200,
+                random.nextLong(100000, 50000000), 512, 2048);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public List<OperationStats> snapshot() {
+        return this.metrics.snapshot();
+    }
+}
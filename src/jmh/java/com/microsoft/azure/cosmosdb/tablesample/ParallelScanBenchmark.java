@@ -0,0 +1,80 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.CloudTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures how a full table scan scales with the number of partition key ranges queried in parallel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelScanBenchmark {
+
+    private static final int PARTITIONS = 32;
+    private static final int ROWS_PER_PARTITION = 500;
+
+    @Param({ "1", "2", "4", "8", "16", "32" })
+    public int threads;
+
+    private CloudTable table;
+    private List<String> splitPoints;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.table = BenchmarkTables.create("jmhparallelscan");
+        BenchmarkTables.loadCustomers(this.table, PARTITIONS, ROWS_PER_PARTITION);
+
+        this.splitPoints = new ArrayList<String>();
+        for (int i = 1; i < PARTITIONS; i++) {
+            this.splitPoints.add(BenchmarkTables.partitionKey(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.table.deleteIfExists();
+    }
+
+    @Benchmark
+    public long scan() {
+        ParallelTableScan scan = new ParallelTableScan(this.table, this.splitPoints);
+        scan.setParallelism(this.threads);
+        try (Stream<CustomerEntity> customers = scan.scan(CustomerEntity.class, null, false)) {
+            return customers.count();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableQuery.QueryComparisons;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a scan of a partition of 1000 customers returning full entities with scans returning
+ * only the keys or the email address. Run with -prof gc to see the allocation per scan.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProjectionBenchmark {
+
+    private static final int ROWS = 1000;
+
+    private CloudTable table;
+    private String filter;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.table = BenchmarkTables.create("jmhprojection");
+        BenchmarkTables.loadCustomers(this.table, 1, ROWS);
+        this.filter = TableQuery.generateFilterCondition("PartitionKey", QueryComparisons.EQUAL, BenchmarkTables.partitionKey(0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.table.deleteIfExists();
+    }
+
+    @Benchmark
+    public int fullEntities() throws Exception {
+        int count = 0;
+        try (SegmentedQueryReader<CustomerEntity> reader = SegmentedQueryReader.of(this.table,
+                TableQuery.from(CustomerEntity.class).where(this.filter))) {
+            List<CustomerEntity> segment;
+            while ((segment = reader.nextSegment()) != null) {
+                count += segment.size();
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int keyRecords() throws Exception {
+        return this.countRecords(new ProjectionQuery(this.table, this.filter));
+    }
+
+    @Benchmark
+    public int emailRecords() throws Exception {
+        return this.countRecords(new ProjectionQuery(this.table, this.filter, "Email"));
+    }
+
+    @Benchmark
+    public int emailColumnPages() throws Exception {
+        int count = 0;
+        try (SegmentedQueryReader<ColumnPage> reader = new ProjectionQuery(this.table, this.filter, "Email").columnPages()) {
+            List<ColumnPage> segment;
+            while ((segment = reader.nextSegment()) != null) {
+                for (ColumnPage page : segment) {
+                    count += page.size();
+                }
+            }
+        }
+        return count;
+    }
+
+    private int countRecords(ProjectionQuery projection) throws Exception {
+        int count = 0;
+        try (SegmentedQueryReader<ProjectedEntity> reader = projection.records()) {
+            List<ProjectedEntity> segment;
+            while ((segment = reader.nextSegment()) != null) {
+                count += segment.size();
+            }
+        }
+        return count;
+    }
+}
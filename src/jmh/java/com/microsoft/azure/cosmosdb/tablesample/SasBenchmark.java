@@ -0,0 +1,101 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.SharedAccessTablePermissions;
+import com.microsoft.azure.storage.table.SharedAccessTablePolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many shared access signatures per second are issued by signing every token and by
+ * {@link SharedAccessSignatureCache}. Signing happens on the client, so no table is created.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SasBenchmark {
+
+    private static final int PARTITIONS = 1000;
+
+    private static final EnumSet<SharedAccessTablePermissions> PERMISSIONS =
+            EnumSet.of(SharedAccessTablePermissions.QUERY, SharedAccessTablePermissions.ADD);
+
+    private final String[] partitionKeys = new String[PARTITIONS];
+    private CloudTable table;
+    private SharedAccessSignatureCache cache;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.table = TableClientProvider.getTableClientReference().getTableReference("jmhsas");
+        this.cache = new SharedAccessSignatureCache(60, 5, TimeUnit.MINUTES);
+        for (int i = 0; i < PARTITIONS; i++) {
+            String partitionKey = BenchmarkTables.partitionKey(i);
+            this.partitionKeys[i] = partitionKey;
+            this.cache.getToken(this.table, null, PERMISSIONS, partitionKey, null, partitionKey, null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.cache.close();
+    }
+
+    @Benchmark
+    public String sign() throws Exception {
+        long nowMillis = System.currentTimeMillis();
+        SharedAccessTablePolicy policy = new SharedAccessTablePolicy();
+        policy.setPermissions(PERMISSIONS);
+        policy.setSharedAccessStartTime(new Date(nowMillis - TimeUnit.MINUTES.toMillis(5)));
+        policy.setSharedAccessExpiryTime(new Date(nowMillis + TimeUnit.MINUTES.toMillis(60)));
+        return this.table.generateSharedAccessSignature(policy, null, null, null, null, null);
+    }
+
+    @Benchmark
+    public String cachedToken() throws Exception {
+        return this.cache.getToken(this.table, PERMISSIONS);
+    }
+
+    @Benchmark
+    public String cachedPartitionToken() throws Exception {
+        String partitionKey = this.partitionKeys[ThreadLocalRandom.current().nextInt(PARTITIONS)];
+        return this.cache.getToken(this.table, null, PERMISSIONS, partitionKey, null, partitionKey, null);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String cachedTokenContended() throws Exception {
+        return this.cache.getToken(this.table, PERMISSIONS);
+    }
+}
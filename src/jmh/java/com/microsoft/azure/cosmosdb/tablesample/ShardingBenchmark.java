@@ -0,0 +1,79 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the write throughput of 16 threads whose partition keys follow a Zipfian distribution
+ * over 100 natural partitions, stored unsharded (1 bucket) or spread over 16 buckets per partition.
+ * The difference shows once the most popular partitions reach the per partition throughput limit
+ * of the endpoint configured in config.properties.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class ShardingBenchmark {
+
+    private static final int PARTITIONS = 100;
+
+    @Param({ "1", "16" })
+    public int buckets;
+
+    private CloudTable table;
+    private ShardedTable shardedTable;
+    private ZipfianGenerator partitions;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.table = BenchmarkTables.create("jmhsharding");
+        this.shardedTable = new ShardedTable(this.table, this.buckets == 1
+                ? PartitionKeyStrategy.identity()
+                : PartitionKeyStrategy.hashedBuckets(this.buckets));
+        this.partitions = new ZipfianGenerator(PARTITIONS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.table.deleteIfExists();
+    }
+
+    @Benchmark
+    public TableResult zipfianInsertOrReplace() throws Exception {
+        CustomerEntity customer = BenchmarkTables.newCustomer((int) this.partitions.next(), ThreadLocalRandom.current().nextInt(10000));
+        return this.shardedTable.insertOrReplace(customer);
+    }
+}
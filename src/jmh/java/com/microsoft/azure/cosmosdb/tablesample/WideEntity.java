@@ -0,0 +1,257 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.EdmType;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.TableServiceEntity;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * An entity with sixteen properties of mixed types, mapped by hand in the same way as
+ * {@link CustomerEntity}. The reflection based mapping of the same class is measured through
+ * the static reflection methods of {@link TableServiceEntity}.
+ */
+public class WideEntity extends TableServiceEntity {
+
+    private String name;
+    private String description;
+    private String category;
+    private String owner;
+    private String region;
+    private String status;
+    private int quantity;
+    private int revision;
+    private long sizeInBytes;
+    private long sequenceNumber;
+    private double price;
+    private double weight;
+    private boolean active;
+    private Date createdOn;
+    private UUID correlationId;
+    private byte[] checksum;
+
+    public WideEntity() { }
+
+    static WideEntity create(int index) {
+        WideEntity entity = new WideEntity();
+        entity.setPartitionKey(BenchmarkTables.partitionKey(index % 100));
+        entity.setRowKey(BenchmarkTables.rowKey(index));
+        entity.name = "Item " + index;
+        entity.description = "A wide entity used to measure the cost of mapping properties";
+        entity.category = "Category" + (index % 10);
+        entity.owner = "owner" + index + "@contoso.com";
+        entity.region = "westus";
+        entity.status = "Active";
+        entity.quantity = index;
+        entity.revision = 3;
+        entity.sizeInBytes = 1024L * index;
+        entity.sequenceNumber = 1000000L + index;
+        entity.price = 9.99;
+        entity.weight = 0.5;
+        entity.active = true;
+        entity.createdOn = new Date(1500000000000L);
+        entity.correlationId = new UUID(index, index);
+        entity.checksum = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+        return entity;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getDescription() {
+        return this.description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    public String getCategory() {
+        return this.category;
+    }
+
+    public void setCategory(String category) {
+        this.category = category;
+    }
+
+    public String getOwner() {
+        return this.owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public String getRegion() {
+        return this.region;
+    }
+
+    public void setRegion(String region) {
+        this.region = region;
+    }
+
+    public String getStatus() {
+        return this.status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public int getQuantity() {
+        return this.quantity;
+    }
+
+    public void setQuantity(int quantity) {
+        this.quantity = quantity;
+    }
+
+    public int getRevision() {
+        return this.revision;
+    }
+
+    public void setRevision(int revision) {
+        this.revision = revision;
+    }
+
+    public long getSizeInBytes() {
+        return this.sizeInBytes;
+    }
+
+    public void setSizeInBytes(long sizeInBytes) {
+        this.sizeInBytes = sizeInBytes;
+    }
+
+    public long getSequenceNumber() {
+        return this.sequenceNumber;
+    }
+
+    public void setSequenceNumber(long sequenceNumber) {
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    public double getPrice() {
+        return this.price;
+    }
+
+    public void setPrice(double price) {
+        this.price = price;
+    }
+
+    public double getWeight() {
+        return this.weight;
+    }
+
+    public void setWeight(double weight) {
+        this.weight = weight;
+    }
+
+    public boolean getActive() {
+        return this.active;
+    }
+
+    public void setActive(boolean active) {
+        this.active = active;
+    }
+
+    public Date getCreatedOn() {
+        return this.createdOn;
+    }
+
+    public void setCreatedOn(Date createdOn) {
+        this.createdOn = createdOn;
+    }
+
+    public UUID getCorrelationId() {
+        return this.correlationId;
+    }
+
+    public void setCorrelationId(UUID correlationId) {
+        this.correlationId = correlationId;
+    }
+
+    public byte[] getChecksum() {
+        return this.checksum;
+    }
+
+    public void setChecksum(byte[] checksum) {
+        this.checksum = checksum;
+    }
+
+    @Override
+    public void readEntity(HashMap<String, EntityProperty> properties, OperationContext opContext) throws StorageException {
+        EntityProperty property;
+        if ((property = get(properties, "Name", EdmType.STRING)) != null) this.name = property.getValueAsString();
+        if ((property = get(properties, "Description", EdmType.STRING)) != null) this.description = property.getValueAsString();
+        if ((property = get(properties, "Category", EdmType.STRING)) != null) this.category = property.getValueAsString();
+        if ((property = get(properties, "Owner", EdmType.STRING)) != null) this.owner = property.getValueAsString();
+        if ((property = get(properties, "Region", EdmType.STRING)) != null) this.region = property.getValueAsString();
+        if ((property = get(properties, "Status", EdmType.STRING)) != null) this.status = property.getValueAsString();
+        if ((property = getPrimitive(properties, "Quantity", EdmType.INT32)) != null) this.quantity = property.getValueAsInteger();
+        if ((property = getPrimitive(properties, "Revision", EdmType.INT32)) != null) this.revision = property.getValueAsInteger();
+        if ((property = getPrimitive(properties, "SizeInBytes", EdmType.INT64)) != null) this.sizeInBytes = property.getValueAsLong();
+        if ((property = getPrimitive(properties, "SequenceNumber", EdmType.INT64)) != null) this.sequenceNumber = property.getValueAsLong();
+        if ((property = getPrimitive(properties, "Price", EdmType.DOUBLE)) != null) this.price = property.getValueAsDouble();
+        if ((property = getPrimitive(properties, "Weight", EdmType.DOUBLE)) != null) this.weight = property.getValueAsDouble();
+        if ((property = getPrimitive(properties, "Active", EdmType.BOOLEAN)) != null) this.active = property.getValueAsBoolean();
+        if ((property = get(properties, "CreatedOn", EdmType.DATE_TIME)) != null) this.createdOn = property.getValueAsDate();
+        if ((property = get(properties, "CorrelationId", EdmType.GUID)) != null) this.correlationId = property.getValueAsUUID();
+        if ((property = get(properties, "Checksum", EdmType.BINARY)) != null) this.checksum = property.getValueAsByteArray();
+    }
+
+    @Override
+    public HashMap<String, EntityProperty> writeEntity(OperationContext opContext) throws StorageException {
+        HashMap<String, EntityProperty> properties = new HashMap<String, EntityProperty>(32);
+        properties.put("Name", new EntityProperty(this.name));
+        properties.put("Description", new EntityProperty(this.description));
+        properties.put("Category", new EntityProperty(this.category));
+        properties.put("Owner", new EntityProperty(this.owner));
+        properties.put("Region", new EntityProperty(this.region));
+        properties.put("Status", new EntityProperty(this.status));
+        properties.put("Quantity", new EntityProperty(this.quantity));
+        properties.put("Revision", new EntityProperty(this.revision));
+        properties.put("SizeInBytes", new EntityProperty(this.sizeInBytes));
+        properties.put("SequenceNumber", new EntityProperty(this.sequenceNumber));
+        properties.put("Price", new EntityProperty(this.price));
+        properties.put("Weight", new EntityProperty(this.weight));
+        properties.put("Active", new EntityProperty(this.active));
+        properties.put("CreatedOn", new EntityProperty(this.createdOn));
+        properties.put("CorrelationId", new EntityProperty(this.correlationId));
+        properties.put("Checksum", new EntityProperty(this.checksum));
+        return properties;
+    }
+
+    // Like the reflection based mapping, properties of another type are ignored and null values
+    // are only assigned to fields of a reference type
+    private static EntityProperty get(HashMap<String, EntityProperty> properties, String name, EdmType type) {
+        EntityProperty property = properties.get(name);
+        return property != null && property.getEdmType() == type ? property : null;
+    }
+
+    private static EntityProperty getPrimitive(HashMap<String, EntityProperty> properties, String name, EdmType type) {
+        EntityProperty property = get(properties, name, type);
+        return property != null && !property.getIsNull() ? property : null;
+    }
+}
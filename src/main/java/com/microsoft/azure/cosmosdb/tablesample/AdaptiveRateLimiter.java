@@ -0,0 +1,255 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.ResponseReceivedEvent;
+import com.microsoft.azure.storage.StorageEvent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client side rate limiter for the entities written to or read from a storage account.
+ *
+ * Every request takes permits from a token bucket for the account and from one for its partition.
+ * Both rates start at the scalability targets and adapt to the responses of the service the way TCP
+ * congestion control does (additive increase, multiplicative decrease): a throttled response halves
+ * the rates, and every successful response raises them a little until they are back at the targets.
+ * The decrease is applied at most once per cool-down period, so the burst of throttled responses
+ * to requests that were already in flight counts as a single signal.
+ */
+final class AdaptiveRateLimiter {
+
+    /**
+     * The number of entities per second a storage account is expected to handle.
+     */
+    static final double ACCOUNT_TARGET_PER_SECOND = 20000;
+
+    /**
+     * The number of entities per second a single partition is expected to handle.
+     */
+    static final double PARTITION_TARGET_PER_SECOND = 2000;
+
+    private static final int MAX_TRACKED_PARTITIONS = 10000;
+
+    /**
+     * The AIMD state of one token bucket.
+     */
+    private final class RateController {
+        private final TokenBucket bucket;
+        private final double maximumRate;
+        private long lastDecreaseNanos;
+        private boolean decreased;
+
+        RateController(double maximumRate) {
+            this.maximumRate = maximumRate;
+            // A bucket holds one second worth of permits, enough for a full batch at the partition target
+            this.bucket = new TokenBucket(maximumRate, maximumRate);
+        }
+
+        synchronized void increase(int permits) {
+            double rate = this.bucket.getRate();
+            if (rate < this.maximumRate) {
+                // Spread over one second of successful permits, the increase adds up to a fixed step per second
+                double step = this.maximumRate * AdaptiveRateLimiter.this.additiveIncrease * permits / rate;
+                this.bucket.setRate(Math.min(this.maximumRate, rate + step));
+            }
+        }
+
+        synchronized void decrease() {
+            long now = System.nanoTime();
+            if (this.decreased && now - this.lastDecreaseNanos < AdaptiveRateLimiter.this.coolDownNanos) {
+                return;
+            }
+            this.decreased = true;
+            this.lastDecreaseNanos = now;
+            double rate = this.bucket.getRate() * AdaptiveRateLimiter.this.decreaseFactor;
+            this.bucket.setRate(Math.max(AdaptiveRateLimiter.this.minimumRate, rate));
+        }
+    }
+
+    private final double partitionRate;
+    private final RateController account;
+    private final LinkedHashMap<String, RateController> partitions;
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    private volatile double additiveIncrease = 0.05;
+    private volatile double decreaseFactor = 0.5;
+    private volatile double minimumRate = 1;
+    private volatile long coolDownNanos = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Creates a limiter starting at the scalability targets of a storage account.
+     */
+    AdaptiveRateLimiter() {
+        this(ACCOUNT_TARGET_PER_SECOND, PARTITION_TARGET_PER_SECOND);
+    }
+
+    /**
+     * Creates a limiter.
+     *
+     * @param accountRate The maximum number of permits per second for the account
+     * @param partitionRate The maximum number of permits per second for each partition
+     */
+    AdaptiveRateLimiter(double accountRate, double partitionRate) {
+        if (accountRate <= 0 || partitionRate <= 0) {
+            throw new IllegalArgumentException("The rates must be positive.");
+        }
+        this.partitionRate = partitionRate;
+        this.account = new RateController(accountRate);
+
+        // Partitions that have not been used for a while are forgotten and start again at the target
+        this.partitions = new LinkedHashMap<String, RateController>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RateController> eldest) {
+                return this.size() > MAX_TRACKED_PARTITIONS;
+            }
+        };
+    }
+
+    /**
+     * Sets how fast the rates recover after throttling.
+     *
+     * @param additiveIncrease The increase per second as a fraction of the maximum rate, 0.05 by default
+     */
+    void setAdditiveIncrease(double additiveIncrease) {
+        if (additiveIncrease <= 0) {
+            throw new IllegalArgumentException("additiveIncrease must be positive.");
+        }
+        this.additiveIncrease = additiveIncrease;
+    }
+
+    /**
+     * Sets the factor applied to the rates on throttling.
+     *
+     * @param decreaseFactor A value between 0 and 1, 0.5 by default
+     */
+    void setDecreaseFactor(double decreaseFactor) {
+        if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+            throw new IllegalArgumentException("decreaseFactor must be between 0 and 1.");
+        }
+        this.decreaseFactor = decreaseFactor;
+    }
+
+    void setMinimumRate(double minimumRate) {
+        if (minimumRate <= 0) {
+            throw new IllegalArgumentException("minimumRate must be positive.");
+        }
+        this.minimumRate = minimumRate;
+    }
+
+    void setCoolDown(long coolDown, TimeUnit unit) {
+        this.coolDownNanos = unit.toNanos(coolDown);
+    }
+
+    /**
+     * Waits until the account and the partition have capacity for a request.
+     *
+     * @param partitionKey The partition of the request
+     * @param permits The number of entities written or read by the request
+     *
+     * @throws InterruptedException
+     */
+    void acquire(String partitionKey, int permits) throws InterruptedException {
+        long waitNanos = Math.max(this.account.bucket.reserve(permits), this.partition(partitionKey).bucket.reserve(permits));
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Records a successful response, which raises the rates towards their maximum.
+     *
+     * @param partitionKey The partition of the request
+     * @param permits The number of entities written or read by the request
+     */
+    void onSuccess(String partitionKey, int permits) {
+        this.account.increase(permits);
+        this.partition(partitionKey).increase(permits);
+    }
+
+    /**
+     * Records a throttled response, which lowers the rates.
+     *
+     * @param partitionKey The partition of the request
+     */
+    void onThrottled(String partitionKey) {
+        this.throttledCount.incrementAndGet();
+        this.account.decrease();
+        this.partition(partitionKey).decrease();
+    }
+
+    /**
+     * Returns an operation context that reports the response to every attempt of a request, including
+     * the retries made by the retry policy, to this limiter.
+     *
+     * @param partitionKey The partition of the request
+     * @param permits The number of entities written or read by the request
+     * @return The operation context to pass to the request
+     */
+    OperationContext createOperationContext(final String partitionKey, final int permits) {
+        OperationContext operationContext = new OperationContext();
+        operationContext.getResponseReceivedEventHandler().addListener(new StorageEvent<ResponseReceivedEvent>() {
+            @Override
+            public void eventOccurred(ResponseReceivedEvent event) {
+                int statusCode = event.getRequestResult().getStatusCode();
+                if (isThrottled(statusCode)) {
+                    AdaptiveRateLimiter.this.onThrottled(partitionKey);
+                } else if (statusCode < 500) {
+                    AdaptiveRateLimiter.this.onSuccess(partitionKey, permits);
+                }
+            }
+        });
+        return operationContext;
+    }
+
+    double getAccountRate() {
+        return this.account.bucket.getRate();
+    }
+
+    double getPartitionRate(String partitionKey) {
+        synchronized (this.partitions) {
+            RateController partition = this.partitions.get(partitionKey);
+            return partition == null ? this.partitionRate : partition.bucket.getRate();
+        }
+    }
+
+    long getThrottledCount() {
+        return this.throttledCount.get();
+    }
+
+    /**
+     * Returns whether a status code tells the client to slow down.
+     *
+     * @param statusCode The HTTP status code of a response
+     * @return true for 503 Server Busy and 429 Too Many Requests
+     */
+    static boolean isThrottled(int statusCode) {
+        return statusCode == 503 || statusCode == 429;
+    }
+
+    private RateController partition(String partitionKey) {
+        synchronized (this.partitions) {
+            RateController partition = this.partitions.get(partitionKey);
+            if (partition == null) {
+                partition = new RateController(this.partitionRate);
+                this.partitions.put(partitionKey, partition);
+            }
+            return partition;
+        }
+    }
+}
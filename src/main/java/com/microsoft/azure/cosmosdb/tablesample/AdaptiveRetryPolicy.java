@@ -0,0 +1,128 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.RetryContext;
+import com.microsoft.azure.storage.RetryInfo;
+import com.microsoft.azure.storage.RetryPolicy;
+import com.microsoft.azure.storage.RetryPolicyFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A retry policy with exponential backoff, decorrelated jitter and a retry budget.
+ *
+ * Each retry waits a random time between the base backoff and three times the previous wait, capped
+ * at the maximum backoff, so clients that failed together do not retry together. All operations that
+ * share the policy also share a budget of retries per second: once it is spent, failures are returned
+ * to the caller instead of being retried, which keeps an overloaded service from being hit by a storm
+ * of retries. Client errors other than timeouts and throttling are never retried.
+ *
+ * Set the policy with {@link com.microsoft.azure.storage.table.TableRequestOptions#setRetryPolicyFactory}.
+ */
+final class AdaptiveRetryPolicy extends RetryPolicy implements RetryPolicyFactory {
+
+    private final int maximumBackoffInMs;
+    private final TokenBucket retryBudget;
+    private final AtomicLong retryCount;
+    private final AtomicLong budgetExhaustedCount;
+    private int previousBackoffInMs;
+
+    /**
+     * Creates a retry policy.
+     *
+     * @param baseBackoffInMs The shortest wait before a retry
+     * @param maximumBackoffInMs The longest wait before a retry
+     * @param maximumAttempts The maximum number of retries of an operation
+     * @param retriesPerSecond The number of retries per second allowed across all operations
+     */
+    AdaptiveRetryPolicy(int baseBackoffInMs, int maximumBackoffInMs, int maximumAttempts, double retriesPerSecond) {
+        super(baseBackoffInMs, maximumAttempts);
+        if (baseBackoffInMs < 1 || maximumBackoffInMs < baseBackoffInMs) {
+            throw new IllegalArgumentException("The backoff must be positive and the maximum backoff must not be below the base backoff.");
+        }
+        this.maximumBackoffInMs = maximumBackoffInMs;
+        // Unused budget builds up for at most one second
+        this.retryBudget = new TokenBucket(retriesPerSecond, Math.max(1, retriesPerSecond));
+        this.retryCount = new AtomicLong();
+        this.budgetExhaustedCount = new AtomicLong();
+        this.previousBackoffInMs = baseBackoffInMs;
+    }
+
+    private AdaptiveRetryPolicy(AdaptiveRetryPolicy factory) {
+        super(factory.deltaBackoffIntervalInMs, factory.maximumAttempts);
+        this.maximumBackoffInMs = factory.maximumBackoffInMs;
+        this.retryBudget = factory.retryBudget;
+        this.retryCount = factory.retryCount;
+        this.budgetExhaustedCount = factory.budgetExhaustedCount;
+        this.previousBackoffInMs = factory.deltaBackoffIntervalInMs;
+    }
+
+    /**
+     * Creates the policy of a single operation, which shares the retry budget with this policy.
+     */
+    @Override
+    public RetryPolicy createInstance(OperationContext opContext) {
+        return new AdaptiveRetryPolicy(this);
+    }
+
+    @Override
+    public RetryInfo evaluate(RetryContext retryContext, OperationContext operationContext) {
+        boolean secondaryNotFound = this.evaluateLastAttemptAndSecondaryNotFound(retryContext);
+        if (retryContext.getCurrentRetryCount() >= this.maximumAttempts) {
+            return null;
+        }
+
+        int statusCode = retryContext.getLastRequestResult().getStatusCode();
+        if (!secondaryNotFound && !isRetryable(statusCode)) {
+            return null;
+        }
+
+        if (!this.retryBudget.tryAcquire(1)) {
+            this.budgetExhaustedCount.incrementAndGet();
+            return null;
+        }
+        this.retryCount.incrementAndGet();
+
+        int base = this.deltaBackoffIntervalInMs;
+        long ceiling = 3L * this.previousBackoffInMs;
+        int backoff = (int) Math.min(this.maximumBackoffInMs, base + ThreadLocalRandom.current().nextLong(ceiling - base + 1));
+        this.previousBackoffInMs = backoff;
+        return this.evaluateRetryInfo(retryContext, secondaryNotFound, backoff);
+    }
+
+    /**
+     * Returns the number of retries made by all operations using this policy.
+     */
+    long getRetryCount() {
+        return this.retryCount.get();
+    }
+
+    /**
+     * Returns the number of failures that were not retried because the retry budget was spent.
+     */
+    long getBudgetExhaustedCount() {
+        return this.budgetExhaustedCount.get();
+    }
+
+    private static boolean isRetryable(int statusCode) {
+        if (statusCode == 408 || AdaptiveRateLimiter.isThrottled(statusCode)) {
+            return true;
+        }
+        // 4xx errors will not go away on retry, neither will 501 Not Implemented or 505 Version Not Supported
+        return (statusCode < 400 || statusCode >= 500) && statusCode != 501 && statusCode != 505 && statusCode != 306;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableBatchOperation;
+import com.microsoft.azure.storage.table.TableEntity;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableResult;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A non-blocking facade over a {@link CloudTable}.
+ *
+ * Every call returns immediately with a {@link CompletableFuture}; the blocking service call runs on
+ * the executor of this facade. The number of outstanding requests (queued and running) is bounded:
+ * once the limit is reached new calls fail fast with a {@link RejectedExecutionException}, which lets
+ * callers shed load instead of queueing without bound. Queries are exposed as a {@link Publisher}
+ * that only fetches the next segment once the subscriber has requested more results.
+ *
+ * The executor can be supplied by the caller, for example a virtual thread per task executor on
+ * runtimes that provide one.
+ */
+final class AsyncCloudTable implements AutoCloseable {
+
+    /**
+     * A source of results that honors the demand signaled by its subscriber.
+     * The contract mirrors java.util.concurrent.Flow.Publisher.
+     */
+    interface Publisher<T> {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receives the results of a {@link Publisher}.
+     * The contract mirrors java.util.concurrent.Flow.Subscriber.
+     */
+    interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * Links a {@link Subscriber} to a {@link Publisher}.
+     * The contract mirrors java.util.concurrent.Flow.Subscription.
+     */
+    interface Subscription {
+        void request(long n);
+
+        void cancel();
+    }
+
+    /**
+     * A blocking call to the service.
+     */
+    private interface ServiceCall<R> {
+        R call() throws StorageException;
+    }
+
+    private final CloudTable table;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final Semaphore outstandingRequests;
+
+    /**
+     * Creates a facade that runs the service calls on its own pool of threads.
+     *
+     * @param table The {@link CloudTable} object
+     * @param maxConcurrentRequests The number of service calls running at the same time
+     * @param maxOutstandingRequests The maximum number of queued and running calls
+     */
+    AsyncCloudTable(CloudTable table, int maxConcurrentRequests, int maxOutstandingRequests) {
+        this(table, Executors.newFixedThreadPool(maxConcurrentRequests, r -> {
+            Thread thread = new Thread(r, "table-async");
+            thread.setDaemon(true);
+            return thread;
+        }), maxOutstandingRequests, true);
+    }
+
+    /**
+     * Creates a facade that runs the service calls on the given executor.
+     *
+     * @param table The {@link CloudTable} object
+     * @param executor The executor running the service calls
+     * @param maxOutstandingRequests The maximum number of queued and running calls
+     */
+    AsyncCloudTable(CloudTable table, ExecutorService executor, int maxOutstandingRequests) {
+        this(table, executor, maxOutstandingRequests, false);
+    }
+
+    private AsyncCloudTable(CloudTable table, ExecutorService executor, int maxOutstandingRequests, boolean ownsExecutor) {
+        if (table == null || executor == null) {
+            throw new IllegalArgumentException("table and executor must not be null.");
+        }
+        if (maxOutstandingRequests < 1) {
+            throw new IllegalArgumentException("maxOutstandingRequests must be at least 1.");
+        }
+        this.table = table;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.outstandingRequests = new Semaphore(maxOutstandingRequests);
+    }
+
+    CloudTable getTable() {
+        return this.table;
+    }
+
+    /**
+     * Executes a single entity operation.
+     *
+     * @param operation The operation
+     * @return A future completed with the result of the operation
+     */
+    CompletableFuture<TableResult> executeAsync(final TableOperation operation) {
+        return this.submit(() -> this.table.execute(operation));
+    }
+
+    /**
+     * Executes an entity group transaction.
+     *
+     * @param batch The batch operation
+     * @return A future completed with the results of the operations of the batch
+     */
+    CompletableFuture<List<TableResult>> batchAsync(final TableBatchOperation batch) {
+        return this.submit(() -> this.table.execute(batch));
+    }
+
+    /**
+     * Executes one segment of a query.
+     *
+     * @param query The query
+     * @param token The continuation token of the segment, or null for the first segment
+     * @return A future completed with the segment
+     */
+    <T extends TableEntity> CompletableFuture<ResultSegment<T>> querySegmentAsync(final TableQuery<T> query, final ResultContinuation token) {
+        return this.submit(() -> this.table.executeSegmented(query, token));
+    }
+
+    /**
+     * Returns a publisher of the results of a query. Every subscription runs the query from the start
+     * and fetches a segment only when the results of the previous one have been requested.
+     *
+     * @param query The query
+     * @return The publisher
+     */
+    <T extends TableEntity> Publisher<T> queryAsync(final TableQuery<T> query) {
+        return subscriber -> {
+            QuerySubscription<T> subscription = new QuerySubscription<T>(query, subscriber);
+            subscriber.onSubscribe(subscription);
+            subscription.drain();
+        };
+    }
+
+    /**
+     * Shuts down the executor if it was created by this facade.
+     */
+    @Override
+    public void close() {
+        if (this.ownsExecutor) {
+            this.executor.shutdown();
+        }
+    }
+
+    private <R> CompletableFuture<R> submit(final ServiceCall<R> serviceCall) {
+        final CompletableFuture<R> future = new CompletableFuture<R>();
+        if (!this.outstandingRequests.tryAcquire()) {
+            future.completeExceptionally(new RejectedExecutionException("Too many outstanding table requests."));
+            return future;
+        }
+
+        try {
+            this.executor.execute(() -> {
+                try {
+                    future.complete(serviceCall.call());
+                }
+                catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+                finally {
+                    this.outstandingRequests.release();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            this.outstandingRequests.release();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Delivers the results of a query to a subscriber within its demand.
+     *
+     * All signals to the subscriber are emitted from the drain loop, which only one thread runs at a
+     * time, so the subscriber is never called concurrently.
+     */
+    private final class QuerySubscription<T extends TableEntity> implements Subscription {
+        private final TableQuery<T> query;
+        private final Subscriber<? super T> subscriber;
+        private final Queue<T> buffer = new ConcurrentLinkedQueue<T>();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile ResultContinuation token;
+        private volatile boolean fetching;
+        private volatile boolean exhausted;
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+        private boolean terminated;
+
+        QuerySubscription(TableQuery<T> query, Subscriber<? super T> subscriber) {
+            this.query = query;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                this.error = new IllegalArgumentException("The requested number of results must be positive.");
+            } else {
+                long current;
+                do {
+                    current = this.demand.get();
+                } while (!this.demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            }
+            this.drain();
+        }
+
+        @Override
+        public void cancel() {
+            this.cancelled = true;
+            this.drain();
+        }
+
+        void drain() {
+            if (this.wip.getAndIncrement() != 0) {
+                return;
+            }
+
+            do {
+                if (this.terminated) {
+                    this.buffer.clear();
+                    continue;
+                }
+                if (this.cancelled) {
+                    this.terminated = true;
+                    this.buffer.clear();
+                    continue;
+                }
+
+                while (this.demand.get() > 0 && !this.buffer.isEmpty() && !this.cancelled) {
+                    this.demand.decrementAndGet();
+                    this.subscriber.onNext(this.buffer.poll());
+                }
+
+                if (this.buffer.isEmpty() && !this.cancelled) {
+                    if (this.error != null) {
+                        this.terminated = true;
+                        this.subscriber.onError(this.error);
+                    } else if (this.exhausted) {
+                        this.terminated = true;
+                        this.subscriber.onComplete();
+                    } else if (this.demand.get() > 0 && !this.fetching) {
+                        this.fetchNextSegment();
+                    }
+                }
+            } while (this.wip.decrementAndGet() != 0);
+        }
+
+        private void fetchNextSegment() {
+            this.fetching = true;
+            AsyncCloudTable.this.querySegmentAsync(this.query, this.token).whenComplete((segment, throwable) -> {
+                if (throwable != null) {
+                    this.error = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                } else {
+                    this.buffer.addAll(segment.getResults());
+                    this.token = segment.getContinuationToken();
+                    this.exhausted = this.token == null;
+                }
+                this.fetching = false;
+                this.drain();
+            });
+        }
+    }
+}
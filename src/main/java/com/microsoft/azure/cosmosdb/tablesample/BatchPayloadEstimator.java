@@ -0,0 +1,105 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.TableEntity;
+
+import java.util.Map;
+
+/**
+ * Estimates the serialized size of entities within an entity group transaction (batch)
+ * so that callers can cut batches before the service limits are reached.
+ */
+final class BatchPayloadEstimator {
+
+    /**
+     * The maximum number of operations allowed in a single batch.
+     */
+    static final int MAX_BATCH_OPERATIONS = 100;
+
+    /**
+     * The batch payload budget. The service rejects batches larger than 4MB, the budget
+     * leaves room for the MIME envelope and for estimation error.
+     */
+    static final int MAX_BATCH_PAYLOAD_BYTES = 4 * 1024 * 1024 - 192 * 1024;
+
+    // MIME part headers, request line and JSON punctuation added for every operation in a batch
+    private static final int OPERATION_OVERHEAD_BYTES = 512;
+
+    // Type annotation ("Name@odata.type":"Edm.Xxx") and punctuation added for every property
+    private static final int PROPERTY_OVERHEAD_BYTES = 40;
+
+    private BatchPayloadEstimator() { }
+
+    /**
+     * Returns a conservative estimate of the number of bytes the entity adds to a batch payload.
+     *
+     * @param entity The entity to be written
+     * @return The estimated size in bytes
+     *
+     * @throws StorageException
+     */
+    static int estimateBytes(TableEntity entity) throws StorageException {
+        // The keys appear in both the request URL and the JSON body
+        int size = OPERATION_OVERHEAD_BYTES
+                + 2 * utf8Length(entity.getPartitionKey())
+                + 2 * utf8Length(entity.getRowKey());
+
+        Map<String, EntityProperty> properties = entity.writeEntity(null);
+        if (properties != null) {
+            for (Map.Entry<String, EntityProperty> property : properties.entrySet()) {
+                size += PROPERTY_OVERHEAD_BYTES + 2 * utf8Length(property.getKey()) + estimateValueBytes(property.getValue());
+            }
+        }
+        return size;
+    }
+
+    private static int estimateValueBytes(EntityProperty property) {
+        if (property == null || property.getIsNull()) {
+            return 4;
+        }
+
+        switch (property.getEdmType()) {
+            case STRING:
+                // Allow for JSON escaping of quotes and backslashes
+                return utf8Length(property.getValueAsString()) * 6 / 5 + 2;
+            case BINARY:
+                // Binary values are sent base64 encoded
+                return (property.getValueAsByteArray().length + 2) / 3 * 4 + 2;
+            default:
+                return 40;
+        }
+    }
+
+    private static int utf8Length(String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.ResultContinuation;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The progress of a bulk delete: scanned and deleted entity counts, overall rate and the checkpoint
+ * from which an interrupted delete resumes.
+ */
+final class BulkDeleteProgress {
+
+    private final long scannedCount;
+    private final long deletedCount;
+    private final long notFoundCount;
+    private final long skippedCount;
+    private final long batchCount;
+    private final long elapsedNanos;
+    private final ResultContinuation checkpoint;
+    private final boolean completed;
+
+    BulkDeleteProgress(long scannedCount, long deletedCount, long notFoundCount, long skippedCount, long batchCount, long elapsedNanos,
+            ResultContinuation checkpoint, boolean completed) {
+        this.scannedCount = scannedCount;
+        this.deletedCount = deletedCount;
+        this.notFoundCount = notFoundCount;
+        this.skippedCount = skippedCount;
+        this.batchCount = batchCount;
+        this.elapsedNanos = elapsedNanos;
+        this.checkpoint = checkpoint;
+        this.completed = completed;
+    }
+
+    /**
+     * Returns the number of keys returned by the scan so far.
+     */
+    long getScannedCount() {
+        return this.scannedCount;
+    }
+
+    long getDeletedCount() {
+        return this.deletedCount;
+    }
+
+    /**
+     * Returns the number of entities that were already gone when their delete was sent, for example
+     * because an earlier run deleted them after its last checkpoint.
+     */
+    long getNotFoundCount() {
+        return this.notFoundCount;
+    }
+
+    /**
+     * Returns the number of entities that were kept because they were written after the scan returned them.
+     */
+    long getSkippedCount() {
+        return this.skippedCount;
+    }
+
+    /**
+     * Returns the number of batch requests that succeeded. Entities of failed batches deleted one by one
+     * are not counted as batches.
+     */
+    long getBatchCount() {
+        return this.batchCount;
+    }
+
+    long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.elapsedNanos);
+    }
+
+    double getEntitiesPerSecond() {
+        return this.elapsedNanos == 0 ? 0 : this.deletedCount * 1e9 / this.elapsedNanos;
+    }
+
+    /**
+     * Returns the continuation token from which a new delete of the same filter resumes. Every entity
+     * before the token has been deleted. Use {@link ContinuationTokens} to persist it.
+     *
+     * @return The continuation token, or null when resuming means starting from the beginning or
+     *         when the delete is complete
+     */
+    ResultContinuation getCheckpoint() {
+        return this.checkpoint;
+    }
+
+    boolean isCompleted() {
+        return this.completed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d of %d scanned entities deleted in %d batches, %d not found, %d skipped, %d ms, %.1f entities/sec",
+                this.deletedCount,
+                this.scannedCount,
+                this.batchCount,
+                this.notFoundCount,
+                this.skippedCount,
+                this.getElapsedMillis(),
+                this.getEntitiesPerSecond());
+    }
+}
@@ -0,0 +1,79 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Summary of a bulk load: entity and batch counts, overall rate and per-batch latency.
+ */
+final class BulkLoadResult {
+
+    private final long entityCount;
+    private final long[] batchLatenciesNanos;
+    private final long elapsedNanos;
+
+    BulkLoadResult(long entityCount, long[] batchLatenciesNanos, long elapsedNanos) {
+        this.entityCount = entityCount;
+        this.batchLatenciesNanos = batchLatenciesNanos.clone();
+        this.elapsedNanos = elapsedNanos;
+        Arrays.sort(this.batchLatenciesNanos);
+    }
+
+    long getEntityCount() {
+        return this.entityCount;
+    }
+
+    int getBatchCount() {
+        return this.batchLatenciesNanos.length;
+    }
+
+    long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.elapsedNanos);
+    }
+
+    double getEntitiesPerSecond() {
+        return this.elapsedNanos == 0 ? 0 : this.entityCount * 1e9 / this.elapsedNanos;
+    }
+
+    /**
+     * Returns the batch latency at the given percentile.
+     *
+     * @param percentile A value between 0 and 100
+     * @return The latency in milliseconds, or 0 if no batch was executed
+     */
+    double getBatchLatencyMillis(double percentile) {
+        if (this.batchLatenciesNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * this.batchLatenciesNanos.length) - 1;
+        index = Math.max(0, Math.min(index, this.batchLatenciesNanos.length - 1));
+        return this.batchLatenciesNanos[index] / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d entities in %d batches, %d ms, %.1f entities/sec, batch latency p50=%.1f ms p99=%.1f ms max=%.1f ms",
+                this.entityCount,
+                this.getBatchCount(),
+                this.getElapsedMillis(),
+                this.getEntitiesPerSecond(),
+                this.getBatchLatencyMillis(50),
+                this.getBatchLatencyMillis(99),
+                this.getBatchLatencyMillis(100));
+    }
+}
@@ -0,0 +1,333 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableEntity;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableResult;
+
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read-through cache in front of the point reads of a {@link CloudTable}.
+ *
+ * Entities are cached by partition and row key in a size bounded LRU map, and every entry expires
+ * after a fixed time to live. Writes that go through this class keep the cache up to date: inserts
+ * and replaces store the written entity with its new ETag, conditional merges are applied to the
+ * cached copy, and deletes, unconditional merges and failed conditional writes invalidate the entry.
+ * A read that was in flight while its entity was written or invalidated is returned but not cached.
+ * Writes made by other clients are only picked up once the entry expires.
+ */
+final class CachingCloudTable {
+
+    private static final class CacheEntry {
+        private final EntitySnapshot snapshot;
+        private final long expiresAtNanos;
+
+        CacheEntry(EntitySnapshot snapshot, long expiresAtNanos) {
+            this.snapshot = snapshot;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    /**
+     * The reads of one entity in flight, and how often the entity was written or invalidated meanwhile.
+     */
+    private static final class PendingRead {
+        private int readers;
+        private long epoch;
+    }
+
+    private final CloudTable table;
+    private final long timeToLiveNanos;
+    private final LinkedHashMap<EntityKey, CacheEntry> entries;
+    private final HashMap<EntityKey, PendingRead> pendingReads = new HashMap<EntityKey, PendingRead>();
+    private final SingleFlightRetriever retriever = new SingleFlightRetriever();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong expirationCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    /**
+     * Creates a cache for the given table.
+     *
+     * @param table The {@link CloudTable} object
+     * @param maximumSize The maximum number of cached entities
+     * @param timeToLive How long an entity stays cached after it was read or written
+     * @param unit The unit of the time to live
+     */
+    CachingCloudTable(CloudTable table, final int maximumSize, long timeToLive, TimeUnit unit) {
+        if (table == null) {
+            throw new IllegalArgumentException("table");
+        }
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be at least 1.");
+        }
+        this.table = table;
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+
+        // Access order turns the map into an LRU list
+        this.entries = new LinkedHashMap<EntityKey, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<EntityKey, CacheEntry> eldest) {
+                if (this.size() > maximumSize) {
+                    CachingCloudTable.this.evictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    CloudTable getTable() {
+        return this.table;
+    }
+
+    /**
+     * Returns the entity with the given keys, from the cache if possible.
+     *
+     * @param partitionKey The partition key
+     * @param rowKey The row key
+     * @param clazzType The entity class
+     * @return A new entity object, or null if the entity does not exist
+     *
+     * @throws StorageException
+     */
+    <T extends TableEntity> T retrieve(String partitionKey, String rowKey, Class<T> clazzType) throws StorageException {
+        EntityKey key = this.key(partitionKey, rowKey);
+        EntitySnapshot snapshot = this.get(key);
+        if (snapshot != null) {
+            this.hitCount.incrementAndGet();
+            return snapshot.toEntity(clazzType);
+        }
+
+        // Concurrent misses for the same entity share one request
+        this.missCount.incrementAndGet();
+        PendingRead pending;
+        long epoch;
+        synchronized (this.entries) {
+            pending = this.pendingReads.computeIfAbsent(key, k -> new PendingRead());
+            pending.readers++;
+            epoch = pending.epoch;
+        }
+        try {
+            snapshot = this.retriever.retrieveSnapshot(this.table, partitionKey, rowKey);
+        }
+        finally {
+            synchronized (this.entries) {
+                // A write or invalidation that completed while the read was in flight may have made it stale
+                if (snapshot != null && pending.epoch == epoch) {
+                    this.putLocked(key, snapshot);
+                }
+                if (--pending.readers == 0) {
+                    this.pendingReads.remove(key);
+                }
+            }
+        }
+        return snapshot == null ? null : snapshot.toEntity(clazzType);
+    }
+
+    TableResult insert(TableEntity entity) throws StorageException {
+        TableResult result = this.write(entity, TableOperation.insert(entity));
+        this.put(this.key(entity), EntitySnapshot.of(entity));
+        return result;
+    }
+
+    TableResult insertOrReplace(TableEntity entity) throws StorageException {
+        TableResult result = this.write(entity, TableOperation.insertOrReplace(entity));
+        this.put(this.key(entity), EntitySnapshot.of(entity));
+        return result;
+    }
+
+    TableResult replace(TableEntity entity) throws StorageException {
+        TableResult result = this.write(entity, TableOperation.replace(entity));
+        this.put(this.key(entity), EntitySnapshot.of(entity));
+        return result;
+    }
+
+    TableResult insertOrMerge(TableEntity entity) throws StorageException {
+        // The stored state before the merge is unknown, so the cached copy cannot be updated
+        TableResult result = this.write(entity, TableOperation.insertOrMerge(entity));
+        this.invalidate(entity.getPartitionKey(), entity.getRowKey());
+        return result;
+    }
+
+    TableResult merge(TableEntity entity) throws StorageException {
+        EntityKey key = this.key(entity);
+        String expectedEtag = entity.getEtag();
+        TableResult result = this.write(entity, TableOperation.merge(entity));
+
+        // A successful conditional merge proves that the cached copy was the stored state
+        this.retriever.forget(this.table, entity.getPartitionKey(), entity.getRowKey());
+        synchronized (this.entries) {
+            CacheEntry cached = this.entries.get(key);
+            if (cached != null && expectedEtag != null && expectedEtag.equals(cached.snapshot.getEtag())) {
+                this.changedLocked(key);
+                this.putLocked(key, cached.snapshot.merge(entity.writeEntity(null), result.getEtag()));
+                return result;
+            }
+        }
+        this.invalidate(entity.getPartitionKey(), entity.getRowKey());
+        return result;
+    }
+
+    TableResult delete(TableEntity entity) throws StorageException {
+        TableResult result = this.write(entity, TableOperation.delete(entity));
+        this.invalidate(entity.getPartitionKey(), entity.getRowKey());
+        return result;
+    }
+
+    /**
+     * Stores the state of an entity that was written around this cache, for example in a batch.
+     *
+     * @param entity The entity with the ETag returned by the write
+     *
+     * @throws StorageException
+     */
+    void refresh(TableEntity entity) throws StorageException {
+        this.put(this.key(entity), EntitySnapshot.of(entity));
+    }
+
+    /**
+     * Removes an entity from the cache.
+     *
+     * @param partitionKey The partition key
+     * @param rowKey The row key
+     */
+    void invalidate(String partitionKey, String rowKey) {
+        EntityKey key = this.key(partitionKey, rowKey);
+        this.retriever.forget(this.table, partitionKey, rowKey);
+        synchronized (this.entries) {
+            this.changedLocked(key);
+            if (this.entries.remove(key) != null) {
+                this.invalidationCount.incrementAndGet();
+            }
+        }
+    }
+
+    void clear() {
+        synchronized (this.entries) {
+            for (PendingRead pending : this.pendingReads.values()) {
+                pending.epoch++;
+            }
+            this.entries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    long getMissCount() {
+        return this.missCount.get();
+    }
+
+    long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    long getExpirationCount() {
+        return this.expirationCount.get();
+    }
+
+    long getInvalidationCount() {
+        return this.invalidationCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d, misses=%d, evictions=%d, expirations=%d, invalidations=%d, size=%d",
+                this.getHitCount(), this.getMissCount(), this.getEvictionCount(),
+                this.getExpirationCount(), this.getInvalidationCount(), this.size());
+    }
+
+    private TableResult write(TableEntity entity, TableOperation operation) throws StorageException {
+        try {
+            return this.table.execute(operation);
+        }
+        catch (StorageException e) {
+            // The cached ETag no longer matches the stored entity, or the entity is gone
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_PRECON_FAILED
+                    || e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND
+                    || e.getHttpStatusCode() == HttpURLConnection.HTTP_CONFLICT) {
+                this.invalidate(entity.getPartitionKey(), entity.getRowKey());
+            }
+            throw e;
+        }
+    }
+
+    private EntitySnapshot get(EntityKey key) {
+        synchronized (this.entries) {
+            CacheEntry entry = this.entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.expiresAtNanos >= 0) {
+                this.entries.remove(key);
+                this.expirationCount.incrementAndGet();
+                return null;
+            }
+            return entry.snapshot;
+        }
+    }
+
+    /**
+     * Stores the state of a written entity.
+     */
+    private void put(EntityKey key, EntitySnapshot snapshot) {
+        this.retriever.forget(this.table, key.getPartitionKey(), key.getRowKey());
+        synchronized (this.entries) {
+            this.changedLocked(key);
+            this.putLocked(key, snapshot);
+        }
+    }
+
+    /**
+     * Keeps the reads of an entity in flight from being cached. Called after the entity was written or
+     * invalidated, and after the request of those reads was forgotten, so later reads send a new one.
+     */
+    private void changedLocked(EntityKey key) {
+        PendingRead pending = this.pendingReads.get(key);
+        if (pending != null) {
+            pending.epoch++;
+        }
+    }
+
+    private void putLocked(EntityKey key, EntitySnapshot snapshot) {
+        this.entries.put(key, new CacheEntry(snapshot, System.nanoTime() + this.timeToLiveNanos));
+    }
+
+    private EntityKey key(TableEntity entity) {
+        return this.key(entity.getPartitionKey(), entity.getRowKey());
+    }
+
+    private EntityKey key(String partitionKey, String rowKey) {
+        return new EntityKey(this.table.getName(), partitionKey, rowKey);
+    }
+}
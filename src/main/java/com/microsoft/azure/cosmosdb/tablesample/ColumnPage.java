@@ -0,0 +1,126 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.EntityProperty;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * One page of the results of a {@link ProjectionQuery}, stored column by column.
+ *
+ * The keys and the values of every selected column are kept in parallel arrays indexed by the
+ * position of the entity in the page, so a page of results costs a handful of arrays instead of
+ * one object per entity.
+ */
+final class ColumnPage {
+
+    private final String[] columns;
+    private String[] partitionKeys;
+    private String[] rowKeys;
+    private final EntityProperty[][] values;
+    private int size;
+
+    ColumnPage(String[] columns, int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 1);
+        this.columns = columns;
+        this.partitionKeys = new String[capacity];
+        this.rowKeys = new String[capacity];
+        this.values = new EntityProperty[columns.length][capacity];
+    }
+
+    /**
+     * Returns the number of entities in the page.
+     */
+    int size() {
+        return this.size;
+    }
+
+    int getColumnCount() {
+        return this.columns.length;
+    }
+
+    String getColumnName(int column) {
+        return this.columns[column];
+    }
+
+    /**
+     * Returns the position of a column in the projection.
+     *
+     * @param columnName The name of the column
+     * @return The position of the column
+     */
+    int getColumnIndex(String columnName) {
+        return ProjectionQuery.indexOf(this.columns, columnName);
+    }
+
+    String getPartitionKey(int row) {
+        this.checkRow(row);
+        return this.partitionKeys[row];
+    }
+
+    String getRowKey(int row) {
+        this.checkRow(row);
+        return this.rowKeys[row];
+    }
+
+    /**
+     * Returns the value of a column for one entity of the page.
+     *
+     * @param column The position of the column in the projection
+     * @param row The position of the entity in the page
+     * @return The property, or null if the entity does not have the property
+     */
+    EntityProperty getProperty(int column, int row) {
+        this.checkRow(row);
+        return this.values[column][row];
+    }
+
+    /**
+     * Returns the value of a column for one entity of the page as a string.
+     *
+     * @param column The position of the column in the projection
+     * @param row The position of the entity in the page
+     * @return The value, or null if the entity does not have the property
+     */
+    String getString(int column, int row) {
+        EntityProperty property = this.getProperty(column, row);
+        return property == null ? null : property.getValueAsString();
+    }
+
+    void add(String partitionKey, String rowKey, Map<String, EntityProperty> properties) {
+        if (this.size == this.partitionKeys.length) {
+            int capacity = this.size * 2;
+            this.partitionKeys = Arrays.copyOf(this.partitionKeys, capacity);
+            this.rowKeys = Arrays.copyOf(this.rowKeys, capacity);
+            for (int i = 0; i < this.values.length; i++) {
+                this.values[i] = Arrays.copyOf(this.values[i], capacity);
+            }
+        }
+
+        this.partitionKeys[this.size] = partitionKey;
+        this.rowKeys[this.size] = rowKey;
+        for (int i = 0; i < this.columns.length; i++) {
+            this.values[i][this.size] = ProjectionQuery.valueOf(properties, this.columns[i]);
+        }
+        this.size++;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= this.size) {
+            throw new IndexOutOfBoundsException(String.format("Row %d is outside of a page of %d entities.", row, this.size));
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageException;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A queue of requests that the calling threads process themselves, one thread at a time.
+ *
+ * The thread that finds the queue idle takes requests from its head and processes them, including
+ * those of other threads, until its own request is done. It then hands the queue to the thread of the
+ * next waiting request, so no caller keeps working for others indefinitely. Requests that processing
+ * leaves incomplete are failed, and the queue is handed on whatever processing throws, so a failure
+ * never leaves the other callers waiting.
+ *
+ * @param <Q> The request type
+ */
+abstract class CombiningQueue<Q extends CombiningQueue.Request<?>> {
+
+    /**
+     * A request and its result.
+     *
+     * @param <R> The result type
+     */
+    static class Request<R> {
+        private final CompletableFuture<R> result = new CompletableFuture<R>();
+
+        // Completed with true when the waiting thread has to process the queue, false when the request is done
+        private final CompletableFuture<Boolean> turn = new CompletableFuture<Boolean>();
+
+        final void complete(R value) {
+            this.result.complete(value);
+            this.turn.complete(false);
+        }
+
+        final void fail(Throwable throwable) {
+            this.result.completeExceptionally(throwable);
+            this.turn.complete(false);
+        }
+
+        /**
+         * Waits until the request is done or the thread of the request has to process the queue.
+         *
+         * @return true if the thread has to process the queue
+         */
+        private boolean awaitTurn() {
+            return this.turn.join();
+        }
+
+        private void passTurn() {
+            this.turn.complete(true);
+        }
+
+        final boolean isDone() {
+            return this.result.isDone();
+        }
+
+        /**
+         * @return The result of the request, once it is done
+         *
+         * @throws StorageException when the request failed with one
+         */
+        final R getResult() throws StorageException {
+            return join(this.result);
+        }
+    }
+
+    private final ArrayDeque<Q> pending = new ArrayDeque<Q>();
+    private boolean processing;
+
+    /**
+     * Takes the requests to process next. Called with the queue locked.
+     *
+     * @param pending The queued requests, at least one
+     * @return The requests taken from the head of the queue
+     */
+    abstract List<Q> take(ArrayDeque<Q> pending);
+
+    /**
+     * Processes requests taken from the queue and completes them.
+     *
+     * @param requests The requests
+     */
+    abstract void process(List<Q> requests);
+
+    /**
+     * Called with the queue locked when the last request is done.
+     */
+    void idle() {
+    }
+
+    /**
+     * Queues a request and returns when it is done, after processing the queue if it is the turn of the
+     * calling thread.
+     *
+     * @param request The request
+     */
+    final void submit(Q request) {
+        boolean processing;
+        synchronized (this) {
+            this.pending.add(request);
+            processing = !this.processing;
+            this.processing = true;
+        }
+
+        // The thread that found the queue idle processes it, the others wait for their result or their turn
+        if (processing || ((Request<?>) request).awaitTurn()) {
+            this.drain(request);
+        }
+    }
+
+    private void drain(Q own) {
+        try {
+            while (true) {
+                List<Q> requests;
+                synchronized (this) {
+                    if (this.pending.isEmpty() || own.isDone()) {
+                        return;
+                    }
+                    requests = this.take(this.pending);
+                }
+
+                try {
+                    this.process(requests);
+                }
+                catch (Throwable t) {
+                    failAll(requests, t);
+                    throw t;
+                }
+                failAll(requests, new IllegalStateException("The request was not completed."));
+            }
+        }
+        catch (Throwable t) {
+            // The request of this thread may still be queued behind the failed ones
+            synchronized (this) {
+                if (!own.isDone() && this.pending.remove(own)) {
+                    own.fail(t);
+                }
+            }
+            throw t;
+        }
+        finally {
+            synchronized (this) {
+                if (this.pending.isEmpty()) {
+                    this.processing = false;
+                    this.idle();
+                } else {
+                    ((Request<?>) this.pending.peek()).passTurn();
+                }
+            }
+        }
+    }
+
+    private static void failAll(List<? extends Request<?>> requests, Throwable throwable) {
+        for (Request<?> request : requests) {
+            if (!request.isDone()) {
+                request.fail(throwable);
+            }
+        }
+    }
+
+    /**
+     * Waits for a future and rethrows its failure as it was thrown: storage exceptions, runtime
+     * exceptions and errors unchanged, other exceptions wrapped in a {@link CompletionException}.
+     *
+     * @param future The future
+     * @return The result of the future
+     *
+     * @throws StorageException when the future failed with one
+     */
+    static <R> R join(CompletableFuture<R> future) throws StorageException {
+        try {
+            return future.join();
+        }
+        catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof StorageException) {
+                throw (StorageException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultContinuationType;
+import com.microsoft.azure.storage.StorageLocation;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+/**
+ * Converts query continuation tokens to and from a single line of text so that they can be
+ * persisted and used to resume a query later.
+ */
+final class ContinuationTokens {
+
+    private static final String SEPARATOR = ";";
+    private static final String ENCODING = "UTF-8";
+
+    private ContinuationTokens() { }
+
+    /**
+     * Serializes a continuation token.
+     *
+     * @param token The token to serialize, may be null
+     * @return The serialized token, or null if the token is null
+     */
+    static String serialize(ResultContinuation token) {
+        if (token == null) {
+            return null;
+        }
+
+        return String.join(SEPARATOR,
+                encode(token.getContinuationType() == null ? null : token.getContinuationType().name()),
+                encode(token.getNextPartitionKey()),
+                encode(token.getNextRowKey()),
+                encode(token.getNextTableName()),
+                encode(token.getTargetLocation() == null ? null : token.getTargetLocation().name()));
+    }
+
+    /**
+     * Deserializes a continuation token produced by {@link #serialize(ResultContinuation)}.
+     *
+     * @param value The serialized token, may be null
+     * @return The continuation token, or null if the value is null or empty
+     */
+    static ResultContinuation deserialize(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+
+        String[] parts = value.split(SEPARATOR, -1);
+        if (parts.length != 5) {
+            throw new IllegalArgumentException(String.format("\"%s\" is not a valid continuation token.", value));
+        }
+
+        ResultContinuation token = new ResultContinuation();
+        String type = decode(parts[0]);
+        token.setContinuationType(type == null ? ResultContinuationType.TABLE : ResultContinuationType.valueOf(type));
+        token.setNextPartitionKey(decode(parts[1]));
+        token.setNextRowKey(decode(parts[2]));
+        token.setNextTableName(decode(parts[3]));
+        String location = decode(parts[4]);
+        if (location != null) {
+            token.setTargetLocation(StorageLocation.valueOf(location));
+        }
+        return token;
+    }
+
+    private static String encode(String value) {
+        if (value == null) {
+            return "";
+        }
+        try {
+            // Prefix non-null values so that null and the empty string stay distinguishable
+            return "=" + URLEncoder.encode(value, ENCODING);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        if (value.isEmpty()) {
+            return null;
+        }
+        try {
+            return URLDecoder.decode(value.substring(1), ENCODING);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -14,8 +14,15 @@
 // places, or events is intended or should be inferred.
 //----------------------------------------------------------------------------------
 package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.EdmType;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.EntityResolver;
 import com.microsoft.azure.storage.table.TableServiceEntity;
 
+import java.util.HashMap;
+
 /**
  * Define a customer entity for demonstrating the Table Service.
  * An entity's partition and row key uniquely identify the entity in the table.
@@ -24,9 +31,33 @@ import com.microsoft.azure.storage.table.TableServiceEntity;
  * NOTE: For the purposes of the sample we use the customer's first name as the row key and last name
  *       as the partition key. In reality this would not be a good PK and RK combination as it would
  *       likely not be guaranteed to be unique which is one of the requirements for an entity. *
+ *       Popular last names also concentrate the traffic on a few partitions, see {@link PartitionKeyStrategy}
+ *       and {@link ShardedTable} for spreading them over several partitions.
+ *
+ * The properties are mapped by hand in readEntity and writeEntity instead of through the reflection
+ * based discovery of TableServiceEntity. The mapping produces the same property names and values as
+ * the reflection based one, so stored entities stay compatible.
+ *
+ * The email address and the home phone number are {@link Indexed}, so an {@link IndexedTable} can find
+ * customers by them without scanning the table.
  */
 public class CustomerEntity extends TableServiceEntity {
 
+    private static final String EMAIL = "Email";
+    private static final String HOME_PHONE_NUMBER = "HomePhoneNumber";
+    private static final String WORK_PHONE_NUMBER = "WorkPhoneNumber";
+
+    /**
+     * Resolves query and retrieve results into customers without creating them through reflection.
+     */
+    public static final EntityResolver<CustomerEntity> RESOLVER = (partitionKey, rowKey, timeStamp, properties, etag) -> {
+        CustomerEntity customer = new CustomerEntity(partitionKey, rowKey);
+        customer.setTimestamp(timeStamp);
+        customer.setEtag(etag);
+        customer.readEntity(properties, null);
+        return customer;
+    };
+
     public CustomerEntity(String lastName, String firstName) {
         this.partitionKey = lastName;
         this.rowKey = firstName;
@@ -38,6 +69,7 @@ public class CustomerEntity extends TableServiceEntity {
     public String homePhoneNumber;
     public String workPhoneNumber;
 
+    @Indexed
     public String getEmail() {
         return this.email;
     }
@@ -46,6 +78,7 @@ public class CustomerEntity extends TableServiceEntity {
         this.email = email;
     }
 
+    @Indexed
     public String getHomePhoneNumber() {
         return this.homePhoneNumber;
     }
@@ -61,4 +94,30 @@ public class CustomerEntity extends TableServiceEntity {
     public void setWorkPhoneNumber(String workPhoneNumber) {
         this.workPhoneNumber = workPhoneNumber;
     }
+
+    @Override
+    public void readEntity(HashMap<String, EntityProperty> properties, OperationContext opContext) throws StorageException {
+        // Like the reflection based mapping, properties of another type than String are ignored
+        this.email = readString(properties, EMAIL, this.email);
+        this.homePhoneNumber = readString(properties, HOME_PHONE_NUMBER, this.homePhoneNumber);
+        this.workPhoneNumber = readString(properties, WORK_PHONE_NUMBER, this.workPhoneNumber);
+    }
+
+    @Override
+    public HashMap<String, EntityProperty> writeEntity(OperationContext opContext) throws StorageException {
+        // Null values are written too, the way the reflection based mapping does it
+        HashMap<String, EntityProperty> properties = new HashMap<String, EntityProperty>(8);
+        properties.put(EMAIL, new EntityProperty(this.email));
+        properties.put(HOME_PHONE_NUMBER, new EntityProperty(this.homePhoneNumber));
+        properties.put(WORK_PHONE_NUMBER, new EntityProperty(this.workPhoneNumber));
+        return properties;
+    }
+
+    private static String readString(HashMap<String, EntityProperty> properties, String name, String currentValue) {
+        EntityProperty property = properties.get(name);
+        if (property == null || property.getEdmType() != EdmType.STRING) {
+            return currentValue;
+        }
+        return property.getValueAsString();
+    }
 }
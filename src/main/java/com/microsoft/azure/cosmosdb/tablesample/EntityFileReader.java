@@ -0,0 +1,200 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * Reads the entities of a file written by {@link EntityFileWriter}.
+ *
+ * The file is read through a file channel in large chunks and every record is decoded from the
+ * buffer in place. Read failures are rethrown from the iterator as {@link UncheckedIOException}.
+ */
+final class EntityFileReader implements Iterator<DynamicTableEntity>, AutoCloseable {
+
+    private static final int DEFAULT_BUFFER_BYTES = 1024 * 1024;
+
+    private final Path path;
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(DEFAULT_BUFFER_BYTES);
+    private boolean endOfFile;
+
+    /**
+     * Opens a file and checks its header.
+     *
+     * @param path The path of the file
+     *
+     * @throws IOException
+     */
+    EntityFileReader(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.buffer.limit(0);
+
+        try {
+            if (!this.fill(EntityFileWriter.HEADER_BYTES) || this.buffer.getInt() != EntityFileWriter.MAGIC) {
+                throw new IOException(String.format("%s is not an entity file.", path));
+            }
+            int version = this.buffer.getInt();
+            if (version != EntityFileWriter.VERSION) {
+                throw new IOException(String.format("%s has the unsupported version %d.", path, version));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            return this.fill(4);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public DynamicTableEntity next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        try {
+            int length = this.buffer.getInt();
+            if (!this.fill(length)) {
+                throw new EOFException(String.format("%s ends within a record.", this.path));
+            }
+            return this.decode();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    private DynamicTableEntity decode() throws IOException {
+        ByteBuffer buffer = this.buffer;
+        String partitionKey = this.getString();
+        String rowKey = this.getString();
+        long timestamp = buffer.getLong();
+
+        int count = buffer.getInt();
+        HashMap<String, EntityProperty> properties = new HashMap<String, EntityProperty>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            String name = this.getString();
+            properties.put(name, this.getValue());
+        }
+
+        DynamicTableEntity entity = new DynamicTableEntity(partitionKey, rowKey, properties);
+        if (timestamp != EntityFileWriter.NO_TIMESTAMP) {
+            entity.setTimestamp(new Date(timestamp));
+        }
+        return entity;
+    }
+
+    private EntityProperty getValue() throws IOException {
+        ByteBuffer buffer = this.buffer;
+        byte type = buffer.get();
+        switch (type) {
+            case EntityFileWriter.TYPE_STRING:
+                return new EntityProperty(this.getString());
+            case EntityFileWriter.TYPE_INT32:
+                return new EntityProperty(buffer.getInt());
+            case EntityFileWriter.TYPE_INT64:
+                return new EntityProperty(buffer.getLong());
+            case EntityFileWriter.TYPE_DOUBLE:
+                return new EntityProperty(buffer.getDouble());
+            case EntityFileWriter.TYPE_BOOLEAN:
+                return new EntityProperty(buffer.get() != 0);
+            case EntityFileWriter.TYPE_DATE_TIME:
+                return new EntityProperty(new Date(buffer.getLong()));
+            case EntityFileWriter.TYPE_GUID:
+                return new EntityProperty(new UUID(buffer.getLong(), buffer.getLong()));
+            case EntityFileWriter.TYPE_BINARY:
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                return new EntityProperty(bytes);
+            default:
+                throw new IOException(String.format("%s contains the unknown property type %d.", this.path, type));
+        }
+    }
+
+    private String getString() {
+        ByteBuffer buffer = this.buffer;
+        int length = buffer.getInt();
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Makes sure that the buffer holds at least the given number of unread bytes.
+     *
+     * @param bytes The number of bytes needed
+     * @return false if the file ends before the first of these bytes
+     *
+     * @throws IOException
+     */
+    private boolean fill(int bytes) throws IOException {
+        if (this.buffer.remaining() >= bytes) {
+            return true;
+        }
+
+        if (bytes > this.buffer.capacity()) {
+            // A single record larger than the buffer
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(bytes, this.buffer.capacity() * 2));
+            larger.put(this.buffer);
+            this.buffer = larger;
+        } else {
+            this.buffer.compact();
+        }
+
+        while (this.buffer.position() < bytes && !this.endOfFile) {
+            if (this.channel.read(this.buffer) < 0) {
+                this.endOfFile = true;
+            }
+        }
+        this.buffer.flip();
+
+        if (this.buffer.remaining() == 0) {
+            return false;
+        }
+        if (this.buffer.remaining() < bytes) {
+            throw new EOFException(String.format("%s ends within a record.", this.path));
+        }
+        return true;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Writes entities to a file in a compact, length-prefixed binary format.
+ *
+ * The file starts with a 4 byte magic number and a 4 byte version. Every entity is one record: the
+ * length of the rest of the record as an int, the partition key, the row key, the timestamp in
+ * milliseconds, the number of properties as an int and then every property as its name, a one byte
+ * type tag and its value. Strings are written as their UTF-8 length followed by the UTF-8 bytes. All
+ * numbers are big-endian. Records are encoded into a buffer that is written to the file channel in
+ * large chunks, so the cost per entity is a few memory copies.
+ */
+final class EntityFileWriter implements AutoCloseable {
+
+    static final int MAGIC = 0x54424C45;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 8;
+
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_INT32 = 2;
+    static final byte TYPE_INT64 = 3;
+    static final byte TYPE_DOUBLE = 4;
+    static final byte TYPE_BOOLEAN = 5;
+    static final byte TYPE_DATE_TIME = 6;
+    static final byte TYPE_GUID = 7;
+    static final byte TYPE_BINARY = 8;
+
+    // Marks a record without a timestamp
+    static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private static final int DEFAULT_BUFFER_BYTES = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private ByteBuffer buffer = ByteBuffer.allocate(DEFAULT_BUFFER_BYTES);
+    private long entityCount;
+
+    private EntityFileWriter(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Creates a new file, replacing any existing file.
+     *
+     * @param path The path of the file
+     * @return The writer
+     *
+     * @throws IOException
+     */
+    static EntityFileWriter create(Path path) throws IOException {
+        EntityFileWriter writer = new EntityFileWriter(FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        writer.buffer.putInt(MAGIC).putInt(VERSION);
+        return writer;
+    }
+
+    /**
+     * Opens an existing file and continues writing at the given position. Everything after the position,
+     * for example records written after the last checkpoint, is discarded.
+     *
+     * @param path The path of the file
+     * @param position A position returned by {@link #sync()}
+     * @return The writer
+     *
+     * @throws IOException
+     */
+    static EntityFileWriter append(Path path, long position) throws IOException {
+        if (position < HEADER_BYTES) {
+            throw new IllegalArgumentException("position must be after the file header.");
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        if (channel.size() < position) {
+            channel.close();
+            throw new IOException(String.format("%s is shorter than the position %d.", path, position));
+        }
+        channel.truncate(position);
+        channel.position(position);
+        return new EntityFileWriter(channel);
+    }
+
+    /**
+     * Appends an entity. The entity is buffered and reaches the file at the latest on {@link #sync()}.
+     *
+     * @param entity The entity
+     *
+     * @throws IOException
+     */
+    void write(DynamicTableEntity entity) throws IOException {
+        while (true) {
+            int start = this.buffer.position();
+            try {
+                this.encode(entity);
+                this.entityCount++;
+                return;
+            }
+            catch (BufferOverflowException e) {
+                this.buffer.position(start);
+                if (start > 0) {
+                    this.writeBuffer();
+                } else {
+                    // A single record larger than the buffer
+                    this.buffer = ByteBuffer.allocate(this.buffer.capacity() * 2);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all buffered records to the file and forces them to the storage device.
+     *
+     * @return The position after the last record, from which {@link #append(Path, long)} continues
+     *
+     * @throws IOException
+     */
+    long sync() throws IOException {
+        this.writeBuffer();
+        this.channel.force(false);
+        return this.channel.position();
+    }
+
+    /**
+     * Returns the number of entities written by this writer.
+     */
+    long getEntityCount() {
+        return this.entityCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.writeBuffer();
+        }
+        finally {
+            this.channel.close();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+
+    private void encode(DynamicTableEntity entity) {
+        ByteBuffer buffer = this.buffer;
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+
+        this.putString(entity.getPartitionKey());
+        this.putString(entity.getRowKey());
+        buffer.putLong(entity.getTimestamp() == null ? NO_TIMESTAMP : entity.getTimestamp().getTime());
+
+        int countPosition = buffer.position();
+        buffer.putInt(0);
+        int count = 0;
+        for (Map.Entry<String, EntityProperty> property : entity.getProperties().entrySet()) {
+            EntityProperty value = property.getValue();
+            if (value == null || value.getIsNull()) {
+                continue;
+            }
+            this.putString(property.getKey());
+            this.putValue(value);
+            count++;
+        }
+
+        buffer.putInt(countPosition, count);
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+    }
+
+    private void putValue(EntityProperty value) {
+        ByteBuffer buffer = this.buffer;
+        switch (value.getEdmType()) {
+            case STRING:
+                buffer.put(TYPE_STRING);
+                this.putString(value.getValueAsString());
+                break;
+            case INT32:
+                buffer.put(TYPE_INT32).putInt(value.getValueAsInteger());
+                break;
+            case INT64:
+                buffer.put(TYPE_INT64).putLong(value.getValueAsLong());
+                break;
+            case DOUBLE:
+                buffer.put(TYPE_DOUBLE).putDouble(value.getValueAsDouble());
+                break;
+            case BOOLEAN:
+                buffer.put(TYPE_BOOLEAN).put(value.getValueAsBoolean() ? (byte) 1 : (byte) 0);
+                break;
+            case DATE_TIME:
+                buffer.put(TYPE_DATE_TIME).putLong(value.getValueAsDate().getTime());
+                break;
+            case GUID:
+                UUID uuid = value.getValueAsUUID();
+                buffer.put(TYPE_GUID).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+                break;
+            case BINARY:
+                byte[] bytes = value.getValueAsByteArray();
+                buffer.put(TYPE_BINARY).putInt(bytes.length).put(bytes);
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Properties of type %s are not supported.", value.getEdmType()));
+        }
+    }
+
+    private void putString(String value) {
+        ByteBuffer buffer = this.buffer;
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+
+        // Encode straight into the buffer instead of allocating a byte array per string
+        this.encoder.reset();
+        CoderResult result = this.encoder.encode(CharBuffer.wrap(value), buffer, true);
+        if (result.isUnderflow()) {
+            result = this.encoder.flush(buffer);
+        }
+        if (result.isOverflow()) {
+            throw new BufferOverflowException();
+        }
+        if (result.isError()) {
+            throw new IllegalArgumentException(String.format("\"%s\" is not a valid UTF-16 string.", value));
+        }
+
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+
+/**
+ * Identifies a single entity: the table name, the partition key and the row key.
+ */
+final class EntityKey {
+
+    private final String tableName;
+    private final String partitionKey;
+    private final String rowKey;
+    private final int hashCode;
+
+    EntityKey(String tableName, String partitionKey, String rowKey) {
+        this.tableName = tableName;
+        this.partitionKey = partitionKey;
+        this.rowKey = rowKey;
+        this.hashCode = (31 * (31 * tableName.hashCode() + partitionKey.hashCode())) + rowKey.hashCode();
+    }
+
+    String getTableName() {
+        return this.tableName;
+    }
+
+    String getPartitionKey() {
+        return this.partitionKey;
+    }
+
+    String getRowKey() {
+        return this.rowKey;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof EntityKey)) {
+            return false;
+        }
+        EntityKey other = (EntityKey) obj;
+        return this.hashCode == other.hashCode
+                && this.rowKey.equals(other.rowKey)
+                && this.partitionKey.equals(other.partitionKey)
+                && this.tableName.equals(other.tableName);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s(%s,%s)", this.tableName, this.partitionKey, this.rowKey);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.EntityResolver;
+import com.microsoft.azure.storage.table.TableEntity;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The state of an entity as stored by the service: keys, ETag, timestamp and properties.
+ *
+ * A snapshot is independent of the entity class, so it can be shared between threads and
+ * materialized into a new entity object for every caller.
+ */
+final class EntitySnapshot {
+
+    /**
+     * Resolves query and retrieve results into snapshots.
+     */
+    static final EntityResolver<EntitySnapshot> RESOLVER = (partitionKey, rowKey, timeStamp, properties, etag) ->
+            new EntitySnapshot(partitionKey, rowKey, etag, timeStamp, properties);
+
+    private final String partitionKey;
+    private final String rowKey;
+    private final String etag;
+    private final Date timestamp;
+    private final Map<String, EntityProperty> properties;
+
+    EntitySnapshot(String partitionKey, String rowKey, String etag, Date timestamp, Map<String, EntityProperty> properties) {
+        this.partitionKey = partitionKey;
+        this.rowKey = rowKey;
+        this.etag = etag;
+        this.timestamp = timestamp;
+        this.properties = new HashMap<String, EntityProperty>(properties.size());
+        putNonNull(this.properties, properties);
+    }
+
+    /**
+     * Captures the current state of an entity.
+     *
+     * @param entity The entity
+     * @return The snapshot
+     *
+     * @throws StorageException
+     */
+    static EntitySnapshot of(TableEntity entity) throws StorageException {
+        return new EntitySnapshot(entity.getPartitionKey(), entity.getRowKey(), entity.getEtag(),
+                entity.getTimestamp(), entity.writeEntity(null));
+    }
+
+    String getPartitionKey() {
+        return this.partitionKey;
+    }
+
+    String getRowKey() {
+        return this.rowKey;
+    }
+
+    String getEtag() {
+        return this.etag;
+    }
+
+    Date getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * Returns a new snapshot with the given properties merged over the properties of this snapshot,
+     * the way a merge operation updates a stored entity. Null properties are not sent to the service
+     * and therefore do not change the stored value.
+     *
+     * @param changes The properties to add or overwrite
+     * @param newEtag The ETag of the merged entity
+     * @return The merged snapshot
+     */
+    EntitySnapshot merge(Map<String, EntityProperty> changes, String newEtag) {
+        EntitySnapshot merged = new EntitySnapshot(this.partitionKey, this.rowKey, newEtag, this.timestamp, this.properties);
+        putNonNull(merged.properties, changes);
+        return merged;
+    }
+
+    /**
+     * Creates a new entity of the given class holding the state of this snapshot.
+     *
+     * @param clazzType The entity class, which must have a no-argument constructor
+     * @return The new entity
+     *
+     * @throws StorageException
+     */
+    <T extends TableEntity> T toEntity(Class<T> clazzType) throws StorageException {
+        T entity;
+        try {
+            entity = clazzType.getDeclaredConstructor().newInstance();
+        }
+        catch (InvocationTargetException e) {
+            throw new IllegalArgumentException(String.format("The no-argument constructor of %s failed.", clazzType.getName()), e.getCause());
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException(String.format("%s must have an accessible no-argument constructor.", clazzType.getName()), e);
+        }
+
+        entity.setPartitionKey(this.partitionKey);
+        entity.setRowKey(this.rowKey);
+        entity.setEtag(this.etag);
+        entity.setTimestamp(this.timestamp);
+        // Entities may keep the map they are given, so each one gets its own copy
+        entity.readEntity(new HashMap<String, EntityProperty>(this.properties), null);
+        return entity;
+    }
+
+    /**
+     * Copies the properties that have a value. Null properties are never sent to or returned by the service.
+     *
+     * @param target The map to copy into
+     * @param source The map to copy from
+     */
+    static void putNonNull(Map<String, EntityProperty> target, Map<String, EntityProperty> source) {
+        for (Map.Entry<String, EntityProperty> property : source.entrySet()) {
+            if (property.getValue() != null && !property.getValue().getIsNull()) {
+                target.put(property.getKey(), property.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.TableEntity;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableQuery.Operators;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A query filter whose shape is fixed and whose values are bound on every use.
+ *
+ * A template is compiled once from an {@link Expression} built with {@link #condition}, {@link #and},
+ * {@link #or} and {@link #not}. Compiling turns the expression into the constant pieces of text
+ * between its parameters, so binding values only appends those pieces and the formatted values to a
+ * reused buffer and creates the resulting string. The values are formatted and escaped exactly like
+ * {@link TableQuery#generateFilterCondition} does, without going through String.format. Templates are
+ * immutable and can be shared between threads.
+ *
+ * <pre>
+ * FilterTemplate rangeFilter = FilterTemplate.compile(FilterTemplate.and(
+ *         FilterTemplate.condition("PartitionKey", QueryComparisons.EQUAL, ParameterType.STRING),
+ *         FilterTemplate.condition("RowKey", QueryComparisons.GREATER_THAN_OR_EQUAL, ParameterType.STRING),
+ *         FilterTemplate.condition("RowKey", QueryComparisons.LESS_THAN_OR_EQUAL, ParameterType.STRING)));
+ * String filter = rangeFilter.bind("Smith", "0040", "0060");
+ * </pre>
+ */
+final class FilterTemplate {
+
+    /**
+     * The type of a parameter and the Java type of the values bound to it.
+     */
+    enum ParameterType {
+        /** A {@link String}. */
+        STRING,
+        /** An {@link Integer}. */
+        INT32,
+        /** A {@link Long} or an {@link Integer}. */
+        INT64,
+        /** A {@link Double} or any other {@link Number}. */
+        DOUBLE,
+        /** A {@link Boolean}. */
+        BOOLEAN,
+        /** A {@link Date}. */
+        DATE_TIME,
+        /** A {@link UUID}. */
+        GUID,
+        /** A byte array. */
+        BINARY
+    }
+
+    /**
+     * A filter expression with parameters, the input of {@link #compile(Expression)}.
+     */
+    static final class Expression {
+        // The text before, between and after the parameters, one more than there are parameters
+        private final List<String> texts;
+        private final List<ParameterType> parameters;
+
+        private Expression(List<String> texts, List<ParameterType> parameters) {
+            this.texts = texts;
+            this.parameters = parameters;
+        }
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<StringBuilder> BUILDERS = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    // Buffers that grew beyond this size are not kept for the next filter
+    private static final int MAX_CACHED_BUILDER_CAPACITY = 16 * 1024;
+
+    private final String[] texts;
+    private final ParameterType[] parameters;
+    private final int textLength;
+
+    private FilterTemplate(String[] texts, ParameterType[] parameters) {
+        this.texts = texts;
+        this.parameters = parameters;
+        int textLength = 0;
+        for (String text : texts) {
+            textLength += text.length();
+        }
+        this.textLength = textLength;
+    }
+
+    /**
+     * Creates a comparison of a property with a parameter.
+     *
+     * @param propertyName The name of the property
+     * @param operation The comparison, one of the {@link TableQuery.QueryComparisons} constants
+     * @param type The type of the parameter
+     * @return The expression
+     */
+    static Expression condition(String propertyName, String operation, ParameterType type) {
+        if (propertyName == null || propertyName.isEmpty()) {
+            throw new IllegalArgumentException("propertyName must not be empty.");
+        }
+        if (operation == null || operation.isEmpty()) {
+            throw new IllegalArgumentException("operation must not be empty.");
+        }
+        if (type == null) {
+            throw new IllegalArgumentException("type");
+        }
+
+        List<String> texts = new ArrayList<String>(2);
+        texts.add(propertyName + " " + operation + " ");
+        texts.add("");
+        return new Expression(texts, Collections.singletonList(type));
+    }
+
+    /**
+     * Creates an expression that matches when all of the given expressions match.
+     *
+     * @param expressions At least two expressions
+     * @return The expression
+     */
+    static Expression and(Expression... expressions) {
+        return combine(Operators.AND, expressions);
+    }
+
+    /**
+     * Creates an expression that matches when any of the given expressions matches.
+     *
+     * @param expressions At least two expressions
+     * @return The expression
+     */
+    static Expression or(Expression... expressions) {
+        return combine(Operators.OR, expressions);
+    }
+
+    /**
+     * Creates an expression that matches when the given expression does not match.
+     *
+     * @param expression The expression to negate
+     * @return The expression
+     */
+    static Expression not(Expression expression) {
+        List<String> texts = new ArrayList<String>(expression.texts);
+        texts.set(0, Operators.NOT + " (" + texts.get(0));
+        texts.set(texts.size() - 1, texts.get(texts.size() - 1) + ")");
+        return new Expression(texts, expression.parameters);
+    }
+
+    /**
+     * Compiles an expression into a reusable template.
+     *
+     * @param expression The expression
+     * @return The template
+     */
+    static FilterTemplate compile(Expression expression) {
+        return new FilterTemplate(expression.texts.toArray(new String[expression.texts.size()]),
+                expression.parameters.toArray(new ParameterType[expression.parameters.size()]));
+    }
+
+    int getParameterCount() {
+        return this.parameters.length;
+    }
+
+    ParameterType getParameterType(int index) {
+        return this.parameters[index];
+    }
+
+    /**
+     * Returns the filter with the given values in place of the parameters.
+     *
+     * @param values One value per parameter, in the order in which the parameters appear
+     * @return The filter string
+     */
+    String bind(Object... values) {
+        if (values.length != this.parameters.length) {
+            throw new IllegalArgumentException(String.format("The filter has %d parameters, but %d values were given.",
+                    this.parameters.length, values.length));
+        }
+
+        StringBuilder builder = BUILDERS.get();
+        builder.setLength(0);
+        builder.ensureCapacity(this.textLength + 16 * values.length);
+
+        builder.append(this.texts[0]);
+        for (int i = 0; i < values.length; i++) {
+            appendValue(builder, this.parameters[i], values[i], i);
+            builder.append(this.texts[i + 1]);
+        }
+
+        String filter = builder.toString();
+        if (builder.capacity() > MAX_CACHED_BUILDER_CAPACITY) {
+            BUILDERS.remove();
+        }
+        return filter;
+    }
+
+    /**
+     * Creates a query for entities of the given type filtered by this template.
+     *
+     * @param clazzType The entity type
+     * @param values One value per parameter
+     * @return The query
+     */
+    <T extends TableEntity> TableQuery<T> createQuery(Class<T> clazzType, Object... values) {
+        return TableQuery.from(clazzType).where(this.bind(values));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(this.texts[0]);
+        for (int i = 0; i < this.parameters.length; i++) {
+            builder.append('{').append(this.parameters[i]).append('}').append(this.texts[i + 1]);
+        }
+        return builder.toString();
+    }
+
+    private static Expression combine(String operator, Expression... expressions) {
+        if (expressions.length < 2) {
+            throw new IllegalArgumentException("At least two expressions must be combined.");
+        }
+
+        // Produces the same parentheses as TableQuery.combineFilters
+        List<String> texts = new ArrayList<String>();
+        List<ParameterType> parameters = new ArrayList<ParameterType>();
+        String pending = "";
+        for (int i = 0; i < expressions.length; i++) {
+            Expression expression = expressions[i];
+            pending += (i == 0 ? "(" : ") " + operator + " (") + expression.texts.get(0);
+            for (int j = 0; j < expression.parameters.size(); j++) {
+                texts.add(pending);
+                parameters.add(expression.parameters.get(j));
+                pending = expression.texts.get(j + 1);
+            }
+        }
+        texts.add(pending + ")");
+        return new Expression(texts, parameters);
+    }
+
+    private static void appendValue(StringBuilder builder, ParameterType type, Object value, int index) {
+        try {
+            switch (type) {
+                case STRING:
+                    appendString(builder, (String) value);
+                    break;
+                case INT32:
+                    builder.append(((Integer) value).intValue());
+                    break;
+                case INT64:
+                    builder.append(((Number) castIntegral(value)).longValue()).append('L');
+                    break;
+                case DOUBLE:
+                    builder.append(((Number) value).doubleValue());
+                    break;
+                case BOOLEAN:
+                    builder.append(((Boolean) value).booleanValue());
+                    break;
+                case DATE_TIME:
+                    builder.append("datetime'");
+                    appendDateTime(builder, ((Date) value).getTime());
+                    builder.append('\'');
+                    break;
+                case GUID:
+                    builder.append("guid'");
+                    appendGuid(builder, (UUID) value);
+                    builder.append('\'');
+                    break;
+                default:
+                    builder.append("X'");
+                    for (byte b : (byte[]) value) {
+                        builder.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+                    }
+                    builder.append('\'');
+                    break;
+            }
+        }
+        catch (ClassCastException | NullPointerException e) {
+            throw new IllegalArgumentException(String.format("Parameter %d of type %s cannot be bound to %s.",
+                    index, type, value == null ? "null" : value.getClass().getName()), e);
+        }
+    }
+
+    private static Object castIntegral(Object value) {
+        if (value instanceof Long || value instanceof Integer) {
+            return value;
+        }
+        throw new ClassCastException();
+    }
+
+    private static void appendString(StringBuilder builder, String value) {
+        builder.append('\'');
+        int start = 0;
+        for (int i = value.indexOf('\''); i >= 0; i = value.indexOf('\'', start)) {
+            // A quote within an OData string literal is written twice
+            builder.append(value, start, i + 1).append('\'');
+            start = i + 1;
+        }
+        builder.append(value, start, value.length()).append('\'');
+    }
+
+    /**
+     * Appends a time as yyyy-MM-ddTHH:mm:ss.SSSZ in UTC, the format of the client library. Dates use the
+     * proleptic Gregorian calendar, which matches the client library for every date the service accepts.
+     */
+    private static void appendDateTime(StringBuilder builder, long millis) {
+        long days = Math.floorDiv(millis, 86400000L);
+        int millisOfDay = (int) Math.floorMod(millis, 86400000L);
+
+        // Converts days since 1970-01-01 to a civil date, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        appendPadded(builder, year, 4);
+        builder.append('-');
+        appendPadded(builder, month, 2);
+        builder.append('-');
+        appendPadded(builder, day, 2);
+        builder.append('T');
+        appendPadded(builder, millisOfDay / 3600000, 2);
+        builder.append(':');
+        appendPadded(builder, millisOfDay / 60000 % 60, 2);
+        builder.append(':');
+        appendPadded(builder, millisOfDay / 1000 % 60, 2);
+        builder.append('.');
+        appendPadded(builder, millisOfDay % 1000, 3);
+        builder.append('Z');
+    }
+
+    private static void appendGuid(StringBuilder builder, UUID value) {
+        long high = value.getMostSignificantBits();
+        long low = value.getLeastSignificantBits();
+        appendHex(builder, high >>> 32, 8);
+        builder.append('-');
+        appendHex(builder, high >>> 16, 4);
+        builder.append('-');
+        appendHex(builder, high, 4);
+        builder.append('-');
+        appendHex(builder, low >>> 48, 4);
+        builder.append('-');
+        appendHex(builder, low, 12);
+    }
+
+    private static void appendHex(StringBuilder builder, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            builder.append(HEX_DIGITS[(int) (value >>> shift) & 0xF]);
+        }
+    }
+
+    private static void appendPadded(StringBuilder builder, long value, int digits) {
+        for (long limit = 10; digits > 1; digits--, limit *= 10) {
+            if (value < limit) {
+                builder.append('0');
+            }
+        }
+        builder.append(value);
+    }
+}
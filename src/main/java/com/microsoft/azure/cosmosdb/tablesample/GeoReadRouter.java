@@ -0,0 +1,536 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.LocationMode;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.ServiceStats;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.StorageLocation;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.CloudTableClient;
+import com.microsoft.azure.storage.table.TableEntity;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableRequestOptions;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes point reads and queries to the primary or the read-access geo-secondary endpoint of a
+ * storage account.
+ *
+ * Every read names the staleness it tolerates. The secondary is only used while the time since its
+ * last synchronization, polled from the service stats of the account, is within that bound; other
+ * reads go to the primary as usual. Within the bound the read goes first to the endpoint with the
+ * lower median latency over the last ten seconds. If it has not completed when that endpoint
+ * reaches its hedge percentile, the read is sent to the other endpoint as well and the first
+ * response wins. A read that fails with a server error, a timeout or throttling is sent to the other
+ * endpoint right away instead of being retried on the same one.
+ *
+ * The latencies of an endpoint expire when it received no reads for ten seconds, so the next reads
+ * probe it again. Reads sent to the secondary are never retried by the storage client; the other
+ * endpoint takes the place of the retry.
+ */
+final class GeoReadRouter implements AutoCloseable {
+
+    private static final long LOWEST_LATENCY_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final long HIGHEST_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(5);
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    // Latency percentiles are computed over a sliding window of one second intervals
+    private static final long INTERVAL_MILLIS = 1000;
+    private static final int WINDOW_INTERVALS = 10;
+
+    /**
+     * A read sent with the request options of one endpoint.
+     */
+    private interface Read<R> {
+        R execute(TableRequestOptions options) throws StorageException;
+    }
+
+    /**
+     * The result of a read and the endpoint that returned it.
+     */
+    private static final class Attempt<R> {
+        private final Endpoint endpoint;
+        private final R result;
+
+        Attempt(Endpoint endpoint, R result) {
+            this.endpoint = endpoint;
+            this.result = result;
+        }
+    }
+
+    /**
+     * The request options and the recent latencies of one endpoint.
+     */
+    private static final class Endpoint {
+        private final StorageLocation location;
+        private final TableRequestOptions options = new TableRequestOptions();
+        private final Recorder recorder = new Recorder(LOWEST_LATENCY_NANOS, HIGHEST_LATENCY_NANOS, SIGNIFICANT_DIGITS);
+        private final LongAdder readCount = new LongAdder();
+        private final LongAdder failureCount = new LongAdder();
+
+        // Guarded by this: the intervals of the window and their sum
+        private final ArrayDeque<Histogram> intervals = new ArrayDeque<Histogram>();
+        private final Histogram window = new Histogram(LOWEST_LATENCY_NANOS, HIGHEST_LATENCY_NANOS, SIGNIFICANT_DIGITS);
+        private Histogram recycled;
+
+        // Latencies over the window, or -1 if the endpoint received no reads
+        private volatile long medianNanos = -1;
+        private volatile long hedgeNanos = -1;
+        private volatile long p99Nanos = -1;
+
+        Endpoint(StorageLocation location) {
+            this.location = location;
+            this.options.setLocationMode(location == StorageLocation.PRIMARY ? LocationMode.PRIMARY_ONLY : LocationMode.SECONDARY_ONLY);
+            this.options.setRetryPolicyFactory(new RetryNoRetry());
+        }
+
+        void record(long latencyNanos) {
+            this.recorder.recordValue(Math.min(Math.max(latencyNanos, LOWEST_LATENCY_NANOS), HIGHEST_LATENCY_NANOS));
+        }
+
+        /**
+         * Moves the latencies of the last interval into the window and updates the percentiles.
+         */
+        synchronized void roll(double hedgePercentile) {
+            Histogram interval = this.recorder.getIntervalHistogram(this.recycled);
+            this.recycled = null;
+            this.intervals.addLast(interval);
+            this.window.add(interval);
+            if (this.intervals.size() > WINDOW_INTERVALS) {
+                this.recycled = this.intervals.removeFirst();
+                this.window.subtract(this.recycled);
+            }
+
+            if (this.window.getTotalCount() == 0) {
+                this.medianNanos = -1;
+                this.hedgeNanos = -1;
+                this.p99Nanos = -1;
+            } else {
+                this.medianNanos = this.window.getValueAtPercentile(50);
+                this.hedgeNanos = this.window.getValueAtPercentile(hedgePercentile);
+                this.p99Nanos = this.window.getValueAtPercentile(99);
+            }
+        }
+
+        @Override
+        public String toString() {
+            long medianNanos = this.medianNanos;
+            long p99Nanos = this.p99Nanos;
+            if (medianNanos < 0) {
+                return String.format("%s: %d reads, %d failures, no recent latencies", this.location, this.readCount.sum(), this.failureCount.sum());
+            }
+            return String.format("%s: %d reads, %d failures, p50=%.1f ms, p99=%.1f ms", this.location,
+                    this.readCount.sum(), this.failureCount.sum(), medianNanos / 1e6, p99Nanos / 1e6);
+        }
+    }
+
+    private final CloudTableClient client;
+    private final Endpoint primary = new Endpoint(StorageLocation.PRIMARY);
+    private final Endpoint secondary = new Endpoint(StorageLocation.SECONDARY);
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile double hedgePercentile = 95;
+    private volatile long minHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(2);
+    private volatile long lastSyncTimeMillis = -1;
+
+    private final LongAdder readCount = new LongAdder();
+    private final LongAdder staleCount = new LongAdder();
+    private final LongAdder hedgeCount = new LongAdder();
+    private final LongAdder hedgeWinCount = new LongAdder();
+    private final LongAdder failoverCount = new LongAdder();
+    private final LongAdder syncFailureCount = new LongAdder();
+
+    /**
+     * Creates a router for the tables of a client and starts polling the last synchronization time
+     * of the secondary.
+     *
+     * @param client The {@link CloudTableClient} object, whose storage URI must have a secondary endpoint
+     * @param syncPollInterval How often the last synchronization time is polled
+     * @param unit The unit of the poll interval
+     */
+    GeoReadRouter(CloudTableClient client, long syncPollInterval, TimeUnit unit) {
+        if (client.getStorageUri().getSecondaryUri() == null) {
+            throw new IllegalArgumentException("The client has no secondary endpoint.");
+        }
+        this.client = client;
+
+        // Hedged reads block a thread each until the slower endpoint responds
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "table-geo-read");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "table-geo-router");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleAtFixedRate(() -> {
+            this.primary.roll(this.hedgePercentile);
+            this.secondary.roll(this.hedgePercentile);
+        }, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                this.refreshLastSyncTime();
+            }
+            catch (StorageException | RuntimeException e) {
+                // The secondary stays unused until its synchronization time is known
+                this.syncFailureCount.increment();
+            }
+        }, 0, unit.toMillis(syncPollInterval), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the latency percentile of an endpoint after which a read is also sent to the other one.
+     * Lower percentiles cut more of the tail latency and send more reads twice.
+     *
+     * @param percentile The percentile, between 50 and 100
+     */
+    void setHedgePercentile(double percentile) {
+        if (percentile < 50 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 50 and 100.");
+        }
+        this.hedgePercentile = percentile;
+    }
+
+    /**
+     * Sets the shortest time a read waits for an endpoint before it is sent to the other one. It
+     * applies while an endpoint has no latencies yet.
+     *
+     * @param delay The delay
+     * @param unit The unit of the delay
+     */
+    void setMinHedgeDelay(long delay, TimeUnit unit) {
+        this.minHedgeDelayNanos = unit.toNanos(delay);
+    }
+
+    /**
+     * Reads the last synchronization time of the secondary from the service stats.
+     *
+     * @return The last synchronization time, or null if the secondary was never synchronized
+     *
+     * @throws StorageException
+     */
+    Date refreshLastSyncTime() throws StorageException {
+        // The stats are only served by the secondary endpoint
+        TableRequestOptions options = new TableRequestOptions();
+        options.setLocationMode(LocationMode.SECONDARY_ONLY);
+        ServiceStats stats = this.client.getServiceStats(options, null);
+        Date lastSyncTime = stats.getGeoReplication() == null ? null : stats.getGeoReplication().getLastSyncTime();
+        this.lastSyncTimeMillis = lastSyncTime == null ? -1 : lastSyncTime.getTime();
+        return lastSyncTime;
+    }
+
+    /**
+     * Returns an upper bound of the staleness of the secondary: the data written before the last
+     * synchronization is readable there.
+     *
+     * @param unit The unit of the result
+     * @return The time since the last synchronization, or -1 if it is not known
+     */
+    long getStaleness(TimeUnit unit) {
+        long lastSyncTimeMillis = this.lastSyncTimeMillis;
+        return lastSyncTimeMillis < 0 ? -1 : unit.convert(System.currentTimeMillis() - lastSyncTimeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads an entity.
+     *
+     * @param table The {@link CloudTable} object
+     * @param partitionKey The partition key
+     * @param rowKey The row key
+     * @param clazzType The entity class
+     * @param maxStaleness The staleness the caller tolerates, or 0 to read from the primary
+     * @param unit The unit of the staleness
+     * @return The entity, or null if it does not exist
+     *
+     * @throws StorageException
+     */
+    <T extends TableEntity> T retrieve(final CloudTable table, String partitionKey, String rowKey, Class<T> clazzType,
+            long maxStaleness, TimeUnit unit) throws StorageException {
+        final TableOperation operation = TableOperation.retrieve(partitionKey, rowKey, clazzType);
+        return this.route(options -> table.execute(operation, options, null).<T>getResultAsType(), maxStaleness, unit);
+    }
+
+    /**
+     * Executes one segment of a query. The segments of a query may be read from different endpoints.
+     *
+     * @param table The {@link CloudTable} object
+     * @param query The query
+     * @param token The continuation token of the segment, or null for the first segment
+     * @param maxStaleness The staleness the caller tolerates, or 0 to read from the primary
+     * @param unit The unit of the staleness
+     * @return The segment
+     *
+     * @throws StorageException
+     */
+    <T extends TableEntity> ResultSegment<T> executeSegmented(final CloudTable table, final TableQuery<T> query, ResultContinuation token,
+            long maxStaleness, TimeUnit unit) throws StorageException {
+        // Both endpoints hold the same data, so the continuation can be sent to either
+        final ResultContinuation portableToken = token == null ? null : withoutTargetLocation(token);
+        return this.route(options -> table.executeSegmented(query, portableToken, options, null), maxStaleness, unit);
+    }
+
+    /**
+     * Executes a query and returns all its results.
+     *
+     * @param table The {@link CloudTable} object
+     * @param query The query
+     * @param maxStaleness The staleness the caller tolerates, or 0 to read from the primary
+     * @param unit The unit of the staleness
+     * @return The results
+     *
+     * @throws StorageException
+     */
+    <T extends TableEntity> List<T> execute(CloudTable table, TableQuery<T> query, long maxStaleness, TimeUnit unit) throws StorageException {
+        List<T> results = new ArrayList<T>();
+        ResultContinuation token = null;
+        do {
+            ResultSegment<T> segment = this.executeSegmented(table, query, token, maxStaleness, unit);
+            results.addAll(segment.getResults());
+            token = segment.getContinuationToken();
+        } while (token != null);
+        return results;
+    }
+
+    long getReadCount() {
+        return this.readCount.sum();
+    }
+
+    long getPrimaryReadCount() {
+        return this.primary.readCount.sum();
+    }
+
+    long getSecondaryReadCount() {
+        return this.secondary.readCount.sum();
+    }
+
+    /**
+     * @return The number of reads that went to the primary because the secondary was too stale
+     */
+    long getStaleCount() {
+        return this.staleCount.sum();
+    }
+
+    /**
+     * @return The number of reads sent to both endpoints because the first one was slow
+     */
+    long getHedgeCount() {
+        return this.hedgeCount.sum();
+    }
+
+    /**
+     * @return The number of hedged reads answered first by the second endpoint
+     */
+    long getHedgeWinCount() {
+        return this.hedgeWinCount.sum();
+    }
+
+    /**
+     * @return The number of reads sent to the other endpoint because the first one failed
+     */
+    long getFailoverCount() {
+        return this.failoverCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d reads, %d too stale for the secondary, %d hedged (%d won by the hedge), %d failovers, staleness %d ms; %s; %s",
+                this.getReadCount(), this.getStaleCount(), this.getHedgeCount(), this.getHedgeWinCount(), this.getFailoverCount(),
+                this.getStaleness(TimeUnit.MILLISECONDS), this.primary, this.secondary);
+    }
+
+    /**
+     * Stops polling the secondary and the threads of hedged reads.
+     */
+    @Override
+    public void close() {
+        this.scheduler.shutdownNow();
+        this.executor.shutdown();
+    }
+
+    private <R> R route(Read<R> read, long maxStaleness, TimeUnit unit) throws StorageException {
+        this.readCount.increment();
+        long staleness = this.getStaleness(TimeUnit.MILLISECONDS);
+        if (staleness < 0 || staleness > unit.toMillis(maxStaleness)) {
+            this.staleCount.increment();
+            long start = System.nanoTime();
+            R result = read.execute(null);
+            this.primary.record(System.nanoTime() - start);
+            this.primary.readCount.increment();
+            return result;
+        }
+
+        // An endpoint without recent latencies goes first, so an endpoint that recovered is probed again
+        long primaryMedianNanos = this.primary.medianNanos;
+        long secondaryMedianNanos = this.secondary.medianNanos;
+        Endpoint first = primaryMedianNanos >= 0 && secondaryMedianNanos < primaryMedianNanos ? this.secondary : this.primary;
+        Endpoint second = first == this.primary ? this.secondary : this.primary;
+
+        CompletableFuture<Attempt<R>> firstAttempt = this.submit(first, read);
+        long hedgeDelayNanos = Math.max(first.hedgeNanos, this.minHedgeDelayNanos);
+        try {
+            return this.served(firstAttempt.get(hedgeDelayNanos, TimeUnit.NANOSECONDS));
+        }
+        catch (TimeoutException e) {
+            this.hedgeCount.increment();
+            CompletableFuture<Attempt<R>> hedge = this.submit(second, read);
+            Attempt<R> attempt = this.await(firstSuccessful(firstAttempt, hedge));
+            if (attempt.endpoint == second) {
+                this.hedgeWinCount.increment();
+            }
+            return this.served(attempt);
+        }
+        catch (ExecutionException e) {
+            StorageException failure = unwrap(e);
+            if (!canFailOver(failure)) {
+                throw failure;
+            }
+            this.failoverCount.increment();
+            return this.served(this.await(this.submit(second, read)));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("OperationInterrupted", "Interrupted while reading.", e);
+        }
+    }
+
+    private <R> CompletableFuture<Attempt<R>> submit(final Endpoint endpoint, final Read<R> read) {
+        final CompletableFuture<Attempt<R>> future = new CompletableFuture<Attempt<R>>();
+        try {
+            this.executor.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    R result = read.execute(endpoint.options);
+                    // The loser of a hedge is recorded too, so a slow endpoint shows in its latencies
+                    endpoint.record(System.nanoTime() - start);
+                    future.complete(new Attempt<R>(endpoint, result));
+                }
+                catch (Throwable t) {
+                    // The caller waits on the future, so it must complete whatever the read threw
+                    endpoint.failureCount.increment();
+                    future.completeExceptionally(t);
+                    if (t instanceof Error) {
+                        throw (Error) t;
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private <R> R served(Attempt<R> attempt) {
+        attempt.endpoint.readCount.increment();
+        return attempt.result;
+    }
+
+    private <R> Attempt<R> await(CompletableFuture<Attempt<R>> future) throws StorageException {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("OperationInterrupted", "Interrupted while reading.", e);
+        }
+    }
+
+    /**
+     * Completes with the first successful attempt, or with the failure of the first attempt if both fail.
+     */
+    private static <R> CompletableFuture<Attempt<R>> firstSuccessful(final CompletableFuture<Attempt<R>> first,
+            final CompletableFuture<Attempt<R>> second) {
+        final CompletableFuture<Attempt<R>> winner = new CompletableFuture<Attempt<R>>();
+        final AtomicInteger failures = new AtomicInteger();
+        first.whenComplete((attempt, throwable) -> {
+            if (throwable == null) {
+                winner.complete(attempt);
+            } else if (failures.incrementAndGet() == 2) {
+                winner.completeExceptionally(throwable);
+            }
+        });
+        second.whenComplete((attempt, throwable) -> {
+            if (throwable == null) {
+                winner.complete(attempt);
+            } else if (failures.incrementAndGet() == 2) {
+                first.whenComplete((ignored, firstThrowable) -> winner.completeExceptionally(firstThrowable));
+            }
+        });
+        return winner;
+    }
+
+    private static StorageException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof StorageException) {
+            return (StorageException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+    }
+
+    /**
+     * Returns whether the other endpoint may answer a read that failed: server errors, timeouts,
+     * throttling and failures without a response.
+     */
+    private static boolean canFailOver(StorageException e) {
+        int statusCode = e.getHttpStatusCode();
+        return statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                || statusCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                || statusCode == 429
+                || statusCode < 100;
+    }
+
+    private static ResultContinuation withoutTargetLocation(ResultContinuation token) {
+        ResultContinuation copy = new ResultContinuation();
+        copy.setContinuationType(token.getContinuationType());
+        copy.setNextPartitionKey(token.getNextPartitionKey());
+        copy.setNextRowKey(token.getNextRowKey());
+        copy.setNextTableName(token.getNextTableName());
+        copy.setNextMarker(token.getNextMarker());
+        return copy;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the requests sent to every partition and flags the partitions whose request rate gets close
+ * to what a single partition can handle.
+ *
+ * Each partition has a ring of one second counters covering a sliding window. A partition is hot
+ * when its average rate over the window is above the threshold; the listener is told about it at
+ * most once per window. The detector can be fed directly, or registered as the batch listener of a
+ * {@link TableBulkLoader}.
+ *
+ * The counters of partitions without requests for a whole window are dropped when a new partition is
+ * first recorded, at most once per window, so the detector only holds the recently active partitions.
+ */
+final class HotPartitionDetector implements TableBulkLoader.BatchListener {
+
+    /**
+     * Receives a notification when a partition becomes hot.
+     */
+    interface Listener {
+        void hotPartition(String partitionKey, double requestsPerSecond);
+    }
+
+    /**
+     * The request counts of one partition, one slot per second of the window.
+     */
+    private final class PartitionCounter {
+        private final AtomicLongArray counts = new AtomicLongArray(HotPartitionDetector.this.windowSeconds);
+        private final AtomicLongArray seconds = new AtomicLongArray(HotPartitionDetector.this.windowSeconds);
+        private volatile long lastNotifiedSecond = -HotPartitionDetector.this.windowSeconds;
+
+        void add(long second, int requests) {
+            int slot = (int) (second % this.counts.length());
+            long slotSecond = this.seconds.get(slot);
+            if (slotSecond != second && this.seconds.compareAndSet(slot, slotSecond, second)) {
+                // The slot still holds the count of an older second
+                this.counts.set(slot, 0);
+            }
+            this.counts.addAndGet(slot, requests);
+        }
+
+        double rate(long now) {
+            long total = 0;
+            for (int slot = 0; slot < this.counts.length(); slot++) {
+                if (now - this.seconds.get(slot) < this.counts.length()) {
+                    total += this.counts.get(slot);
+                }
+            }
+            return (double) total / this.counts.length();
+        }
+
+        boolean isIdle(long now) {
+            for (int slot = 0; slot < this.seconds.length(); slot++) {
+                if (now - this.seconds.get(slot) < this.seconds.length()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final double threshold;
+    private final int windowSeconds;
+    private final ConcurrentMap<String, PartitionCounter> partitions = new ConcurrentHashMap<String, PartitionCounter>();
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong lastSweepSecond = new AtomicLong();
+    private volatile Listener listener;
+
+    /**
+     * Creates a detector flagging partitions above 80% of the partition scalability target over 10 seconds.
+     */
+    HotPartitionDetector() {
+        this(AdaptiveRateLimiter.PARTITION_TARGET_PER_SECOND * 0.8, 10);
+    }
+
+    /**
+     * Creates a detector.
+     *
+     * @param threshold The requests per second above which a partition is hot
+     * @param windowSeconds The length of the sliding window over which the rate is averaged
+     */
+    HotPartitionDetector(double threshold, int windowSeconds) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("threshold must be positive.");
+        }
+        if (windowSeconds < 1) {
+            throw new IllegalArgumentException("windowSeconds must be at least 1.");
+        }
+        this.threshold = threshold;
+        this.windowSeconds = windowSeconds;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Records requests sent to a partition.
+     *
+     * @param partitionKey The partition key
+     * @param requests The number of requests, or of entities for a batch
+     */
+    void record(String partitionKey, int requests) {
+        long now = this.currentSecond();
+        PartitionCounter counter = this.partitions.get(partitionKey);
+        boolean created = false;
+        if (counter == null) {
+            counter = new PartitionCounter();
+            PartitionCounter existing = this.partitions.putIfAbsent(partitionKey, counter);
+            if (existing != null) {
+                counter = existing;
+            } else {
+                created = true;
+            }
+        }
+        counter.add(now, requests);
+        if (created) {
+            // After counting, so the new counter is not idle itself
+            this.evictIdle(now);
+        }
+
+        Listener listener = this.listener;
+        if (listener != null && now - counter.lastNotifiedSecond >= this.windowSeconds) {
+            double rate = counter.rate(now);
+            if (rate > this.threshold) {
+                counter.lastNotifiedSecond = now;
+                listener.hotPartition(partitionKey, rate);
+            }
+        }
+    }
+
+    @Override
+    public void batchCompleted(String partitionKey, int entityCount, long latencyNanos) {
+        this.record(partitionKey, entityCount);
+    }
+
+    /**
+     * Returns the average request rate of a partition over the window.
+     *
+     * @param partitionKey The partition key
+     * @return The requests per second
+     */
+    double getRequestRate(String partitionKey) {
+        PartitionCounter counter = this.partitions.get(partitionKey);
+        return counter == null ? 0 : counter.rate(this.currentSecond());
+    }
+
+    /**
+     * Returns the partitions that are currently hot and forgets the partitions without recent requests.
+     *
+     * @return The request rate of every hot partition, by partition key
+     */
+    Map<String, Double> getHotPartitions() {
+        long now = this.currentSecond();
+        Map<String, Double> hot = new TreeMap<String, Double>();
+        for (Map.Entry<String, PartitionCounter> partition : this.partitions.entrySet()) {
+            double rate = partition.getValue().rate(now);
+            if (rate > this.threshold) {
+                hot.put(partition.getKey(), rate);
+            } else if (partition.getValue().isIdle(now)) {
+                this.partitions.remove(partition.getKey(), partition.getValue());
+            }
+        }
+        return hot;
+    }
+
+    /**
+     * Drops the counters of partitions without requests for a whole window, at most once per window. A
+     * request recorded by a thread that looked up a counter just before it was dropped is lost.
+     */
+    private void evictIdle(long now) {
+        long lastSweep = this.lastSweepSecond.get();
+        if (now - lastSweep < this.windowSeconds || !this.lastSweepSecond.compareAndSet(lastSweep, now)) {
+            return;
+        }
+        for (Map.Entry<String, PartitionCounter> partition : this.partitions.entrySet()) {
+            if (partition.getValue().isIdle(now)) {
+                this.partitions.remove(partition.getKey(), partition.getValue());
+            }
+        }
+    }
+
+    private long currentSecond() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - this.startNanos);
+    }
+}
@@ -0,0 +1,513 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.TableEntity;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableQuery.QueryComparisons;
+import com.microsoft.azure.storage.table.TableResult;
+
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A table whose entities can be looked up by the value of the properties marked {@link Indexed}.
+ *
+ * For every indexed property value the index table holds one entry per entity with that value. The
+ * partition key of an entry is the property name and the value, and its row key and properties
+ * identify the entity, so a lookup is a query of a single small index partition followed by a point
+ * read of every entity it names.
+ *
+ * Writes through this class keep the index up to date without transactions across the two tables.
+ * The entries for the new values are written before the entity, and the entries for replaced values
+ * are deleted after it, so the index never misses an entity but may briefly name entities that no
+ * longer have the value. A lookup checks every entity it reads against the value and deletes such
+ * stale entries. An entry is only stale once the entity was written after it or once it is older than
+ * a grace period, since a younger entry may belong to a write still in flight, and it is deleted with
+ * its ETag, so an entry written again in the meantime stays. To detect concurrent writers,
+ * unconditional writes are sent with the ETag read before the index was updated and are retried with
+ * backoff when another writer got in between.
+ * {@link #repair()} rebuilds the index, for example after entities were written around this class.
+ *
+ * @param <T> The entity type
+ */
+final class IndexedTable<T extends TableEntity> {
+
+    /**
+     * The number of index entries written and deleted by a repair.
+     */
+    static final class RepairResult {
+        private final long entriesWritten;
+        private final long staleEntriesDeleted;
+
+        RepairResult(long entriesWritten, long staleEntriesDeleted) {
+            this.entriesWritten = entriesWritten;
+            this.staleEntriesDeleted = staleEntriesDeleted;
+        }
+
+        long getEntriesWritten() {
+            return this.entriesWritten;
+        }
+
+        long getStaleEntriesDeleted() {
+            return this.staleEntriesDeleted;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d index entries written, %d stale entries deleted", this.entriesWritten, this.staleEntriesDeleted);
+        }
+    }
+
+    private enum WriteKind {
+        INSERT,
+        INSERT_OR_REPLACE,
+        INSERT_OR_MERGE,
+        REPLACE,
+        MERGE,
+        DELETE
+    }
+
+    private static final String TARGET_PARTITION_KEY = "TargetPartitionKey";
+    private static final String TARGET_ROW_KEY = "TargetRowKey";
+
+    // Separates the parts of the index keys, it is escaped within the parts
+    private static final char SEPARATOR = ':';
+
+    private final CloudTable table;
+    private final CloudTable indexTable;
+    private final Class<T> clazzType;
+    private final String[] indexedProperties;
+    private int maxAttempts = 5;
+    private long gracePeriodMillis = TimeUnit.MINUTES.toMillis(1);
+
+    private final AtomicLong conflictCount = new AtomicLong();
+    private final AtomicLong staleEntryCount = new AtomicLong();
+
+    /**
+     * Creates an indexed table.
+     *
+     * @param table The {@link CloudTable} object holding the entities
+     * @param indexTable The {@link CloudTable} object holding the index entries, used for no other purpose
+     * @param clazzType The entity type, whose indexed properties are marked {@link Indexed}
+     */
+    IndexedTable(CloudTable table, CloudTable indexTable, Class<T> clazzType) {
+        if (table == null || indexTable == null || clazzType == null) {
+            throw new IllegalArgumentException("table, indexTable and clazzType must not be null.");
+        }
+        this.table = table;
+        this.indexTable = indexTable;
+        this.clazzType = clazzType;
+        this.indexedProperties = indexedPropertiesOf(clazzType);
+        if (this.indexedProperties.length == 0) {
+            throw new IllegalArgumentException(String.format("%s has no @Indexed properties.", clazzType.getName()));
+        }
+    }
+
+    /**
+     * Sets how often a write is attempted when concurrent writes to the same entity keep changing it.
+     *
+     * @param maxAttempts The number of attempts, at least 1
+     */
+    void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1.");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Sets how long an index entry naming an entity without the value is kept when the entity was not
+     * written after it, which covers writes still in flight and entities being inserted. The age is
+     * measured against the local clock. Defaults to one minute.
+     *
+     * @param gracePeriod The grace period
+     * @param unit The unit of the grace period
+     */
+    void setStaleEntryGracePeriod(long gracePeriod, TimeUnit unit) {
+        this.gracePeriodMillis = unit.toMillis(gracePeriod);
+    }
+
+    CloudTable getTable() {
+        return this.table;
+    }
+
+    CloudTable getIndexTable() {
+        return this.indexTable;
+    }
+
+    /**
+     * Returns the names of the indexed properties.
+     */
+    List<String> getIndexedProperties() {
+        return Collections.unmodifiableList(Arrays.asList(this.indexedProperties));
+    }
+
+    /**
+     * Returns the number of writes that were retried because another writer changed the entity.
+     */
+    long getConflictCount() {
+        return this.conflictCount.get();
+    }
+
+    /**
+     * Returns the number of stale index entries found and deleted by lookups.
+     */
+    long getStaleEntryCount() {
+        return this.staleEntryCount.get();
+    }
+
+    TableResult insert(T entity) throws StorageException {
+        return this.write(entity, WriteKind.INSERT);
+    }
+
+    TableResult insertOrReplace(T entity) throws StorageException {
+        return this.write(entity, WriteKind.INSERT_OR_REPLACE);
+    }
+
+    TableResult insertOrMerge(T entity) throws StorageException {
+        return this.write(entity, WriteKind.INSERT_OR_MERGE);
+    }
+
+    TableResult replace(T entity) throws StorageException {
+        return this.write(entity, WriteKind.REPLACE);
+    }
+
+    TableResult merge(T entity) throws StorageException {
+        return this.write(entity, WriteKind.MERGE);
+    }
+
+    TableResult delete(T entity) throws StorageException {
+        return this.write(entity, WriteKind.DELETE);
+    }
+
+    /**
+     * Returns the entities whose indexed property has the given value.
+     *
+     * @param propertyName The name of an indexed property
+     * @param value The value as returned by {@link EntityProperty#getValueAsString()}
+     * @return The matching entities, in the order of their keys
+     *
+     * @throws StorageException
+     */
+    List<T> lookup(String propertyName, String value) throws StorageException {
+        this.assertIndexed(propertyName);
+        if (value == null) {
+            throw new IllegalArgumentException("value");
+        }
+
+        TableQuery<DynamicTableEntity> query = TableQuery.from(DynamicTableEntity.class).where(
+                TableQuery.generateFilterCondition("PartitionKey", QueryComparisons.EQUAL, indexPartitionKey(propertyName, value)));
+
+        List<T> results = new ArrayList<T>();
+        for (DynamicTableEntity entry : this.indexTable.execute(query)) {
+            String partitionKey = entry.getProperties().get(TARGET_PARTITION_KEY).getValueAsString();
+            String rowKey = entry.getProperties().get(TARGET_ROW_KEY).getValueAsString();
+            T entity = this.table.execute(TableOperation.retrieve(partitionKey, rowKey, this.clazzType)).getResultAsType();
+
+            // The entry may name an entity whose value has changed since, or that is gone
+            if (entity != null && value.equals(this.indexedValues(entity.writeEntity(null)).get(propertyName))) {
+                results.add(entity);
+            } else if (this.isStale(entry, entity == null ? null : entity.getTimestamp())) {
+                this.staleEntryCount.incrementAndGet();
+                this.deleteEntry(entry);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Rebuilds the index. The entries of every entity are written again, then every entry is checked
+     * against the entity it names and deleted if it is stale. Both passes read the whole table or
+     * index, so a repair is meant for maintenance windows or after writes that bypassed this class.
+     *
+     * @return The number of written and deleted entries
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    RepairResult repair() throws StorageException, InterruptedException {
+        // Write the entries of every entity, reading only the keys and the indexed properties
+        BulkLoadResult written;
+        try (SegmentedQueryReader<ProjectedEntity> reader = new ProjectionQuery(this.table, null, this.indexedProperties).records()) {
+            Stream<DynamicTableEntity> entries = StreamSupport.stream(reader.spliterator(), false).flatMap(entity -> {
+                List<DynamicTableEntity> entityEntries = new ArrayList<DynamicTableEntity>(this.indexedProperties.length);
+                for (String propertyName : this.indexedProperties) {
+                    EntityProperty property = entity.getProperty(propertyName);
+                    if (property != null) {
+                        entityEntries.add(createEntry(propertyName, property.getValueAsString(), entity.getPartitionKey(), entity.getRowKey()));
+                    }
+                }
+                return entityEntries.stream();
+            });
+            written = new TableBulkLoader(this.indexTable, 4).load(entries);
+        }
+
+        // Delete the entries naming entities that no longer have the value
+        long deleted = 0;
+        try (SegmentedQueryReader<DynamicTableEntity> reader = SegmentedQueryReader.of(this.indexTable, TableQuery.from(DynamicTableEntity.class))) {
+            for (DynamicTableEntity entry : reader) {
+                String propertyName = entry.getPartitionKey().substring(0, entry.getPartitionKey().indexOf(SEPARATOR));
+                DynamicTableEntity entity = this.table.execute(TableOperation.retrieve(
+                        entry.getProperties().get(TARGET_PARTITION_KEY).getValueAsString(),
+                        entry.getProperties().get(TARGET_ROW_KEY).getValueAsString(),
+                        DynamicTableEntity.class)).getResultAsType();
+                String value = entity == null ? null : this.indexedValues(entity.getProperties()).get(propertyName);
+                if ((value == null || !entry.getPartitionKey().equals(indexPartitionKey(propertyName, value)))
+                        && this.isStale(entry, entity == null ? null : entity.getTimestamp()) && this.deleteEntry(entry)) {
+                    deleted++;
+                }
+            }
+        }
+        return new RepairResult(written.getEntityCount(), deleted);
+    }
+
+    private TableResult write(T entity, WriteKind kind) throws StorageException {
+        String partitionKey = entity.getPartitionKey();
+        String rowKey = entity.getRowKey();
+        String originalEtag = entity.getEtag();
+        boolean conditional = originalEtag != null && !originalEtag.equals("*")
+                && (kind == WriteKind.REPLACE || kind == WriteKind.MERGE || kind == WriteKind.DELETE);
+
+        for (int attempt = 1; ; attempt++) {
+            DynamicTableEntity current = kind == WriteKind.INSERT ? null : this.table.execute(
+                    TableOperation.retrieve(partitionKey, rowKey, DynamicTableEntity.class)).getResultAsType();
+            Map<String, String> oldValues = current == null
+                    ? Collections.<String, String>emptyMap() : this.indexedValues(current.getProperties());
+
+            Map<String, String> newValues;
+            if (kind == WriteKind.DELETE) {
+                newValues = Collections.<String, String>emptyMap();
+            } else if (kind == WriteKind.MERGE || kind == WriteKind.INSERT_OR_MERGE) {
+                // A merge keeps the stored value of every property it does not set
+                newValues = new HashMap<String, String>(oldValues);
+                newValues.putAll(this.indexedValues(entity.writeEntity(null)));
+            } else {
+                newValues = this.indexedValues(entity.writeEntity(null));
+            }
+
+            // Entries for new values go in first, so a lookup never misses the entity
+            for (Map.Entry<String, String> value : newValues.entrySet()) {
+                if (!value.getValue().equals(oldValues.get(value.getKey()))) {
+                    this.indexTable.execute(TableOperation.insertOrReplace(
+                            createEntry(value.getKey(), value.getValue(), partitionKey, rowKey)));
+                }
+            }
+
+            // Unconditional writes of an existing entity are made conditional on the state read above
+            boolean exists = current != null;
+            if (!conditional && exists) {
+                entity.setEtag(current.getEtag());
+            } else if (originalEtag == null && (kind == WriteKind.REPLACE || kind == WriteKind.MERGE || kind == WriteKind.DELETE)) {
+                // The entity does not exist, let the service report it
+                entity.setEtag("*");
+            }
+
+            TableResult result;
+            try {
+                result = this.table.execute(this.createOperation(entity, kind, exists));
+            }
+            catch (StorageException e) {
+                entity.setEtag(originalEtag);
+                boolean raced = (!conditional && exists && e.getHttpStatusCode() == HttpURLConnection.HTTP_PRECON_FAILED)
+                        || (kind != WriteKind.INSERT && !exists && e.getHttpStatusCode() == HttpURLConnection.HTTP_CONFLICT);
+                if (!raced || attempt >= this.maxAttempts) {
+                    throw e;
+                }
+                this.conflictCount.incrementAndGet();
+                this.backOff(attempt);
+                continue;
+            }
+
+            // Entries for replaced values go last; one left behind is removed by the next lookup
+            for (Map.Entry<String, String> value : oldValues.entrySet()) {
+                if (!value.getValue().equals(newValues.get(value.getKey()))) {
+                    this.deleteReplacedEntry(value.getKey(), value.getValue(), current);
+                }
+            }
+            return result;
+        }
+    }
+
+    private TableOperation createOperation(T entity, WriteKind kind, boolean exists) {
+        switch (kind) {
+            case INSERT:
+                return TableOperation.insert(entity);
+            case INSERT_OR_REPLACE:
+                return exists ? TableOperation.replace(entity) : TableOperation.insert(entity);
+            case INSERT_OR_MERGE:
+                return exists ? TableOperation.merge(entity) : TableOperation.insert(entity);
+            case REPLACE:
+                return TableOperation.replace(entity);
+            case MERGE:
+                return TableOperation.merge(entity);
+            default:
+                return TableOperation.delete(entity);
+        }
+    }
+
+    private void backOff(int attempt) throws StorageException {
+        try {
+            long maxDelay = TimeUnit.MILLISECONDS.toNanos(10) << Math.min(attempt, 10);
+            TimeUnit.NANOSECONDS.sleep(ThreadLocalRandom.current().nextLong(maxDelay));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("OperationInterrupted", "The write was interrupted while backing off.", e);
+        }
+    }
+
+    /**
+     * Deletes the entry for a value that a successful write replaced. The entry is read again first: one
+     * written after the replaced state of the entity was written by another writer that has set the
+     * value again since, and stays.
+     */
+    private void deleteReplacedEntry(String propertyName, String value, DynamicTableEntity replaced) {
+        DynamicTableEntity key = createEntry(propertyName, value, replaced.getPartitionKey(), replaced.getRowKey());
+        try {
+            DynamicTableEntity entry = this.indexTable.execute(TableOperation.retrieve(
+                    key.getPartitionKey(), key.getRowKey(), DynamicTableEntity.class)).getResultAsType();
+            if (entry != null && entry.getTimestamp() != null && replaced.getTimestamp() != null
+                    && !entry.getTimestamp().after(replaced.getTimestamp())) {
+                this.deleteEntry(entry);
+            }
+        }
+        catch (StorageException e) {
+            // Left for the next lookup or repair to remove
+        }
+    }
+
+    /**
+     * Returns whether an entry naming an entity without its value can be deleted. Writers put entries in
+     * before the entity, so an entry that is newer than the entity may belong to a write still in flight.
+     *
+     * @param entry The index entry, as read from the index table
+     * @param entityTimestamp The timestamp of the entity, or null if it does not exist
+     */
+    private boolean isStale(DynamicTableEntity entry, Date entityTimestamp) {
+        Date entryTimestamp = entry.getTimestamp();
+        if (entryTimestamp == null) {
+            return false;
+        }
+        return (entityTimestamp != null && entityTimestamp.after(entryTimestamp))
+                || System.currentTimeMillis() - entryTimestamp.getTime() > this.gracePeriodMillis;
+    }
+
+    /**
+     * Deletes an entry if it is unchanged since it was read.
+     *
+     * @return true if the entry was deleted
+     */
+    private boolean deleteEntry(DynamicTableEntity entry) {
+        try {
+            this.indexTable.execute(TableOperation.delete(entry));
+            return true;
+        }
+        catch (StorageException e) {
+            // Written again, already gone, or left for the next lookup or repair to remove
+            return false;
+        }
+    }
+
+    /**
+     * Returns the string form of the indexed properties that have a value.
+     */
+    private Map<String, String> indexedValues(Map<String, EntityProperty> properties) {
+        Map<String, String> values = new HashMap<String, String>();
+        for (String propertyName : this.indexedProperties) {
+            EntityProperty property = properties.get(propertyName);
+            if (property != null && !property.getIsNull()) {
+                values.put(propertyName, property.getValueAsString());
+            }
+        }
+        return values;
+    }
+
+    private void assertIndexed(String propertyName) {
+        for (String indexedProperty : this.indexedProperties) {
+            if (indexedProperty.equals(propertyName)) {
+                return;
+            }
+        }
+        throw new IllegalArgumentException(String.format("The property \"%s\" is not indexed.", propertyName));
+    }
+
+    private static DynamicTableEntity createEntry(String propertyName, String value, String partitionKey, String rowKey) {
+        DynamicTableEntity entry = new DynamicTableEntity(indexPartitionKey(propertyName, value), escape(partitionKey) + SEPARATOR + escape(rowKey));
+        entry.getProperties().put(TARGET_PARTITION_KEY, new EntityProperty(partitionKey));
+        entry.getProperties().put(TARGET_ROW_KEY, new EntityProperty(rowKey));
+        return entry;
+    }
+
+    private static String indexPartitionKey(String propertyName, String value) {
+        return propertyName + SEPARATOR + escape(value);
+    }
+
+    /**
+     * Escapes the characters that are not allowed in keys and the separator as %XX.
+     */
+    private static String escape(String value) {
+        StringBuilder builder = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            boolean escaped = c == '/' || c == '\\' || c == '#' || c == '?' || c == '%' || c == SEPARATOR
+                    || c < 0x20 || (c >= 0x7F && c <= 0x9F);
+            if (escaped && builder == null) {
+                builder = new StringBuilder(value.length() + 8).append(value, 0, i);
+            }
+            if (escaped) {
+                builder.append(String.format("%%%02X", (int) c));
+            } else if (builder != null) {
+                builder.append(c);
+            }
+        }
+        return builder == null ? value : builder.toString();
+    }
+
+    private static String[] indexedPropertiesOf(Class<?> clazzType) {
+        TreeSet<String> names = new TreeSet<String>();
+        for (Method method : clazzType.getMethods()) {
+            Indexed indexed = method.getAnnotation(Indexed.class);
+            if (indexed == null) {
+                continue;
+            }
+            String name = indexed.value();
+            if (name.isEmpty()) {
+                String methodName = method.getName();
+                int prefix = methodName.startsWith("get") ? 3 : methodName.startsWith("is") ? 2 : 0;
+                name = methodName.substring(prefix);
+            }
+            names.add(name);
+        }
+        return names.toArray(new String[names.size()]);
+    }
+}
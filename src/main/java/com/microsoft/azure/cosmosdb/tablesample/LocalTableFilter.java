@@ -0,0 +1,495 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.EdmType;
+
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.NavigableMap;
+
+/**
+ * A parsed OData $filter expression of the Table service, evaluated against the entities of a
+ * {@link LocalTableStore}.
+ *
+ * Supported are the comparison operators eq, ne, gt, ge, lt and le, the logical operators and, or and
+ * not, parentheses, and string, numeric, boolean, datetime, guid and binary literals. As with the
+ * service, a comparison with a property the entity does not have, or of values of different types,
+ * is false. Conditions on PartitionKey that every match has to satisfy narrow the partitions scanned.
+ */
+final class LocalTableFilter {
+
+    private interface Condition {
+        boolean test(LocalTableStore.StoredEntity entity);
+    }
+
+    private enum ValueKind {
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        DATE_TIME,
+        GUID,
+        BINARY
+    }
+
+    /**
+     * A typed value, either a literal or the value of a property.
+     */
+    private static final class Value {
+        private final ValueKind kind;
+        private final Object value;
+
+        Value(ValueKind kind, Object value) {
+            this.kind = kind;
+            this.value = value;
+        }
+
+        /**
+         * Compares two values.
+         *
+         * @return The comparison result, or null if the values are not comparable
+         */
+        static Integer compare(Value left, Value right) {
+            if (left == null || right == null || left.kind != right.kind) {
+                return null;
+            }
+            switch (left.kind) {
+                case NUMBER:
+                    Number l = (Number) left.value;
+                    Number r = (Number) right.value;
+                    if (l instanceof Long && r instanceof Long) {
+                        return Long.compare(l.longValue(), r.longValue());
+                    }
+                    return Double.compare(l.doubleValue(), r.doubleValue());
+                case BINARY:
+                    byte[] lb = (byte[]) left.value;
+                    byte[] rb = (byte[]) right.value;
+                    for (int i = 0; i < Math.min(lb.length, rb.length); i++) {
+                        int c = Integer.compare(lb[i] & 0xff, rb[i] & 0xff);
+                        if (c != 0) {
+                            return c;
+                        }
+                    }
+                    return Integer.compare(lb.length, rb.length);
+                case BOOLEAN:
+                    return Boolean.compare((Boolean) left.value, (Boolean) right.value);
+                case DATE_TIME:
+                    return ((Instant) left.value).compareTo((Instant) right.value);
+                default:
+                    return ((String) left.value).compareTo((String) right.value);
+            }
+        }
+
+        static Value of(LocalTableStore.Property property) {
+            if (property == null) {
+                return null;
+            }
+            String value = property.getValue();
+            EdmType type = property.getType();
+            if (type == EdmType.INT32 || type == EdmType.INT64) {
+                return new Value(ValueKind.NUMBER, Long.valueOf(value));
+            } else if (type == EdmType.DOUBLE) {
+                return new Value(ValueKind.NUMBER, Double.valueOf(value));
+            } else if (type == EdmType.BOOLEAN) {
+                return new Value(ValueKind.BOOLEAN, Boolean.valueOf(value));
+            } else if (type == EdmType.DATE_TIME) {
+                return new Value(ValueKind.DATE_TIME, Instant.parse(value));
+            } else if (type == EdmType.GUID) {
+                return new Value(ValueKind.GUID, value.toLowerCase(Locale.ROOT));
+            } else if (type == EdmType.BINARY) {
+                return new Value(ValueKind.BINARY, Base64.getDecoder().decode(value));
+            }
+            return new Value(ValueKind.STRING, value);
+        }
+    }
+
+    /**
+     * An operand of a comparison, either a property name or a literal.
+     */
+    private static final class Operand {
+        private final String propertyName;
+        private final Value literal;
+
+        Operand(String propertyName, Value literal) {
+            this.propertyName = propertyName;
+            this.literal = literal;
+        }
+
+        Value evaluate(LocalTableStore.StoredEntity entity) {
+            if (this.propertyName == null) {
+                return this.literal;
+            }
+            switch (this.propertyName) {
+                case "PartitionKey":
+                    return new Value(ValueKind.STRING, entity.getPartitionKey());
+                case "RowKey":
+                    return new Value(ValueKind.STRING, entity.getRowKey());
+                case "Timestamp":
+                    return new Value(ValueKind.DATE_TIME, entity.getTimestamp());
+                default:
+                    return Value.of(entity.getProperties().get(this.propertyName));
+            }
+        }
+    }
+
+    /**
+     * The range of partition keys a condition can match, unbounded where a bound is null.
+     */
+    private static final class KeyRange {
+        private static final KeyRange ALL = new KeyRange(null, false, null, false);
+
+        private final String lower;
+        private final boolean lowerInclusive;
+        private final String upper;
+        private final boolean upperInclusive;
+
+        KeyRange(String lower, boolean lowerInclusive, String upper, boolean upperInclusive) {
+            this.lower = lower;
+            this.lowerInclusive = lowerInclusive;
+            this.upper = upper;
+            this.upperInclusive = upperInclusive;
+        }
+
+        KeyRange intersect(KeyRange other) {
+            String lower = this.lower;
+            boolean lowerInclusive = this.lowerInclusive;
+            if (other.lower != null && (lower == null || other.lower.compareTo(lower) > 0
+                    || (other.lower.equals(lower) && !other.lowerInclusive))) {
+                lower = other.lower;
+                lowerInclusive = other.lowerInclusive;
+            }
+            String upper = this.upper;
+            boolean upperInclusive = this.upperInclusive;
+            if (other.upper != null && (upper == null || other.upper.compareTo(upper) < 0
+                    || (other.upper.equals(upper) && !other.upperInclusive))) {
+                upper = other.upper;
+                upperInclusive = other.upperInclusive;
+            }
+            return new KeyRange(lower, lowerInclusive, upper, upperInclusive);
+        }
+
+        boolean isEmpty() {
+            if (this.lower == null || this.upper == null) {
+                return false;
+            }
+            int c = this.lower.compareTo(this.upper);
+            return c > 0 || (c == 0 && !(this.lowerInclusive && this.upperInclusive));
+        }
+    }
+
+    private final Condition condition;
+    private final KeyRange partitionKeyRange;
+
+    private LocalTableFilter(Condition condition, KeyRange partitionKeyRange) {
+        this.condition = condition;
+        this.partitionKeyRange = partitionKeyRange;
+    }
+
+    /**
+     * Parses a filter expression.
+     *
+     * @param expression The value of the $filter query parameter
+     * @return The filter
+     * @throws IllegalArgumentException If the expression is not valid
+     */
+    static LocalTableFilter parse(String expression) {
+        return new Parser(expression).parse();
+    }
+
+    boolean matches(LocalTableStore.StoredEntity entity) {
+        return this.condition.test(entity);
+    }
+
+    /**
+     * Returns the partitions whose keys can satisfy the filter.
+     *
+     * @param partitions All partitions of a table
+     * @return A view of the partitions to scan
+     */
+    <V> NavigableMap<String, V> restrictPartitions(NavigableMap<String, V> partitions) {
+        KeyRange range = this.partitionKeyRange;
+        if (range.isEmpty()) {
+            return partitions.subMap("", false, "", false);
+        }
+        if (range.lower != null) {
+            partitions = partitions.tailMap(range.lower, range.lowerInclusive);
+        }
+        if (range.upper != null) {
+            partitions = partitions.headMap(range.upper, range.upperInclusive);
+        }
+        return partitions;
+    }
+
+    /**
+     * A recursive descent parser for filter expressions.
+     */
+    private static final class Parser {
+        private final String text;
+        private int position;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        LocalTableFilter parse() {
+            KeyRange[] range = new KeyRange[1];
+            Condition condition = this.parseOr(range);
+            this.skipWhitespace();
+            if (this.position != this.text.length()) {
+                throw this.error("Unexpected text");
+            }
+            return new LocalTableFilter(condition, range[0]);
+        }
+
+        // Each parse method also returns the partition key range that every match of its condition lies in
+        private Condition parseOr(KeyRange[] range) {
+            Condition left = this.parseAnd(range);
+            while (this.acceptKeyword("or")) {
+                KeyRange[] rightRange = new KeyRange[1];
+                final Condition l = left;
+                final Condition r = this.parseAnd(rightRange);
+                left = entity -> l.test(entity) || r.test(entity);
+                range[0] = KeyRange.ALL;
+            }
+            return left;
+        }
+
+        private Condition parseAnd(KeyRange[] range) {
+            Condition left = this.parseUnary(range);
+            while (this.acceptKeyword("and")) {
+                KeyRange[] rightRange = new KeyRange[1];
+                final Condition l = left;
+                final Condition r = this.parseUnary(rightRange);
+                left = entity -> l.test(entity) && r.test(entity);
+                range[0] = range[0].intersect(rightRange[0]);
+            }
+            return left;
+        }
+
+        private Condition parseUnary(KeyRange[] range) {
+            if (this.acceptKeyword("not")) {
+                final Condition operand = this.parseUnary(new KeyRange[1]);
+                range[0] = KeyRange.ALL;
+                return entity -> !operand.test(entity);
+            }
+            this.skipWhitespace();
+            if (this.peek() == '(') {
+                this.position++;
+                Condition condition = this.parseOr(range);
+                this.expect(')');
+                return condition;
+            }
+            return this.parseComparison(range);
+        }
+
+        private Condition parseComparison(KeyRange[] range) {
+            final Operand left = this.parseOperand();
+            this.skipWhitespace();
+            int start = this.position;
+            String operator = this.readWord().toLowerCase(Locale.ROOT);
+            final Operand right = this.parseOperand();
+            range[0] = partitionKeyRange(left, operator, right);
+
+            switch (operator) {
+                case "eq":
+                    return entity -> {
+                        Integer c = Value.compare(left.evaluate(entity), right.evaluate(entity));
+                        return c != null && c == 0;
+                    };
+                case "ne":
+                    return entity -> {
+                        Integer c = Value.compare(left.evaluate(entity), right.evaluate(entity));
+                        return c != null && c != 0;
+                    };
+                case "gt":
+                    return entity -> {
+                        Integer c = Value.compare(left.evaluate(entity), right.evaluate(entity));
+                        return c != null && c > 0;
+                    };
+                case "ge":
+                    return entity -> {
+                        Integer c = Value.compare(left.evaluate(entity), right.evaluate(entity));
+                        return c != null && c >= 0;
+                    };
+                case "lt":
+                    return entity -> {
+                        Integer c = Value.compare(left.evaluate(entity), right.evaluate(entity));
+                        return c != null && c < 0;
+                    };
+                case "le":
+                    return entity -> {
+                        Integer c = Value.compare(left.evaluate(entity), right.evaluate(entity));
+                        return c != null && c <= 0;
+                    };
+                default:
+                    this.position = start;
+                    throw this.error("Expected a comparison operator");
+            }
+        }
+
+        private static KeyRange partitionKeyRange(Operand left, String operator, Operand right) {
+            if (!"PartitionKey".equals(left.propertyName) || right.literal == null || right.literal.kind != ValueKind.STRING) {
+                return KeyRange.ALL;
+            }
+            String key = (String) right.literal.value;
+            switch (operator) {
+                case "eq":
+                    return new KeyRange(key, true, key, true);
+                case "gt":
+                    return new KeyRange(key, false, null, false);
+                case "ge":
+                    return new KeyRange(key, true, null, false);
+                case "lt":
+                    return new KeyRange(null, false, key, false);
+                case "le":
+                    return new KeyRange(null, false, key, true);
+                default:
+                    return KeyRange.ALL;
+            }
+        }
+
+        private Operand parseOperand() {
+            this.skipWhitespace();
+            char c = this.peek();
+            if (c == '\'') {
+                return new Operand(null, new Value(ValueKind.STRING, this.readQuoted()));
+            }
+            if (c == '-' || Character.isDigit(c)) {
+                return new Operand(null, this.readNumber());
+            }
+
+            String word = this.readWord();
+            if (word.isEmpty()) {
+                throw this.error("Expected a property name or a literal");
+            }
+            if (this.peek() == '\'') {
+                String value = this.readQuoted();
+                switch (word.toLowerCase(Locale.ROOT)) {
+                    case "datetime":
+                        return new Operand(null, new Value(ValueKind.DATE_TIME, Instant.parse(value)));
+                    case "guid":
+                        return new Operand(null, new Value(ValueKind.GUID, value.toLowerCase(Locale.ROOT)));
+                    case "x":
+                    case "binary":
+                        return new Operand(null, new Value(ValueKind.BINARY, hexToBytes(value)));
+                    default:
+                        throw this.error("Unknown literal type " + word);
+                }
+            }
+            if (word.equals("true") || word.equals("false")) {
+                return new Operand(null, new Value(ValueKind.BOOLEAN, Boolean.valueOf(word)));
+            }
+            return new Operand(word, null);
+        }
+
+        private Value readNumber() {
+            int start = this.position;
+            if (this.peek() == '-') {
+                this.position++;
+            }
+            while (this.position < this.text.length() && "0123456789.eE+-".indexOf(this.text.charAt(this.position)) >= 0) {
+                this.position++;
+            }
+            String number = this.text.substring(start, this.position);
+            if (this.peek() == 'L' || this.peek() == 'l') {
+                this.position++;
+                return new Value(ValueKind.NUMBER, Long.valueOf(number));
+            }
+            try {
+                if (number.contains(".") || number.contains("e") || number.contains("E")) {
+                    return new Value(ValueKind.NUMBER, Double.valueOf(number));
+                }
+                return new Value(ValueKind.NUMBER, Long.valueOf(number));
+            }
+            catch (NumberFormatException e) {
+                this.position = start;
+                throw this.error("Invalid number");
+            }
+        }
+
+        private String readQuoted() {
+            this.expect('\'');
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                if (this.position >= this.text.length()) {
+                    throw this.error("Unterminated string literal");
+                }
+                char c = this.text.charAt(this.position++);
+                if (c == '\'') {
+                    // A quote inside a literal is written as two quotes
+                    if (this.peek() == '\'') {
+                        this.position++;
+                        value.append('\'');
+                    } else {
+                        return value.toString();
+                    }
+                } else {
+                    value.append(c);
+                }
+            }
+        }
+
+        private String readWord() {
+            this.skipWhitespace();
+            int start = this.position;
+            while (this.position < this.text.length()
+                    && (Character.isLetterOrDigit(this.text.charAt(this.position)) || this.text.charAt(this.position) == '_')) {
+                this.position++;
+            }
+            return this.text.substring(start, this.position);
+        }
+
+        private boolean acceptKeyword(String keyword) {
+            this.skipWhitespace();
+            int end = this.position + keyword.length();
+            if (end <= this.text.length() && this.text.regionMatches(true, this.position, keyword, 0, keyword.length())
+                    && (end == this.text.length() || !Character.isLetterOrDigit(this.text.charAt(end)))) {
+                this.position = end;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            this.skipWhitespace();
+            if (this.peek() != c) {
+                throw this.error("Expected '" + c + "'");
+            }
+            this.position++;
+        }
+
+        private char peek() {
+            return this.position < this.text.length() ? this.text.charAt(this.position) : '\0';
+        }
+
+        private void skipWhitespace() {
+            while (this.position < this.text.length() && Character.isWhitespace(this.text.charAt(this.position))) {
+                this.position++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(String.format("%s at position %d of the filter \"%s\".", message, this.position, this.text));
+        }
+
+        private static byte[] hexToBytes(String hex) {
+            byte[] bytes = new byte[hex.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.microsoft.azure.storage.table.EdmType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Reads and writes the JSON payloads of the Table service in the minimal metadata format used by the
+ * storage client.
+ *
+ * Property values are kept in their wire format. Int64, DateTime, Guid and Binary values are sent as
+ * strings with an odata.type annotation, the other types are inferred from the JSON value.
+ */
+final class LocalTableJson {
+
+    /**
+     * The keys and properties of an entity in a request body.
+     */
+    static final class EntityBody {
+        private final String partitionKey;
+        private final String rowKey;
+        private final Map<String, LocalTableStore.Property> properties;
+
+        EntityBody(String partitionKey, String rowKey, Map<String, LocalTableStore.Property> properties) {
+            this.partitionKey = partitionKey;
+            this.rowKey = rowKey;
+            this.properties = properties;
+        }
+
+        String getPartitionKey() {
+            return this.partitionKey;
+        }
+
+        String getRowKey() {
+            return this.rowKey;
+        }
+
+        Map<String, LocalTableStore.Property> getProperties() {
+            return this.properties;
+        }
+    }
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+    private static final DateTimeFormatter DATE_TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSSS'Z'").withZone(ZoneOffset.UTC);
+    private static final String TYPE_ANNOTATION = "@odata.type";
+
+    private LocalTableJson() {
+    }
+
+    /**
+     * Formats a point in time the way the service does, with a resolution of 100ns.
+     *
+     * @param instant The point in time
+     * @return The formatted date
+     */
+    static String formatDateTime(Instant instant) {
+        return DATE_TIME_FORMAT.format(instant);
+    }
+
+    /**
+     * Reads the entity of an insert, update or merge request.
+     *
+     * @param body The request body
+     * @return The entity
+     * @throws IllegalArgumentException If the body is not a valid entity
+     */
+    static EntityBody readEntity(InputStream body) throws IOException {
+        Map<String, String> values = new HashMap<String, String>();
+        Map<String, EdmType> types = new HashMap<String, EdmType>();
+        try (JsonParser parser = FACTORY.createParser(body)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (name.endsWith(TYPE_ANNOTATION)) {
+                    types.put(name.substring(0, name.length() - TYPE_ANNOTATION.length()), edmType(parser.getText()));
+                } else if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                    throw new IllegalArgumentException("Property " + name + " must have a primitive value.");
+                } else if (token != JsonToken.VALUE_NULL && !name.startsWith("odata.")) {
+                    values.put(name, parser.getText());
+                    if (!types.containsKey(name)) {
+                        types.put(name, inferredType(token));
+                    }
+                }
+            }
+        }
+
+        String partitionKey = values.remove("PartitionKey");
+        String rowKey = values.remove("RowKey");
+        // The timestamp is always set by the service
+        values.remove("Timestamp");
+
+        Map<String, LocalTableStore.Property> properties = new HashMap<String, LocalTableStore.Property>(values.size());
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            EdmType type = types.get(value.getKey());
+            properties.put(value.getKey(), new LocalTableStore.Property(type, normalize(value.getKey(), type, value.getValue())));
+        }
+        return new EntityBody(partitionKey, rowKey, properties);
+    }
+
+    /**
+     * Reads the table name of a create table request.
+     *
+     * @param body The request body
+     * @return The table name
+     * @throws IllegalArgumentException If the body has no table name
+     */
+    static String readTableName(InputStream body) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(body)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if ("TableName".equals(name)) {
+                    return parser.getText();
+                }
+                parser.skipChildren();
+            }
+        }
+        throw new IllegalArgumentException("The request body has no TableName.");
+    }
+
+    /**
+     * Writes a single entity.
+     *
+     * @param entity The entity
+     * @param metadataUrl The metadata URL of the table
+     * @param select The properties to return, or null for all
+     * @return The response body
+     */
+    static byte[] entity(LocalTableStore.StoredEntity entity, String metadataUrl, Set<String> select) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try (JsonGenerator generator = FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeStringField("odata.metadata", metadataUrl + "/@Element");
+            writeEntityFields(generator, entity, select);
+            generator.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a page of query results.
+     *
+     * @param entities The entities
+     * @param metadataUrl The metadata URL of the table
+     * @param select The properties to return, or null for all
+     * @return The response body
+     */
+    static byte[] entities(List<LocalTableStore.StoredEntity> entities, String metadataUrl, Set<String> select) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128 + 256 * entities.size());
+        try (JsonGenerator generator = FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeStringField("odata.metadata", metadataUrl);
+            generator.writeArrayFieldStart("value");
+            for (LocalTableStore.StoredEntity entity : entities) {
+                generator.writeStartObject();
+                writeEntityFields(generator, entity, select);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a table, or a list of tables.
+     *
+     * @param tableNames The table names
+     * @param metadataUrl The metadata URL of the tables
+     * @param single Whether to write a single table rather than a list
+     * @return The response body
+     */
+    static byte[] tables(List<String> tableNames, String metadataUrl, boolean single) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128 + 32 * tableNames.size());
+        try (JsonGenerator generator = FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            if (single) {
+                generator.writeStringField("odata.metadata", metadataUrl + "/@Element");
+                generator.writeStringField("TableName", tableNames.get(0));
+            } else {
+                generator.writeStringField("odata.metadata", metadataUrl);
+                generator.writeArrayFieldStart("value");
+                for (String tableName : tableNames) {
+                    generator.writeStartObject();
+                    generator.writeStringField("TableName", tableName);
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+            }
+            generator.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes an error.
+     *
+     * @param errorCode The storage error code
+     * @param message The error message
+     * @return The response body
+     */
+    static byte[] error(String errorCode, String message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try (JsonGenerator generator = FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeObjectFieldStart("odata.error");
+            generator.writeStringField("code", errorCode);
+            generator.writeObjectFieldStart("message");
+            generator.writeStringField("lang", "en-US");
+            generator.writeStringField("value", message);
+            generator.writeEndObject();
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeEntityFields(JsonGenerator generator, LocalTableStore.StoredEntity entity, Set<String> select) throws IOException {
+        generator.writeStringField("odata.etag", entity.getEtag());
+        if (select == null || select.contains("PartitionKey")) {
+            generator.writeStringField("PartitionKey", entity.getPartitionKey());
+        }
+        if (select == null || select.contains("RowKey")) {
+            generator.writeStringField("RowKey", entity.getRowKey());
+        }
+        if (select == null || select.contains("Timestamp")) {
+            generator.writeStringField("Timestamp" + TYPE_ANNOTATION, "Edm.DateTime");
+            generator.writeStringField("Timestamp", formatDateTime(entity.getTimestamp()));
+        }
+
+        for (Map.Entry<String, LocalTableStore.Property> property : entity.getProperties().entrySet()) {
+            String name = property.getKey();
+            if (select != null && !select.contains(name)) {
+                continue;
+            }
+
+            String value = property.getValue().getValue();
+            EdmType type = property.getValue().getType();
+            if (type == EdmType.INT32) {
+                generator.writeNumberField(name, Integer.parseInt(value));
+            } else if (type == EdmType.BOOLEAN) {
+                generator.writeBooleanField(name, Boolean.parseBoolean(value));
+            } else if (type == EdmType.DOUBLE && isFinite(Double.parseDouble(value))) {
+                generator.writeNumberField(name, Double.parseDouble(value));
+            } else if (type == EdmType.STRING) {
+                generator.writeStringField(name, value);
+            } else {
+                generator.writeStringField(name + TYPE_ANNOTATION, "Edm." + edmTypeName(type));
+                generator.writeStringField(name, value);
+            }
+        }
+    }
+
+    /**
+     * Brings a value into a canonical form, so that equal values are stored the same way.
+     */
+    private static String normalize(String name, EdmType type, String value) {
+        try {
+            if (type == EdmType.INT32) {
+                return Integer.toString(Integer.parseInt(value));
+            } else if (type == EdmType.INT64) {
+                return Long.toString(Long.parseLong(value));
+            } else if (type == EdmType.DOUBLE) {
+                return Double.toString(Double.parseDouble(value));
+            } else if (type == EdmType.BOOLEAN) {
+                if (!"true".equals(value) && !"false".equals(value)) {
+                    throw new IllegalArgumentException(value);
+                }
+                return value;
+            } else if (type == EdmType.DATE_TIME) {
+                return formatDateTime(Instant.parse(value));
+            } else if (type == EdmType.GUID) {
+                return UUID.fromString(value).toString();
+            } else if (type == EdmType.BINARY) {
+                Base64.getDecoder().decode(value);
+            }
+            return value;
+        }
+        catch (IllegalArgumentException | DateTimeParseException e) {
+            throw new IllegalArgumentException(String.format("The value of property %s is not a valid Edm.%s.", name, edmTypeName(type)), e);
+        }
+    }
+
+    private static EdmType inferredType(JsonToken token) {
+        switch (token) {
+            case VALUE_NUMBER_INT:
+                return EdmType.INT32;
+            case VALUE_NUMBER_FLOAT:
+                return EdmType.DOUBLE;
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return EdmType.BOOLEAN;
+            default:
+                return EdmType.STRING;
+        }
+    }
+
+    private static EdmType edmType(String name) {
+        switch (name) {
+            case "Edm.String":
+                return EdmType.STRING;
+            case "Edm.Int32":
+                return EdmType.INT32;
+            case "Edm.Int64":
+                return EdmType.INT64;
+            case "Edm.Double":
+                return EdmType.DOUBLE;
+            case "Edm.Boolean":
+                return EdmType.BOOLEAN;
+            case "Edm.DateTime":
+                return EdmType.DATE_TIME;
+            case "Edm.Guid":
+                return EdmType.GUID;
+            case "Edm.Binary":
+                return EdmType.BINARY;
+            default:
+                throw new IllegalArgumentException("Unsupported property type " + name + ".");
+        }
+    }
+
+    private static String edmTypeName(EdmType type) {
+        switch (type) {
+            case INT32:
+                return "Int32";
+            case INT64:
+                return "Int64";
+            case DOUBLE:
+                return "Double";
+            case BOOLEAN:
+                return "Boolean";
+            case DATE_TIME:
+                return "DateTime";
+            case GUID:
+                return "Guid";
+            case BINARY:
+                return "Binary";
+            default:
+                return "String";
+        }
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected) {
+        if (actual != expected) {
+            throw new IllegalArgumentException(String.format("Expected %s but found %s.", expected, actual));
+        }
+    }
+}
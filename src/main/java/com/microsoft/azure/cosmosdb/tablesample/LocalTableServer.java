@@ -0,0 +1,1090 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.microsoft.azure.storage.StorageLocation;
+import com.microsoft.azure.storage.StorageUri;
+import com.microsoft.azure.storage.table.EdmType;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process stand-in for the Table service, for repeatable load tests without the storage
+ * emulator or a storage account.
+ *
+ * The server speaks the REST protocol of the service as used by the storage client: tables, entity
+ * inserts, updates, merges and deletes, point reads, filtered queries with $top, $select and
+ * continuation tokens, entity group transactions, table ACLs and the service properties and stats.
+ * The data lives in a {@link LocalTableStore} and is lost when the server is closed. Requests are not
+ * authenticated, but requests signed with a stored access policy are rejected unless the table ACL
+ * holds the policy and it grants the permission the request needs. ACL changes can be made to take
+ * a while to become effective, as they do in the service.
+ *
+ * To make client behavior under load observable, the server can delay every request, separately for
+ * the primary and the secondary endpoint, and it can throttle requests with 503 (Server Busy) once a
+ * partition or the account exceeds a configured number of operations per second, or at random.
+ */
+final class LocalTableServer implements AutoCloseable {
+
+    static final String ACCOUNT_NAME = "devstoreaccount1";
+
+    // The well known key of the storage emulator. The server does not check signatures.
+    static final String ACCOUNT_KEY = "Eby8vdM02xNOcqFlqUwJPLlmEtlCDXJ1OUzFT50uSRZ6IFsuFq2UVErCz4I6tq/K1SZFPTOtr/KBHBeksoGMGw==";
+
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final String JSON = "application/json;odata=minimalmetadata;streaming=true;charset=utf-8";
+    private static final String XML = "application/xml";
+    private static final String SECONDARY_SUFFIX = "-secondary";
+    private static final DateTimeFormatter RFC_1123 = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    private static final String DEFAULT_SERVICE_PROPERTIES = "<?xml version=\"1.0\" encoding=\"utf-8\"?><StorageServiceProperties>"
+            + "<Logging><Version>1.0</Version><Delete>false</Delete><Read>false</Read><Write>false</Write><RetentionPolicy><Enabled>false</Enabled></RetentionPolicy></Logging>"
+            + "<HourMetrics><Version>1.0</Version><Enabled>false</Enabled><RetentionPolicy><Enabled>false</Enabled></RetentionPolicy></HourMetrics>"
+            + "<MinuteMetrics><Version>1.0</Version><Enabled>false</Enabled><RetentionPolicy><Enabled>false</Enabled></RetentionPolicy></MinuteMetrics>"
+            + "<Cors /></StorageServiceProperties>";
+    private static final String[] SERVICE_PROPERTY_ELEMENTS = { "Logging", "HourMetrics", "MinuteMetrics", "Cors", "DefaultServiceVersion" };
+    private static final String EMPTY_ACL = "<?xml version=\"1.0\" encoding=\"utf-8\"?><SignedIdentifiers />";
+
+    /**
+     * A request to the entities of a table, either sent directly or as part of a batch.
+     */
+    private static final class EntityRequest {
+        private String method;
+        private String tableName;
+        private String partitionKey;
+        private String rowKey;
+        private boolean hasKeys;
+        private final Map<String, String> headers = new HashMap<String, String>();
+        private byte[] body;
+
+        String header(String name) {
+            return this.headers.get(name.toLowerCase());
+        }
+    }
+
+    /**
+     * A response to a request of a batch.
+     */
+    private static final class PartResponse {
+        private final int status;
+        private final String etag;
+        private final byte[] body;
+
+        PartResponse(int status, String etag, byte[] body) {
+            this.status = status;
+            this.etag = etag;
+            this.body = body;
+        }
+    }
+
+    static {
+        // Without this the server writes the headers and the body of a response in separate packets,
+        // and delayed acknowledgements add 40ms to every request. The setting is read once per JVM.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final LocalTableStore store = new LocalTableStore();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private volatile long latencyMillis;
+    private volatile long latencyJitterMillis;
+    private volatile long secondaryLatencyMillis;
+    private volatile long secondaryLatencyJitterMillis;
+    private volatile double throttleProbability;
+    private volatile double partitionThroughputLimit;
+    private volatile TokenBucket accountThroughput;
+    private final ConcurrentMap<String, TokenBucket> partitionThroughput = new ConcurrentHashMap<String, TokenBucket>();
+
+    private volatile long aclPropagationNanos;
+    private volatile String serviceProperties = DEFAULT_SERVICE_PROPERTIES;
+    private volatile Date lastSyncTime;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    /**
+     * Starts a server on a free port of the loopback interface.
+     *
+     * @throws IOException If the server cannot be started
+     */
+    LocalTableServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Starts a server on the given port of the loopback interface.
+     *
+     * @param port The port, or 0 for a free port
+     * @throws IOException If the server cannot be started
+     */
+    LocalTableServer(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        // Injected latency blocks the handling thread, so requests must not wait for each other
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "local-table-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", this::handle);
+
+        // The dispatcher thread of the server inherits the daemon status of the thread that starts it.
+        // Starting it from a daemon thread lets the JVM exit while the server is running.
+        Thread starter = new Thread(this.server::start, "local-table-server-start");
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.close();
+            throw new IOException("Interrupted while starting the server.", e);
+        }
+    }
+
+    int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Returns the connection string of the server.
+     *
+     * @return The connection string in the Azure connection string format
+     */
+    String getConnectionString() {
+        return String.format("DefaultEndpointsProtocol=http;AccountName=%s;AccountKey=%s;TableEndpoint=%s;",
+                ACCOUNT_NAME, ACCOUNT_KEY, this.getStorageUri().getPrimaryUri());
+    }
+
+    /**
+     * Returns the primary and secondary endpoints of the server. Both reach the same data. Connection
+     * strings cannot hold a secondary table endpoint, so clients that read from the secondary must be
+     * created from these endpoints and {@link #ACCOUNT_NAME} and {@link #ACCOUNT_KEY}.
+     *
+     * @return The endpoints
+     */
+    StorageUri getStorageUri() {
+        String endpoint = String.format("http://127.0.0.1:%d/%s", this.getPort(), ACCOUNT_NAME);
+        return new StorageUri(URI.create(endpoint), URI.create(endpoint + SECONDARY_SUFFIX));
+    }
+
+    /**
+     * Delays every request.
+     *
+     * @param latency The fixed delay
+     * @param jitter The maximum random delay added to the fixed delay
+     * @param unit The unit of the delays
+     */
+    void setLatency(long latency, long jitter, TimeUnit unit) {
+        this.setLatency(StorageLocation.PRIMARY, latency, jitter, unit);
+        this.setLatency(StorageLocation.SECONDARY, latency, jitter, unit);
+    }
+
+    /**
+     * Delays the requests sent to one of the endpoints.
+     *
+     * @param location The endpoint
+     * @param latency The fixed delay
+     * @param jitter The maximum random delay added to the fixed delay
+     * @param unit The unit of the delays
+     */
+    void setLatency(StorageLocation location, long latency, long jitter, TimeUnit unit) {
+        if (location == StorageLocation.PRIMARY) {
+            this.latencyMillis = unit.toMillis(latency);
+            this.latencyJitterMillis = unit.toMillis(jitter);
+        } else {
+            this.secondaryLatencyMillis = unit.toMillis(latency);
+            this.secondaryLatencyJitterMillis = unit.toMillis(jitter);
+        }
+    }
+
+    /**
+     * Throttles the operations on a partition beyond the given rate. The operations of a batch count
+     * individually.
+     *
+     * @param operationsPerSecond The rate per partition, or 0 for no limit
+     */
+    void setPartitionThroughputLimit(double operationsPerSecond) {
+        this.partitionThroughputLimit = operationsPerSecond;
+        this.partitionThroughput.clear();
+    }
+
+    /**
+     * Throttles the operations on all tables beyond the given rate. The operations of a batch count
+     * individually.
+     *
+     * @param operationsPerSecond The rate for the account, or 0 for no limit
+     */
+    void setAccountThroughputLimit(double operationsPerSecond) {
+        this.accountThroughput = operationsPerSecond > 0 ? new TokenBucket(operationsPerSecond, operationsPerSecond) : null;
+    }
+
+    /**
+     * Throttles requests at random.
+     *
+     * @param probability The probability that a request is throttled, between 0 and 1
+     */
+    void setThrottleProbability(double probability) {
+        if (probability < 0 || probability > 1) {
+            throw new IllegalArgumentException("probability must be between 0 and 1.");
+        }
+        this.throttleProbability = probability;
+    }
+
+    /**
+     * Delays the effect of table ACL changes on the requests signed with a stored access policy. The
+     * service takes up to 30 seconds to apply them.
+     *
+     * @param delay The time a change takes to become effective
+     * @param unit The unit of the delay
+     */
+    void setAclPropagationDelay(long delay, TimeUnit unit) {
+        this.aclPropagationNanos = unit.toNanos(delay);
+    }
+
+    /**
+     * Sets the time reported as the last synchronization of the secondary.
+     *
+     * @param lastSyncTime The time, or null to report the current time
+     */
+    void setLastSyncTime(Date lastSyncTime) {
+        this.lastSyncTime = lastSyncTime;
+    }
+
+    long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    long getThrottledCount() {
+        return this.throttledCount.get();
+    }
+
+    /**
+     * Stops the server and discards all tables.
+     */
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        this.requestCount.incrementAndGet();
+        try {
+            byte[] body = readAll(exchange.getRequestBody());
+
+            // The first segment of the path is the account name
+            String path = exchange.getRequestURI().getRawPath();
+            int slash = path.indexOf('/', 1);
+            String account = slash < 0 ? path.substring(1) : path.substring(1, slash);
+            String resource = slash < 0 ? "" : path.substring(slash + 1);
+            if (!account.equals(ACCOUNT_NAME) && !account.equals(ACCOUNT_NAME + SECONDARY_SUFFIX)) {
+                throw new LocalTableStore.ServiceException(HttpURLConnection.HTTP_NOT_FOUND, "ResourceNotFound", "The specified account does not exist.");
+            }
+            this.delay(account.equals(ACCOUNT_NAME) ? StorageLocation.PRIMARY : StorageLocation.SECONDARY);
+
+            String baseUrl = "http://" + exchange.getRequestHeaders().getFirst("Host") + "/" + account;
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String method = exchange.getRequestMethod();
+
+            if (resource.isEmpty() && "service".equals(query.get("restype"))) {
+                this.handleService(exchange, query.get("comp"), body);
+            } else if (resource.equals("$batch")) {
+                this.handleBatch(exchange, baseUrl, body);
+            } else if (resource.equals("Tables") || resource.startsWith("Tables(")) {
+                this.handleTables(exchange, baseUrl, resource, query, body);
+            } else if ("acl".equals(query.get("comp"))) {
+                this.handleAcl(exchange, percentDecode(resource), body);
+            } else {
+                EntityRequest request = parseEntityRequest(method, percentDecode(resource));
+                for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+                    request.headers.put(header.getKey().toLowerCase(), header.getValue().get(0));
+                }
+                request.body = body;
+                if ("POST".equals(method) && request.header("X-HTTP-Method") != null) {
+                    request.method = request.header("X-HTTP-Method");
+                }
+
+                this.authorize(query, request.tableName, request.method);
+                if ("GET".equals(request.method) && !request.hasKeys) {
+                    this.handleQuery(exchange, baseUrl, request.tableName, query);
+                } else {
+                    this.throttle(request.tableName, this.partitionKeyOf(request), 1);
+                    PartResponse response = this.execute(request, baseUrl);
+                    Map<String, String> headers = new LinkedHashMap<String, String>();
+                    if (response.etag != null) {
+                        headers.put("ETag", response.etag);
+                    }
+                    if (response.status == HttpURLConnection.HTTP_NO_CONTENT && "POST".equals(request.method)) {
+                        headers.put("Preference-Applied", "return-no-content");
+                    }
+                    this.send(exchange, response.status, response.body == null ? null : JSON, response.body, headers);
+                }
+            }
+        }
+        catch (LocalTableStore.ServiceException e) {
+            this.sendError(exchange, e.getStatusCode(), e.getErrorCode(), e.getMessage());
+        }
+        catch (IllegalArgumentException | JsonProcessingException e) {
+            this.sendError(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "InvalidInput", e.getMessage());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (RuntimeException e) {
+            this.sendError(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, "InternalError", e.toString());
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private void handleService(HttpExchange exchange, String comp, byte[] body) throws IOException, LocalTableStore.ServiceException {
+        String method = exchange.getRequestMethod();
+        if ("properties".equals(comp) && "GET".equals(method)) {
+            this.send(exchange, HttpURLConnection.HTTP_OK, XML, this.serviceProperties.getBytes(StandardCharsets.UTF_8), null);
+        } else if ("properties".equals(comp) && "PUT".equals(method)) {
+            this.serviceProperties = mergeServiceProperties(this.serviceProperties, new String(body, StandardCharsets.UTF_8));
+            this.send(exchange, HttpURLConnection.HTTP_ACCEPTED, null, null, null);
+        } else if ("stats".equals(comp) && "GET".equals(method)) {
+            Date lastSync = this.lastSyncTime == null ? new Date() : this.lastSyncTime;
+            String stats = "<?xml version=\"1.0\" encoding=\"utf-8\"?><StorageServiceStats><GeoReplication><Status>live</Status><LastSyncTime>"
+                    + RFC_1123.format(ZonedDateTime.ofInstant(lastSync.toInstant(), ZoneOffset.UTC))
+                    + "</LastSyncTime></GeoReplication></StorageServiceStats>";
+            this.send(exchange, HttpURLConnection.HTTP_OK, XML, stats.getBytes(StandardCharsets.UTF_8), null);
+        } else {
+            throw new LocalTableStore.ServiceException(HttpURLConnection.HTTP_BAD_METHOD, "UnsupportedHttpVerb", "The resource doesn't support the specified HTTP verb.");
+        }
+    }
+
+    /**
+     * Replaces the elements of the stored service properties that the update contains. The service
+     * leaves the omitted elements unchanged.
+     */
+    private static String mergeServiceProperties(String current, String update) {
+        String merged = current;
+        for (String element : SERVICE_PROPERTY_ELEMENTS) {
+            Pattern pattern = Pattern.compile("<" + element + "\\s*/>|<" + element + ">.*?</" + element + ">", Pattern.DOTALL);
+            Matcher updated = pattern.matcher(update);
+            if (!updated.find()) {
+                continue;
+            }
+            Matcher stored = pattern.matcher(merged);
+            merged = stored.find()
+                    ? merged.substring(0, stored.start()) + updated.group() + merged.substring(stored.end())
+                    : merged.replace("</StorageServiceProperties>", updated.group() + "</StorageServiceProperties>");
+        }
+        return merged;
+    }
+
+    /**
+     * Rejects a request signed with a stored access policy that the effective ACL of the table does
+     * not hold, or that does not grant the permission the request needs. Signatures are not checked.
+     */
+    private void authorize(Map<String, String> query, String tableName, String method) throws LocalTableStore.ServiceException {
+        String identifier = query.get("si");
+        if (identifier == null) {
+            return;
+        }
+
+        byte[] acl = this.store.getEffectiveAcl(tableName, this.aclPropagationNanos);
+        Matcher policy = Pattern.compile("<SignedIdentifier><Id>" + Pattern.quote(identifier)
+                + "</Id>(?:(?!</SignedIdentifier>).)*?<Permission>([a-z]*)</Permission>", Pattern.DOTALL)
+                .matcher(acl == null ? "" : new String(acl, StandardCharsets.UTF_8));
+        if (!policy.find()) {
+            throw new LocalTableStore.ServiceException(HttpURLConnection.HTTP_FORBIDDEN, "AuthenticationFailed",
+                    "Server failed to authenticate the request. The signed identifier does not exist.");
+        }
+
+        char permission;
+        switch (method) {
+            case "GET":
+                permission = 'r';
+                break;
+            case "POST":
+                permission = 'a';
+                break;
+            case "DELETE":
+                permission = 'd';
+                break;
+            default:
+                permission = 'u';
+                break;
+        }
+        if (policy.group(1).indexOf(permission) < 0) {
+            throw new LocalTableStore.ServiceException(HttpURLConnection.HTTP_FORBIDDEN, "AuthorizationPermissionMismatch",
+                    "This request is not authorized to perform this operation using this permission.");
+        }
+    }
+
+    private void handleTables(HttpExchange exchange, String baseUrl, String resource, Map<String, String> query, byte[] body)
+            throws IOException, LocalTableStore.ServiceException {
+        String method = exchange.getRequestMethod();
+        String metadataUrl = baseUrl + "/$metadata#Tables";
+        this.throttle(null, null, 1);
+
+        if (resource.equals("Tables") && "POST".equals(method)) {
+            String tableName = LocalTableJson.readTableName(new ByteArrayInputStream(body));
+            this.store.createTable(tableName);
+            if (isReturnNoContent(exchange.getRequestHeaders().getFirst("Prefer"))) {
+                this.send(exchange, HttpURLConnection.HTTP_NO_CONTENT, null, null, Collections.singletonMap("Preference-Applied", "return-no-content"));
+            } else {
+                this.send(exchange, HttpURLConnection.HTTP_CREATED, JSON,
+                        LocalTableJson.tables(Collections.singletonList(tableName), metadataUrl, true), null);
+            }
+        } else if (resource.equals("Tables") && "GET".equals(method)) {
+            this.handleListTables(exchange, metadataUrl, query);
+        } else {
+            String tableName = unquote(percentDecode(resource.substring("Tables(".length(), resource.length() - 1)));
+            if ("GET".equals(method)) {
+                this.send(exchange, HttpURLConnection.HTTP_OK, JSON,
+                        LocalTableJson.tables(Collections.singletonList(this.store.getTableName(tableName)), metadataUrl, true), null);
+            } else if ("DELETE".equals(method)) {
+                this.store.deleteTable(tableName);
+                this.send(exchange, HttpURLConnection.HTTP_NO_CONTENT, null, null, null);
+            } else {
+                throw new LocalTableStore.ServiceException(HttpURLConnection.HTTP_BAD_METHOD, "UnsupportedHttpVerb", "The resource doesn't support the specified HTTP verb.");
+            }
+        }
+    }
+
+    private void handleListTables(HttpExchange exchange, String metadataUrl, Map<String, String> query) throws IOException {
+        LocalTableFilter filter = query.containsKey("$filter") ? LocalTableFilter.parse(query.get("$filter")) : null;
+        int top = query.containsKey("$top") ? Math.min(Integer.parseInt(query.get("$top")), MAX_PAGE_SIZE) : MAX_PAGE_SIZE;
+
+        // Table names are matched as the TableName property of an entity
+        List<String> names = new ArrayList<String>();
+        String nextTableName = null;
+        for (String tableName : this.store.listTables(query.get("NextTableName"))) {
+            LocalTableStore.StoredEntity table = new LocalTableStore.StoredEntity(null, null, null, null,
+                    Collections.singletonMap("TableName", new LocalTableStore.Property(EdmType.STRING, tableName)));
+            if (filter == null || filter.matches(table)) {
+                if (names.size() == top) {
+                    nextTableName = tableName;
+                    break;
+                }
+                names.add(tableName);
+            }
+        }
+
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        if (nextTableName != null) {
+            headers.put("x-ms-continuation-NextTableName", nextTableName);
+        }
+        this.send(exchange, HttpURLConnection.HTTP_OK, JSON, LocalTableJson.tables(names, metadataUrl, false), headers);
+    }
+
+    private void handleAcl(HttpExchange exchange, String tableName, byte[] body) throws IOException, LocalTableStore.ServiceException {
+        this.throttle(null, null, 1);
+        if ("GET".equals(exchange.getRequestMethod())) {
+            byte[] acl = this.store.getAcl(tableName);
+            this.send(exchange, HttpURLConnection.HTTP_OK, XML, acl == null ? EMPTY_ACL.getBytes(StandardCharsets.UTF_8) : acl, null);
+        } else if ("PUT".equals(exchange.getRequestMethod())) {
+            this.store.setAcl(tableName, body);
+            this.send(exchange, HttpURLConnection.HTTP_NO_CONTENT, null, null, null);
+        } else {
+            throw new LocalTableStore.ServiceException(HttpURLConnection.HTTP_BAD_METHOD, "UnsupportedHttpVerb", "The resource doesn't support the specified HTTP verb.");
+        }
+    }
+
+    private void handleQuery(HttpExchange exchange, String baseUrl, String tableName, Map<String, String> query)
+            throws IOException, LocalTableStore.ServiceException {
+        LocalTableFilter filter = query.containsKey("$filter") ? LocalTableFilter.parse(query.get("$filter")) : null;
+        int top = query.containsKey("$top") ? Math.min(Integer.parseInt(query.get("$top")), MAX_PAGE_SIZE) : MAX_PAGE_SIZE;
+        if (top < 1) {
+            throw new IllegalArgumentException("$top must be at least 1.");
+        }
+        Set<String> select = null;
+        if (query.containsKey("$select")) {
+            select = new HashSet<String>();
+            for (String column : query.get("$select").split(",")) {
+                select.add(column.trim());
+            }
+        }
+        String startPartitionKey = decodeContinuation(query.get("NextPartitionKey"));
+        String startRowKey = decodeContinuation(query.get("NextRowKey"));
+        this.throttle(tableName, null, 1);
+
+        LocalTableStore.QueryResult result = this.store.query(tableName, filter, top, startPartitionKey, startRowKey);
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        if (result.getNextPartitionKey() != null) {
+            headers.put("x-ms-continuation-NextPartitionKey", encodeContinuation(result.getNextPartitionKey()));
+            headers.put("x-ms-continuation-NextRowKey", encodeContinuation(result.getNextRowKey()));
+        }
+        String metadataUrl = baseUrl + "/$metadata#" + this.store.getTableName(tableName);
+        this.send(exchange, HttpURLConnection.HTTP_OK, JSON, LocalTableJson.entities(result.getEntities(), metadataUrl, select), headers);
+    }
+
+    /**
+     * Handles an entity group transaction. The body is a multipart/mixed document holding either a
+     * single retrieve request, or a change set of write requests.
+     */
+    private void handleBatch(HttpExchange exchange, String baseUrl, byte[] body) throws IOException, LocalTableStore.ServiceException {
+        String batchBoundary = boundaryOf(exchange.getRequestHeaders().getFirst("Content-Type"));
+        List<String> batchParts = splitMultipart(new String(body, StandardCharsets.UTF_8), batchBoundary);
+        if (batchParts.size() != 1) {
+            throw new IllegalArgumentException("A batch must contain exactly one change set or one retrieve request.");
+        }
+
+        String part = batchParts.get(0);
+        Map<String, String> partHeaders = new HashMap<String, String>();
+        String content = readMimeHeaders(part, partHeaders);
+        String changesetBoundary = boundaryOf(partHeaders.get("content-type"));
+        List<EntityRequest> requests = new ArrayList<EntityRequest>();
+        if (changesetBoundary == null) {
+            requests.add(parseBatchRequest(content));
+            if (!"GET".equals(requests.get(0).method)) {
+                throw new IllegalArgumentException("Write requests of a batch must be part of a change set.");
+            }
+        } else {
+            for (String request : splitMultipart(content, changesetBoundary)) {
+                requests.add(parseBatchRequest(readMimeHeaders(request, new HashMap<String, String>())));
+            }
+        }
+        if (requests.isEmpty() || requests.size() > 100) {
+            throw new IllegalArgumentException("A batch must contain between 1 and 100 operations.");
+        }
+
+        EntityRequest first = requests.get(0);
+        this.throttle(first.tableName, this.partitionKeyOf(first), requests.size());
+
+        String responseBoundary = "batchresponse_" + UUID.randomUUID();
+        StringBuilder response = new StringBuilder();
+        response.append("--").append(responseBoundary).append("\r\n");
+        if (changesetBoundary == null) {
+            PartResponse retrieved;
+            try {
+                retrieved = this.execute(first, baseUrl);
+            }
+            catch (LocalTableStore.ServiceException e) {
+                retrieved = new PartResponse(e.getStatusCode(), null, LocalTableJson.error(e.getErrorCode(), e.getMessage()));
+            }
+            appendPartResponse(response, retrieved, null);
+        } else {
+            String changesetResponseBoundary = "changesetresponse_" + UUID.randomUUID();
+            response.append("Content-Type: multipart/mixed; boundary=").append(changesetResponseBoundary).append("\r\n\r\n");
+            List<PartResponse> partResponses = this.executeChangeset(requests, baseUrl);
+            for (int i = 0; i < partResponses.size(); i++) {
+                response.append("--").append(changesetResponseBoundary).append("\r\n");
+                appendPartResponse(response, partResponses.get(i), partResponses.size() == requests.size() ? requests.get(i).header("Content-ID") : null);
+            }
+            response.append("--").append(changesetResponseBoundary).append("--\r\n");
+        }
+        response.append("--").append(responseBoundary).append("--\r\n");
+
+        this.send(exchange, HttpURLConnection.HTTP_ACCEPTED, "multipart/mixed; boundary=" + responseBoundary,
+                response.toString().getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    /**
+     * Applies the writes of a change set atomically.
+     *
+     * @return The responses to the writes, or a single error response if the change set failed
+     */
+    private List<PartResponse> executeChangeset(List<EntityRequest> requests, String baseUrl) throws IOException {
+        List<LocalTableStore.Write> writes = new ArrayList<LocalTableStore.Write>(requests.size());
+        String tableName = requests.get(0).tableName;
+        try {
+            for (int i = 0; i < requests.size(); i++) {
+                EntityRequest request = requests.get(i);
+                if ("GET".equals(request.method)) {
+                    throw new LocalTableStore.ServiceException(HttpURLConnection.HTTP_BAD_REQUEST, "InvalidInput",
+                            i + ":A retrieve must be the only operation of a batch.");
+                }
+                if (!tableName.equals(request.tableName)) {
+                    throw new LocalTableStore.ServiceException(HttpURLConnection.HTTP_BAD_REQUEST, "InvalidInput",
+                            i + ":All commands in a batch must operate on the same table.");
+                }
+                writes.add(toWrite(request));
+            }
+
+            List<LocalTableStore.StoredEntity> results = this.store.writeBatch(tableName, writes);
+            List<PartResponse> responses = new ArrayList<PartResponse>(results.size());
+            String metadataUrl = baseUrl + "/$metadata#" + this.store.getTableName(tableName);
+            for (int i = 0; i < results.size(); i++) {
+                responses.add(writeResponse(requests.get(i), writes.get(i), results.get(i), metadataUrl));
+            }
+            return responses;
+        }
+        catch (LocalTableStore.ServiceException e) {
+            return Collections.singletonList(new PartResponse(e.getStatusCode(), null, LocalTableJson.error(e.getErrorCode(), e.getMessage())));
+        }
+        catch (IllegalArgumentException e) {
+            return Collections.singletonList(new PartResponse(HttpURLConnection.HTTP_BAD_REQUEST, null,
+                    LocalTableJson.error("InvalidInput", writes.size() + ":" + e.getMessage())));
+        }
+    }
+
+    /**
+     * Executes a single entity request.
+     */
+    private PartResponse execute(EntityRequest request, String baseUrl) throws IOException, LocalTableStore.ServiceException {
+        String metadataUrl = baseUrl + "/$metadata#" + this.store.getTableName(request.tableName);
+        if ("GET".equals(request.method)) {
+            LocalTableStore.StoredEntity entity = this.store.retrieve(request.tableName, request.partitionKey, request.rowKey);
+            return new PartResponse(HttpURLConnection.HTTP_OK, entity.getEtag(), LocalTableJson.entity(entity, metadataUrl, null));
+        }
+        LocalTableStore.Write write = toWrite(request);
+        return writeResponse(request, write, this.store.write(request.tableName, write), metadataUrl);
+    }
+
+    private static PartResponse writeResponse(EntityRequest request, LocalTableStore.Write write, LocalTableStore.StoredEntity result,
+            String metadataUrl) throws IOException {
+        if (write.getType() == LocalTableStore.WriteType.INSERT && !isReturnNoContent(request.header("Prefer"))) {
+            return new PartResponse(HttpURLConnection.HTTP_CREATED, result.getEtag(), LocalTableJson.entity(result, metadataUrl, null));
+        }
+        return new PartResponse(HttpURLConnection.HTTP_NO_CONTENT, result == null ? null : result.getEtag(), null);
+    }
+
+    /**
+     * Translates an entity request into a write of the store.
+     */
+    private static LocalTableStore.Write toWrite(EntityRequest request) throws IOException {
+        String ifMatch = request.header("If-Match");
+        LocalTableJson.EntityBody entity = null;
+        if (!"DELETE".equals(request.method)) {
+            entity = LocalTableJson.readEntity(new ByteArrayInputStream(request.body));
+        }
+
+        switch (request.method) {
+            case "POST":
+                if (request.hasKeys) {
+                    throw new IllegalArgumentException("An insert must not address an entity.");
+                }
+                if (entity.getPartitionKey() == null || entity.getRowKey() == null) {
+                    throw new IllegalArgumentException("The entity must have a PartitionKey and a RowKey.");
+                }
+                return new LocalTableStore.Write(LocalTableStore.WriteType.INSERT, entity.getPartitionKey(), entity.getRowKey(), null, entity.getProperties());
+            case "PUT":
+                return new LocalTableStore.Write(ifMatch == null ? LocalTableStore.WriteType.INSERT_OR_REPLACE : LocalTableStore.WriteType.REPLACE,
+                        keyOf(request, request.partitionKey), keyOf(request, request.rowKey), ifMatch, entity.getProperties());
+            case "MERGE":
+                return new LocalTableStore.Write(ifMatch == null ? LocalTableStore.WriteType.INSERT_OR_MERGE : LocalTableStore.WriteType.MERGE,
+                        keyOf(request, request.partitionKey), keyOf(request, request.rowKey), ifMatch, entity.getProperties());
+            case "DELETE":
+                if (ifMatch == null) {
+                    throw new IllegalArgumentException("A delete requires an If-Match header.");
+                }
+                return new LocalTableStore.Write(LocalTableStore.WriteType.DELETE,
+                        keyOf(request, request.partitionKey), keyOf(request, request.rowKey), ifMatch, null);
+            default:
+                throw new IllegalArgumentException("Unsupported method " + request.method + ".");
+        }
+    }
+
+    private static String keyOf(EntityRequest request, String key) {
+        if (!request.hasKeys) {
+            throw new IllegalArgumentException("The request must address an entity by PartitionKey and RowKey.");
+        }
+        return key;
+    }
+
+    private String partitionKeyOf(EntityRequest request) throws IOException {
+        if (request.hasKeys) {
+            return request.partitionKey;
+        }
+        return "POST".equals(request.method) ? LocalTableJson.readEntity(new ByteArrayInputStream(request.body)).getPartitionKey() : null;
+    }
+
+    /**
+     * Sleeps for the configured latency.
+     */
+    private void delay(StorageLocation location) throws InterruptedException {
+        boolean primary = location == StorageLocation.PRIMARY;
+        long latency = primary ? this.latencyMillis : this.secondaryLatencyMillis;
+        long jitter = primary ? this.latencyJitterMillis : this.secondaryLatencyJitterMillis;
+        if (jitter > 0) {
+            latency += ThreadLocalRandom.current().nextLong(jitter + 1);
+        }
+        if (latency > 0) {
+            Thread.sleep(latency);
+        }
+    }
+
+    /**
+     * Rejects a request with 503 (Server Busy) if it exceeds a throughput limit.
+     *
+     * @param tableName The table of the request, or null for table and service requests
+     * @param partitionKey The partition of the request, or null if it is not bound to a partition
+     * @param operations The number of operations of the request
+     */
+    private void throttle(String tableName, String partitionKey, int operations) throws LocalTableStore.ServiceException {
+        TokenBucket account = this.accountThroughput;
+        if (account != null && !account.tryAcquire(operations)) {
+            throw this.serverBusy("Operations per second is over the account limit.");
+        }
+
+        double partitionLimit = this.partitionThroughputLimit;
+        if (partitionLimit > 0 && partitionKey != null) {
+            String key = tableName.toLowerCase() + "/" + partitionKey;
+            TokenBucket partition = this.partitionThroughput.get(key);
+            if (partition == null) {
+                TokenBucket created = new TokenBucket(partitionLimit, partitionLimit);
+                partition = this.partitionThroughput.putIfAbsent(key, created);
+                if (partition == null) {
+                    partition = created;
+                }
+            }
+            if (!partition.tryAcquire(operations)) {
+                throw this.serverBusy("Operations per second is over the partition limit.");
+            }
+        }
+
+        double probability = this.throttleProbability;
+        if (probability > 0 && ThreadLocalRandom.current().nextDouble() < probability) {
+            throw this.serverBusy("The server is busy.");
+        }
+    }
+
+    private LocalTableStore.ServiceException serverBusy(String message) {
+        this.throttledCount.incrementAndGet();
+        return new LocalTableStore.ServiceException(HttpURLConnection.HTTP_UNAVAILABLE, "ServerBusy", message);
+    }
+
+    private void sendError(HttpExchange exchange, int status, String errorCode, String message) throws IOException {
+        this.send(exchange, status, JSON, LocalTableJson.error(errorCode, message), Collections.singletonMap("x-ms-error-code", errorCode));
+    }
+
+    private void send(HttpExchange exchange, int status, String contentType, byte[] body, Map<String, String> headers) throws IOException {
+        Headers responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.set("x-ms-request-id", UUID.randomUUID().toString());
+        responseHeaders.set("x-ms-version", "2017-04-17");
+        responseHeaders.set("DataServiceVersion", "3.0;");
+        responseHeaders.set("Cache-Control", "no-cache");
+        if (contentType != null) {
+            responseHeaders.set("Content-Type", contentType);
+        }
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                responseHeaders.set(header.getKey(), header.getValue());
+            }
+        }
+
+        if (body == null || body.length == 0) {
+            exchange.sendResponseHeaders(status, -1);
+        } else {
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    private static void appendPartResponse(StringBuilder response, PartResponse part, String contentId) {
+        response.append("Content-Type: application/http\r\n");
+        response.append("Content-Transfer-Encoding: binary\r\n\r\n");
+        response.append("HTTP/1.1 ").append(part.status).append(' ').append(reasonPhrase(part.status)).append("\r\n");
+        if (contentId != null) {
+            response.append("Content-ID: ").append(contentId).append("\r\n");
+        }
+        response.append("X-Content-Type-Options: nosniff\r\n");
+        response.append("Cache-Control: no-cache\r\n");
+        response.append("DataServiceVersion: 3.0;\r\n");
+        if (part.etag != null) {
+            response.append("ETag: ").append(part.etag).append("\r\n");
+        }
+        if (part.body != null) {
+            response.append("Content-Type: ").append(JSON).append("\r\n\r\n");
+            response.append(new String(part.body, StandardCharsets.UTF_8));
+        }
+        response.append("\r\n");
+    }
+
+    private static String reasonPhrase(int status) {
+        switch (status) {
+            case HttpURLConnection.HTTP_OK:
+                return "OK";
+            case HttpURLConnection.HTTP_CREATED:
+                return "Created";
+            case HttpURLConnection.HTTP_NO_CONTENT:
+                return "No Content";
+            case HttpURLConnection.HTTP_BAD_REQUEST:
+                return "Bad Request";
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                return "Not Found";
+            case HttpURLConnection.HTTP_CONFLICT:
+                return "Conflict";
+            case HttpURLConnection.HTTP_PRECON_FAILED:
+                return "Precondition Failed";
+            case HttpURLConnection.HTTP_UNAVAILABLE:
+                return "Server Busy";
+            default:
+                return "Error";
+        }
+    }
+
+    /**
+     * Parses a request of a change set: the request line, the headers and the body.
+     */
+    private static EntityRequest parseBatchRequest(String content) {
+        int lineEnd = content.indexOf("\r\n");
+        String[] requestLine = (lineEnd < 0 ? content : content.substring(0, lineEnd)).split(" ");
+        if (requestLine.length != 3) {
+            throw new IllegalArgumentException("Invalid request line in batch.");
+        }
+
+        // The request URI is absolute, its path starts with the account name
+        String path = requestLine[1];
+        int schemeEnd = path.indexOf("://");
+        if (schemeEnd >= 0) {
+            path = path.substring(path.indexOf('/', schemeEnd + 3));
+        }
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        int slash = path.indexOf('/', 1);
+        EntityRequest request = parseEntityRequest(requestLine[0], percentDecode(slash < 0 ? "" : path.substring(slash + 1)));
+
+        Map<String, String> headers = new HashMap<String, String>();
+        String body = readMimeHeaders(lineEnd < 0 ? "" : content.substring(lineEnd + 2), headers);
+        request.headers.putAll(headers);
+        request.body = body.trim().getBytes(StandardCharsets.UTF_8);
+        return request;
+    }
+
+    /**
+     * Parses the resource of an entity request: tbl, tbl() or tbl(PartitionKey='pk',RowKey='rk').
+     */
+    private static EntityRequest parseEntityRequest(String method, String resource) {
+        EntityRequest request = new EntityRequest();
+        request.method = method;
+        int open = resource.indexOf('(');
+        request.tableName = open < 0 ? resource : resource.substring(0, open);
+        if (open < 0 || resource.equals(request.tableName + "()")) {
+            return request;
+        }
+        if (!resource.endsWith(")")) {
+            throw new IllegalArgumentException("Invalid resource " + resource + ".");
+        }
+
+        String keys = resource.substring(open + 1, resource.length() - 1);
+        int position = 0;
+        while (position < keys.length()) {
+            int equals = keys.indexOf('=', position);
+            if (equals < 0) {
+                throw new IllegalArgumentException("Invalid resource " + resource + ".");
+            }
+            String name = keys.substring(position, equals).trim();
+            int end = endOfQuoted(keys, equals + 1);
+            String value = unquote(keys.substring(equals + 1, end));
+            if ("PartitionKey".equals(name)) {
+                request.partitionKey = value;
+            } else if ("RowKey".equals(name)) {
+                request.rowKey = value;
+            } else {
+                throw new IllegalArgumentException("Invalid key " + name + ".");
+            }
+            position = end + 1;
+        }
+        request.hasKeys = request.partitionKey != null && request.rowKey != null;
+        return request;
+    }
+
+    private static int endOfQuoted(String text, int start) {
+        if (start >= text.length() || text.charAt(start) != '\'') {
+            throw new IllegalArgumentException("Expected a quoted key in " + text + ".");
+        }
+        int position = start + 1;
+        while (position < text.length()) {
+            if (text.charAt(position) == '\'') {
+                if (position + 1 < text.length() && text.charAt(position + 1) == '\'') {
+                    position += 2;
+                    continue;
+                }
+                return position + 1;
+            }
+            position++;
+        }
+        throw new IllegalArgumentException("Unterminated key in " + text + ".");
+    }
+
+    private static String unquote(String quoted) {
+        if (quoted.length() < 2 || quoted.charAt(0) != '\'' || quoted.charAt(quoted.length() - 1) != '\'') {
+            throw new IllegalArgumentException("Expected a quoted key: " + quoted + ".");
+        }
+        return quoted.substring(1, quoted.length() - 1).replace("''", "'");
+    }
+
+    /**
+     * Splits a multipart body into its parts.
+     */
+    private static List<String> splitMultipart(String body, String boundary) {
+        List<String> parts = new ArrayList<String>();
+        String delimiter = "--" + boundary;
+        int start = body.indexOf(delimiter);
+        while (start >= 0) {
+            int contentStart = start + delimiter.length();
+            if (body.startsWith("--", contentStart)) {
+                break;
+            }
+            int next = body.indexOf(delimiter, contentStart);
+            if (next < 0) {
+                throw new IllegalArgumentException("The multipart body is not terminated.");
+            }
+            parts.add(body.substring(skipLineBreak(body, contentStart), next));
+            start = next;
+        }
+        return parts;
+    }
+
+    /**
+     * Reads the headers of a MIME part.
+     *
+     * @return The content that follows the headers
+     */
+    private static String readMimeHeaders(String part, Map<String, String> headers) {
+        int position = 0;
+        while (position < part.length()) {
+            int lineEnd = part.indexOf('\n', position);
+            if (lineEnd < 0) {
+                lineEnd = part.length();
+            }
+            String line = part.substring(position, lineEnd).trim();
+            position = Math.min(lineEnd + 1, part.length());
+            if (line.isEmpty()) {
+                break;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+        return part.substring(position);
+    }
+
+    private static int skipLineBreak(String text, int position) {
+        if (text.startsWith("\r\n", position)) {
+            return position + 2;
+        }
+        return text.startsWith("\n", position) ? position + 1 : position;
+    }
+
+    private static String boundaryOf(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.startsWith("boundary=")) {
+                return parameter.substring("boundary=".length());
+            }
+        }
+        return null;
+    }
+
+    private static boolean isReturnNoContent(String prefer) {
+        return prefer != null && prefer.contains("return-no-content");
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0) {
+                query.put(percentDecode(parameter.substring(0, equals)), percentDecode(parameter.substring(equals + 1)));
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Decodes %XX escapes. Unlike form decoding a plus sign stays a plus sign, which keys may contain.
+     */
+    private static String percentDecode(String text) {
+        if (text.indexOf('%') < 0) {
+            return text;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '%' && i + 2 < text.length()) {
+                bytes.write(Integer.parseInt(text.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                bytes.write(encoded, 0, encoded.length);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes a key as an opaque continuation token, similar to the tokens of the service.
+     */
+    private static String encodeContinuation(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return "1!" + bytes.length + "!" + Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static String decodeContinuation(String token) {
+        if (token == null) {
+            return null;
+        }
+        int separator = token.indexOf('!', 2);
+        if (!token.startsWith("1!") || separator < 0) {
+            throw new IllegalArgumentException("Invalid continuation token.");
+        }
+        return new String(Base64.getUrlDecoder().decode(token.substring(separator + 1)), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,508 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.EdmType;
+
+import java.net.HttpURLConnection;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The tables and entities of a {@link LocalTableServer}.
+ *
+ * Every table keeps its partitions in a sorted concurrent map, and every partition keeps its entities
+ * in a sorted concurrent map by row key, so queries return entities in the same order as the service.
+ * Stored entities are immutable and replaced as a whole on every write, so readers never see a half
+ * written entity. Writes to a partition are serialized, which makes conditional writes and entity
+ * group transactions atomic.
+ */
+final class LocalTableStore {
+
+    /**
+     * A typed property value in its wire format.
+     */
+    static final class Property {
+        private final EdmType type;
+        private final String value;
+
+        Property(EdmType type, String value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        EdmType getType() {
+            return this.type;
+        }
+
+        String getValue() {
+            return this.value;
+        }
+    }
+
+    /**
+     * A stored entity.
+     */
+    static final class StoredEntity {
+        private final String partitionKey;
+        private final String rowKey;
+        private final Instant timestamp;
+        private final String etag;
+        private final Map<String, Property> properties;
+
+        StoredEntity(String partitionKey, String rowKey, Instant timestamp, String etag, Map<String, Property> properties) {
+            this.partitionKey = partitionKey;
+            this.rowKey = rowKey;
+            this.timestamp = timestamp;
+            this.etag = etag;
+            this.properties = Collections.unmodifiableMap(properties);
+        }
+
+        String getPartitionKey() {
+            return this.partitionKey;
+        }
+
+        String getRowKey() {
+            return this.rowKey;
+        }
+
+        Instant getTimestamp() {
+            return this.timestamp;
+        }
+
+        String getEtag() {
+            return this.etag;
+        }
+
+        Map<String, Property> getProperties() {
+            return this.properties;
+        }
+    }
+
+    /**
+     * An error returned to the client with an HTTP status and a storage error code.
+     */
+    static final class ServiceException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+        private final String errorCode;
+
+        ServiceException(int statusCode, String errorCode, String message) {
+            super(message);
+            this.statusCode = statusCode;
+            this.errorCode = errorCode;
+        }
+
+        int getStatusCode() {
+            return this.statusCode;
+        }
+
+        String getErrorCode() {
+            return this.errorCode;
+        }
+    }
+
+    /**
+     * The kind of write applied to an entity.
+     */
+    enum WriteType {
+        INSERT,
+        INSERT_OR_REPLACE,
+        INSERT_OR_MERGE,
+        REPLACE,
+        MERGE,
+        DELETE
+    }
+
+    /**
+     * A write of a single entity, on its own or as part of an entity group transaction.
+     */
+    static final class Write {
+        private final WriteType type;
+        private final String partitionKey;
+        private final String rowKey;
+        private final String etag;
+        private final Map<String, Property> properties;
+
+        /**
+         * @param type The kind of write
+         * @param partitionKey The partition key
+         * @param rowKey The row key
+         * @param etag The ETag the stored entity must have, "*" for any, or null for an unconditional upsert
+         * @param properties The properties written, or null for a delete
+         */
+        Write(WriteType type, String partitionKey, String rowKey, String etag, Map<String, Property> properties) {
+            this.type = type;
+            this.partitionKey = partitionKey;
+            this.rowKey = rowKey;
+            this.etag = etag;
+            this.properties = properties;
+        }
+
+        WriteType getType() {
+            return this.type;
+        }
+
+        String getPartitionKey() {
+            return this.partitionKey;
+        }
+
+        String getRowKey() {
+            return this.rowKey;
+        }
+    }
+
+    /**
+     * One page of query results.
+     */
+    static final class QueryResult {
+        private final List<StoredEntity> entities;
+        private final String nextPartitionKey;
+        private final String nextRowKey;
+
+        QueryResult(List<StoredEntity> entities, String nextPartitionKey, String nextRowKey) {
+            this.entities = entities;
+            this.nextPartitionKey = nextPartitionKey;
+            this.nextRowKey = nextRowKey;
+        }
+
+        List<StoredEntity> getEntities() {
+            return this.entities;
+        }
+
+        /**
+         * Returns the partition key of the first entity of the next page, or null if this is the last page.
+         */
+        String getNextPartitionKey() {
+            return this.nextPartitionKey;
+        }
+
+        String getNextRowKey() {
+            return this.nextRowKey;
+        }
+    }
+
+    private static final class Table {
+        private final String name;
+        private final ConcurrentSkipListMap<String, ConcurrentSkipListMap<String, StoredEntity>> partitions =
+                new ConcurrentSkipListMap<String, ConcurrentSkipListMap<String, StoredEntity>>();
+        private byte[] acl;
+        private byte[] previousAcl;
+        private long aclChangedAtNanos;
+
+        Table(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final StoredEntity DELETED = new StoredEntity(null, null, null, null, Collections.<String, Property>emptyMap());
+
+    // Table names are case insensitive
+    private final ConcurrentSkipListMap<String, Table> tables = new ConcurrentSkipListMap<String, Table>(String.CASE_INSENSITIVE_ORDER);
+    private final AtomicLong lastTimestampTicks = new AtomicLong();
+
+    /**
+     * Creates a table.
+     *
+     * @param tableName The table name
+     * @throws ServiceException 409 if the table exists
+     */
+    void createTable(String tableName) throws ServiceException {
+        if (!tableName.matches("[A-Za-z][A-Za-z0-9]{2,62}")) {
+            throw new ServiceException(HttpURLConnection.HTTP_BAD_REQUEST, "InvalidResourceName", "The specifed resource name contains invalid characters.");
+        }
+        if (this.tables.putIfAbsent(tableName, new Table(tableName)) != null) {
+            throw new ServiceException(HttpURLConnection.HTTP_CONFLICT, "TableAlreadyExists", "The table specified already exists.");
+        }
+    }
+
+    void deleteTable(String tableName) throws ServiceException {
+        if (this.tables.remove(tableName) == null) {
+            throw tableNotFound();
+        }
+    }
+
+    /**
+     * Returns the name of a table as it was created.
+     *
+     * @param tableName The table name in any case
+     * @return The table name
+     * @throws ServiceException 404 if the table does not exist
+     */
+    String getTableName(String tableName) throws ServiceException {
+        return this.table(tableName).name;
+    }
+
+    /**
+     * Returns the names of the tables in alphabetical order.
+     *
+     * @param startTableName The first table name to return, or null to start at the beginning
+     * @return The table names
+     */
+    List<String> listTables(String startTableName) {
+        Map<String, Table> tables = startTableName == null ? this.tables : this.tables.tailMap(startTableName, true);
+        List<String> names = new ArrayList<String>();
+        for (Table table : tables.values()) {
+            names.add(table.name);
+        }
+        return names;
+    }
+
+    byte[] getAcl(String tableName) throws ServiceException {
+        Table table = this.table(tableName);
+        synchronized (table) {
+            return table.acl;
+        }
+    }
+
+    void setAcl(String tableName, byte[] acl) throws ServiceException {
+        Table table = this.table(tableName);
+        synchronized (table) {
+            table.previousAcl = table.acl;
+            table.acl = acl;
+            table.aclChangedAtNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Returns the ACL that requests are authorized against, which is the previous one until the last
+     * change has propagated.
+     *
+     * @param tableName The table name
+     * @param propagationNanos The time a change takes to become effective
+     * @return The ACL, or null if the table never had one
+     * @throws ServiceException 404 if the table does not exist
+     */
+    byte[] getEffectiveAcl(String tableName, long propagationNanos) throws ServiceException {
+        Table table = this.table(tableName);
+        synchronized (table) {
+            return System.nanoTime() - table.aclChangedAtNanos >= propagationNanos ? table.acl : table.previousAcl;
+        }
+    }
+
+    /**
+     * Returns an entity.
+     *
+     * @return The entity
+     * @throws ServiceException 404 if the table or the entity does not exist
+     */
+    StoredEntity retrieve(String tableName, String partitionKey, String rowKey) throws ServiceException {
+        ConcurrentSkipListMap<String, StoredEntity> partition = this.table(tableName).partitions.get(partitionKey);
+        StoredEntity entity = partition == null ? null : partition.get(rowKey);
+        if (entity == null) {
+            throw resourceNotFound();
+        }
+        return entity;
+    }
+
+    /**
+     * Applies a single write.
+     *
+     * @param tableName The table name
+     * @param write The write
+     * @return The written entity, or null for a delete
+     * @throws ServiceException If the table does not exist or a condition of the write is not met
+     */
+    StoredEntity write(String tableName, Write write) throws ServiceException {
+        return this.write(tableName, Collections.singletonList(write), false).get(0);
+    }
+
+    /**
+     * Applies the writes of an entity group transaction. Either all writes are applied or none.
+     *
+     * @param tableName The table name
+     * @param writes The writes, all for the same partition
+     * @return The written entities in the order of the writes, null for deletes
+     * @throws ServiceException If the table does not exist or a condition of a write is not met. The
+     *         message of the exception starts with the index of the failed write.
+     */
+    List<StoredEntity> writeBatch(String tableName, List<Write> writes) throws ServiceException {
+        return this.write(tableName, writes, true);
+    }
+
+    private List<StoredEntity> write(String tableName, List<Write> writes, boolean batch) throws ServiceException {
+        Table table = this.table(tableName);
+        String partitionKey = writes.get(0).partitionKey;
+        ConcurrentSkipListMap<String, StoredEntity> partition = table.partitions.get(partitionKey);
+        if (partition == null) {
+            ConcurrentSkipListMap<String, StoredEntity> created = new ConcurrentSkipListMap<String, StoredEntity>();
+            partition = table.partitions.putIfAbsent(partitionKey, created);
+            if (partition == null) {
+                partition = created;
+            }
+        }
+
+        synchronized (partition) {
+            // Apply the writes to an overlay first, the partition only changes once all writes succeeded
+            Map<String, StoredEntity> overlay = new LinkedHashMap<String, StoredEntity>();
+            List<StoredEntity> results = new ArrayList<StoredEntity>(writes.size());
+            for (int i = 0; i < writes.size(); i++) {
+                Write write = writes.get(i);
+                if (!partitionKey.equals(write.partitionKey)) {
+                    throw new ServiceException(HttpURLConnection.HTTP_BAD_REQUEST, "CommandsInBatchActOnDifferentPartitions",
+                            i + ":All commands in a batch must operate on same entity group.");
+                }
+                if (overlay.containsKey(write.rowKey)) {
+                    throw new ServiceException(HttpURLConnection.HTTP_BAD_REQUEST, "InvalidDuplicateRow",
+                            i + ":The batch request contains multiple changes with same row key.");
+                }
+
+                StoredEntity current = partition.get(write.rowKey);
+                try {
+                    StoredEntity result = this.apply(write, current);
+                    overlay.put(write.rowKey, result == null ? DELETED : result);
+                    results.add(result);
+                }
+                catch (ServiceException e) {
+                    if (!batch) {
+                        throw e;
+                    }
+                    throw new ServiceException(e.getStatusCode(), e.getErrorCode(), i + ":" + e.getMessage());
+                }
+            }
+
+            for (Map.Entry<String, StoredEntity> entry : overlay.entrySet()) {
+                if (entry.getValue() == DELETED) {
+                    partition.remove(entry.getKey());
+                } else {
+                    partition.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Returns one page of the entities matching a filter, in partition and row key order.
+     *
+     * @param tableName The table name
+     * @param filter The filter, or null for all entities
+     * @param top The maximum number of entities
+     * @param startPartitionKey The partition key to start at, or null to start at the beginning
+     * @param startRowKey The row key to start at within the start partition, or null
+     * @return The page of results
+     * @throws ServiceException 404 if the table does not exist
+     */
+    QueryResult query(String tableName, LocalTableFilter filter, int top, String startPartitionKey, String startRowKey) throws ServiceException {
+        NavigableMap<String, ConcurrentSkipListMap<String, StoredEntity>> partitions = this.table(tableName).partitions;
+        if (filter != null) {
+            // Only visit the partitions the filter can match
+            partitions = filter.restrictPartitions(partitions);
+        }
+        if (startPartitionKey != null) {
+            partitions = partitions.tailMap(startPartitionKey, true);
+        }
+
+        List<StoredEntity> results = new ArrayList<StoredEntity>(Math.min(top, 100));
+        for (Map.Entry<String, ConcurrentSkipListMap<String, StoredEntity>> partition : partitions.entrySet()) {
+            NavigableMap<String, StoredEntity> rows = partition.getValue();
+            if (startRowKey != null && partition.getKey().equals(startPartitionKey)) {
+                rows = rows.tailMap(startRowKey, true);
+            }
+            for (StoredEntity entity : rows.values()) {
+                if (filter == null || filter.matches(entity)) {
+                    if (results.size() == top) {
+                        return new QueryResult(results, entity.partitionKey, entity.rowKey);
+                    }
+                    results.add(entity);
+                }
+            }
+        }
+        return new QueryResult(results, null, null);
+    }
+
+    private StoredEntity apply(Write write, StoredEntity current) throws ServiceException {
+        switch (write.type) {
+            case INSERT:
+                if (current != null) {
+                    throw new ServiceException(HttpURLConnection.HTTP_CONFLICT, "EntityAlreadyExists", "The specified entity already exists.");
+                }
+                return this.newVersion(write, write.properties);
+            case INSERT_OR_REPLACE:
+                return this.newVersion(write, write.properties);
+            case INSERT_OR_MERGE:
+                return this.newVersion(write, merge(current, write.properties));
+            case REPLACE:
+                checkEtag(write, current);
+                return this.newVersion(write, write.properties);
+            case MERGE:
+                checkEtag(write, current);
+                return this.newVersion(write, merge(current, write.properties));
+            case DELETE:
+                checkEtag(write, current);
+                return null;
+            default:
+                throw new IllegalArgumentException(write.type.toString());
+        }
+    }
+
+    private static void checkEtag(Write write, StoredEntity current) throws ServiceException {
+        if (current == null) {
+            throw resourceNotFound();
+        }
+        if (write.etag != null && !"*".equals(write.etag) && !write.etag.equals(current.etag)) {
+            throw new ServiceException(HttpURLConnection.HTTP_PRECON_FAILED, "UpdateConditionNotSatisfied",
+                    "The update condition specified in the request was not satisfied.");
+        }
+    }
+
+    private static Map<String, Property> merge(StoredEntity current, Map<String, Property> changes) {
+        if (current == null) {
+            return changes;
+        }
+        Map<String, Property> merged = new HashMap<String, Property>(current.properties);
+        merged.putAll(changes);
+        return merged;
+    }
+
+    private StoredEntity newVersion(Write write, Map<String, Property> properties) {
+        // Timestamps have a resolution of 100ns and are unique, so they can double as ETags
+        long now = Instant.now().toEpochMilli() * 10000;
+        long ticks;
+        long last;
+        do {
+            last = this.lastTimestampTicks.get();
+            ticks = Math.max(now, last + 1);
+        } while (!this.lastTimestampTicks.compareAndSet(last, ticks));
+
+        Instant timestamp = Instant.ofEpochSecond(ticks / 10000000, (ticks % 10000000) * 100);
+        String etag = "W/\"datetime'" + LocalTableJson.formatDateTime(timestamp).replace(":", "%3A") + "'\"";
+        return new StoredEntity(write.partitionKey, write.rowKey, timestamp, etag, new HashMap<String, Property>(properties));
+    }
+
+    private Table table(String tableName) throws ServiceException {
+        Table table = this.tables.get(tableName);
+        if (table == null) {
+            throw tableNotFound();
+        }
+        return table;
+    }
+
+    private static ServiceException tableNotFound() {
+        return new ServiceException(HttpURLConnection.HTTP_NOT_FOUND, "TableNotFound", "The table specified does not exist.");
+    }
+
+    private static ServiceException resourceNotFound() {
+        return new ServiceException(HttpURLConnection.HTTP_NOT_FOUND, "ResourceNotFound", "The specified resource does not exist.");
+    }
+}
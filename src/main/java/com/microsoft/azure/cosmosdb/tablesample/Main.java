@@ -13,16 +13,23 @@
   limitations under the License.
  */
 package com.microsoft.azure.cosmosdb.tablesample;
+import java.util.Arrays;
 
 public class Main {
 
     /**
-     * Executes the sample.
+     * Executes the sample, or generates load on a table for capacity planning.
      *
      * @param args
-     *            No input args are expected from users.
+     *            No args run the samples. "workload" followed by -P file and -p name=value
+     *            arguments runs a workload, see {@link WorkloadDriver#runCommandLine(String[])}.
      */
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "workload".equals(args[0])) {
+            WorkloadDriver.runCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         TableBasics basicSamples = new TableBasics();
         basicSamples.runSamples();
 
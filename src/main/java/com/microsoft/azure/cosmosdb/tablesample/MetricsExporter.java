@@ -0,0 +1,49 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Publishes the metrics recorded by {@link TableMetrics} to a monitoring system.
+ *
+ * An exporter receives the requests recorded since the previous export, so counts can be added to
+ * counters and latency histograms merged into the distribution summaries of a metrics library. A
+ * Micrometer exporter for example would increment a counter and record the histogram values into a
+ * timer tagged with table, operation and status for every {@link OperationStats}.
+ */
+interface MetricsExporter {
+
+    /**
+     * Publishes the requests of one interval. Called from a single thread at a time.
+     *
+     * @param stats The requests recorded since the previous export, one entry per table, operation and status code
+     */
+    void export(List<OperationStats> stats);
+
+    /**
+     * Returns an exporter that prints one line per table, operation and status code.
+     *
+     * @param out The stream to print to
+     * @return The exporter
+     */
+    static MetricsExporter printTo(final PrintStream out) {
+        return stats -> {
+            for (OperationStats operationStats : stats) {
+                out.println("\t" + operationStats);
+            }
+        };
+    }
+}
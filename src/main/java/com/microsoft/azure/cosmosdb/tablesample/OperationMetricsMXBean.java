@@ -0,0 +1,50 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+
+/**
+ * The JMX view of the requests recorded by {@link TableMetrics} for one table, operation and status
+ * code. All values are totals since the metrics were installed. Latencies are in microseconds.
+ *
+ * JMX requires the interfaces of MXBeans to be public.
+ */
+public interface OperationMetricsMXBean {
+
+    String getTableName();
+
+    String getOperation();
+
+    int getStatusCode();
+
+    long getCount();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getRetryCount();
+
+    double getMeanLatencyMicros();
+
+    double getLatencyP50Micros();
+
+    double getLatencyP90Micros();
+
+    double getLatencyP99Micros();
+
+    double getLatencyP999Micros();
+
+    double getMaxLatencyMicros();
+}
@@ -0,0 +1,128 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import org.HdrHistogram.Histogram;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The requests of one table, operation and status code recorded by {@link TableMetrics} over a
+ * period of time.
+ */
+final class OperationStats {
+
+    private final String tableName;
+    private final TableMetrics.Operation operation;
+    private final int statusCode;
+    private final long count;
+    private final long bytesSent;
+    private final long bytesReceived;
+    private final long retryCount;
+    private final Histogram latencies;
+
+    OperationStats(String tableName, TableMetrics.Operation operation, int statusCode, long count,
+            long bytesSent, long bytesReceived, long retryCount, Histogram latencies) {
+        this.tableName = tableName;
+        this.operation = operation;
+        this.statusCode = statusCode;
+        this.count = count;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+        this.retryCount = retryCount;
+        this.latencies = latencies;
+    }
+
+    /**
+     * @return The table name, or an empty string for requests that do not address a table in their
+     *         URL: creating and listing tables, batches and service requests
+     */
+    String getTableName() {
+        return this.tableName;
+    }
+
+    TableMetrics.Operation getOperation() {
+        return this.operation;
+    }
+
+    /**
+     * @return The HTTP status code, or -1 if no response was received
+     */
+    int getStatusCode() {
+        return this.statusCode;
+    }
+
+    long getCount() {
+        return this.count;
+    }
+
+    long getBytesSent() {
+        return this.bytesSent;
+    }
+
+    long getBytesReceived() {
+        return this.bytesReceived;
+    }
+
+    /**
+     * @return The number of requests that failed with this status code and were retried
+     */
+    long getRetryCount() {
+        return this.retryCount;
+    }
+
+    /**
+     * @return Whether the requests were throttled by the service
+     */
+    boolean isThrottled() {
+        return AdaptiveRateLimiter.isThrottled(this.statusCode);
+    }
+
+    /**
+     * Returns the distribution of the request latencies in nanoseconds. The histogram belongs to this
+     * object and must not be modified.
+     *
+     * @return The latency histogram
+     */
+    Histogram getLatencies() {
+        return this.latencies;
+    }
+
+    /**
+     * Returns a latency percentile.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @param unit The unit of the result
+     * @return The latency
+     */
+    double getLatency(double percentile, TimeUnit unit) {
+        return (double) this.latencies.getValueAtPercentile(percentile) / unit.toNanos(1);
+    }
+
+    double getMeanLatency(TimeUnit unit) {
+        return this.latencies.getMean() / unit.toNanos(1);
+    }
+
+    double getMaxLatency(TimeUnit unit) {
+        return (double) this.latencies.getMaxValue() / unit.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s %d: count=%d, p50=%.1f ms, p99=%.1f ms, max=%.1f ms, sent=%d B, received=%d B, retries=%d",
+                this.tableName.isEmpty() ? "-" : this.tableName, this.operation, this.statusCode, this.count,
+                this.getLatency(50, TimeUnit.MILLISECONDS), this.getLatency(99, TimeUnit.MILLISECONDS), this.getMaxLatency(TimeUnit.MILLISECONDS),
+                this.bytesSent, this.bytesReceived, this.retryCount);
+    }
+}
@@ -0,0 +1,438 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableBatchOperation;
+import com.microsoft.azure.storage.table.TableEntity;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableQuery.Operators;
+import com.microsoft.azure.storage.table.TableQuery.QueryComparisons;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-modify-write updates of entities with optimistic concurrency.
+ *
+ * An update reads the entity, applies a {@link Mutation} to it and replaces it on condition that its
+ * ETag did not change. When another writer got in between, the service answers with 412 (Precondition
+ * Failed) and the update is retried with a fresh read after a randomized exponential backoff, so the
+ * mutation may run more than once and must not have side effects outside the entity.
+ *
+ * With combining enabled, concurrent updates of the same partition are queued, and one of the waiting
+ * threads applies all queued mutations in order and writes the result of up to 100 entities as a
+ * single entity group transaction. A hot entity updated by many threads then costs one round trip for
+ * a whole group of updates instead of one round trip, plus a conflict retry, per update. Mutations of
+ * other threads may therefore run on the calling thread.
+ *
+ * With a {@link CachingCloudTable} set, the cached copy is used instead of the first read. A stale copy
+ * only costs one conflict, after which the entity is read from the service.
+ *
+ * @param <T> The entity type
+ */
+final class OptimisticUpdater<T extends TableEntity> {
+
+    /**
+     * Changes an entity in place.
+     *
+     * @param <T> The entity type
+     */
+    interface Mutation<T> {
+        /**
+         * Applies the change.
+         *
+         * @param entity The current state of the entity
+         * @return false if the entity was left unchanged and does not need to be written
+         */
+        boolean apply(T entity);
+    }
+
+    /**
+     * An update waiting in the queue of its partition.
+     */
+    private static final class PendingUpdate<T> extends CombiningQueue.Request<T> {
+        private final String rowKey;
+        private final Mutation<? super T> mutation;
+
+        PendingUpdate(String rowKey, Mutation<? super T> mutation) {
+            this.rowKey = rowKey;
+            this.mutation = mutation;
+        }
+    }
+
+    private final CloudTable table;
+    private final Class<T> clazzType;
+    private final ConcurrentHashMap<String, CombiningQueue<PendingUpdate<T>>> partitions = new ConcurrentHashMap<String, CombiningQueue<PendingUpdate<T>>>();
+    private CachingCloudTable cache;
+    private boolean combining = true;
+    private int maxAttempts = 10;
+
+    private final AtomicLong updateCount = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong conflictCount = new AtomicLong();
+
+    /**
+     * Creates an updater for the entities of a table.
+     *
+     * @param table The {@link CloudTable} object
+     * @param clazzType The entity class, which must have a no-argument constructor
+     */
+    OptimisticUpdater(CloudTable table, Class<T> clazzType) {
+        if (table == null || clazzType == null) {
+            throw new IllegalArgumentException("table and clazzType must not be null.");
+        }
+        this.table = table;
+        this.clazzType = clazzType;
+    }
+
+    /**
+     * Reads the entities through a cache. Entities written by this updater are stored in the cache.
+     *
+     * @param cache The cache in front of the same table, or null to always read from the service
+     */
+    void setCache(CachingCloudTable cache) {
+        if (cache != null && cache.getTable() != this.table) {
+            throw new IllegalArgumentException("The cache must be in front of the table of this updater.");
+        }
+        this.cache = cache;
+    }
+
+    /**
+     * Sets whether concurrent updates of the same partition are written together. Enabled by default.
+     *
+     * @param combining true to combine concurrent updates, false to write every update on its own
+     */
+    void setCombining(boolean combining) {
+        this.combining = combining;
+    }
+
+    /**
+     * Sets how often a write is attempted when concurrent writes keep changing the entities.
+     *
+     * @param maxAttempts The number of attempts, at least 1
+     */
+    void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1.");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    CloudTable getTable() {
+        return this.table;
+    }
+
+    /**
+     * Applies a mutation to the stored state of an entity and writes it back.
+     *
+     * @param partitionKey The partition key
+     * @param rowKey The row key
+     * @param mutation The change, applied again to the new state after a conflict
+     * @return The updated entity with its new ETag, or null if the entity does not exist
+     *
+     * @throws StorageException when the write fails, or keeps conflicting for the maximum number of attempts
+     */
+    T update(String partitionKey, String rowKey, Mutation<? super T> mutation) throws StorageException {
+        if (partitionKey == null || rowKey == null || mutation == null) {
+            throw new IllegalArgumentException("partitionKey, rowKey and mutation must not be null.");
+        }
+        PendingUpdate<T> update = new PendingUpdate<T>(rowKey, mutation);
+        if (!this.combining) {
+            this.process(partitionKey, Collections.singletonList(update));
+            return update.getResult();
+        }
+
+        this.partitions.computeIfAbsent(partitionKey, this::newQueue).submit(update);
+        return update.getResult();
+    }
+
+    long getUpdateCount() {
+        return this.updateCount.get();
+    }
+
+    long getWriteCount() {
+        return this.writeCount.get();
+    }
+
+    long getConflictCount() {
+        return this.conflictCount.get();
+    }
+
+    /**
+     * Returns the share of conditional writes that failed because the entities had changed.
+     *
+     * @return The number of conflicts divided by the number of writes sent, or 0 before the first write
+     */
+    double getConflictRate() {
+        long conflicts = this.getConflictCount();
+        long attempts = this.getWriteCount() + conflicts;
+        return attempts == 0 ? 0 : (double) conflicts / attempts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d updates in %d writes, %d conflicts (%.1f%% of writes)",
+                this.getUpdateCount(), this.getWriteCount(), this.getConflictCount(), this.getConflictRate() * 100);
+    }
+
+    /**
+     * Creates the queue of a partition, which processes groups of queued updates and is dropped once idle.
+     */
+    private CombiningQueue<PendingUpdate<T>> newQueue(final String partitionKey) {
+        return new CombiningQueue<PendingUpdate<T>>() {
+            @Override
+            List<PendingUpdate<T>> take(ArrayDeque<PendingUpdate<T>> pending) {
+                return takeGroup(pending);
+            }
+
+            @Override
+            void process(List<PendingUpdate<T>> group) {
+                OptimisticUpdater.this.process(partitionKey, group);
+            }
+
+            @Override
+            void idle() {
+                OptimisticUpdater.this.partitions.remove(partitionKey, this);
+            }
+        };
+    }
+
+    /**
+     * Takes the updates from the head of the queue that fit in one batch. Any number of updates of the
+     * same entity fit, as they are applied one after another to the same object.
+     */
+    private static <T> List<PendingUpdate<T>> takeGroup(ArrayDeque<PendingUpdate<T>> pending) {
+        List<PendingUpdate<T>> group = new ArrayList<PendingUpdate<T>>();
+        HashSet<String> rowKeys = new HashSet<String>();
+        while (!pending.isEmpty()) {
+            String rowKey = pending.peek().rowKey;
+            if (!rowKeys.contains(rowKey)) {
+                if (rowKeys.size() == BatchPayloadEstimator.MAX_BATCH_OPERATIONS) {
+                    break;
+                }
+                rowKeys.add(rowKey);
+            }
+            group.add(pending.poll());
+        }
+        return group;
+    }
+
+    /**
+     * Applies a group of updates of one partition and writes the changed entities in one request,
+     * retrying with fresh state on conflicts. Every update of the group is completed when this returns.
+     */
+    private void process(String partitionKey, List<PendingUpdate<T>> group) {
+        Map<String, List<PendingUpdate<T>>> rows = new LinkedHashMap<String, List<PendingUpdate<T>>>();
+        for (PendingUpdate<T> update : group) {
+            rows.computeIfAbsent(update.rowKey, key -> new ArrayList<PendingUpdate<T>>()).add(update);
+        }
+
+        try {
+            int attempt = 1;
+            boolean useCache = this.cache != null;
+            while (!rows.isEmpty()) {
+                Map<String, T> entities = this.read(partitionKey, rows.keySet(), useCache);
+                List<T> changed = new ArrayList<T>(rows.size());
+                if (!this.apply(rows, entities, changed)) {
+                    // A mutation failed and may have left its entity half changed
+                    continue;
+                }
+
+                try {
+                    this.write(changed);
+                }
+                catch (StorageException e) {
+                    // 404 means the entity was deleted since it was read, the next read reports it
+                    boolean raced = e.getHttpStatusCode() == HttpURLConnection.HTTP_PRECON_FAILED
+                            || e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND;
+                    if (!raced || attempt >= this.maxAttempts) {
+                        throw e;
+                    }
+                    this.conflictCount.incrementAndGet();
+                    for (T entity : changed) {
+                        this.invalidate(entity);
+                    }
+                    useCache = false;
+                    this.backOff(attempt++);
+                    continue;
+                }
+
+                for (Map.Entry<String, List<PendingUpdate<T>>> row : rows.entrySet()) {
+                    this.complete(entities.get(row.getKey()), row.getValue());
+                }
+                rows.clear();
+            }
+        }
+        catch (Throwable t) {
+            for (List<PendingUpdate<T>> updates : rows.values()) {
+                for (PendingUpdate<T> update : updates) {
+                    update.fail(t);
+                }
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+        }
+    }
+
+    /**
+     * Applies the mutations of every row in queue order. Updates of entities that do not exist are
+     * completed with null and removed.
+     *
+     * @return false if a mutation threw an exception, in which case its update was failed and removed.
+     *         Errors are rethrown and fail the whole group.
+     */
+    private boolean apply(Map<String, List<PendingUpdate<T>>> rows, Map<String, T> entities, List<T> changed) {
+        Iterator<Map.Entry<String, List<PendingUpdate<T>>>> iterator = rows.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, List<PendingUpdate<T>>> row = iterator.next();
+            T entity = entities.get(row.getKey());
+            if (entity == null) {
+                for (PendingUpdate<T> update : row.getValue()) {
+                    update.complete(null);
+                }
+                iterator.remove();
+                continue;
+            }
+
+            boolean modified = false;
+            for (Iterator<PendingUpdate<T>> updates = row.getValue().iterator(); updates.hasNext();) {
+                PendingUpdate<T> update = updates.next();
+                try {
+                    modified |= update.mutation.apply(entity);
+                }
+                catch (RuntimeException e) {
+                    update.fail(e);
+                    updates.remove();
+                    if (row.getValue().isEmpty()) {
+                        iterator.remove();
+                    }
+                    return false;
+                }
+            }
+            if (modified) {
+                changed.add(entity);
+            }
+        }
+        return true;
+    }
+
+    private Map<String, T> read(String partitionKey, Iterable<String> rowKeys, boolean useCache) throws StorageException {
+        Map<String, T> entities = new HashMap<String, T>();
+        if (useCache) {
+            for (String rowKey : rowKeys) {
+                T entity = this.cache.retrieve(partitionKey, rowKey, this.clazzType);
+                if (entity != null) {
+                    entities.put(rowKey, entity);
+                }
+            }
+            return entities;
+        }
+
+        Iterator<String> iterator = rowKeys.iterator();
+        String rowKey = iterator.next();
+        if (!iterator.hasNext()) {
+            T entity = this.table.execute(TableOperation.retrieve(partitionKey, rowKey, this.clazzType)).getResultAsType();
+            if (entity != null) {
+                entities.put(rowKey, entity);
+            }
+            return entities;
+        }
+
+        // Several entities of the partition are read with one query
+        String rowFilter = TableQuery.generateFilterCondition("RowKey", QueryComparisons.EQUAL, rowKey);
+        while (iterator.hasNext()) {
+            rowFilter = TableQuery.combineFilters(rowFilter, Operators.OR,
+                    TableQuery.generateFilterCondition("RowKey", QueryComparisons.EQUAL, iterator.next()));
+        }
+        String filter = TableQuery.combineFilters(
+                TableQuery.generateFilterCondition("PartitionKey", QueryComparisons.EQUAL, partitionKey), Operators.AND, rowFilter);
+        for (T entity : this.table.execute(TableQuery.from(this.clazzType).where(filter))) {
+            entities.put(entity.getRowKey(), entity);
+        }
+        return entities;
+    }
+
+    /**
+     * Replaces the changed entities on condition of the ETags they were read with. The service sets
+     * the new ETags on the entity objects.
+     */
+    private void write(List<T> changed) throws StorageException {
+        if (changed.isEmpty()) {
+            return;
+        }
+        if (changed.size() == 1) {
+            this.table.execute(TableOperation.replace(changed.get(0)));
+        } else {
+            TableBatchOperation batch = new TableBatchOperation();
+            for (T entity : changed) {
+                batch.replace(entity);
+            }
+            this.table.execute(batch);
+        }
+        this.writeCount.incrementAndGet();
+        if (this.cache != null) {
+            for (T entity : changed) {
+                this.cache.refresh(entity);
+            }
+        }
+    }
+
+    /**
+     * Completes the updates of one entity. Each caller gets its own copy when several updates shared it.
+     */
+    private void complete(T entity, List<PendingUpdate<T>> updates) throws StorageException {
+        this.updateCount.addAndGet(updates.size());
+        if (updates.size() == 1) {
+            updates.get(0).complete(entity);
+            return;
+        }
+        EntitySnapshot snapshot = EntitySnapshot.of(entity);
+        for (PendingUpdate<T> update : updates) {
+            update.complete(snapshot.toEntity(this.clazzType));
+        }
+    }
+
+    private void invalidate(T entity) {
+        if (this.cache != null) {
+            this.cache.invalidate(entity.getPartitionKey(), entity.getRowKey());
+        }
+    }
+
+    private void backOff(int attempt) throws StorageException {
+        try {
+            long maxDelay = TimeUnit.MILLISECONDS.toNanos(5) << Math.min(attempt, 8);
+            TimeUnit.NANOSECONDS.sleep(ThreadLocalRandom.current().nextLong(maxDelay));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("OperationInterrupted", "The update was interrupted while backing off.", e);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityResolver;
+import com.microsoft.azure.storage.table.TableEntity;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableQuery.Operators;
+import com.microsoft.azure.storage.table.TableQuery.QueryComparisons;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Scans a table by splitting the partition key space into disjoint ranges and querying the ranges
+ * concurrently.
+ *
+ * Range i covers the partition keys in [splitPoints[i - 1], splitPoints[i]), the first and last range
+ * are open ended. The results are merged into a stream that either preserves the order of a serial
+ * scan (partition key, then row key) or returns entities as soon as any range produces them.
+ * Every range buffers at most a bounded number of entities, so the merge works in constant memory.
+ */
+final class ParallelTableScan {
+
+    // Queue markers for the end of a range and for a failed range
+    private static final Object END_OF_RANGE = new Object();
+
+    private static final class Failure {
+        private final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    private final CloudTable table;
+    private final List<String> splitPoints;
+    private int parallelism;
+    private int pageSize = SegmentedQueryReader.MAX_PAGE_SIZE;
+    private int bufferSize = SegmentedQueryReader.MAX_PAGE_SIZE;
+
+    /**
+     * Creates a scan over the given partition key ranges.
+     *
+     * @param table The {@link CloudTable} object
+     * @param splitPoints The partition keys separating the ranges, in any order
+     */
+    ParallelTableScan(CloudTable table, Collection<String> splitPoints) {
+        if (table == null) {
+            throw new IllegalArgumentException("table");
+        }
+        this.table = table;
+        this.splitPoints = new ArrayList<String>(new TreeSet<String>(splitPoints));
+        this.parallelism = this.splitPoints.size() + 1;
+    }
+
+    /**
+     * Sets the number of ranges queried at the same time. Defaults to the number of ranges.
+     *
+     * @param parallelism The number of concurrent range queries
+     */
+    void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1.");
+        }
+        this.parallelism = parallelism;
+    }
+
+    void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets the number of entities each range may buffer ahead of the consumer.
+     *
+     * @param bufferSize The per-range buffer size
+     */
+    void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be at least 1.");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    int getRangeCount() {
+        return this.splitPoints.size() + 1;
+    }
+
+    /**
+     * Scans the table for entities of the given type. The returned stream must be closed to stop
+     * the range queries if it is not consumed completely.
+     *
+     * @param clazzType The entity type
+     * @param filter An additional filter applied within every range, or null
+     * @param ordered true to return the entities in the order of a serial scan
+     * @return The stream of entities
+     */
+    <T extends TableEntity> Stream<T> scan(final Class<T> clazzType, String filter, boolean ordered) {
+        return this.scan(rangeFilter -> {
+            TableQuery<T> query = TableQuery.from(clazzType);
+            if (rangeFilter != null) {
+                query.where(rangeFilter);
+            }
+            return SegmentedQueryReader.of(this.table, query);
+        }, filter, ordered);
+    }
+
+    /**
+     * Scans the table and projects every entity with the resolver. The returned stream must be closed
+     * to stop the range queries if it is not consumed completely.
+     *
+     * @param resolver The resolver that projects each returned entity
+     * @param columns The properties to select, or null for all properties
+     * @param filter An additional filter applied within every range, or null
+     * @param ordered true to return the results in the order of a serial scan
+     * @return The stream of results
+     */
+    <R> Stream<R> scan(final EntityResolver<R> resolver, final String[] columns, String filter, boolean ordered) {
+        return this.scan(rangeFilter -> {
+            TableQuery<DynamicTableEntity> query = TableQuery.from(DynamicTableEntity.class);
+            if (rangeFilter != null) {
+                query.where(rangeFilter);
+            }
+            if (columns != null) {
+                query.select(columns);
+            }
+            return SegmentedQueryReader.of(this.table, query, resolver);
+        }, filter, ordered);
+    }
+
+    /**
+     * Computes split points that divide a sample of partition keys into ranges of similar size.
+     *
+     * @param sampleKeys A sample of the partition keys of the table
+     * @param rangeCount The number of ranges to create
+     * @return The split points, at most rangeCount - 1 of them
+     */
+    static List<String> splitPointsFromSample(Collection<String> sampleKeys, int rangeCount) {
+        if (rangeCount < 1) {
+            throw new IllegalArgumentException("rangeCount must be at least 1.");
+        }
+
+        List<String> sorted = new ArrayList<String>(sampleKeys);
+        Collections.sort(sorted);
+        TreeSet<String> splitPoints = new TreeSet<String>();
+        for (int i = 1; i < rangeCount && !sorted.isEmpty(); i++) {
+            splitPoints.add(sorted.get(i * sorted.size() / rangeCount));
+        }
+        return new ArrayList<String>(splitPoints);
+    }
+
+    /**
+     * Draws a uniform random sample of partition keys using a key only scan of the table. The scan
+     * reads every key once, so the sample is meant to be computed occasionally and reused.
+     *
+     * @param table The {@link CloudTable} object
+     * @param sampleSize The number of keys to sample
+     * @return The sampled partition keys
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    static List<String> samplePartitionKeys(CloudTable table, int sampleSize) throws StorageException, InterruptedException {
+        TableQuery<DynamicTableEntity> query = TableQuery.from(DynamicTableEntity.class)
+                .select(new String[] { "PartitionKey" });
+        EntityResolver<String> resolver = (partitionKey, rowKey, timeStamp, properties, etag) -> partitionKey;
+
+        // Reservoir sampling keeps every scanned key with the same probability
+        List<String> sample = new ArrayList<String>(sampleSize);
+        Random random = new Random();
+        long seen = 0;
+        try (SegmentedQueryReader<String> reader = SegmentedQueryReader.of(table, query, resolver)) {
+            List<String> segment;
+            while ((segment = reader.nextSegment()) != null) {
+                for (String partitionKey : segment) {
+                    seen++;
+                    if (sample.size() < sampleSize) {
+                        sample.add(partitionKey);
+                    } else {
+                        long index = (long) (random.nextDouble() * seen);
+                        if (index < sampleSize) {
+                            sample.set((int) index, partitionKey);
+                        }
+                    }
+                }
+            }
+        }
+        return sample;
+    }
+
+    private <R> Stream<R> scan(final Function<String, SegmentedQueryReader<R>> readerFactory, final String filter, boolean ordered) {
+        final int rangeCount = this.getRangeCount();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.parallelism, rangeCount), r -> {
+            Thread thread = new Thread(r, "table-parallel-scan");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Ordered scans need a queue per range, unordered scans share one queue
+        final List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>();
+        for (int i = 0; i < (ordered ? rangeCount : 1); i++) {
+            queues.add(new ArrayBlockingQueue<Object>(this.bufferSize));
+        }
+
+        // Ranges are submitted in key order, so the range consumed by an ordered merge is always running
+        for (int i = 0; i < rangeCount; i++) {
+            final String rangeFilter = this.rangeFilter(i, filter);
+            final BlockingQueue<Object> queue = queues.get(ordered ? i : 0);
+            executor.execute(() -> this.scanRange(readerFactory, rangeFilter, queue));
+        }
+        executor.shutdown();
+
+        Iterator<R> iterator = new Iterator<R>() {
+            private int queueIndex;
+            private int completedRanges;
+            private Object next;
+
+            @Override
+            public boolean hasNext() {
+                while (this.next == null) {
+                    if (this.completedRanges == rangeCount) {
+                        return false;
+                    }
+
+                    Object item;
+                    try {
+                        item = queues.get(this.queueIndex).take();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    }
+
+                    if (item == END_OF_RANGE) {
+                        this.completedRanges++;
+                        if (queues.size() > 1) {
+                            this.queueIndex++;
+                        }
+                    } else if (item instanceof Failure) {
+                        executor.shutdownNow();
+                        Throwable cause = ((Failure) item).cause;
+                        if (cause instanceof Error) {
+                            throw (Error) cause;
+                        }
+                        throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+                    } else {
+                        this.next = item;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public R next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                R result = (R) this.next;
+                this.next = null;
+                return result;
+            }
+        };
+
+        int characteristics = ordered ? Spliterator.ORDERED | Spliterator.NONNULL : Spliterator.NONNULL;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, characteristics), false)
+                .onClose(executor::shutdownNow);
+    }
+
+    private <R> void scanRange(Function<String, SegmentedQueryReader<R>> readerFactory, String filter, BlockingQueue<Object> queue) {
+        try {
+            SegmentedQueryReader<R> reader = null;
+            try {
+                reader = readerFactory.apply(filter);
+                reader.setPageSize(this.pageSize);
+                List<R> segment;
+                while ((segment = reader.nextSegment()) != null) {
+                    for (R result : segment) {
+                        queue.put(result);
+                    }
+                }
+                queue.put(END_OF_RANGE);
+            }
+            catch (InterruptedException e) {
+                throw e;
+            }
+            catch (Throwable t) {
+                // Any failure ends the range, the consumer would otherwise wait for it forever
+                queue.put(new Failure(t));
+            }
+            finally {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // The stream was closed
+        }
+    }
+
+    /**
+     * Returns the filter selecting one range of the scan.
+     *
+     * @param rangeIndex The index of the range
+     * @param filter An additional filter applied within the range, or null
+     * @return The filter, or null for the only range of a scan without split points
+     */
+    String rangeFilter(int rangeIndex, String filter) {
+        String rangeFilter = null;
+        if (rangeIndex > 0) {
+            rangeFilter = TableQuery.generateFilterCondition("PartitionKey", QueryComparisons.GREATER_THAN_OR_EQUAL, this.splitPoints.get(rangeIndex - 1));
+        }
+        if (rangeIndex < this.splitPoints.size()) {
+            rangeFilter = and(rangeFilter, TableQuery.generateFilterCondition("PartitionKey", QueryComparisons.LESS_THAN, this.splitPoints.get(rangeIndex)));
+        }
+        return and(rangeFilter, filter);
+    }
+
+    private static String and(String left, String right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        return TableQuery.combineFilters(left, Operators.AND, right);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps the natural partition key of an entity, such as the last name of a customer, to the partition
+ * key under which it is stored.
+ *
+ * A single partition is served by a single server and handles about 2,000 operations per second.
+ * When a few natural keys receive most of the traffic, spreading each of them over several stored
+ * partitions raises that limit, at the cost of having to query every bucket to read a whole natural
+ * partition.
+ */
+interface PartitionKeyStrategy {
+
+    /**
+     * Returns the partition key under which an entity is stored.
+     *
+     * @param naturalKey The natural partition key of the entity
+     * @param rowKey The row key of the entity
+     * @return The stored partition key
+     */
+    String partitionKeyFor(String naturalKey, String rowKey);
+
+    /**
+     * Returns every stored partition key that may hold entities of a natural partition.
+     *
+     * @param naturalKey The natural partition key
+     * @return The stored partition keys
+     */
+    List<String> partitionKeysOf(String naturalKey);
+
+    /**
+     * Returns the natural partition key of a stored partition key.
+     *
+     * @param partitionKey The stored partition key
+     * @return The natural partition key
+     */
+    String naturalKeyOf(String partitionKey);
+
+    /**
+     * Returns the strategy that stores entities under their natural partition key.
+     */
+    static PartitionKeyStrategy identity() {
+        return new PartitionKeyStrategy() {
+            @Override
+            public String partitionKeyFor(String naturalKey, String rowKey) {
+                return naturalKey;
+            }
+
+            @Override
+            public List<String> partitionKeysOf(String naturalKey) {
+                return Collections.singletonList(naturalKey);
+            }
+
+            @Override
+            public String naturalKeyOf(String partitionKey) {
+                return partitionKey;
+            }
+        };
+    }
+
+    /**
+     * Returns a strategy that spreads every natural partition over a fixed number of buckets. The
+     * bucket is chosen from a hash of the row key and prefixed to the natural key, so "Smith" is stored
+     * under "00_Smith", "01_Smith" and so on. Point reads still address a single partition.
+     *
+     * @param buckets The number of buckets per natural partition, between 1 and 1000
+     * @return The strategy
+     */
+    static PartitionKeyStrategy hashedBuckets(final int buckets) {
+        if (buckets < 1 || buckets > 1000) {
+            throw new IllegalArgumentException("buckets must be between 1 and 1000.");
+        }
+        final String prefixFormat = "%0" + String.valueOf(buckets - 1).length() + "d_%s";
+
+        return new PartitionKeyStrategy() {
+            @Override
+            public String partitionKeyFor(String naturalKey, String rowKey) {
+                // String.hashCode is specified by the language, so the bucket is stable across processes
+                return String.format(prefixFormat, (rowKey.hashCode() & Integer.MAX_VALUE) % buckets, naturalKey);
+            }
+
+            @Override
+            public List<String> partitionKeysOf(String naturalKey) {
+                List<String> partitionKeys = new ArrayList<String>(buckets);
+                for (int bucket = 0; bucket < buckets; bucket++) {
+                    partitionKeys.add(String.format(prefixFormat, bucket, naturalKey));
+                }
+                return partitionKeys;
+            }
+
+            @Override
+            public String naturalKeyOf(String partitionKey) {
+                return partitionKey.substring(partitionKey.indexOf('_') + 1);
+            }
+        };
+    }
+}
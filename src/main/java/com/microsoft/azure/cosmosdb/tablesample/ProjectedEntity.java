@@ -0,0 +1,103 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.table.EntityProperty;
+
+/**
+ * The keys and a selected set of properties of an entity, as returned by a {@link ProjectionQuery}.
+ *
+ * A projected entity holds one value slot per selected column and shares the column names with
+ * every other result of the same query, which keeps it much smaller than a full entity object.
+ */
+final class ProjectedEntity {
+
+    private final String partitionKey;
+    private final String rowKey;
+    private final String etag;
+    private final String[] columns;
+    private final EntityProperty[] values;
+
+    ProjectedEntity(String partitionKey, String rowKey, String etag, String[] columns, EntityProperty[] values) {
+        this.partitionKey = partitionKey;
+        this.rowKey = rowKey;
+        this.etag = etag;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    String getPartitionKey() {
+        return this.partitionKey;
+    }
+
+    String getRowKey() {
+        return this.rowKey;
+    }
+
+    /**
+     * @return The ETag of the entity when it was read, for writes that must not overwrite a later change
+     */
+    String getEtag() {
+        return this.etag;
+    }
+
+    int getColumnCount() {
+        return this.columns.length;
+    }
+
+    String getColumnName(int column) {
+        return this.columns[column];
+    }
+
+    /**
+     * Returns the value of a selected column.
+     *
+     * @param column The position of the column in the projection
+     * @return The property, or null if the entity does not have the property
+     */
+    EntityProperty getProperty(int column) {
+        return this.values[column];
+    }
+
+    /**
+     * Returns the value of a selected column.
+     *
+     * @param columnName The name of the column
+     * @return The property, or null if the entity does not have the property
+     */
+    EntityProperty getProperty(String columnName) {
+        return this.values[ProjectionQuery.indexOf(this.columns, columnName)];
+    }
+
+    /**
+     * Returns the value of a selected column as a string.
+     *
+     * @param columnName The name of the column
+     * @return The value, or null if the entity does not have the property
+     */
+    String getString(String columnName) {
+        EntityProperty property = this.getProperty(columnName);
+        return property == null ? null : property.getValueAsString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder().append(this.partitionKey).append(',').append(this.rowKey);
+        for (int i = 0; i < this.columns.length; i++) {
+            builder.append('\t').append(this.columns[i]).append('=')
+                    .append(this.values[i] == null ? null : this.values[i].getValueAsString());
+        }
+        return builder.toString();
+    }
+}
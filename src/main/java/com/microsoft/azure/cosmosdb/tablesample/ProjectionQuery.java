@@ -0,0 +1,127 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.EntityResolver;
+import com.microsoft.azure.storage.table.TableQuery;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * A query that only returns the keys and a selected set of properties of the matching entities.
+ *
+ * The selected columns are sent as $select, so the service leaves every other property out of the
+ * response. The results are materialized either as {@link ProjectedEntity} records or as
+ * {@link ColumnPage} buffers holding a whole page column by column, never as full entity objects.
+ * A projection without columns returns the keys only.
+ */
+final class ProjectionQuery {
+
+    private static final String[] KEY_COLUMNS = { "PartitionKey", "RowKey" };
+
+    private final CloudTable table;
+    private final String filter;
+    private final String[] columns;
+
+    /**
+     * Creates a projection query.
+     *
+     * @param table The {@link CloudTable} object
+     * @param filter The filter of the query, or null for all entities
+     * @param columns The names of the properties to return, none for the keys only
+     */
+    ProjectionQuery(CloudTable table, String filter, String... columns) {
+        if (table == null) {
+            throw new IllegalArgumentException("table");
+        }
+        for (String column : columns) {
+            if (column == null || column.isEmpty()) {
+                throw new IllegalArgumentException("The column names must not be empty.");
+            }
+        }
+        this.table = table;
+        this.filter = filter;
+        this.columns = columns.clone();
+    }
+
+    /**
+     * Returns a reader producing one record per matching entity.
+     *
+     * @return The reader, which must be closed once it is no longer used
+     */
+    SegmentedQueryReader<ProjectedEntity> records() {
+        final String[] columns = this.columns;
+        EntityResolver<ProjectedEntity> resolver = (partitionKey, rowKey, timeStamp, properties, etag) -> {
+            EntityProperty[] values = new EntityProperty[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = valueOf(properties, columns[i]);
+            }
+            return new ProjectedEntity(partitionKey, rowKey, etag, columns, values);
+        };
+        return SegmentedQueryReader.of(this.table, this.createQuery(), resolver);
+    }
+
+    /**
+     * Returns a reader producing one {@link ColumnPage} per segment of the query.
+     *
+     * @return The reader, which must be closed once it is no longer used
+     */
+    SegmentedQueryReader<ColumnPage> columnPages() {
+        final CloudTable table = this.table;
+        final String[] columns = this.columns;
+        final TableQuery<DynamicTableEntity> query = this.createQuery();
+        return SegmentedQueryReader.of(query, (token, options) -> {
+            final ColumnPage page = new ColumnPage(columns, query.getTakeCount() == null ? SegmentedQueryReader.MAX_PAGE_SIZE : query.getTakeCount());
+
+            // The resolver fills the page, the per entity results are not needed
+            ResultSegment<Object> segment = table.executeSegmented(query, (partitionKey, rowKey, timeStamp, properties, etag) -> {
+                page.add(partitionKey, rowKey, properties);
+                return null;
+            }, token, options, null);
+
+            ArrayList<ColumnPage> pages = new ArrayList<ColumnPage>(1);
+            pages.add(page);
+            return new ResultSegment<ColumnPage>(pages, 1, segment.getContinuationToken());
+        });
+    }
+
+    private TableQuery<DynamicTableEntity> createQuery() {
+        TableQuery<DynamicTableEntity> query = TableQuery.from(DynamicTableEntity.class)
+                .select(this.columns.length == 0 ? KEY_COLUMNS : this.columns.clone());
+        if (this.filter != null) {
+            query.where(this.filter);
+        }
+        return query;
+    }
+
+    static int indexOf(String[] columns, String columnName) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(columnName)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(String.format("The column \"%s\" is not part of the projection.", columnName));
+    }
+
+    static EntityProperty valueOf(Map<String, EntityProperty> properties, String column) {
+        // Selected properties that an entity does not have may come back as null values
+        EntityProperty property = properties.get(column);
+        return property == null || property.getIsNull() ? null : property;
+    }
+}
@@ -0,0 +1,363 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.EntityResolver;
+import com.microsoft.azure.storage.table.TableEntity;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableRequestOptions;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Streams the results of a table query segment by segment.
+ *
+ * While the caller processes one segment the next ones are fetched in the background, so the
+ * round trip for segment N+1 overlaps with the processing of segment N. The number of prefetched
+ * segments and the page size are bounded, which caps the number of entities held in memory at
+ * pageSize * (prefetchSegments + 2): the prefetched segments, the segment being consumed, and the
+ * segment a prefetch thread holds while it waits for room. The continuation token of the last fully
+ * consumed segment is available as a checkpoint from which a new reader can resume.
+ *
+ * @param <R> The type of the returned results
+ */
+final class SegmentedQueryReader<R> implements Iterable<R>, AutoCloseable {
+
+    /**
+     * The largest page size accepted by the service.
+     */
+    static final int MAX_PAGE_SIZE = 1000;
+
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "table-query-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Fetches a single segment of the query.
+     */
+    interface SegmentFetcher<R> {
+        ResultSegment<R> fetch(ResultContinuation token, TableRequestOptions options) throws StorageException;
+    }
+
+    /**
+     * A fetched segment, or the failure that ended the prefetch.
+     */
+    private static final class Segment<R> {
+        private final List<R> results;
+        private final ResultContinuation nextToken;
+        private final Throwable failure;
+
+        Segment(List<R> results, ResultContinuation nextToken, Throwable failure) {
+            this.results = results;
+            this.nextToken = nextToken;
+            this.failure = failure;
+        }
+    }
+
+    private final TableQuery<?> query;
+    private final SegmentFetcher<R> fetcher;
+    private int pageSize = MAX_PAGE_SIZE;
+    private int prefetchSegments = 1;
+    private TableRequestOptions requestOptions;
+    private ResultContinuation startToken;
+
+    private BlockingQueue<Segment<R>> segments;
+    private Future<?> prefetchTask;
+    private ResultContinuation checkpoint;
+    private boolean completed;
+    private volatile boolean closed;
+
+    private SegmentedQueryReader(TableQuery<?> query, SegmentFetcher<R> fetcher) {
+        this.query = query;
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Creates a reader returning entities of the query's class type.
+     *
+     * @param table The {@link CloudTable} object
+     * @param query The query to execute. The reader runs a copy, so the query is left unchanged.
+     * @return The reader
+     */
+    static <T extends TableEntity> SegmentedQueryReader<T> of(final CloudTable table, TableQuery<T> query) {
+        final TableQuery<T> copy = copyOf(query);
+        return new SegmentedQueryReader<T>(copy,
+                (token, options) -> table.executeSegmented(copy, token, options, null));
+    }
+
+    /**
+     * Creates a reader returning the projections produced by the resolver.
+     *
+     * @param table The {@link CloudTable} object
+     * @param query The query to execute. The reader runs a copy, so the query is left unchanged.
+     * @param resolver The resolver that projects each returned entity
+     * @return The reader
+     */
+    static <R> SegmentedQueryReader<R> of(final CloudTable table, TableQuery<?> query, final EntityResolver<R> resolver) {
+        final TableQuery<?> copy = copyOf(query);
+        return new SegmentedQueryReader<R>(copy,
+                (token, options) -> table.executeSegmented(copy, resolver, token, options, null));
+    }
+
+    /**
+     * Creates a reader returning the segments produced by a custom fetcher.
+     *
+     * @param query The query executed by the fetcher. Its take count is overwritten with the page size.
+     * @param fetcher Fetches the segment starting at the given continuation token
+     * @return The reader
+     */
+    static <R> SegmentedQueryReader<R> of(TableQuery<?> query, SegmentFetcher<R> fetcher) {
+        return new SegmentedQueryReader<R>(query, fetcher);
+    }
+
+    /**
+     * Sets the maximum number of entities requested per round trip.
+     *
+     * @param pageSize A value between 1 and 1000
+     */
+    void setPageSize(int pageSize) {
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException(String.format("pageSize must be between 1 and %d.", MAX_PAGE_SIZE));
+        }
+        this.assertNotStarted();
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets how many segments may be fetched ahead of the one being consumed.
+     *
+     * @param prefetchSegments The number of prefetched segments, at least 1
+     */
+    void setPrefetchSegments(int prefetchSegments) {
+        if (prefetchSegments < 1) {
+            throw new IllegalArgumentException("prefetchSegments must be at least 1.");
+        }
+        this.assertNotStarted();
+        this.prefetchSegments = prefetchSegments;
+    }
+
+    void setRequestOptions(TableRequestOptions requestOptions) {
+        this.assertNotStarted();
+        this.requestOptions = requestOptions;
+    }
+
+    /**
+     * Resumes the query from a previously saved checkpoint.
+     *
+     * @param startToken The continuation token returned by {@link #getCheckpoint()}
+     */
+    void setStartToken(ResultContinuation startToken) {
+        this.assertNotStarted();
+        this.startToken = startToken;
+        this.checkpoint = startToken;
+    }
+
+    /**
+     * Returns the continuation token from which a new reader resumes right after the last segment
+     * returned by {@link #nextSegment()} or fully consumed through the iterator.
+     *
+     * @return The continuation token, or null when resuming means starting from the beginning or
+     *         when the query is complete
+     */
+    ResultContinuation getCheckpoint() {
+        return this.checkpoint;
+    }
+
+    /**
+     * Returns whether the last segment of the query has been handed out.
+     */
+    boolean isCompleted() {
+        return this.completed;
+    }
+
+    /**
+     * Returns the next segment of results, waiting for it to be fetched if necessary.
+     *
+     * @return The results of the segment, possibly empty, or null when the query is complete
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    List<R> nextSegment() throws StorageException, InterruptedException {
+        if (this.closed) {
+            throw new IllegalStateException("The reader is closed.");
+        }
+        if (this.completed) {
+            return null;
+        }
+        this.start();
+
+        Segment<R> segment = this.segments.take();
+        if (segment.failure != null) {
+            this.completed = true;
+            if (segment.failure instanceof StorageException) {
+                throw (StorageException) segment.failure;
+            }
+            if (segment.failure instanceof RuntimeException) {
+                throw (RuntimeException) segment.failure;
+            }
+            if (segment.failure instanceof Error) {
+                throw (Error) segment.failure;
+            }
+            throw new IllegalStateException(segment.failure);
+        }
+
+        this.checkpoint = segment.nextToken;
+        if (segment.nextToken == null) {
+            this.completed = true;
+        }
+        return segment.results;
+    }
+
+    /**
+     * Returns an iterator over all remaining results. Failures are rethrown as unchecked exceptions.
+     */
+    @Override
+    public Iterator<R> iterator() {
+        return new Iterator<R>() {
+            private Iterator<R> current = Collections.<R>emptyList().iterator();
+            private ResultContinuation pendingCheckpoint;
+            private boolean hasPendingCheckpoint;
+
+            @Override
+            public boolean hasNext() {
+                while (!this.current.hasNext()) {
+                    // The previous segment is now fully consumed
+                    if (this.hasPendingCheckpoint) {
+                        SegmentedQueryReader.this.checkpoint = this.pendingCheckpoint;
+                        this.hasPendingCheckpoint = false;
+                    }
+
+                    ResultContinuation before = SegmentedQueryReader.this.checkpoint;
+                    List<R> results;
+                    try {
+                        results = SegmentedQueryReader.this.nextSegment();
+                    }
+                    catch (StorageException e) {
+                        throw new RuntimeException(e);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    }
+                    if (results == null) {
+                        return false;
+                    }
+
+                    // Keep the checkpoint at the start of the segment until it has been consumed
+                    this.pendingCheckpoint = SegmentedQueryReader.this.checkpoint;
+                    this.hasPendingCheckpoint = true;
+                    SegmentedQueryReader.this.checkpoint = before;
+                    this.current = results.iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public R next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return this.current.next();
+            }
+        };
+    }
+
+    /**
+     * Stops the background prefetch and releases the buffered segments.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        if (this.prefetchTask != null) {
+            this.prefetchTask.cancel(true);
+        }
+        if (this.segments != null) {
+            this.segments.clear();
+        }
+    }
+
+    private void start() {
+        if (this.segments != null) {
+            return;
+        }
+
+        this.query.take(this.pageSize);
+        this.segments = new ArrayBlockingQueue<Segment<R>>(this.prefetchSegments);
+        this.prefetchTask = PREFETCH_EXECUTOR.submit(this::prefetch);
+    }
+
+    private void prefetch() {
+        ResultContinuation token = this.startToken;
+        try {
+            do {
+                ResultSegment<R> segment = this.fetcher.fetch(token, this.requestOptions);
+                token = segment.getContinuationToken();
+                // Blocks while the consumer is behind, which bounds the buffered entities
+                this.segments.put(new Segment<R>(segment.getResults(), token, null));
+            } while (token != null && !this.closed);
+        }
+        catch (InterruptedException e) {
+            // The reader was closed
+        }
+        catch (Throwable t) {
+            // Any failure ends the query, the consumer would otherwise wait for a segment forever
+            try {
+                this.segments.put(new Segment<R>(null, null, t));
+            }
+            catch (InterruptedException ignored) {
+                // The reader was closed
+            }
+        }
+    }
+
+    /**
+     * Copies a query, so that setting its take count, and the table name the client sets when it runs
+     * the query, do not change the caller's object.
+     */
+    private static <T extends TableEntity> TableQuery<T> copyOf(TableQuery<T> query) {
+        TableQuery<T> copy = new TableQuery<T>();
+        if (query.getClazzType() != null) {
+            copy.setClazzType(query.getClazzType());
+        }
+        if (query.getColumns() != null) {
+            copy.setColumns(query.getColumns().clone());
+        }
+        if (query.getFilterString() != null) {
+            copy.setFilterString(query.getFilterString());
+        }
+        copy.setTakeCount(query.getTakeCount());
+        return copy;
+    }
+
+    private void assertNotStarted() {
+        if (this.segments != null) {
+            throw new IllegalStateException("The reader has already started.");
+        }
+    }
+}
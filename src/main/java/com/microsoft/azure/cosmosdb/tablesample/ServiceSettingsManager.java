@@ -0,0 +1,690 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.CorsProperties;
+import com.microsoft.azure.storage.CorsRule;
+import com.microsoft.azure.storage.LoggingProperties;
+import com.microsoft.azure.storage.MetricsProperties;
+import com.microsoft.azure.storage.ServiceProperties;
+import com.microsoft.azure.storage.StorageCredentialsSharedAccessSignature;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.CloudTableClient;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.SharedAccessTablePermissions;
+import com.microsoft.azure.storage.table.SharedAccessTablePolicy;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TablePermissions;
+import com.microsoft.azure.storage.table.TableQuery;
+
+import java.net.HttpURLConnection;
+import java.security.InvalidKeyException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Changes the service properties and table ACLs of a storage account without redundant round trips
+ * and without fixed waits.
+ *
+ * The current settings are cached for a configurable time. A change is applied to a copy of the
+ * cached settings and only uploaded when it makes a difference; service properties are uploaded with
+ * only the changed sections, which the service merges into the stored ones. Changes to the same
+ * settings made concurrently are applied one after another by one of the calling threads and uploaded
+ * together.
+ *
+ * After an upload the call waits until the change is effective, polling with increasing intervals up
+ * to the propagation timeout. Stored access policies take up to 30 seconds to apply, so every added
+ * or changed policy is verified with a request signed by it, and every removed policy with a request
+ * that must be rejected. This needs a client with the account key; other clients wait for the whole
+ * propagation timeout. Service properties cannot be observed beyond reading them back, which is what
+ * their verification does.
+ *
+ * Settings changed by other clients are only picked up once the cached copy is older than the maximum
+ * age. ACLs are uploaded as a whole, so a change based on a stale copy undoes such changes.
+ */
+final class ServiceSettingsManager {
+
+    /**
+     * Changes settings in place.
+     *
+     * @param <S> The settings type
+     */
+    interface Change<S> {
+        void apply(S settings);
+    }
+
+    /**
+     * A change waiting for the settings to be free.
+     */
+    private static final class PendingChange<S> extends CombiningQueue.Request<Boolean> {
+        private final Change<? super S> change;
+
+        PendingChange(Change<? super S> change) {
+            this.change = change;
+        }
+    }
+
+    /**
+     * A cached copy of one kind of settings, and the changes queued for it.
+     */
+    private abstract class Settings<S> {
+        // Concurrent changes are applied together by one of the calling threads
+        private final CombiningQueue<PendingChange<S>> queue = new CombiningQueue<PendingChange<S>>() {
+            @Override
+            List<PendingChange<S>> take(ArrayDeque<PendingChange<S>> pending) {
+                List<PendingChange<S>> changes = new ArrayList<PendingChange<S>>(pending);
+                pending.clear();
+                return changes;
+            }
+
+            @Override
+            void process(List<PendingChange<S>> changes) {
+                Settings.this.apply(changes);
+            }
+        };
+        private S cached;
+        private long cachedAtNanos;
+
+        abstract S download() throws StorageException;
+
+        abstract S copy(S settings);
+
+        /**
+         * @return What to upload to turn the current settings into the desired ones, or null if they are equal
+         */
+        abstract S difference(S current, S desired);
+
+        abstract void upload(S settings) throws StorageException;
+
+        abstract boolean isEffective(S previous, S desired, long elapsedNanos) throws StorageException;
+
+        S get() throws StorageException {
+            synchronized (this) {
+                if (this.cached != null && System.nanoTime() - this.cachedAtNanos < ServiceSettingsManager.this.maxAgeNanos) {
+                    return this.copy(this.cached);
+                }
+            }
+            S downloaded = this.download();
+            this.cache(downloaded);
+            return this.copy(downloaded);
+        }
+
+        boolean update(Change<? super S> change) throws StorageException {
+            PendingChange<S> own = new PendingChange<S>(change);
+            this.queue.submit(own);
+            return own.getResult();
+        }
+
+        /**
+         * Applies the queued changes and uploads them together. A change that throws an exception fails
+         * alone; an error is rethrown, and the queue fails every change that is not done.
+         */
+        private void apply(List<PendingChange<S>> changes) {
+            try {
+                S current = this.get();
+                S desired = current;
+                List<PendingChange<S>> applied = new ArrayList<PendingChange<S>>(changes.size());
+                for (PendingChange<S> change : changes) {
+                    // Each change works on its own copy, so one that fails leaves no trace
+                    S candidate = this.copy(desired);
+                    try {
+                        change.change.apply(candidate);
+                        desired = candidate;
+                        applied.add(change);
+                    }
+                    catch (RuntimeException e) {
+                        change.fail(e);
+                    }
+                }
+
+                S difference = this.difference(current, desired);
+                if (difference == null) {
+                    ServiceSettingsManager.this.unchangedCount.addAndGet(applied.size());
+                    for (PendingChange<S> change : applied) {
+                        change.complete(false);
+                    }
+                    return;
+                }
+
+                try {
+                    this.upload(difference);
+                }
+                catch (Throwable t) {
+                    // The upload may or may not have been applied
+                    this.invalidate();
+                    throw t;
+                }
+                this.cache(desired);
+                ServiceSettingsManager.this.uploadCount.incrementAndGet();
+                ServiceSettingsManager.this.changeCount.addAndGet(applied.size());
+
+                ServiceSettingsManager.this.awaitEffective(this, current, desired);
+                for (PendingChange<S> change : applied) {
+                    change.complete(true);
+                }
+            }
+            catch (StorageException | RuntimeException e) {
+                for (PendingChange<S> change : changes) {
+                    change.fail(e);
+                }
+            }
+        }
+
+        synchronized void invalidate() {
+            this.cached = null;
+        }
+
+        private synchronized void cache(S settings) {
+            this.cached = settings;
+            this.cachedAtNanos = System.nanoTime();
+        }
+    }
+
+    private static final SharedAccessTablePermissions[] PROBE_ORDER = {
+        SharedAccessTablePermissions.QUERY, SharedAccessTablePermissions.DELETE, SharedAccessTablePermissions.UPDATE, SharedAccessTablePermissions.ADD };
+
+    private final CloudTableClient tableClient;
+    private final Settings<ServiceProperties> serviceProperties = new ServicePropertiesSettings();
+    private final ConcurrentHashMap<String, PermissionsSettings> tablePermissions = new ConcurrentHashMap<String, PermissionsSettings>();
+    private long maxAgeNanos = TimeUnit.MINUTES.toNanos(1);
+    private long propagationTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+
+    private final AtomicLong uploadCount = new AtomicLong();
+    private final AtomicLong changeCount = new AtomicLong();
+    private final AtomicLong unchangedCount = new AtomicLong();
+    private final AtomicLong propagationNanos = new AtomicLong();
+
+    /**
+     * Creates a manager for the settings of a storage account.
+     *
+     * @param tableClient The {@link CloudTableClient} object
+     */
+    ServiceSettingsManager(CloudTableClient tableClient) {
+        if (tableClient == null) {
+            throw new IllegalArgumentException("tableClient");
+        }
+        this.tableClient = tableClient;
+    }
+
+    /**
+     * Sets how long downloaded settings are used before they are downloaded again. Defaults to one minute.
+     *
+     * @param maxAge The maximum age of the cached settings
+     * @param unit The unit of the maximum age
+     */
+    void setMaxAge(long maxAge, TimeUnit unit) {
+        this.maxAgeNanos = unit.toNanos(maxAge);
+    }
+
+    /**
+     * Sets how long to wait for a change to become effective. Defaults to 60 seconds.
+     *
+     * @param timeout The maximum wait
+     * @param unit The unit of the maximum wait
+     */
+    void setPropagationTimeout(long timeout, TimeUnit unit) {
+        this.propagationTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Returns the service properties.
+     *
+     * @return A copy of the cached service properties
+     *
+     * @throws StorageException
+     */
+    ServiceProperties getServiceProperties() throws StorageException {
+        return this.serviceProperties.get();
+    }
+
+    /**
+     * Changes the service properties and waits until the change is effective.
+     *
+     * @param change The change, applied to a copy of the current service properties
+     * @return true if the change was uploaded, false if it made no difference
+     *
+     * @throws StorageException when the upload fails, or the change is not effective within the propagation timeout
+     */
+    boolean updateServiceProperties(Change<? super ServiceProperties> change) throws StorageException {
+        return this.serviceProperties.update(change);
+    }
+
+    /**
+     * Sets the service properties to the given ones, for example to restore properties read earlier.
+     * The sections of the given properties that are null are left unchanged.
+     *
+     * @param properties The desired service properties
+     * @return true if the properties were uploaded, false if they were already set
+     *
+     * @throws StorageException when the upload fails, or the change is not effective within the propagation timeout
+     */
+    boolean setServiceProperties(ServiceProperties properties) throws StorageException {
+        final ServiceProperties desired = copy(properties);
+        return this.updateServiceProperties(current -> {
+            if (desired.getLogging() != null) {
+                current.setLogging(copy(desired.getLogging()));
+            }
+            if (desired.getHourMetrics() != null) {
+                current.setHourMetrics(copy(desired.getHourMetrics()));
+            }
+            if (desired.getMinuteMetrics() != null) {
+                current.setMinuteMetrics(copy(desired.getMinuteMetrics()));
+            }
+            if (desired.getCors() != null) {
+                current.setCors(copy(desired.getCors()));
+            }
+            if (desired.getDefaultServiceVersion() != null) {
+                current.setDefaultServiceVersion(desired.getDefaultServiceVersion());
+            }
+        });
+    }
+
+    /**
+     * Returns the stored access policies of a table.
+     *
+     * @param table The {@link CloudTable} object
+     * @return A copy of the cached permissions
+     *
+     * @throws StorageException
+     */
+    TablePermissions getPermissions(CloudTable table) throws StorageException {
+        return this.permissionsOf(table).get();
+    }
+
+    /**
+     * Changes the stored access policies of a table and waits until the change is effective.
+     *
+     * @param table The {@link CloudTable} object
+     * @param change The change, applied to a copy of the current permissions
+     * @return true if the change was uploaded, false if it made no difference
+     *
+     * @throws StorageException when the upload fails, or the change is not effective within the propagation timeout
+     */
+    boolean updatePermissions(CloudTable table, Change<? super TablePermissions> change) throws StorageException {
+        return this.permissionsOf(table).update(change);
+    }
+
+    /**
+     * Discards all cached settings, so the next read or change downloads them again.
+     */
+    void invalidate() {
+        this.serviceProperties.invalidate();
+        this.tablePermissions.clear();
+    }
+
+    long getUploadCount() {
+        return this.uploadCount.get();
+    }
+
+    /**
+     * @return The number of changes that made a difference, which can be more than the uploads
+     */
+    long getChangeCount() {
+        return this.changeCount.get();
+    }
+
+    /**
+     * @return The number of changes that were not uploaded because they made no difference
+     */
+    long getUnchangedCount() {
+        return this.unchangedCount.get();
+    }
+
+    /**
+     * @return The total time spent waiting for uploaded changes to become effective
+     */
+    long getPropagationNanos() {
+        return this.propagationNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d changes in %d uploads, %d changes without effect, %d ms waiting for propagation",
+                this.getChangeCount(), this.getUploadCount(), this.getUnchangedCount(),
+                TimeUnit.NANOSECONDS.toMillis(this.getPropagationNanos()));
+    }
+
+    private PermissionsSettings permissionsOf(CloudTable table) {
+        return this.tablePermissions.computeIfAbsent(table.getName().toLowerCase(Locale.ROOT), name -> new PermissionsSettings(table));
+    }
+
+    /**
+     * Polls until the desired settings are effective, waiting 100 ms at first and up to 2 seconds
+     * between the checks.
+     */
+    private <S> void awaitEffective(Settings<S> settings, S previous, S desired) throws StorageException {
+        long startNanos = System.nanoTime();
+        try {
+            long intervalMillis = 100;
+            while (!settings.isEffective(previous, desired, System.nanoTime() - startNanos)) {
+                long remainingNanos = this.propagationTimeoutNanos - (System.nanoTime() - startNanos);
+                if (remainingNanos <= 0) {
+                    throw new StorageException("PropagationTimeout",
+                            String.format("The change was not effective after %d ms.", TimeUnit.NANOSECONDS.toMillis(this.propagationTimeoutNanos)), null);
+                }
+                TimeUnit.NANOSECONDS.sleep(Math.min(TimeUnit.MILLISECONDS.toNanos(intervalMillis), remainingNanos));
+                intervalMillis = Math.min(intervalMillis * 2, 2000);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("OperationInterrupted", "The wait for the change to become effective was interrupted.", e);
+        }
+        finally {
+            this.propagationNanos.addAndGet(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * The service properties of the account. Only the changed sections are uploaded.
+     */
+    private final class ServicePropertiesSettings extends Settings<ServiceProperties> {
+
+        @Override
+        ServiceProperties download() throws StorageException {
+            return ServiceSettingsManager.this.tableClient.downloadServiceProperties();
+        }
+
+        @Override
+        ServiceProperties copy(ServiceProperties settings) {
+            return ServiceSettingsManager.copy(settings);
+        }
+
+        @Override
+        ServiceProperties difference(ServiceProperties current, ServiceProperties desired) {
+            ServiceProperties difference = new ServiceProperties();
+            difference.setLogging(equal(current.getLogging(), desired.getLogging()) ? null : desired.getLogging());
+            difference.setHourMetrics(equal(current.getHourMetrics(), desired.getHourMetrics()) ? null : desired.getHourMetrics());
+            difference.setMinuteMetrics(equal(current.getMinuteMetrics(), desired.getMinuteMetrics()) ? null : desired.getMinuteMetrics());
+            difference.setCors(equal(current.getCors(), desired.getCors()) ? null : desired.getCors());
+            if (desired.getDefaultServiceVersion() != null && !desired.getDefaultServiceVersion().equals(current.getDefaultServiceVersion())) {
+                difference.setDefaultServiceVersion(desired.getDefaultServiceVersion());
+            }
+
+            boolean changed = difference.getLogging() != null || difference.getHourMetrics() != null || difference.getMinuteMetrics() != null
+                    || difference.getCors() != null || difference.getDefaultServiceVersion() != null;
+            return changed ? difference : null;
+        }
+
+        @Override
+        void upload(ServiceProperties settings) throws StorageException {
+            ServiceSettingsManager.this.tableClient.uploadServiceProperties(settings);
+        }
+
+        @Override
+        boolean isEffective(ServiceProperties previous, ServiceProperties desired, long elapsedNanos) throws StorageException {
+            return this.difference(this.download(), desired) == null;
+        }
+    }
+
+    /**
+     * The stored access policies of one table, verified with requests signed by them.
+     */
+    private final class PermissionsSettings extends Settings<TablePermissions> {
+        private final CloudTable table;
+
+        PermissionsSettings(CloudTable table) {
+            this.table = table;
+        }
+
+        @Override
+        TablePermissions download() throws StorageException {
+            return this.table.downloadPermissions();
+        }
+
+        @Override
+        TablePermissions copy(TablePermissions settings) {
+            TablePermissions copy = new TablePermissions();
+            for (Map.Entry<String, SharedAccessTablePolicy> policy : settings.getSharedAccessPolicies().entrySet()) {
+                copy.getSharedAccessPolicies().put(policy.getKey(), ServiceSettingsManager.copy(policy.getValue()));
+            }
+            return copy;
+        }
+
+        @Override
+        TablePermissions difference(TablePermissions current, TablePermissions desired) {
+            Map<String, SharedAccessTablePolicy> currentPolicies = current.getSharedAccessPolicies();
+            Map<String, SharedAccessTablePolicy> desiredPolicies = desired.getSharedAccessPolicies();
+            if (currentPolicies.size() != desiredPolicies.size()) {
+                return desired;
+            }
+            for (Map.Entry<String, SharedAccessTablePolicy> policy : desiredPolicies.entrySet()) {
+                if (!equal(currentPolicies.get(policy.getKey()), policy.getValue())) {
+                    return desired;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        void upload(TablePermissions settings) throws StorageException {
+            this.table.uploadPermissions(settings);
+        }
+
+        @Override
+        boolean isEffective(TablePermissions previous, TablePermissions desired, long elapsedNanos) throws StorageException {
+            Date now = new Date();
+            Map<String, SharedAccessTablePolicy> previousPolicies = previous.getSharedAccessPolicies();
+            Map<String, SharedAccessTablePolicy> desiredPolicies = desired.getSharedAccessPolicies();
+            try {
+                for (Map.Entry<String, SharedAccessTablePolicy> policy : desiredPolicies.entrySet()) {
+                    SharedAccessTablePolicy before = previousPolicies.get(policy.getKey());
+                    SharedAccessTablePolicy after = policy.getValue();
+                    if (equal(before, after) || !isValid(after, now)) {
+                        continue;
+                    }
+
+                    // Probe a permission that the change granted, or else one that it revoked
+                    EnumSet<SharedAccessTablePermissions> granted = permissionsOf(after);
+                    EnumSet<SharedAccessTablePermissions> revoked = EnumSet.noneOf(SharedAccessTablePermissions.class);
+                    if (before != null) {
+                        granted.removeAll(permissionsOf(before));
+                        revoked.addAll(permissionsOf(before));
+                        revoked.removeAll(permissionsOf(after));
+                    }
+                    if (!granted.isEmpty()) {
+                        if (!this.isAuthorized(policy.getKey(), probePermission(granted))) {
+                            return false;
+                        }
+                    } else if (!revoked.isEmpty()) {
+                        if (this.isAuthorized(policy.getKey(), probePermission(revoked))) {
+                            return false;
+                        }
+                    }
+                }
+
+                // A removed policy is probed with a permission it granted, so only its removal explains a rejection
+                for (Map.Entry<String, SharedAccessTablePolicy> policy : previousPolicies.entrySet()) {
+                    EnumSet<SharedAccessTablePermissions> granted = permissionsOf(policy.getValue());
+                    if (!desiredPolicies.containsKey(policy.getKey()) && isValid(policy.getValue(), now) && !granted.isEmpty()
+                            && this.isAuthorized(policy.getKey(), probePermission(granted))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            catch (InvalidKeyException | IllegalArgumentException e) {
+                // Only clients holding the account key can sign; without a way to verify, wait it out
+                return elapsedNanos >= ServiceSettingsManager.this.propagationTimeoutNanos;
+            }
+        }
+
+        /**
+         * Sends a request that needs the given permission, signed with the stored access policy. The
+         * probe entity does not exist, so updates and deletes are answered with 404 once authorized.
+         */
+        private boolean isAuthorized(String identifier, SharedAccessTablePermissions permission) throws StorageException, InvalidKeyException {
+            String signature = this.table.generateSharedAccessSignature(null, identifier, null, null, null, null);
+            CloudTable signedTable = new CloudTable(this.table.getStorageUri(), new StorageCredentialsSharedAccessSignature(signature));
+            DynamicTableEntity probe = new DynamicTableEntity("ServiceSettingsManager", UUID.randomUUID().toString());
+            probe.setEtag("*");
+            try {
+                switch (permission) {
+                    case QUERY:
+                        signedTable.executeSegmented(TableQuery.from(DynamicTableEntity.class).take(1), null);
+                        break;
+                    case ADD:
+                        signedTable.execute(TableOperation.insert(probe));
+                        this.table.execute(TableOperation.delete(probe));
+                        break;
+                    case UPDATE:
+                        signedTable.execute(TableOperation.merge(probe));
+                        break;
+                    default:
+                        signedTable.execute(TableOperation.delete(probe));
+                        break;
+                }
+                return true;
+            }
+            catch (StorageException e) {
+                if (e.getHttpStatusCode() == HttpURLConnection.HTTP_FORBIDDEN) {
+                    return false;
+                }
+                if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                    return true;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Picks the permission to probe, preferring those whose probe request changes nothing.
+     */
+    private static SharedAccessTablePermissions probePermission(EnumSet<SharedAccessTablePermissions> permissions) {
+        for (SharedAccessTablePermissions permission : PROBE_ORDER) {
+            if (permissions.contains(permission)) {
+                return permission;
+            }
+        }
+        return permissions.iterator().next();
+    }
+
+    /**
+     * A policy can only be used between its start and expiry time.
+     */
+    private static boolean isValid(SharedAccessTablePolicy policy, Date now) {
+        return (policy.getSharedAccessStartTime() == null || !policy.getSharedAccessStartTime().after(now))
+                && policy.getSharedAccessExpiryTime() != null && policy.getSharedAccessExpiryTime().after(now);
+    }
+
+    private static ServiceProperties copy(ServiceProperties properties) {
+        ServiceProperties copy = new ServiceProperties();
+        copy.setLogging(properties.getLogging() == null ? null : copy(properties.getLogging()));
+        copy.setHourMetrics(properties.getHourMetrics() == null ? null : copy(properties.getHourMetrics()));
+        copy.setMinuteMetrics(properties.getMinuteMetrics() == null ? null : copy(properties.getMinuteMetrics()));
+        copy.setCors(properties.getCors() == null ? null : copy(properties.getCors()));
+        copy.setDefaultServiceVersion(properties.getDefaultServiceVersion());
+        return copy;
+    }
+
+    private static LoggingProperties copy(LoggingProperties logging) {
+        LoggingProperties copy = new LoggingProperties();
+        copy.setVersion(logging.getVersion());
+        copy.setRetentionIntervalInDays(logging.getRetentionIntervalInDays());
+        copy.setLogOperationTypes(EnumSet.copyOf(logging.getLogOperationTypes()));
+        return copy;
+    }
+
+    private static MetricsProperties copy(MetricsProperties metrics) {
+        MetricsProperties copy = new MetricsProperties();
+        copy.setVersion(metrics.getVersion());
+        copy.setRetentionIntervalInDays(metrics.getRetentionIntervalInDays());
+        copy.setMetricsLevel(metrics.getMetricsLevel());
+        return copy;
+    }
+
+    private static CorsProperties copy(CorsProperties cors) {
+        CorsProperties copy = new CorsProperties();
+        for (CorsRule rule : cors.getCorsRules()) {
+            CorsRule ruleCopy = new CorsRule();
+            ruleCopy.setAllowedOrigins(new ArrayList<String>(rule.getAllowedOrigins()));
+            ruleCopy.setAllowedMethods(EnumSet.copyOf(rule.getAllowedMethods()));
+            ruleCopy.setAllowedHeaders(new ArrayList<String>(rule.getAllowedHeaders()));
+            ruleCopy.setExposedHeaders(new ArrayList<String>(rule.getExposedHeaders()));
+            ruleCopy.setMaxAgeInSeconds(rule.getMaxAgeInSeconds());
+            copy.getCorsRules().add(ruleCopy);
+        }
+        return copy;
+    }
+
+    private static SharedAccessTablePolicy copy(SharedAccessTablePolicy policy) {
+        SharedAccessTablePolicy copy = new SharedAccessTablePolicy();
+        copy.setPermissions(permissionsOf(policy));
+        copy.setSharedAccessStartTime(policy.getSharedAccessStartTime());
+        copy.setSharedAccessExpiryTime(policy.getSharedAccessExpiryTime());
+        return copy;
+    }
+
+    private static boolean equal(LoggingProperties a, LoggingProperties b) {
+        return a == b || (a != null && b != null && Objects.equals(a.getVersion(), b.getVersion())
+                && Objects.equals(a.getRetentionIntervalInDays(), b.getRetentionIntervalInDays())
+                && Objects.equals(a.getLogOperationTypes(), b.getLogOperationTypes()));
+    }
+
+    private static boolean equal(MetricsProperties a, MetricsProperties b) {
+        return a == b || (a != null && b != null && Objects.equals(a.getVersion(), b.getVersion())
+                && Objects.equals(a.getRetentionIntervalInDays(), b.getRetentionIntervalInDays())
+                && a.getMetricsLevel() == b.getMetricsLevel());
+    }
+
+    private static boolean equal(CorsProperties a, CorsProperties b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || a.getCorsRules().size() != b.getCorsRules().size()) {
+            return false;
+        }
+        for (int i = 0; i < a.getCorsRules().size(); i++) {
+            CorsRule ruleA = a.getCorsRules().get(i);
+            CorsRule ruleB = b.getCorsRules().get(i);
+            if (!ruleA.getAllowedOrigins().equals(ruleB.getAllowedOrigins()) || !ruleA.getAllowedMethods().equals(ruleB.getAllowedMethods())
+                    || !ruleA.getAllowedHeaders().equals(ruleB.getAllowedHeaders()) || !ruleA.getExposedHeaders().equals(ruleB.getExposedHeaders())
+                    || ruleA.getMaxAgeInSeconds() != ruleB.getMaxAgeInSeconds()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equal(SharedAccessTablePolicy a, SharedAccessTablePolicy b) {
+        return a == b || (a != null && b != null && permissionsOf(a).equals(permissionsOf(b))
+                && equalSeconds(a.getSharedAccessStartTime(), b.getSharedAccessStartTime())
+                && equalSeconds(a.getSharedAccessExpiryTime(), b.getSharedAccessExpiryTime()));
+    }
+
+    /**
+     * The service stores the times of policies in whole seconds.
+     */
+    private static boolean equalSeconds(Date a, Date b) {
+        return a == b || (a != null && b != null && a.getTime() / 1000 == b.getTime() / 1000);
+    }
+
+    private static EnumSet<SharedAccessTablePermissions> permissionsOf(SharedAccessTablePolicy policy) {
+        return policy.getPermissions() == null
+                ? EnumSet.noneOf(SharedAccessTablePermissions.class)
+                : EnumSet.copyOf(policy.getPermissions());
+    }
+}
@@ -0,0 +1,199 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.TableEntity;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableQuery.Operators;
+import com.microsoft.azure.storage.table.TableQuery.QueryComparisons;
+import com.microsoft.azure.storage.table.TableResult;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * A table whose entities are stored under the partition keys of a {@link PartitionKeyStrategy}.
+ *
+ * Callers keep working with natural partition keys: writes store a copy of an entity under its
+ * sharded partition key and leave the given entity unchanged apart from its ETag and timestamp, and
+ * entities returned by reads carry their natural partition key again. The result of a write holds
+ * the stored copy. Reading a whole natural partition queries all of its buckets in parallel and
+ * merges the results in row key order. Every request is counted by an optional
+ * {@link HotPartitionDetector}.
+ */
+final class ShardedTable {
+
+    private static final ExecutorService SCATTER_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "table-scatter-gather");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final CloudTable table;
+    private final PartitionKeyStrategy strategy;
+    private volatile HotPartitionDetector hotPartitionDetector;
+
+    /**
+     * Creates a sharded view of a table.
+     *
+     * @param table The {@link CloudTable} object
+     * @param strategy The mapping of natural to stored partition keys
+     */
+    ShardedTable(CloudTable table, PartitionKeyStrategy strategy) {
+        if (table == null || strategy == null) {
+            throw new IllegalArgumentException("table and strategy must not be null.");
+        }
+        this.table = table;
+        this.strategy = strategy;
+    }
+
+    CloudTable getTable() {
+        return this.table;
+    }
+
+    PartitionKeyStrategy getStrategy() {
+        return this.strategy;
+    }
+
+    void setHotPartitionDetector(HotPartitionDetector hotPartitionDetector) {
+        this.hotPartitionDetector = hotPartitionDetector;
+    }
+
+    TableResult insert(TableEntity entity) throws StorageException {
+        return this.write(entity, TableOperation::insert);
+    }
+
+    TableResult insertOrReplace(TableEntity entity) throws StorageException {
+        return this.write(entity, TableOperation::insertOrReplace);
+    }
+
+    TableResult insertOrMerge(TableEntity entity) throws StorageException {
+        return this.write(entity, TableOperation::insertOrMerge);
+    }
+
+    TableResult replace(TableEntity entity) throws StorageException {
+        return this.write(entity, TableOperation::replace);
+    }
+
+    TableResult merge(TableEntity entity) throws StorageException {
+        return this.write(entity, TableOperation::merge);
+    }
+
+    TableResult delete(TableEntity entity) throws StorageException {
+        return this.write(entity, TableOperation::delete);
+    }
+
+    /**
+     * Retrieves an entity by its natural partition key.
+     *
+     * @param naturalKey The natural partition key
+     * @param rowKey The row key
+     * @param clazzType The entity class
+     * @return The entity with its natural partition key, or null if it does not exist
+     *
+     * @throws StorageException
+     */
+    <T extends TableEntity> T retrieve(String naturalKey, String rowKey, Class<T> clazzType) throws StorageException {
+        String partitionKey = this.strategy.partitionKeyFor(naturalKey, rowKey);
+        this.record(partitionKey);
+        T entity = this.table.execute(TableOperation.retrieve(partitionKey, rowKey, clazzType)).getResultAsType();
+        if (entity != null) {
+            entity.setPartitionKey(naturalKey);
+        }
+        return entity;
+    }
+
+    /**
+     * Returns the entities of a natural partition. The buckets of the partition are queried in
+     * parallel and their results are merged in row key order.
+     *
+     * @param naturalKey The natural partition key
+     * @param filter An additional filter, for example on the row key, or null
+     * @param clazzType The entity class
+     * @return The entities with their natural partition key
+     *
+     * @throws StorageException
+     */
+    <T extends TableEntity> List<T> queryPartition(final String naturalKey, String filter, final Class<T> clazzType) throws StorageException {
+        List<CompletableFuture<List<T>>> scatter = new ArrayList<CompletableFuture<List<T>>>();
+        for (String partitionKey : this.strategy.partitionKeysOf(naturalKey)) {
+            String bucketFilter = TableQuery.generateFilterCondition("PartitionKey", QueryComparisons.EQUAL, partitionKey);
+            if (filter != null) {
+                bucketFilter = TableQuery.combineFilters(bucketFilter, Operators.AND, filter);
+            }
+
+            final TableQuery<T> query = TableQuery.from(clazzType).where(bucketFilter);
+            this.record(partitionKey);
+            scatter.add(CompletableFuture.supplyAsync(() -> {
+                List<T> entities = new ArrayList<T>();
+                for (T entity : this.table.execute(query)) {
+                    entity.setPartitionKey(naturalKey);
+                    entities.add(entity);
+                }
+                return entities;
+            }, SCATTER_EXECUTOR));
+        }
+
+        // Gather, the row keys of different buckets interleave
+        List<T> entities = new ArrayList<T>();
+        try {
+            for (CompletableFuture<List<T>> bucket : scatter) {
+                entities.addAll(bucket.join());
+            }
+        }
+        catch (CompletionException e) {
+            // The query iterator wraps service errors in an unchecked exception
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof StorageException) {
+                    throw (StorageException) cause;
+                }
+            }
+            throw e;
+        }
+        entities.sort(Comparator.comparing(TableEntity::getRowKey));
+        return entities;
+    }
+
+    private TableResult write(TableEntity entity, Function<TableEntity, TableOperation> operation) throws StorageException {
+        String naturalKey = entity.getPartitionKey();
+        String partitionKey = this.strategy.partitionKeyFor(naturalKey, entity.getRowKey());
+        this.record(partitionKey);
+
+        // The caller's entity keeps its natural key, even while other threads read it
+        DynamicTableEntity stored = new DynamicTableEntity(partitionKey, entity.getRowKey(), entity.getEtag(), entity.writeEntity(null));
+        TableResult result = this.table.execute(operation.apply(stored));
+        entity.setEtag(stored.getEtag());
+        if (stored.getTimestamp() != null) {
+            entity.setTimestamp(stored.getTimestamp());
+        }
+        return result;
+    }
+
+    private void record(String partitionKey) {
+        HotPartitionDetector detector = this.hotPartitionDetector;
+        if (detector != null) {
+            detector.record(partitionKey, 1);
+        }
+    }
+}
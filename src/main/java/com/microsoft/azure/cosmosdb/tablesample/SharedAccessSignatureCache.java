@@ -0,0 +1,378 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.StorageUri;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.SharedAccessTablePermissions;
+import com.microsoft.azure.storage.table.SharedAccessTablePolicy;
+
+import java.security.InvalidKeyException;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Issues shared access signatures for tables from a cache of signed tokens.
+ *
+ * Tokens are cached by table address, which includes the account, and by stored access policy
+ * identifier, permissions and key range. A token signed for the given validity is handed out until
+ * half of the refresh margin before its expiry, and a background thread signs its successor once the
+ * refresh margin is reached, so reads find a valid token without signing or locking. Only the first
+ * request for a key, or a request that finds the background refresh behind, signs on the calling
+ * thread. Keys that have not been requested for one validity period are dropped instead of refreshed.
+ *
+ * Tokens that name a stored access policy are cached until the expiry of the policy, which is read from
+ * the table whenever such a token is signed, and for one validity period at most, so that changes to
+ * the policy are picked up. A token whose policy does not exist or expires within half of the refresh
+ * margin is not issued. {@link #invalidate(CloudTable)} drops the tokens of a table right away. Ad hoc
+ * tokens start a few minutes in the past to tolerate clock skew between the client and the service.
+ */
+final class SharedAccessSignatureCache implements AutoCloseable {
+
+    private static final long CLOCK_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    // Readers record their use of a key at most this often, so they do not all write the same field
+    private static final long LAST_USE_RESOLUTION_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * What a token grants: the table of an account, the stored access policy, the permissions and the key range.
+     */
+    private static final class TokenKey {
+        private final StorageUri tableUri;
+        private final String identifier;
+        private final EnumSet<SharedAccessTablePermissions> permissions;
+        private final String startPartitionKey;
+        private final String startRowKey;
+        private final String endPartitionKey;
+        private final String endRowKey;
+        private final int hashCode;
+
+        TokenKey(StorageUri tableUri, String identifier, EnumSet<SharedAccessTablePermissions> permissions,
+                String startPartitionKey, String startRowKey, String endPartitionKey, String endRowKey) {
+            this.tableUri = tableUri;
+            this.identifier = identifier;
+            this.permissions = permissions;
+            this.startPartitionKey = startPartitionKey;
+            this.startRowKey = startRowKey;
+            this.endPartitionKey = endPartitionKey;
+            this.endRowKey = endRowKey;
+            this.hashCode = Objects.hash(tableUri, identifier, permissions, startPartitionKey, startRowKey, endPartitionKey, endRowKey);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof TokenKey)) {
+                return false;
+            }
+            TokenKey other = (TokenKey) obj;
+            return this.hashCode == other.hashCode
+                    && this.tableUri.equals(other.tableUri)
+                    && Objects.equals(this.identifier, other.identifier)
+                    && Objects.equals(this.permissions, other.permissions)
+                    && Objects.equals(this.startPartitionKey, other.startPartitionKey)
+                    && Objects.equals(this.startRowKey, other.startRowKey)
+                    && Objects.equals(this.endPartitionKey, other.endPartitionKey)
+                    && Objects.equals(this.endRowKey, other.endRowKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+
+    /**
+     * A signed token, the time its successor is signed and the time it stops being handed out.
+     */
+    private static final class SignedToken {
+        private final String token;
+        private final long refreshAtNanos;
+        private final long expiresAtNanos;
+
+        SignedToken(String token, long refreshAtNanos, long expiresAtNanos) {
+            this.token = token;
+            this.refreshAtNanos = refreshAtNanos;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    /**
+     * The current token of one key. Readers only read the volatile token; signing is serialized per key.
+     */
+    private final class TokenSlot {
+        private final CloudTable table;
+        private final TokenKey key;
+        private volatile SignedToken current;
+        private volatile long lastUsedNanos;
+
+        TokenSlot(CloudTable table, TokenKey key) {
+            this.table = table;
+            this.key = key;
+            this.lastUsedNanos = System.nanoTime();
+        }
+
+        synchronized SignedToken sign(boolean refresh) throws StorageException, InvalidKeyException {
+            // Another thread may have signed while this one waited
+            SignedToken token = this.current;
+            long nowNanos = System.nanoTime();
+            if (token != null && nowNanos - (refresh ? token.refreshAtNanos : token.expiresAtNanos) < 0) {
+                return token;
+            }
+
+            SharedAccessTablePolicy policy = null;
+            long lifetimeMillis;
+            if (this.key.identifier == null) {
+                long nowMillis = System.currentTimeMillis();
+                policy = new SharedAccessTablePolicy();
+                policy.setPermissions(this.key.permissions);
+                policy.setSharedAccessStartTime(new Date(nowMillis - CLOCK_SKEW_MILLIS));
+                policy.setSharedAccessExpiryTime(new Date(nowMillis + SharedAccessSignatureCache.this.validityMillis));
+                lifetimeMillis = SharedAccessSignatureCache.this.validityMillis;
+            } else {
+                lifetimeMillis = this.getStoredPolicyLifetimeMillis();
+                if (this.key.permissions != null) {
+                    policy = new SharedAccessTablePolicy();
+                    policy.setPermissions(this.key.permissions);
+                }
+            }
+            long refreshAtNanos = nowNanos + TimeUnit.MILLISECONDS.toNanos(lifetimeMillis - SharedAccessSignatureCache.this.refreshMarginMillis);
+            long expiresAtNanos = nowNanos + TimeUnit.MILLISECONDS.toNanos(lifetimeMillis - SharedAccessSignatureCache.this.refreshMarginMillis / 2);
+
+            String signature = this.table.generateSharedAccessSignature(policy, this.key.identifier,
+                    this.key.startPartitionKey, this.key.startRowKey, this.key.endPartitionKey, this.key.endRowKey);
+            SharedAccessSignatureCache.this.signedCount.incrementAndGet();
+            token = new SignedToken(signature, refreshAtNanos, expiresAtNanos);
+            this.current = token;
+            return token;
+        }
+
+        /**
+         * Reads the stored access policy of the key from the table.
+         *
+         * @return How long a token of the policy can be cached: until the policy expires, and for one
+         *         validity period at most
+         *
+         * @throws StorageException
+         */
+        private long getStoredPolicyLifetimeMillis() throws StorageException {
+            SharedAccessTablePolicy stored = this.table.downloadPermissions().getSharedAccessPolicies().get(this.key.identifier);
+            if (stored == null) {
+                throw new IllegalStateException(String.format("The table has no stored access policy %s.", this.key.identifier));
+            }
+
+            long lifetimeMillis = SharedAccessSignatureCache.this.validityMillis;
+            Date expiry = stored.getSharedAccessExpiryTime();
+            if (expiry != null) {
+                lifetimeMillis = Math.min(lifetimeMillis, expiry.getTime() - System.currentTimeMillis());
+            }
+            if (lifetimeMillis <= SharedAccessSignatureCache.this.refreshMarginMillis / 2) {
+                throw new IllegalStateException(String.format("The stored access policy %s expires at %s.", this.key.identifier, expiry));
+            }
+            return lifetimeMillis;
+        }
+    }
+
+    private final ConcurrentHashMap<TokenKey, TokenSlot> slots = new ConcurrentHashMap<TokenKey, TokenSlot>();
+    private final long validityMillis;
+    private final long refreshMarginMillis;
+    private final ScheduledExecutorService refresher;
+
+    private final LongAdder issuedCount = new LongAdder();
+    private final AtomicLong signedCount = new AtomicLong();
+    private final AtomicLong failedRefreshCount = new AtomicLong();
+
+    /**
+     * Creates a cache and starts its background refresh.
+     *
+     * @param validity How long ad hoc tokens are valid, and how long tokens of stored access policies are
+     *        cached at most
+     * @param refreshMargin How long before their expiry tokens are refreshed, less than the validity
+     * @param unit The unit of the validity and the margin
+     */
+    SharedAccessSignatureCache(long validity, long refreshMargin, TimeUnit unit) {
+        if (refreshMargin <= 0 || refreshMargin >= validity) {
+            throw new IllegalArgumentException("refreshMargin must be positive and less than validity.");
+        }
+        this.validityMillis = unit.toMillis(validity);
+        this.refreshMarginMillis = unit.toMillis(refreshMargin);
+
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "table-sas-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long periodMillis = Math.max(this.refreshMarginMillis / 4, 1);
+        this.refresher.scheduleWithFixedDelay(this::refresh, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns an ad hoc token for the whole table.
+     *
+     * @param table The {@link CloudTable} object, whose client must hold the account key
+     * @param permissions The granted permissions
+     * @return The shared access signature
+     *
+     * @throws StorageException
+     * @throws InvalidKeyException
+     */
+    String getToken(CloudTable table, EnumSet<SharedAccessTablePermissions> permissions) throws StorageException, InvalidKeyException {
+        return this.getToken(table, null, permissions, null, null, null, null);
+    }
+
+    /**
+     * Returns a token for a table.
+     *
+     * @param table The {@link CloudTable} object, whose client must hold the account key
+     * @param identifier The stored access policy, or null for an ad hoc token
+     * @param permissions The granted permissions, or null if the stored access policy grants them
+     * @param startPartitionKey The first partition key that can be accessed, or null
+     * @param startRowKey The first row key that can be accessed in the first partition, or null
+     * @param endPartitionKey The last partition key that can be accessed, or null
+     * @param endRowKey The last row key that can be accessed in the last partition, or null
+     * @return The shared access signature
+     *
+     * @throws StorageException
+     * @throws InvalidKeyException
+     */
+    String getToken(CloudTable table, String identifier, EnumSet<SharedAccessTablePermissions> permissions,
+            String startPartitionKey, String startRowKey, String endPartitionKey, String endRowKey) throws StorageException, InvalidKeyException {
+        if (identifier == null && (permissions == null || permissions.isEmpty())) {
+            throw new IllegalArgumentException("An ad hoc token needs permissions.");
+        }
+        TokenKey key = new TokenKey(table.getStorageUri(), identifier, permissions, startPartitionKey, startRowKey, endPartitionKey, endRowKey);
+        TokenSlot slot = this.slots.get(key);
+        if (slot == null) {
+            // The cached key must not change with the caller's set
+            TokenKey ownKey = new TokenKey(table.getStorageUri(), identifier, permissions == null ? null : EnumSet.copyOf(permissions),
+                    startPartitionKey, startRowKey, endPartitionKey, endRowKey);
+            TokenSlot created = new TokenSlot(table, ownKey);
+            slot = this.slots.putIfAbsent(ownKey, created);
+            if (slot == null) {
+                slot = created;
+            }
+        }
+
+        long nowNanos = System.nanoTime();
+        if (nowNanos - slot.lastUsedNanos > LAST_USE_RESOLUTION_NANOS) {
+            slot.lastUsedNanos = nowNanos;
+        }
+
+        SignedToken token = slot.current;
+        if (token == null || nowNanos - token.expiresAtNanos >= 0) {
+            token = slot.sign(false);
+        }
+        this.issuedCount.increment();
+        return token.token;
+    }
+
+    /**
+     * Signs tokens ahead of their first use, for example at startup.
+     *
+     * @param table The {@link CloudTable} object
+     * @param identifier The stored access policy, or null for an ad hoc token
+     * @param permissions The granted permissions, or null if the stored access policy grants them
+     *
+     * @throws StorageException
+     * @throws InvalidKeyException
+     */
+    void preSign(CloudTable table, String identifier, EnumSet<SharedAccessTablePermissions> permissions) throws StorageException, InvalidKeyException {
+        this.getToken(table, identifier, permissions, null, null, null, null);
+    }
+
+    /**
+     * Discards the tokens of a table, for example after its stored access policies or the account
+     * key changed.
+     *
+     * @param table The {@link CloudTable} object
+     */
+    void invalidate(CloudTable table) {
+        StorageUri tableUri = table.getStorageUri();
+        this.slots.keySet().removeIf(key -> key.tableUri.equals(tableUri));
+    }
+
+    int size() {
+        return this.slots.size();
+    }
+
+    /**
+     * @return The number of tokens handed out
+     */
+    long getIssuedCount() {
+        return this.issuedCount.sum();
+    }
+
+    /**
+     * @return The number of tokens signed, on the calling threads and in the background
+     */
+    long getSignedCount() {
+        return this.signedCount.get();
+    }
+
+    long getFailedRefreshCount() {
+        return this.failedRefreshCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d tokens issued, %d signed, %d failed refreshes, %d keys",
+                this.getIssuedCount(), this.getSignedCount(), this.getFailedRefreshCount(), this.size());
+    }
+
+    /**
+     * Stops the background refresh.
+     */
+    @Override
+    public void close() {
+        this.refresher.shutdownNow();
+    }
+
+    /**
+     * Signs the successors of the tokens that reached the refresh margin, and drops the keys that
+     * were not requested for one validity period.
+     */
+    private void refresh() {
+        long nowNanos = System.nanoTime();
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(this.validityMillis);
+        for (Iterator<TokenSlot> iterator = this.slots.values().iterator(); iterator.hasNext();) {
+            TokenSlot slot = iterator.next();
+            if (nowNanos - slot.lastUsedNanos > idleNanos) {
+                iterator.remove();
+                continue;
+            }
+
+            SignedToken token = slot.current;
+            if (token != null && nowNanos - token.refreshAtNanos >= 0) {
+                try {
+                    slot.sign(true);
+                }
+                catch (StorageException | InvalidKeyException | RuntimeException e) {
+                    // The current token stays in use; a reader signs itself once it is no longer handed out
+                    this.failedRefreshCount.incrementAndGet();
+                }
+            }
+        }
+    }
+}
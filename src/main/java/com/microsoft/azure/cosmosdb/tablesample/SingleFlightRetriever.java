@@ -0,0 +1,118 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableEntity;
+import com.microsoft.azure.storage.table.TableOperation;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent point reads of the same entity into a single request.
+ *
+ * The first thread to ask for a (table, partition key, row key) issues the retrieve, threads that ask
+ * for the same entity while that request is in flight wait for it and share its result. The result is
+ * kept as an {@link EntitySnapshot}, so every caller still receives its own entity object.
+ */
+final class SingleFlightRetriever {
+
+    private final ConcurrentMap<EntityKey, CompletableFuture<EntitySnapshot>> inFlight =
+            new ConcurrentHashMap<EntityKey, CompletableFuture<EntitySnapshot>>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Retrieves an entity, sharing the request with concurrent callers asking for the same entity.
+     *
+     * @param table The {@link CloudTable} object
+     * @param partitionKey The partition key
+     * @param rowKey The row key
+     * @param clazzType The entity class
+     * @return A new entity object, or null if the entity does not exist
+     *
+     * @throws StorageException
+     */
+    <T extends TableEntity> T retrieve(CloudTable table, String partitionKey, String rowKey, Class<T> clazzType) throws StorageException {
+        EntitySnapshot snapshot = this.retrieveSnapshot(table, partitionKey, rowKey);
+        return snapshot == null ? null : snapshot.toEntity(clazzType);
+    }
+
+    /**
+     * Retrieves the stored state of an entity, sharing the request with concurrent callers asking
+     * for the same entity.
+     *
+     * @param table The {@link CloudTable} object
+     * @param partitionKey The partition key
+     * @param rowKey The row key
+     * @return The snapshot, or null if the entity does not exist
+     *
+     * @throws StorageException
+     */
+    EntitySnapshot retrieveSnapshot(CloudTable table, String partitionKey, String rowKey) throws StorageException {
+        EntityKey key = new EntityKey(table.getName(), partitionKey, rowKey);
+        CompletableFuture<EntitySnapshot> request = new CompletableFuture<EntitySnapshot>();
+        CompletableFuture<EntitySnapshot> existing = this.inFlight.putIfAbsent(key, request);
+
+        if (existing != null) {
+            this.coalescedCount.incrementAndGet();
+            return CombiningQueue.join(existing);
+        }
+
+        this.requestCount.incrementAndGet();
+        try {
+            EntitySnapshot snapshot = table.execute(TableOperation.retrieve(partitionKey, rowKey, EntitySnapshot.RESOLVER)).getResultAsType();
+            request.complete(snapshot);
+            return snapshot;
+        }
+        catch (Throwable t) {
+            // Complete the request before it leaves the map, so no waiting caller is left behind
+            request.completeExceptionally(t);
+            throw t;
+        }
+        finally {
+            this.inFlight.remove(key, request);
+        }
+    }
+
+    /**
+     * Makes later calls for an entity send a new request instead of sharing the one in flight, for
+     * example after the entity was written. Callers already waiting keep sharing the old request.
+     *
+     * @param table The {@link CloudTable} object
+     * @param partitionKey The partition key
+     * @param rowKey The row key
+     */
+    void forget(CloudTable table, String partitionKey, String rowKey) {
+        this.inFlight.remove(new EntityKey(table.getName(), partitionKey, rowKey));
+    }
+
+    /**
+     * Returns the number of retrieves sent to the service.
+     */
+    long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * Returns the number of retrieves that were served by a request already in flight.
+     */
+    long getCoalescedCount() {
+        return this.coalescedCount.get();
+    }
+}
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This sample illustrates advanced usage of the Azure table storage service.
@@ -46,23 +47,31 @@ class TableAdvanced {
         // Create a table service client
         CloudTableClient tableClient = TableClientProvider.getTableClientReference();
 
+        // Caches the settings, uploads only actual changes and waits until they are effective
+        ServiceSettingsManager settings = new ServiceSettingsManager(tableClient);
+
         try {
             System.out.println("Service properties sample");
-            serviceProperties(tableClient);
+            serviceProperties(settings);
             System.out.println();
 
             System.out.println("CORS rules sample");
-            corsRules(tableClient);
+            corsRules(settings);
             System.out.println();
 
             System.out.println("Table Acl sample");
-            tableAcl(tableClient);
+            tableAcl(tableClient, settings);
+            System.out.println();
+
+            System.out.printf("Settings: %s%n", settings);
             System.out.println();
 
-            // This will fail unless the account is RA-GRS enabled.
-//            System.out.println("Service stats sample");
-//            serviceStats(tableClient);
-//            System.out.println();
+            // The stats and the secondary endpoint are only available on RA-GRS accounts, which the local table server simulates
+            if (TableClientProvider.useLocalTableServer()) {
+                System.out.println("Geo-secondary reads sample");
+                geoSecondaryReads();
+                System.out.println();
+            }
         } catch (Throwable t) {
             PrintHelper.printException(t);
         }
@@ -72,32 +81,31 @@ class TableAdvanced {
 
     /**
      * Manage the service properties including logging hour and minute metrics.
-     * @param tableClient Azure Storage Table Service
+     * @param settings The settings manager of the Azure Storage Table Service
      */
-    private void serviceProperties(CloudTableClient tableClient) throws StorageException {
+    private void serviceProperties(ServiceSettingsManager settings) throws StorageException {
         System.out.println("Get service properties");
-        ServiceProperties originalProps = tableClient.downloadServiceProperties();
+        ServiceProperties originalProps = settings.getServiceProperties();
 
         try {
             System.out.println("Set service properties");
-            // Change service properties
-            ServiceProperties props = new ServiceProperties();
-
-            props.getLogging().setLogOperationTypes(EnumSet.allOf(LoggingOperations.class));
-            props.getLogging().setRetentionIntervalInDays(2);
-            props.getLogging().setVersion("1.0");
-
-            final MetricsProperties hours = props.getHourMetrics();
-            hours.setMetricsLevel(MetricsLevel.SERVICE_AND_API);
-            hours.setRetentionIntervalInDays(1);
-            hours.setVersion("1.0");
-
-            final MetricsProperties minutes = props.getMinuteMetrics();
-            minutes.setMetricsLevel(MetricsLevel.SERVICE);
-            minutes.setRetentionIntervalInDays(1);
-            minutes.setVersion("1.0");
-
-            tableClient.uploadServiceProperties(props);
+            // Change service properties, the CORS rules are left as they are
+            settings.updateServiceProperties(props -> {
+                props.getLogging().setLogOperationTypes(EnumSet.allOf(LoggingOperations.class));
+                props.getLogging().setRetentionIntervalInDays(2);
+                props.getLogging().setVersion("1.0");
+
+                final MetricsProperties hours = props.getHourMetrics();
+                hours.setMetricsLevel(MetricsLevel.SERVICE_AND_API);
+                hours.setRetentionIntervalInDays(1);
+                hours.setVersion("1.0");
+
+                final MetricsProperties minutes = props.getMinuteMetrics();
+                minutes.setMetricsLevel(MetricsLevel.SERVICE);
+                minutes.setRetentionIntervalInDays(1);
+                minutes.setVersion("1.0");
+            });
+            ServiceProperties props = settings.getServiceProperties();
 
             System.out.println();
             System.out.println("Logging");
@@ -118,18 +126,18 @@ class TableAdvanced {
         }
         finally {
             // Revert back to original service properties
-            tableClient.uploadServiceProperties(originalProps);
+            settings.setServiceProperties(originalProps);
         }
     }
 
     /**
      * Set CORS rules sample.
-     * @param tableClient Azure Storage Table Service
+     * @param settings The settings manager of the Azure Storage Table Service
      */
-    private void corsRules(CloudTableClient tableClient) throws StorageException {
+    private void corsRules(ServiceSettingsManager settings) throws StorageException {
         // Get service properties
         System.out.println("Get service properties");
-        ServiceProperties originalProps = tableClient.downloadServiceProperties();
+        ServiceProperties originalProps = settings.getServiceProperties();
 
         try {
             // Setr CORS rules
@@ -139,21 +147,20 @@ class TableAdvanced {
             ruleAllowAll.getAllowedMethods().add(CorsHttpMethods.GET);
             ruleAllowAll.getAllowedHeaders().add("*");
             ruleAllowAll.getExposedHeaders().add("*");
-            ServiceProperties props = new ServiceProperties();
-            props.getCors().getCorsRules().add(ruleAllowAll);
-            tableClient.uploadServiceProperties(props);
+            settings.updateServiceProperties(props -> props.getCors().getCorsRules().add(ruleAllowAll));
         }
         finally {
             // Revert back to original service properties
-            tableClient.uploadServiceProperties(originalProps);
+            settings.setServiceProperties(originalProps);
         }
     }
 
     /**
      * Manage table access properties
      * @param tableClient Azure Storage Table Service
+     * @param settings The settings manager of the Azure Storage Table Service
      */
-    private void tableAcl(CloudTableClient tableClient) throws StorageException, URISyntaxException, InterruptedException {
+    private void tableAcl(CloudTableClient tableClient, ServiceSettingsManager settings) throws StorageException, URISyntaxException, InvalidKeyException {
         // Get a reference to a table
         // The table name must be lower case
         CloudTable table = tableClient.getTableReference("table"
@@ -164,29 +171,26 @@ class TableAdvanced {
             System.out.println("Create table");
             table.createIfNotExists();
 
-            // Get permissions
-            TablePermissions permissions = table.downloadPermissions();
-
             System.out.println("Set table permissions");
             final Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
             cal.add(Calendar.MINUTE, -30);
             final Date start = cal.getTime();
-            cal.add(Calendar.MINUTE, 30);
+            cal.add(Calendar.MINUTE, 60);
             final Date expiry = cal.getTime();
 
             SharedAccessTablePolicy policy = new SharedAccessTablePolicy();
             policy.setPermissions(EnumSet.of(SharedAccessTablePermissions.ADD, SharedAccessTablePermissions.DELETE, SharedAccessTablePermissions.UPDATE));
             policy.setSharedAccessStartTime(start);
             policy.setSharedAccessExpiryTime(expiry);
-            permissions.getSharedAccessPolicies().put("key1", policy);
 
-            // Set table permissions
-            table.uploadPermissions(permissions);
-            Thread.sleep(30000);
+            // Set table permissions, which returns once a request signed with the policy is accepted
+            long startNanos = System.nanoTime();
+            settings.updatePermissions(table, acl -> acl.getSharedAccessPolicies().put("key1", policy));
+            System.out.printf("Table permissions effective after %d ms%n", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
 
             System.out.println("Get table permissions");
             // Get table permissions
-            permissions = table.downloadPermissions();
+            TablePermissions permissions = settings.getPermissions(table);
 
             HashMap<String, SharedAccessTablePolicy> accessPolicies = permissions.getSharedAccessPolicies();
             Iterator it = accessPolicies.entrySet().iterator();
@@ -196,14 +200,27 @@ class TableAdvanced {
                 System.out.printf(" %s: %n", pair.getKey());
                 System.out.printf("  Permissions: %s%n", value.permissionsToString());
                 System.out.printf("  Start: %s%n", value.getSharedAccessStartTime());
-                System.out.printf("  Expiry: %s%n", value.getSharedAccessStartTime());
+                System.out.printf("  Expiry: %s%n", value.getSharedAccessExpiryTime());
                 it.remove();
             }
 
+            System.out.println("Insert entities with shared access signatures");
+            // Tokens are signed once and refreshed in the background before they expire
+            try (SharedAccessSignatureCache signatures = new SharedAccessSignatureCache(60, 5, TimeUnit.MINUTES)) {
+                signatures.preSign(table, "key1", null);
+                for (int i = 0; i < 10; i++) {
+                    String token = i % 2 == 0
+                            ? signatures.getToken(table, "key1", null, null, null, null, null)
+                            : signatures.getToken(table, EnumSet.of(SharedAccessTablePermissions.ADD));
+                    CloudTable signedTable = new CloudTable(table.getStorageUri(), new StorageCredentialsSharedAccessSignature(token));
+                    signedTable.execute(TableOperation.insert(new DynamicTableEntity("Signed", String.format("%04d", i))));
+                }
+                System.out.printf("Signatures: %s%n", signatures);
+            }
+
             System.out.println("Clear table permissions");
-            // Clear permissions
-            permissions.getSharedAccessPolicies().clear();
-            table.uploadPermissions(permissions);
+            // Clear permissions, which returns once a request signed with the removed policy is rejected
+            settings.updatePermissions(table, acl -> acl.getSharedAccessPolicies().clear());
         }
         finally {
             // Delete the table
@@ -212,6 +229,50 @@ class TableAdvanced {
         }
     }
 
+    /**
+     * Read from the primary or the geo-secondary endpoint, whichever answers first within the tolerated staleness.
+     * Runs against its own local table server with a slow primary endpoint.
+     */
+    private void geoSecondaryReads() throws IOException, StorageException, URISyntaxException {
+        try (LocalTableServer server = new LocalTableServer()) {
+            // Connection strings cannot hold the secondary table endpoint
+            CloudTableClient geoClient = new CloudTableClient(server.getStorageUri(),
+                    new StorageCredentialsAccountAndKey(LocalTableServer.ACCOUNT_NAME, LocalTableServer.ACCOUNT_KEY));
+            CloudTable table = geoClient.getTableReference("georeads");
+            table.create();
+            for (int i = 0; i < 10; i++) {
+                table.execute(TableOperation.insert(new CustomerEntity("Smith", String.format("%04d", i))));
+            }
+
+            // The primary has a long tail, the secondary was synchronized 5 seconds ago
+            server.setLatency(StorageLocation.PRIMARY, 2, 50, TimeUnit.MILLISECONDS);
+            server.setLatency(StorageLocation.SECONDARY, 8, 4, TimeUnit.MILLISECONDS);
+            server.setLastSyncTime(new Date(System.currentTimeMillis() - 5000));
+            serviceStats(geoClient);
+
+            try (GeoReadRouter router = new GeoReadRouter(geoClient, 30, TimeUnit.SECONDS)) {
+                router.refreshLastSyncTime();
+                long[] primaryLatencies = new long[200];
+                long[] routedLatencies = new long[200];
+                for (int i = 0; i < 200; i++) {
+                    String rowKey = String.format("%04d", i % 10);
+                    long start = System.nanoTime();
+                    router.retrieve(table, "Smith", rowKey, CustomerEntity.class, 0, TimeUnit.SECONDS);
+                    primaryLatencies[i] = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    router.retrieve(table, "Smith", rowKey, CustomerEntity.class, 60, TimeUnit.SECONDS);
+                    routedLatencies[i] = System.nanoTime() - start;
+                }
+                Arrays.sort(primaryLatencies);
+                Arrays.sort(routedLatencies);
+                System.out.printf("Primary only: p50=%.1f ms, p99=%.1f ms%n", primaryLatencies[100] / 1e6, primaryLatencies[198] / 1e6);
+                System.out.printf("Up to 60 s stale: p50=%.1f ms, p99=%.1f ms%n", routedLatencies[100] / 1e6, routedLatencies[198] / 1e6);
+                System.out.printf("Router: %s%n", router);
+            }
+        }
+    }
+
     /**
      * Retrieve statistics related to replication for the Table service.
      * This operation is only available on the secondary location endpoint
@@ -219,9 +280,11 @@ class TableAdvanced {
      * @param tableClient Azure Storage Table Service
      */
     private void serviceStats(CloudTableClient tableClient) throws StorageException {
-        // Get service stats
+        // Get service stats from the secondary endpoint
         System.out.println("Service Stats:");
-        ServiceStats stats = tableClient.getServiceStats();
+        TableRequestOptions options = new TableRequestOptions();
+        options.setLocationMode(LocationMode.SECONDARY_ONLY);
+        ServiceStats stats = tableClient.getServiceStats(options, null);
         System.out.printf("- status: %s%n", stats.getGeoReplication().getStatus());
         System.out.printf("- last sync time: %s%n", stats.getGeoReplication().getLastSyncTime());
     }
@@ -16,12 +16,29 @@
 package com.microsoft.azure.cosmosdb.tablesample;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.table.CloudTable;
 import com.microsoft.azure.storage.table.CloudTableClient;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
 import com.microsoft.azure.storage.table.TableBatchOperation;
 import com.microsoft.azure.storage.table.TableOperation;
 import com.microsoft.azure.storage.table.TableQuery;
@@ -35,8 +52,15 @@ public class TableBasics {
     protected static CloudTableClient tableClient = null;
     protected static CloudTable table1 = null;
     protected static CloudTable table2 = null;
+
     protected final static String tableNamePrefix = "tablebasics";
 
+    // The shape of the partition range query is compiled once, only the keys change from query to query
+    private static final FilterTemplate PARTITION_RANGE_FILTER = FilterTemplate.compile(FilterTemplate.and(
+        FilterTemplate.condition("PartitionKey", QueryComparisons.EQUAL, FilterTemplate.ParameterType.STRING),
+        FilterTemplate.condition("RowKey", QueryComparisons.GREATER_THAN_OR_EQUAL, FilterTemplate.ParameterType.STRING),
+        FilterTemplate.condition("RowKey", QueryComparisons.LESS_THAN_OR_EQUAL, FilterTemplate.ParameterType.STRING)));
+
     /**
      * Azure Storage Table Sample
      *
@@ -122,6 +146,14 @@ public class TableBasics {
             batchInsertOfCustomerEntities(table2);
             System.out.println("\tSuccessfully inserted the batch of entities.");
 
+            // Demonstrate bulk loading of entities spread over many partitions
+            System.out.println("\nBulk load entities across several partitions.");
+            bulkLoadOfCustomerEntities(table2);
+
+            // Demonstrate point reads served by a read-through cache
+            System.out.println("\nRead an entity repeatedly through a read-through cache.");
+            cachedPointReads(table2);
+
             // Query a range of data within a partition
             System.out.println("\nRetrieve entities with surname of Smith and first names >= 40 and <= 60.");
             partitionRangeQuery(table2, "Smith", "0040", "0060");
@@ -132,6 +164,38 @@ public class TableBasics {
             System.out.println("\n11. Retrieve entities with surname of Smith.");
             partitionScan(table2, "Smith");
 
+            // Query only the columns that are needed
+            System.out.println("\nRetrieve the email addresses of the entities with surname of Smith.");
+            projectedPartitionScan(table2, "Smith");
+
+            // Spread a partition over several buckets and read it back with a scatter-gather query
+            System.out.println("\nStore entities with surname of Taylor in four partition buckets and read them back.");
+            shardedPartition(table2);
+
+            // Scan the whole table using several partition key ranges in parallel
+            System.out.println("\nCount the entities of each partition using a parallel scan.");
+            parallelScan(table2);
+
+            // Find entities by a property that is not part of the key
+            System.out.println("\nLook up customers by email address through a secondary index.");
+            secondaryIndexLookup(tableClient, table2);
+
+            // Update the same entities from several threads without losing an update
+            System.out.println("\nCount visits of four customers with surname of Smith from eight threads.");
+            concurrentUpdates(table2);
+
+            // Delete a whole partition without reading the entities
+            System.out.println("\nDelete all entities with surname of Jones.");
+            bulkDeletePartition(table2, "Jones");
+
+            // Back up a table to local files and restore it into another table
+            System.out.println("\nExport the entities of the second table to files and import them into the first table.");
+            exportAndImport(table2, table1);
+
+            // Create the tables of an application concurrently and remember them across restarts
+            System.out.println("\nMake sure eight tables exist, then again as a restarted process would.");
+            provisionTables(tableClient);
+
             // Enumerate all tables in the storage account
             System.out.println("\nEnumerate all tables in the storage account.");
             for (String tableName : tableClient.listTables()) {
@@ -154,6 +218,13 @@ public class TableBasics {
             }
         }
 
+        // Show the latency and size of the requests sent by the sample
+        TableMetrics metrics = TableClientProvider.getMetrics();
+        if (metrics != null) {
+            System.out.println("\nRequests sent by the sample.");
+            MetricsExporter.printTo(System.out).export(metrics.snapshot());
+        }
+
         System.out.println("\nAzure Storage Table sample - Completed.\n");
     }
 
@@ -231,6 +302,57 @@ public class TableBasics {
         table.execute(batchOperation2);
     }
 
+    /**
+     * Demonstrate loading a large number of entities spread over several partitions. The bulk loader
+     * groups the entities by partition key, cuts batches at the 100 entity and 4MB limits and executes
+     * the batches of different partitions in parallel.
+     *
+     * @param table The {@link CloudTable} object
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    private static void bulkLoadOfCustomerEntities(CloudTable table) throws StorageException, InterruptedException {
+
+        final String[] lastNames = { "Jones", "Brown", "Green", "White", "Black" };
+
+        // Generate the entities lazily, the loader only buffers a bounded number of them
+        Stream<CustomerEntity> customers = IntStream.rangeClosed(1, 2000).mapToObj(i -> {
+            CustomerEntity entity = new CustomerEntity(lastNames[i % lastNames.length], String.format("%04d", i));
+            entity.setEmail(String.format("customer%04d@contoso.com", i));
+            entity.setHomePhoneNumber(String.format("425-555-%04d", i));
+            return entity;
+        });
+
+        // The rate limiter keeps the load within the scalability targets and slows down when the service throttles
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter();
+        TableBulkLoader loader = new TableBulkLoader(table, 4);
+        loader.setRateLimiter(rateLimiter);
+        BulkLoadResult result = loader.load(customers);
+        System.out.println(String.format("\tLoaded %s", result));
+        System.out.println(String.format("\tThrottled responses: %d, account rate: %.0f entities/s", rateLimiter.getThrottledCount(), rateLimiter.getAccountRate()));
+    }
+
+    /**
+     * Demonstrate point reads through a read-through cache. Only the first read goes to the service,
+     * the following reads are served from the cache until the entry expires or is written.
+     *
+     * @param table The {@link CloudTable} object
+     *
+     * @throws StorageException
+     */
+    private static void cachedPointReads(CloudTable table) throws StorageException {
+
+        CachingCloudTable cachedTable = new CachingCloudTable(table, 10000, 5, TimeUnit.MINUTES);
+        for (int i = 0; i < 3; i++) {
+            CustomerEntity entity = cachedTable.retrieve("Smith", "0001", CustomerEntity.class);
+            if (entity != null) {
+                System.out.println(String.format("\tCustomer: %s,%s\t%s\t%s\t%s", entity.getPartitionKey(), entity.getRowKey(), entity.getEmail(), entity.getHomePhoneNumber(), entity.getWorkPhoneNumber()));
+            }
+        }
+        System.out.println(String.format("\tCache statistics: %s", cachedTable));
+    }
+
     /**
      * Demonstrate a partition range query whereby we are searching within a partition for a set of entities that are within a specific range.
      *
@@ -243,15 +365,8 @@ public class TableBasics {
      */
     private static void partitionRangeQuery(CloudTable table, String partitionKey, String startRowKey, String endRowKey) throws StorageException {
 
-        // Create the range scan query
-        TableQuery<CustomerEntity> rangeQuery = TableQuery.from(CustomerEntity.class).where(
-            TableQuery.combineFilters(
-                TableQuery.generateFilterCondition("PartitionKey", QueryComparisons.EQUAL, partitionKey),
-                TableQuery.Operators.AND,
-                TableQuery.combineFilters(
-                    TableQuery.generateFilterCondition("RowKey", QueryComparisons.GREATER_THAN_OR_EQUAL, startRowKey),
-                    TableQuery.Operators.AND,
-                    TableQuery.generateFilterCondition("RowKey", QueryComparisons.LESS_THAN_OR_EQUAL, endRowKey))));
+        // Create the range scan query from the precompiled filter
+        TableQuery<CustomerEntity> rangeQuery = PARTITION_RANGE_FILTER.createQuery(CustomerEntity.class, partitionKey, startRowKey, endRowKey);
 
         // Iterate through the results
         for (CustomerEntity entity : table.execute(rangeQuery)) {
@@ -259,9 +374,250 @@ public class TableBasics {
         }
     }
 
+    /**
+     * Demonstrate a projection query whereby only the email address of the entities within a partition is returned.
+     * The service leaves the other properties out of the response and the results are read into small records
+     * instead of full entity objects.
+     *
+     * @param table The {@link CloudTable} object
+     * @param partitionKey The partition within which to search
+     */
+    private static void projectedPartitionScan(CloudTable table, String partitionKey) {
+
+        ProjectionQuery emails = new ProjectionQuery(table,
+            TableQuery.generateFilterCondition("PartitionKey", QueryComparisons.EQUAL, partitionKey), "Email");
+
+        try (SegmentedQueryReader<ProjectedEntity> reader = emails.records()) {
+            for (ProjectedEntity entity : reader) {
+                System.out.println(String.format("\tCustomer: %s,%s\t%s", entity.getPartitionKey(), entity.getRowKey(), entity.getString("Email")));
+            }
+        }
+    }
+
+    /**
+     * Demonstrate spreading the entities of one natural partition over several stored partitions. Writes
+     * and point reads address a single bucket, reading the whole natural partition queries all buckets
+     * in parallel. The requests sent to each bucket are counted to detect hot partitions.
+     *
+     * @param table The {@link CloudTable} object
+     *
+     * @throws StorageException
+     */
+    private static void shardedPartition(CloudTable table) throws StorageException {
+
+        PartitionKeyStrategy strategy = PartitionKeyStrategy.hashedBuckets(4);
+        ShardedTable shardedTable = new ShardedTable(table, strategy);
+        HotPartitionDetector detector = new HotPartitionDetector();
+        shardedTable.setHotPartitionDetector(detector);
+
+        for (int i = 1; i <= 40; i++) {
+            CustomerEntity customer = new CustomerEntity("Taylor", String.format("%04d", i));
+            customer.setEmail(String.format("taylor%04d@contoso.com", i));
+            shardedTable.insertOrReplace(customer);
+        }
+
+        List<CustomerEntity> customers = shardedTable.queryPartition("Taylor", null, CustomerEntity.class);
+        System.out.println(String.format("\tRead %d entities with surname of Taylor", customers.size()));
+        for (String partitionKey : strategy.partitionKeysOf("Taylor")) {
+            System.out.println(String.format("\tPartition: %s\t%.1f requests/s", partitionKey, detector.getRequestRate(partitionKey)));
+        }
+    }
+
+    /**
+     * Demonstrate a parallel scan whereby the partition key space is split into disjoint ranges that
+     * are queried concurrently. This is useful for work that has to visit every entity of a large table.
+     *
+     * @param table The {@link CloudTable} object
+     */
+    private static void parallelScan(CloudTable table) {
+
+        // The split points divide the partition keys into [-, Brown), [Brown, Jones), [Jones, Smith) and [Smith, -)
+        ParallelTableScan scan = new ParallelTableScan(table, Arrays.asList("Brown", "Jones", "Smith"));
+
+        // The order of the entities does not matter for counting, so take them as soon as any range returns them
+        try (Stream<CustomerEntity> entities = scan.scan(CustomerEntity.class, null, false)) {
+            Map<String, Long> counts = entities.collect(
+                Collectors.groupingBy(CustomerEntity::getPartitionKey, TreeMap::new, Collectors.counting()));
+            for (Map.Entry<String, Long> count : counts.entrySet()) {
+                System.out.println(String.format("\tPartition: %s\t%d entities", count.getKey(), count.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Demonstrate a secondary index on the email address of the customers. The index is built for the
+     * existing entities, kept up to date by the writes made through the indexed table, and turns the
+     * lookup of a customer by email address into a query of one small index partition and a point read.
+     *
+     * @param tableClient CloudTableClient object
+     * @param table The {@link CloudTable} object
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     * @throws URISyntaxException
+     */
+    private static void secondaryIndexLookup(CloudTableClient tableClient, CloudTable table) throws StorageException, InterruptedException, URISyntaxException {
+
+        CloudTable indexTable = tableClient.getTableReference(table.getName() + "index");
+        indexTable.createIfNotExists();
+        try {
+            IndexedTable<CustomerEntity> customers = new IndexedTable<CustomerEntity>(table, indexTable, CustomerEntity.class);
+            System.out.println(String.format("\tIndexed the existing entities: %s", customers.repair()));
+
+            CustomerEntity customer = new CustomerEntity("Harp", "Walter");
+            customer.setEmail("walter@contoso.com");
+            customers.insertOrReplace(customer);
+            customer.setEmail("walter.harp@contoso.com");
+            customers.merge(customer);
+
+            for (String email : new String[] { "walter@contoso.com", "walter.harp@contoso.com", "smith0042@contoso.com" }) {
+                for (CustomerEntity entity : customers.lookup("Email", email)) {
+                    System.out.println(String.format("\tCustomer: %s,%s\t%s", entity.getPartitionKey(), entity.getRowKey(), entity.getEmail()));
+                }
+            }
+        }
+        finally {
+            indexTable.deleteIfExists();
+        }
+    }
+
+    /**
+     * Demonstrate read-modify-write updates of the same entities by several threads. Every write is
+     * conditional on the ETag that was read, so a concurrent change makes it fail with 412 (Precondition
+     * Failed) instead of overwriting the other update, and the update is retried on the new state.
+     * Concurrent updates of the same partition are combined into one entity group transaction.
+     *
+     * @param table The {@link CloudTable} object
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    private static void concurrentUpdates(CloudTable table) throws StorageException, InterruptedException {
+
+        final OptimisticUpdater<DynamicTableEntity> updater = new OptimisticUpdater<DynamicTableEntity>(table, DynamicTableEntity.class);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<DynamicTableEntity>> updates = new ArrayList<Future<DynamicTableEntity>>();
+        for (int i = 0; i < 200; i++) {
+            final String rowKey = String.format("%04d", i % 4 + 1);
+            updates.add(executor.submit(() -> updater.update("Smith", rowKey, entity -> {
+                EntityProperty visits = entity.getProperties().get("Visits");
+                entity.getProperties().put("Visits", new EntityProperty(visits == null ? 1 : visits.getValueAsInteger() + 1));
+                return true;
+            })));
+        }
+        executor.shutdown();
+
+        try {
+            for (Future<DynamicTableEntity> update : updates) {
+                update.get();
+            }
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof StorageException) {
+                throw (StorageException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+
+        for (int i = 1; i <= 4; i++) {
+            DynamicTableEntity customer = table.execute(TableOperation.retrieve("Smith", String.format("%04d", i), DynamicTableEntity.class)).getResultAsType();
+            System.out.println(String.format("\tCustomer: %s,%s\t%d visits", customer.getPartitionKey(), customer.getRowKey(),
+                customer.getProperties().get("Visits").getValueAsInteger()));
+        }
+        System.out.println(String.format("\t%s", updater));
+    }
+
+    /**
+     * Demonstrate deleting every entity of a partition. Only the keys are scanned, and the deletes are
+     * sent as batches of up to 100 entities. The checkpoint reported with the progress lets an interrupted
+     * delete resume where it stopped.
+     *
+     * @param table The {@link CloudTable} object
+     * @param partitionKey The partition to delete
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    private static void bulkDeletePartition(CloudTable table, String partitionKey) throws StorageException, InterruptedException {
+
+        TableBulkDeleter deleter = new TableBulkDeleter(table, 4);
+        deleter.setRateLimiter(new AdaptiveRateLimiter());
+        deleter.setPageSize(200);
+        deleter.setProgressListener(progress -> System.out.println(String.format("\tCheckpoint: %s\t%d entities deleted",
+            ContinuationTokens.serialize(progress.getCheckpoint()), progress.getDeletedCount())));
+        BulkDeleteProgress result = deleter.deletePartition(partitionKey);
+        System.out.println(String.format("\t%s", result));
+    }
+
+    /**
+     * Demonstrate exporting a table into a compact binary file per partition key range and importing
+     * the files into another table. The ranges are exported in parallel, and the import writes the
+     * entities with the bulk loader.
+     *
+     * @param source The {@link CloudTable} object to export
+     * @param target The {@link CloudTable} object to import into
+     *
+     * @throws IOException
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    private static void exportAndImport(CloudTable source, CloudTable target) throws IOException, StorageException, InterruptedException {
+
+        Path directory = Files.createTempDirectory("tableexport");
+        try {
+            TableExporter exporter = new TableExporter(source, Arrays.asList("Green", "Smith"));
+            long entityCount = exporter.export(directory);
+            System.out.println(String.format("\tExported %d entities to %s", entityCount, directory));
+
+            BulkLoadResult result = new TableImporter(directory).importInto(new TableBulkLoader(target, 4));
+            System.out.println(String.format("\tImported %s", result));
+        }
+        finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Demonstrate making sure that the tables an application needs exist. The tables are created
+     * concurrently, and the registry file lets a restarted process skip the tables it already confirmed.
+     *
+     * @param tableClient CloudTableClient object
+     *
+     * @throws IOException
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    private static void provisionTables(CloudTableClient tableClient) throws IOException, StorageException, InterruptedException {
+
+        String namePrefix = tableNamePrefix + UUID.randomUUID().toString().replace("-", "").substring(0, 8);
+        List<String> tableNames = IntStream.range(0, 8).mapToObj(i -> namePrefix + i).collect(Collectors.toList());
+        Path registryFile = Files.createTempFile("tables", ".properties");
+        TableProvisioner provisioner = new TableProvisioner(tableClient);
+        try {
+            provisioner.setRegistryFile(registryFile);
+            System.out.println(String.format("\tFirst start: %s", provisioner.ensureTables(tableNames)));
+
+            TableProvisioner restarted = new TableProvisioner(tableClient);
+            restarted.setRegistryFile(registryFile);
+            System.out.println(String.format("\tRestart: %s", restarted.ensureTables(tableNames)));
+        }
+        finally {
+            for (String tableName : tableNames) {
+                provisioner.getTable(tableName).deleteIfExists();
+            }
+            Files.delete(registryFile);
+        }
+    }
+
     /**
      * Demonstrate a partition scan whereby we are searching for all the entities within a partition.
      * Note this is not as efficient as a range scan - but definitely more efficient than a full table scan.
+     * The results are streamed page by page, the next page is fetched while the current one is printed.
      *
      * @param table The {@link CloudTable} object
      * @param partitionKey The partition within which to search
@@ -275,8 +631,11 @@ public class TableBasics {
             (TableQuery.generateFilterCondition("PartitionKey", QueryComparisons.EQUAL, partitionKey)));
 
         // Iterate through the results
-        for (CustomerEntity entity : table.execute(partitionScanQuery)) {
-            System.out.println(String.format("\tCustomer: %s,%s\t%s\t%s\t%s", entity.getPartitionKey(), entity.getRowKey(), entity.getEmail(), entity.getHomePhoneNumber(), entity.getWorkPhoneNumber()));
+        try (SegmentedQueryReader<CustomerEntity> reader = SegmentedQueryReader.of(table, partitionScanQuery)) {
+            reader.setPageSize(50);
+            for (CustomerEntity entity : reader) {
+                System.out.println(String.format("\tCustomer: %s,%s\t%s\t%s\t%s", entity.getPartitionKey(), entity.getRowKey(), entity.getEmail(), entity.getHomePhoneNumber(), entity.getWorkPhoneNumber()));
+            }
         }
     }
 
@@ -0,0 +1,439 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.TableBatchOperation;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableQuery.QueryComparisons;
+import com.microsoft.azure.storage.table.TableRequestOptions;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes every entity matching a filter, for example a whole partition, the entities older than a
+ * cutoff or the whole table while keeping the table itself.
+ *
+ * A key-only {@link ProjectionQuery} scans the matching entities segment by segment, and the keys of
+ * each segment are cut into delete batches of at most 100 entities of the same partition. The batches
+ * run in parallel on a bounded number of threads while the next segments are being scanned. Once all
+ * batches of a segment have succeeded, the continuation token after it becomes the checkpoint from
+ * which an interrupted delete resumes, and the progress listener is told about it.
+ *
+ * Deletes are conditional on the ETag returned by the scan, so an entity written after it was scanned
+ * is kept even if it no longer matches the filter. An entity that is already gone, for example because
+ * the previous run deleted it after its last checkpoint, fails its whole batch with 404 Not Found, and
+ * one written since fails it with 412 Precondition Failed; such a batch is retried one entity at a
+ * time and those entities are counted as not found or skipped instead of failing the delete.
+ */
+final class TableBulkDeleter {
+
+    /**
+     * Receives the progress of a delete whenever the checkpoint advances.
+     */
+    interface ProgressListener {
+        void progressed(BulkDeleteProgress progress);
+    }
+
+    private final CloudTable table;
+    private final int maxConcurrentBatches;
+    private int pageSize = SegmentedQueryReader.MAX_PAGE_SIZE;
+    private int maxPendingSegments = 4;
+    private TableRequestOptions requestOptions;
+    private AdaptiveRateLimiter rateLimiter;
+    private ProgressListener progressListener;
+    private ResultContinuation startToken;
+    private volatile ResultContinuation checkpoint;
+
+    /**
+     * Creates a deleter for the given table.
+     *
+     * @param table The {@link CloudTable} object to delete from
+     * @param maxConcurrentBatches The maximum number of batches executing at the same time
+     */
+    TableBulkDeleter(CloudTable table, int maxConcurrentBatches) {
+        if (table == null) {
+            throw new IllegalArgumentException("table");
+        }
+        if (maxConcurrentBatches < 1) {
+            throw new IllegalArgumentException("maxConcurrentBatches must be at least 1.");
+        }
+        this.table = table;
+        this.maxConcurrentBatches = maxConcurrentBatches;
+    }
+
+    /**
+     * Sets the maximum number of keys requested per round trip of the scan.
+     *
+     * @param pageSize A value between 1 and 1000
+     */
+    void setPageSize(int pageSize) {
+        if (pageSize < 1 || pageSize > SegmentedQueryReader.MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException(String.format("pageSize must be between 1 and %d.", SegmentedQueryReader.MAX_PAGE_SIZE));
+        }
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets how many scanned segments may have deletes outstanding at the same time. More segments keep
+     * the threads busy when segments are small, fewer segments mean less work is repeated on resume.
+     *
+     * @param maxPendingSegments The number of segments, at least 1
+     */
+    void setMaxPendingSegments(int maxPendingSegments) {
+        if (maxPendingSegments < 1) {
+            throw new IllegalArgumentException("maxPendingSegments must be at least 1.");
+        }
+        this.maxPendingSegments = maxPendingSegments;
+    }
+
+    void setRequestOptions(TableRequestOptions requestOptions) {
+        this.requestOptions = requestOptions;
+    }
+
+    /**
+     * Sets a rate limiter that every batch has to pass before it is sent. The limiter is also told
+     * about every response, so it slows the deleter down when the service throttles it.
+     *
+     * @param rateLimiter The rate limiter, or null to send batches as fast as possible
+     */
+    void setRateLimiter(AdaptiveRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Resumes a delete from a previously saved checkpoint. The delete must use the same filter as the
+     * one that produced the checkpoint.
+     *
+     * @param startToken The continuation token returned by {@link BulkDeleteProgress#getCheckpoint()}
+     */
+    void setStartToken(ResultContinuation startToken) {
+        this.startToken = startToken;
+    }
+
+    /**
+     * Returns the checkpoint of the current or last delete. After a failed delete this is the token
+     * from which a new delete resumes.
+     *
+     * @return The continuation token, or null when resuming means starting from the beginning or
+     *         when the delete is complete
+     */
+    ResultContinuation getCheckpoint() {
+        return this.checkpoint;
+    }
+
+    /**
+     * Deletes every entity of a partition.
+     *
+     * @param partitionKey The partition key
+     * @return The final progress of the delete
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    BulkDeleteProgress deletePartition(String partitionKey) throws StorageException, InterruptedException {
+        return this.delete(TableQuery.generateFilterCondition("PartitionKey", QueryComparisons.EQUAL, partitionKey));
+    }
+
+    /**
+     * Deletes every entity that was last written before the cutoff.
+     *
+     * @param cutoff The time before which entities are deleted
+     * @return The final progress of the delete
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    BulkDeleteProgress deleteOlderThan(Date cutoff) throws StorageException, InterruptedException {
+        return this.delete(TableQuery.generateFilterCondition("Timestamp", QueryComparisons.LESS_THAN, cutoff));
+    }
+
+    /**
+     * Deletes every entity of the table. Unlike deleting the table, the table stays available and can
+     * be written again right away.
+     *
+     * @return The final progress of the delete
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    BulkDeleteProgress truncate() throws StorageException, InterruptedException {
+        return this.delete(null);
+    }
+
+    /**
+     * Deletes every entity matching the filter. The first failed batch stops the delete and its
+     * exception is thrown once the batches already running have finished; {@link #getCheckpoint()}
+     * then tells where to resume.
+     *
+     * @param filter The filter of the entities to delete, or null for all entities
+     * @return The final progress of the delete
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    BulkDeleteProgress delete(String filter) throws StorageException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(this.maxConcurrentBatches);
+        DeleteState state = new DeleteState(executor);
+        this.checkpoint = this.startToken;
+
+        try (SegmentedQueryReader<ProjectedEntity> reader = new ProjectionQuery(this.table, filter).records()) {
+            reader.setPageSize(this.pageSize);
+            reader.setRequestOptions(this.requestOptions);
+            reader.setStartToken(this.startToken);
+
+            ArrayDeque<PendingSegment> pendingSegments = new ArrayDeque<PendingSegment>();
+            List<ProjectedEntity> keys;
+            while (state.failures.isEmpty() && (keys = reader.nextSegment()) != null) {
+                state.scannedCount.addAndGet(keys.size());
+                pendingSegments.add(state.submitSegment(keys, reader.getCheckpoint()));
+
+                // Wait for the oldest segment before scanning further ahead than allowed
+                while (pendingSegments.size() >= this.maxPendingSegments && state.failures.isEmpty()) {
+                    state.await(pendingSegments.peek());
+                    state.advance(pendingSegments);
+                }
+                state.advance(pendingSegments);
+            }
+
+            for (PendingSegment segment : pendingSegments) {
+                state.await(segment);
+            }
+            state.advance(pendingSegments);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        state.throwIfFailed();
+        return state.progress(true);
+    }
+
+    /**
+     * The delete batches of one scanned segment.
+     */
+    private static final class PendingSegment {
+        private final ResultContinuation nextToken;
+        private final CompletableFuture<Void> completion;
+
+        PendingSegment(ResultContinuation nextToken, CompletableFuture<Void> completion) {
+            this.nextToken = nextToken;
+            this.completion = completion;
+        }
+    }
+
+    /**
+     * Tracks the batches of a single delete.
+     */
+    private final class DeleteState {
+        private final ExecutorService executor;
+        // Each worker may have one batch running and one waiting behind it
+        private final Semaphore permits = new Semaphore(TableBulkDeleter.this.maxConcurrentBatches * 2);
+        private final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+        private final AtomicLong scannedCount = new AtomicLong();
+        private final AtomicLong deletedCount = new AtomicLong();
+        private final AtomicLong notFoundCount = new AtomicLong();
+        private final AtomicLong skippedCount = new AtomicLong();
+        private final AtomicLong batchCount = new AtomicLong();
+        private final long start = System.nanoTime();
+
+        DeleteState(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        PendingSegment submitSegment(List<ProjectedEntity> keys, ResultContinuation nextToken) throws InterruptedException {
+            List<CompletableFuture<Void>> batches = new ArrayList<CompletableFuture<Void>>();
+
+            // The scan returns the keys sorted by partition, so each partition is one contiguous run
+            List<DynamicTableEntity> batch = new ArrayList<DynamicTableEntity>();
+            for (ProjectedEntity key : keys) {
+                if (!batch.isEmpty() && (batch.size() == BatchPayloadEstimator.MAX_BATCH_OPERATIONS
+                        || !batch.get(0).getPartitionKey().equals(key.getPartitionKey()))) {
+                    batches.add(this.submitBatch(batch));
+                    batch = new ArrayList<DynamicTableEntity>();
+                }
+
+                // Conditional on the scanned state, so an entity written since it matched the filter stays
+                DynamicTableEntity entity = new DynamicTableEntity(key.getPartitionKey(), key.getRowKey());
+                entity.setEtag(key.getEtag() == null ? "*" : key.getEtag());
+                batch.add(entity);
+            }
+            if (!batch.isEmpty()) {
+                batches.add(this.submitBatch(batch));
+            }
+
+            return new PendingSegment(nextToken, CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[batches.size()])));
+        }
+
+        CompletableFuture<Void> submitBatch(final List<DynamicTableEntity> entities) throws InterruptedException {
+            this.permits.acquire();
+            CompletableFuture<Void> batch = CompletableFuture.runAsync(() -> this.execute(entities), this.executor);
+            batch.whenComplete((v, t) -> this.permits.release());
+            return batch;
+        }
+
+        void execute(List<DynamicTableEntity> entities) {
+            if (!this.failures.isEmpty()) {
+                return;
+            }
+
+            String partitionKey = entities.get(0).getPartitionKey();
+            TableBatchOperation batch = new TableBatchOperation();
+            for (DynamicTableEntity entity : entities) {
+                batch.delete(entity);
+            }
+
+            try {
+                TableBulkDeleter.this.table.execute(batch, TableBulkDeleter.this.requestOptions,
+                        this.createOperationContext(partitionKey, entities.size()));
+                this.deletedCount.addAndGet(entities.size());
+                this.batchCount.incrementAndGet();
+            }
+            catch (StorageException e) {
+                if (e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND && e.getHttpStatusCode() != HttpURLConnection.HTTP_PRECON_FAILED) {
+                    this.failures.add(e);
+                    return;
+                }
+                // Some entity of the batch is already gone or was written since, so delete the others one by one
+                this.deleteEach(entities);
+            }
+            catch (Throwable t) {
+                this.fail(t);
+            }
+        }
+
+        void deleteEach(List<DynamicTableEntity> entities) {
+            for (DynamicTableEntity entity : entities) {
+                try {
+                    TableBulkDeleter.this.table.execute(TableOperation.delete(entity), TableBulkDeleter.this.requestOptions,
+                            this.createOperationContext(entity.getPartitionKey(), 1));
+                    this.deletedCount.incrementAndGet();
+                }
+                catch (StorageException e) {
+                    if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                        this.notFoundCount.incrementAndGet();
+                    } else if (e.getHttpStatusCode() == HttpURLConnection.HTTP_PRECON_FAILED) {
+                        this.skippedCount.incrementAndGet();
+                    } else {
+                        this.failures.add(e);
+                        return;
+                    }
+                }
+                catch (Throwable t) {
+                    this.fail(t);
+                    return;
+                }
+            }
+        }
+
+        OperationContext createOperationContext(String partitionKey, int permits) throws InterruptedException {
+            AdaptiveRateLimiter limiter = TableBulkDeleter.this.rateLimiter;
+            if (limiter == null) {
+                return null;
+            }
+            limiter.acquire(partitionKey, permits);
+            return limiter.createOperationContext(partitionKey, permits);
+        }
+
+        /**
+         * Records the failure of a batch and rethrows errors, once recorded, so they reach the batch
+         * future as well.
+         */
+        void fail(Throwable t) {
+            if (t instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                this.failures.add(new RuntimeException(t));
+                return;
+            }
+            this.failures.add(t);
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+        }
+
+        void await(PendingSegment segment) throws InterruptedException {
+            try {
+                segment.completion.get();
+            }
+            catch (ExecutionException e) {
+                // The batches record their own failures, anything escaping them still stops the delete
+                if (!this.failures.contains(e.getCause())) {
+                    this.failures.add(e.getCause());
+                }
+            }
+        }
+
+        /**
+         * Moves the checkpoint past the oldest segments whose batches have all succeeded.
+         */
+        void advance(ArrayDeque<PendingSegment> pendingSegments) {
+            boolean advanced = false;
+            while (!pendingSegments.isEmpty() && pendingSegments.peek().completion.isDone() && this.failures.isEmpty()) {
+                TableBulkDeleter.this.checkpoint = pendingSegments.poll().nextToken;
+                advanced = true;
+            }
+
+            ProgressListener listener = TableBulkDeleter.this.progressListener;
+            if (advanced && listener != null) {
+                listener.progressed(this.progress(pendingSegments.isEmpty() && TableBulkDeleter.this.checkpoint == null));
+            }
+        }
+
+        BulkDeleteProgress progress(boolean completed) {
+            return new BulkDeleteProgress(this.scannedCount.get(), this.deletedCount.get(), this.notFoundCount.get(), this.skippedCount.get(),
+                    this.batchCount.get(), System.nanoTime() - this.start, TableBulkDeleter.this.checkpoint, completed);
+        }
+
+        void throwIfFailed() throws StorageException {
+            Throwable first = this.failures.poll();
+            if (first == null) {
+                return;
+            }
+            for (Throwable other : this.failures) {
+                first.addSuppressed(other);
+            }
+            if (first instanceof StorageException) {
+                throw (StorageException) first;
+            }
+            if (first instanceof RuntimeException) {
+                throw (RuntimeException) first;
+            }
+            if (first instanceof Error) {
+                throw (Error) first;
+            }
+            throw new IllegalStateException(first);
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableBatchOperation;
+import com.microsoft.azure.storage.table.TableEntity;
+import com.microsoft.azure.storage.table.TableRequestOptions;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Loads an arbitrary stream of entities into a table using entity group transactions.
+ *
+ * Entities are grouped by partition key and cut into batches of at most 100 operations and just under
+ * 4MB of payload. Batches for different partitions run in parallel on a bounded number of threads,
+ * while batches for the same partition run one after another so that later writes of a key win.
+ * Only a bounded number of partially filled batches is kept in memory, so the input may be much
+ * larger than the heap.
+ */
+final class TableBulkLoader {
+
+    /**
+     * The operation used to write each entity.
+     */
+    enum WriteMode {
+        INSERT,
+        INSERT_OR_MERGE,
+        INSERT_OR_REPLACE
+    }
+
+    /**
+     * Receives a notification after every successfully executed batch. An exception thrown by the
+     * listener fails the load like a failed batch, although the batch itself stays written.
+     */
+    interface BatchListener {
+        void batchCompleted(String partitionKey, int entityCount, long latencyNanos);
+    }
+
+    private final CloudTable table;
+    private final int maxConcurrentBatches;
+    private WriteMode writeMode = WriteMode.INSERT_OR_REPLACE;
+    private int maxOpenPartitions = 256;
+    private TableRequestOptions requestOptions;
+    private BatchListener batchListener;
+    private AdaptiveRateLimiter rateLimiter;
+
+    /**
+     * Creates a loader for the given table.
+     *
+     * @param table The {@link CloudTable} object to load into
+     * @param maxConcurrentBatches The maximum number of batches executing at the same time
+     */
+    TableBulkLoader(CloudTable table, int maxConcurrentBatches) {
+        if (table == null) {
+            throw new IllegalArgumentException("table");
+        }
+        if (maxConcurrentBatches < 1) {
+            throw new IllegalArgumentException("maxConcurrentBatches must be at least 1.");
+        }
+        this.table = table;
+        this.maxConcurrentBatches = maxConcurrentBatches;
+    }
+
+    void setWriteMode(WriteMode writeMode) {
+        this.writeMode = writeMode;
+    }
+
+    /**
+     * Sets how many partially filled batches may be buffered. When the limit is reached the oldest
+     * batch is sent even though it is not full.
+     *
+     * @param maxOpenPartitions The maximum number of buffered batches
+     */
+    void setMaxOpenPartitions(int maxOpenPartitions) {
+        if (maxOpenPartitions < 1) {
+            throw new IllegalArgumentException("maxOpenPartitions must be at least 1.");
+        }
+        this.maxOpenPartitions = maxOpenPartitions;
+    }
+
+    void setRequestOptions(TableRequestOptions requestOptions) {
+        this.requestOptions = requestOptions;
+    }
+
+    void setBatchListener(BatchListener batchListener) {
+        this.batchListener = batchListener;
+    }
+
+    /**
+     * Sets a rate limiter that every batch has to pass before it is sent. The limiter is also told
+     * about every response, so it slows the loader down when the service throttles it.
+     *
+     * @param rateLimiter The rate limiter, or null to send batches as fast as possible
+     */
+    void setRateLimiter(AdaptiveRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Loads all entities of the stream.
+     *
+     * @param entities The entities to load
+     * @return The load statistics
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    BulkLoadResult load(Stream<? extends TableEntity> entities) throws StorageException, InterruptedException {
+        return this.load(entities.iterator());
+    }
+
+    /**
+     * Loads all entities returned by the iterator. The first failed batch stops the load and its
+     * exception is thrown once the batches already running have finished.
+     *
+     * @param entities The entities to load
+     * @return The load statistics
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    BulkLoadResult load(Iterator<? extends TableEntity> entities) throws StorageException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(this.maxConcurrentBatches);
+        LoadState state = new LoadState(executor);
+        long start = System.nanoTime();
+
+        try {
+            // Insertion order lets us evict the oldest partially filled batch first
+            LinkedHashMap<String, PendingBatch> openBatches = new LinkedHashMap<String, PendingBatch>();
+
+            while (entities.hasNext() && state.failures.isEmpty()) {
+                TableEntity entity = entities.next();
+                int size = BatchPayloadEstimator.estimateBytes(entity);
+                String partitionKey = entity.getPartitionKey();
+
+                PendingBatch batch = openBatches.get(partitionKey);
+                if (batch != null && !batch.canAdd(entity.getRowKey(), size)) {
+                    openBatches.remove(partitionKey);
+                    state.submit(batch);
+                    batch = null;
+                }
+
+                if (batch == null) {
+                    if (openBatches.size() >= this.maxOpenPartitions) {
+                        Iterator<PendingBatch> eldest = openBatches.values().iterator();
+                        state.submit(eldest.next());
+                        eldest.remove();
+                    }
+                    batch = new PendingBatch(partitionKey);
+                    openBatches.put(partitionKey, batch);
+                }
+
+                batch.add(entity, size);
+            }
+
+            for (PendingBatch batch : openBatches.values()) {
+                if (!state.failures.isEmpty()) {
+                    break;
+                }
+                state.submit(batch);
+            }
+
+            state.awaitCompletion();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        state.throwIfFailed();
+        return new BulkLoadResult(state.entityCount.get(), state.toLatencyArray(), System.nanoTime() - start);
+    }
+
+    /**
+     * A batch that is still being filled for a single partition.
+     */
+    private final class PendingBatch {
+        private final String partitionKey;
+        private final TableBatchOperation operations = new TableBatchOperation();
+        private final Set<String> rowKeys = new HashSet<String>();
+        private int payloadBytes;
+
+        PendingBatch(String partitionKey) {
+            this.partitionKey = partitionKey;
+        }
+
+        boolean canAdd(String rowKey, int size) {
+            // A batch may not contain more than one operation for the same entity
+            return this.operations.size() < BatchPayloadEstimator.MAX_BATCH_OPERATIONS
+                    && this.payloadBytes + size <= BatchPayloadEstimator.MAX_BATCH_PAYLOAD_BYTES
+                    && !this.rowKeys.contains(rowKey);
+        }
+
+        void add(TableEntity entity, int size) {
+            switch (TableBulkLoader.this.writeMode) {
+                case INSERT:
+                    this.operations.insert(entity);
+                    break;
+                case INSERT_OR_MERGE:
+                    this.operations.insertOrMerge(entity);
+                    break;
+                default:
+                    this.operations.insertOrReplace(entity);
+                    break;
+            }
+            this.rowKeys.add(entity.getRowKey());
+            this.payloadBytes += size;
+        }
+    }
+
+    /**
+     * Tracks the batches of a single load.
+     */
+    private final class LoadState {
+        private final ExecutorService executor;
+        // Each worker may have one batch running and one waiting behind it
+        private final int totalPermits = TableBulkLoader.this.maxConcurrentBatches * 2;
+        private final Semaphore permits = new Semaphore(this.totalPermits);
+        private final Map<String, CompletableFuture<Void>> partitionTails = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+        private final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+        private final List<Long> latencies = new ArrayList<Long>();
+        private final AtomicLong entityCount = new AtomicLong();
+
+        LoadState(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        void submit(final PendingBatch batch) throws InterruptedException {
+            this.permits.acquire();
+
+            // Chain behind the previous batch of the same partition to preserve write order
+            CompletableFuture<Void> previous = this.partitionTails.get(batch.partitionKey);
+            final CompletableFuture<Void> next;
+            if (previous == null) {
+                next = CompletableFuture.runAsync(() -> this.execute(batch), this.executor);
+            } else {
+                next = previous.handleAsync((v, t) -> {
+                    this.execute(batch);
+                    return null;
+                }, this.executor);
+            }
+
+            this.partitionTails.put(batch.partitionKey, next);
+            next.whenComplete((v, t) -> {
+                this.partitionTails.remove(batch.partitionKey, next);
+                this.permits.release();
+            });
+        }
+
+        void execute(PendingBatch batch) {
+            if (!this.failures.isEmpty()) {
+                return;
+            }
+
+            long start;
+            try {
+                AdaptiveRateLimiter limiter = TableBulkLoader.this.rateLimiter;
+                OperationContext operationContext = null;
+                if (limiter != null) {
+                    limiter.acquire(batch.partitionKey, batch.operations.size());
+                    operationContext = limiter.createOperationContext(batch.partitionKey, batch.operations.size());
+                }
+
+                start = System.nanoTime();
+                TableBulkLoader.this.table.execute(batch.operations, TableBulkLoader.this.requestOptions, operationContext);
+            }
+            catch (Throwable t) {
+                this.fail(t);
+                return;
+            }
+
+            long latency = System.nanoTime() - start;
+            synchronized (this.latencies) {
+                this.latencies.add(latency);
+            }
+            this.entityCount.addAndGet(batch.operations.size());
+
+            BatchListener listener = TableBulkLoader.this.batchListener;
+            if (listener != null) {
+                // The batch is written and counted either way, a failing listener only fails the load
+                try {
+                    listener.batchCompleted(batch.partitionKey, batch.operations.size(), latency);
+                }
+                catch (Throwable t) {
+                    this.fail(t);
+                }
+            }
+        }
+
+        /**
+         * Records a failure and rethrows errors, once recorded, so they reach the batch future as well.
+         */
+        void fail(Throwable t) {
+            if (t instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                this.failures.add(new RuntimeException(t));
+                return;
+            }
+            this.failures.add(t);
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+        }
+
+        void awaitCompletion() throws InterruptedException {
+            this.permits.acquire(this.totalPermits);
+            this.permits.release(this.totalPermits);
+        }
+
+        long[] toLatencyArray() {
+            synchronized (this.latencies) {
+                long[] result = new long[this.latencies.size()];
+                for (int i = 0; i < result.length; i++) {
+                    result[i] = this.latencies.get(i);
+                }
+                return result;
+            }
+        }
+
+        void throwIfFailed() throws StorageException {
+            Throwable first = this.failures.poll();
+            if (first == null) {
+                return;
+            }
+            for (Throwable other : this.failures) {
+                first.addSuppressed(other);
+            }
+            if (first instanceof StorageException) {
+                throw (StorageException) first;
+            }
+            if (first instanceof RuntimeException) {
+                throw (RuntimeException) first;
+            }
+            if (first instanceof Error) {
+                throw (Error) first;
+            }
+            throw new IllegalStateException(first);
+        }
+    }
+}
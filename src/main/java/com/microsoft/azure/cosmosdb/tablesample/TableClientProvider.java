@@ -1,5 +1,7 @@
 package com.microsoft.azure.cosmosdb.tablesample;
 import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
 import com.microsoft.azure.storage.table.CloudTableClient;
 
 import java.io.IOException;
@@ -7,6 +9,9 @@ import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages the storage table client
@@ -21,6 +26,11 @@ class TableClientProvider {
      */
     private static Properties prop;
 
+    private static final ConcurrentMap<String, CloudTableClient> clients = new ConcurrentHashMap<String, CloudTableClient>();
+    private static final ConcurrentMap<String, CloudTable> tables = new ConcurrentHashMap<String, CloudTable>();
+    private static LocalTableServer localTableServer;
+    private static TableMetrics metrics;
+
     static {
         // Retrieve the connection string
         prop = new Properties();
@@ -35,12 +45,118 @@ class TableClientProvider {
             System.out.println("\nFailed to load config.properties file.");
             throw new RuntimeException();
         }
+
+        // Tune the connection reuse of the JDK HTTP client before the first connection is opened.
+        // Settings passed on the command line take precedence over the configuration file.
+        setDefaultSystemProperty("http.keepAlive", prop.getProperty("HttpKeepAlive", "true"));
+        setDefaultSystemProperty("http.maxConnections", prop.getProperty("HttpMaxConnections", "64"));
+
+        // Record every request sent by the storage clients of this process
+        if (Boolean.parseBoolean(prop.getProperty("MetricsEnabled", "true"))) {
+            metrics = new TableMetrics();
+            metrics.install();
+            if (Boolean.parseBoolean(prop.getProperty("MetricsJmxEnabled", "true"))) {
+                metrics.registerMBeans();
+            }
+        }
+    }
+
+    private static void setDefaultSystemProperty(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+
+    /**
+     * Returns the metrics of the requests sent by all storage clients of this process.
+     *
+     * @return The shared TableMetrics object, or null if metrics are disabled in config.properties
+     */
+    static TableMetrics getMetrics() {
+        return metrics;
     }
 
     static CloudTableClient getTableClientReference() throws RuntimeException, IOException, URISyntaxException, InvalidKeyException {
+        if (useLocalTableServer()) {
+            return getTableClientReference(getLocalTableServer().getConnectionString());
+        }
+        return getTableClientReference(prop.getProperty("StorageConnectionString"));
+    }
+
+    /**
+     * Returns whether the sample runs against the in-process {@link LocalTableServer} instead of the
+     * configured storage account. The system property UseLocalTableServer takes precedence over the
+     * configuration file.
+     */
+    static boolean useLocalTableServer() {
+        return Boolean.parseBoolean(System.getProperty("UseLocalTableServer", prop.getProperty("UseLocalTableServer", "false")));
+    }
+
+    /**
+     * Returns the in-process table server, starting it on the first call with the latency and
+     * throttling configured in config.properties. The server runs until the JVM exits.
+     *
+     * @return The shared LocalTableServer object
+     */
+    static synchronized LocalTableServer getLocalTableServer() throws IOException {
+        if (localTableServer == null) {
+            LocalTableServer server = new LocalTableServer();
+            server.setLatency(
+                    Long.parseLong(prop.getProperty("LocalTableLatencyInMs", "0")),
+                    Long.parseLong(prop.getProperty("LocalTableLatencyJitterInMs", "0")),
+                    TimeUnit.MILLISECONDS);
+            server.setPartitionThroughputLimit(Double.parseDouble(prop.getProperty("LocalTablePartitionLimitPerSecond", "0")));
+            server.setAccountThroughputLimit(Double.parseDouble(prop.getProperty("LocalTableAccountLimitPerSecond", "0")));
+            server.setThrottleProbability(Double.parseDouble(prop.getProperty("LocalTableThrottleProbability", "0")));
+            server.setAclPropagationDelay(Long.parseLong(prop.getProperty("LocalTableAclPropagationInMs", "0")), TimeUnit.MILLISECONDS);
+            localTableServer = server;
+        }
+        return localTableServer;
+    }
+
+    /**
+     * Returns the storage table client for the given connection string. The client is created on the
+     * first call and shared by all later calls with the same connection string, so the connection
+     * string is parsed only once.
+     *
+     * @param connectionString The connection string in the Azure connection string format
+     * @return The shared CloudTableClient object
+     */
+    static CloudTableClient getTableClientReference(String connectionString) throws RuntimeException, IOException, URISyntaxException, InvalidKeyException {
+        CloudTableClient tableClient = clients.get(connectionString);
+        if (tableClient == null) {
+            // Two threads may race to create the client, only the first one is kept
+            tableClient = createTableClient(connectionString);
+            CloudTableClient existing = clients.putIfAbsent(connectionString, tableClient);
+            if (existing != null) {
+                tableClient = existing;
+            }
+        }
+        return tableClient;
+    }
+
+    /**
+     * Returns a table of the configured storage account. Table references are cached by name.
+     *
+     * @param tableName The name of the table
+     * @return The shared CloudTable object
+     */
+    static CloudTable getTableReference(String tableName) throws RuntimeException, IOException, URISyntaxException, InvalidKeyException, StorageException {
+        CloudTable table = tables.get(tableName);
+        if (table == null) {
+            table = getTableClientReference().getTableReference(tableName);
+            CloudTable existing = tables.putIfAbsent(tableName, table);
+            if (existing != null) {
+                table = existing;
+            }
+        }
+        return table;
+    }
+
+    private static CloudTableClient createTableClient(String connectionString) throws URISyntaxException, InvalidKeyException {
         CloudStorageAccount storageAccount;
         try {
-            storageAccount = CloudStorageAccount.parse(prop.getProperty("StorageConnectionString"));
+            storageAccount = CloudStorageAccount.parse(connectionString);
         } catch (IllegalArgumentException | URISyntaxException e) {
             System.out.println("\nConnection string specifies an invalid URI.");
             System.out.println("Please confirm the connection string is in the Azure connection string format.");
@@ -51,11 +167,19 @@ class TableClientProvider {
             throw e;
         }
 
-        return storageAccount.createCloudTableClient();
+        CloudTableClient tableClient = storageAccount.createCloudTableClient();
+
+        // Back off with jitter and cap the number of retries per second, so throttling does not cause a storm of retries
+        tableClient.getDefaultRequestOptions().setRetryPolicyFactory(new AdaptiveRetryPolicy(
+                Integer.parseInt(prop.getProperty("RetryBaseBackoffInMs", "250")),
+                Integer.parseInt(prop.getProperty("RetryMaximumBackoffInMs", "30000")),
+                Integer.parseInt(prop.getProperty("RetryMaximumAttempts", "5")),
+                Double.parseDouble(prop.getProperty("RetryBudgetPerSecond", "50"))));
+        return tableClient;
     }
 
     public static boolean isAzureCosmosdbTable() {
-        if (prop != null) {
+        if (prop != null && !useLocalTableServer()) {
             String connectionString = prop.getProperty("StorageConnectionString");
             return connectionString != null && connectionString.contains("table.cosmosdb");
         }
@@ -0,0 +1,363 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityResolver;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableRequestOptions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Exports the entities of a table to local files or copies them to another table.
+ *
+ * The partition key space is split into the ranges of a {@link ParallelTableScan} and the ranges are
+ * exported concurrently, each one into its own file in the format of {@link EntityFileWriter}. After
+ * every segment of a range the file is synced and the position in the file is saved together with the
+ * continuation token of the range, so an interrupted export resumes every range where it stopped.
+ * The property maps parsed by the client library are wrapped without copying and encoded straight
+ * into the file buffers, no typed entity objects or intermediate byte arrays are created.
+ *
+ * A finished export is loaded into a table with {@link TableImporter}.
+ */
+final class TableExporter {
+
+    /**
+     * The name of the file holding the checkpoints of the ranges.
+     */
+    static final String CHECKPOINT_FILE = "export.properties";
+
+    /**
+     * Wraps the properties parsed by the client library in an entity without copying them.
+     */
+    static final EntityResolver<DynamicTableEntity> RESOLVER = (partitionKey, rowKey, timeStamp, properties, etag) -> {
+        DynamicTableEntity entity = new DynamicTableEntity(partitionKey, rowKey, properties);
+        entity.setTimestamp(timeStamp);
+        return entity;
+    };
+
+    private final CloudTable table;
+    private final ParallelTableScan ranges;
+    private int parallelism;
+    private int pageSize = SegmentedQueryReader.MAX_PAGE_SIZE;
+    private TableRequestOptions requestOptions;
+
+    /**
+     * Creates an exporter over the given partition key ranges.
+     *
+     * @param table The {@link CloudTable} object to export
+     * @param splitPoints The partition keys separating the ranges, for example computed with
+     *                    {@link ParallelTableScan#splitPointsFromSample(Collection, int)}
+     */
+    TableExporter(CloudTable table, Collection<String> splitPoints) {
+        if (table == null) {
+            throw new IllegalArgumentException("table");
+        }
+        this.table = table;
+        this.ranges = new ParallelTableScan(table, splitPoints);
+        this.parallelism = this.ranges.getRangeCount();
+    }
+
+    /**
+     * Sets the number of ranges exported at the same time. Defaults to the number of ranges.
+     *
+     * @param parallelism The number of concurrent range exports
+     */
+    void setParallelism(int parallelism) {
+        this.ranges.setParallelism(parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the maximum number of entities requested per round trip.
+     *
+     * @param pageSize A value between 1 and 1000
+     */
+    void setPageSize(int pageSize) {
+        if (pageSize < 1 || pageSize > SegmentedQueryReader.MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException(String.format("pageSize must be between 1 and %d.", SegmentedQueryReader.MAX_PAGE_SIZE));
+        }
+        this.ranges.setPageSize(pageSize);
+        this.pageSize = pageSize;
+    }
+
+    void setRequestOptions(TableRequestOptions requestOptions) {
+        this.requestOptions = requestOptions;
+    }
+
+    /**
+     * Exports the table into a directory. If the directory holds the checkpoints of an earlier export
+     * with the same ranges, the ranges that are not complete yet are resumed and the complete ones are
+     * skipped. The first failed range stops the export once the other running ranges have saved their
+     * checkpoints.
+     *
+     * @param directory The directory of the export, created if it does not exist
+     * @return The number of entities in the export
+     *
+     * @throws IOException
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    long export(final Path directory) throws IOException, StorageException, InterruptedException {
+        Files.createDirectories(directory);
+        int rangeCount = this.ranges.getRangeCount();
+        String[] filters = new String[rangeCount];
+        for (int i = 0; i < rangeCount; i++) {
+            filters[i] = this.ranges.rangeFilter(i, null);
+        }
+        final Checkpoints checkpoints = Checkpoints.open(directory, filters);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.parallelism, rangeCount), r -> {
+            Thread thread = new Thread(r, "table-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < rangeCount; i++) {
+                if (!checkpoints.completed[i]) {
+                    final int rangeIndex = i;
+                    futures.add(executor.submit(() -> {
+                        this.exportRange(directory, rangeIndex, checkpoints);
+                        return null;
+                    }));
+                }
+            }
+            executor.shutdown();
+
+            Throwable failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    } else {
+                        failure.addSuppressed(e.getCause());
+                    }
+                }
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure instanceof StorageException) {
+                throw (StorageException) failure;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            if (failure instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw (InterruptedException) failure;
+            }
+            if (failure != null) {
+                throw new IllegalStateException(failure);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return checkpoints.getEntityCount();
+    }
+
+    /**
+     * Copies the table into another table, for example in another storage account. The ranges are
+     * scanned concurrently and the entities are written by the loader as they arrive.
+     *
+     * @param loader The loader writing into the target table
+     * @return The load statistics
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    BulkLoadResult copyTo(TableBulkLoader loader) throws StorageException, InterruptedException {
+        try (Stream<DynamicTableEntity> entities = this.ranges.scan(RESOLVER, null, null, false)) {
+            return loader.load(entities);
+        }
+    }
+
+    /**
+     * Returns the files of a complete export in the order of their ranges.
+     *
+     * @param directory The directory of the export
+     * @return The paths of the range files
+     *
+     * @throws IOException
+     */
+    static List<Path> rangeFiles(Path directory) throws IOException {
+        Checkpoints checkpoints = Checkpoints.read(directory);
+        List<Path> files = new ArrayList<Path>();
+        for (int i = 0; i < checkpoints.completed.length; i++) {
+            if (!checkpoints.completed[i]) {
+                throw new IllegalStateException(String.format("The export in %s is not complete.", directory));
+            }
+            files.add(rangeFile(directory, i));
+        }
+        return files;
+    }
+
+    private void exportRange(Path directory, int rangeIndex, Checkpoints checkpoints) throws IOException, StorageException, InterruptedException {
+        TableQuery<DynamicTableEntity> query = TableQuery.from(DynamicTableEntity.class);
+        if (checkpoints.filters[rangeIndex] != null) {
+            query.where(checkpoints.filters[rangeIndex]);
+        }
+
+        Path file = rangeFile(directory, rangeIndex);
+        long position = checkpoints.positions[rangeIndex];
+        try (EntityFileWriter writer = position == 0 ? EntityFileWriter.create(file) : EntityFileWriter.append(file, position);
+             SegmentedQueryReader<DynamicTableEntity> reader = SegmentedQueryReader.of(this.table, query, RESOLVER)) {
+            reader.setPageSize(this.pageSize);
+            reader.setRequestOptions(this.requestOptions);
+            reader.setStartToken(ContinuationTokens.deserialize(checkpoints.tokens[rangeIndex]));
+
+            // The next segment is fetched while this one is written
+            List<DynamicTableEntity> segment;
+            while ((segment = reader.nextSegment()) != null) {
+                for (DynamicTableEntity entity : segment) {
+                    writer.write(entity);
+                }
+                checkpoints.update(rangeIndex, writer.sync(), reader.getCheckpoint(), segment.size(), reader.isCompleted());
+            }
+        }
+    }
+
+    private static Path rangeFile(Path directory, int rangeIndex) {
+        return directory.resolve(String.format("range-%05d.entities", rangeIndex));
+    }
+
+    /**
+     * The saved progress of every range of an export.
+     */
+    private static final class Checkpoints {
+        private final Path file;
+        private final String[] filters;
+        private final long[] positions;
+        private final String[] tokens;
+        private final long[] entityCounts;
+        private final boolean[] completed;
+
+        private Checkpoints(Path directory, int rangeCount) {
+            this.file = directory.resolve(CHECKPOINT_FILE);
+            this.filters = new String[rangeCount];
+            this.positions = new long[rangeCount];
+            this.tokens = new String[rangeCount];
+            this.entityCounts = new long[rangeCount];
+            this.completed = new boolean[rangeCount];
+        }
+
+        /**
+         * Reads the checkpoints of an export, or starts a new export if there are none.
+         */
+        static Checkpoints open(Path directory, String[] filters) throws IOException {
+            if (!Files.exists(directory.resolve(CHECKPOINT_FILE))) {
+                Checkpoints checkpoints = new Checkpoints(directory, filters.length);
+                System.arraycopy(filters, 0, checkpoints.filters, 0, filters.length);
+                checkpoints.save();
+                return checkpoints;
+            }
+
+            Checkpoints checkpoints = read(directory);
+            boolean sameRanges = checkpoints.filters.length == filters.length;
+            for (int i = 0; sameRanges && i < filters.length; i++) {
+                sameRanges = filters[i] == null ? checkpoints.filters[i] == null : filters[i].equals(checkpoints.filters[i]);
+            }
+            if (!sameRanges) {
+                throw new IllegalStateException(String.format("The export in %s was made with different split points.", directory));
+            }
+            return checkpoints;
+        }
+
+        static Checkpoints read(Path directory) throws IOException {
+            Properties properties = new Properties();
+            try (InputStream input = Files.newInputStream(directory.resolve(CHECKPOINT_FILE))) {
+                properties.load(input);
+            }
+
+            Checkpoints checkpoints = new Checkpoints(directory, Integer.parseInt(properties.getProperty("rangeCount")));
+            for (int i = 0; i < checkpoints.filters.length; i++) {
+                checkpoints.filters[i] = properties.getProperty(key(i, "filter"));
+                checkpoints.positions[i] = Long.parseLong(properties.getProperty(key(i, "position"), "0"));
+                checkpoints.tokens[i] = properties.getProperty(key(i, "token"));
+                checkpoints.entityCounts[i] = Long.parseLong(properties.getProperty(key(i, "entityCount"), "0"));
+                checkpoints.completed[i] = Boolean.parseBoolean(properties.getProperty(key(i, "completed")));
+            }
+            return checkpoints;
+        }
+
+        synchronized void update(int rangeIndex, long position, ResultContinuation token, int entityCount, boolean completed) throws IOException {
+            this.positions[rangeIndex] = position;
+            this.tokens[rangeIndex] = ContinuationTokens.serialize(token);
+            this.entityCounts[rangeIndex] += entityCount;
+            this.completed[rangeIndex] = completed;
+            this.save();
+        }
+
+        synchronized long getEntityCount() {
+            long count = 0;
+            for (long entityCount : this.entityCounts) {
+                count += entityCount;
+            }
+            return count;
+        }
+
+        private void save() throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("rangeCount", Integer.toString(this.filters.length));
+            for (int i = 0; i < this.filters.length; i++) {
+                if (this.filters[i] != null) {
+                    properties.setProperty(key(i, "filter"), this.filters[i]);
+                }
+                if (this.tokens[i] != null) {
+                    properties.setProperty(key(i, "token"), this.tokens[i]);
+                }
+                properties.setProperty(key(i, "position"), Long.toString(this.positions[i]));
+                properties.setProperty(key(i, "entityCount"), Long.toString(this.entityCounts[i]));
+                properties.setProperty(key(i, "completed"), Boolean.toString(this.completed[i]));
+            }
+
+            // Replace the file in one step so that a crash never leaves half written checkpoints
+            Path temporary = this.file.resolveSibling(CHECKPOINT_FILE + ".tmp");
+            try (OutputStream output = Files.newOutputStream(temporary)) {
+                properties.store(output, null);
+            }
+            Files.move(temporary, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private static String key(int rangeIndex, String name) {
+            return String.format("range.%d.%s", rangeIndex, name);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Loads an export written by {@link TableExporter} into a table.
+ *
+ * The range files are read one after another and their entities are handed to a
+ * {@link TableBulkLoader}, which batches them by partition and writes the batches in parallel.
+ * Decoding a file is much faster than writing its entities to the service, so reading on the calling
+ * thread keeps the loader busy. Every range file holds its partitions in key order, which lets the
+ * loader fill whole batches.
+ */
+final class TableImporter {
+
+    private final Path directory;
+
+    /**
+     * Creates an importer for the given export.
+     *
+     * @param directory The directory of a complete export
+     */
+    TableImporter(Path directory) {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory");
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * Loads all entities of the export.
+     *
+     * @param loader The loader writing into the target table
+     * @return The load statistics
+     *
+     * @throws IOException
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    BulkLoadResult importInto(TableBulkLoader loader) throws IOException, StorageException, InterruptedException {
+        try (RangeFilesIterator entities = new RangeFilesIterator(TableExporter.rangeFiles(this.directory))) {
+            return loader.load(entities);
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Iterates over the entities of several files, opening each file only when it is reached.
+     */
+    private static final class RangeFilesIterator implements Iterator<DynamicTableEntity>, AutoCloseable {
+        private final Iterator<Path> files;
+        private EntityFileReader current;
+
+        RangeFilesIterator(List<Path> files) {
+            this.files = files.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (this.current == null || !this.current.hasNext()) {
+                    this.close();
+                    if (!this.files.hasNext()) {
+                        return false;
+                    }
+                    this.current = new EntityFileReader(this.files.next());
+                }
+                return true;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public DynamicTableEntity next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return this.current.next();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.current != null) {
+                this.current.close();
+                this.current = null;
+            }
+        }
+    }
+}
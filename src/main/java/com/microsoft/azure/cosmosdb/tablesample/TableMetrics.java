@@ -0,0 +1,621 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.RequestCompletedEvent;
+import com.microsoft.azure.storage.RetryingEvent;
+import com.microsoft.azure.storage.SendingRequestEvent;
+import com.microsoft.azure.storage.StorageEvent;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the latency, the payload sizes and the retries of every request the storage client sends,
+ * tagged by table, operation and HTTP status code.
+ *
+ * The metrics hook into the global request events of the storage client, so every table operation,
+ * batch and query segment is recorded without changes to the calling code. Each attempt of a retried
+ * operation is recorded as a request of its own. Latencies go into HdrHistogram recorders, which
+ * record without locks or allocation, and counters are {@link LongAdder}s, so recording adds little to
+ * a request.
+ *
+ * The totals since installation can be read with {@link #snapshot()} or through JMX once
+ * {@link #registerMBeans()} was called. A {@link MetricsExporter} receives the requests of every
+ * interval.
+ *
+ * Combinations that recorded no request for the idle timeout are dropped together with their
+ * MXBeans, so short-lived tables do not accumulate. Idle combinations are looked for when a new one
+ * is first recorded and on every export.
+ */
+final class TableMetrics implements AutoCloseable {
+
+    /**
+     * The kind of a request, derived from its method and URL.
+     */
+    enum Operation {
+        CREATE_TABLE,
+        DELETE_TABLE,
+        GET_TABLE,
+        LIST_TABLES,
+        INSERT,
+        INSERT_OR_REPLACE,
+        INSERT_OR_MERGE,
+        REPLACE,
+        MERGE,
+        DELETE,
+        RETRIEVE,
+        QUERY,
+        BATCH,
+        OTHER
+    }
+
+    static final String JMX_DOMAIN = "com.microsoft.azure.cosmosdb.tablesample";
+
+    // Latencies above the highest trackable value are recorded as that value
+    private static final long LOWEST_LATENCY_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long HIGHEST_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(10);
+    // Two digits keep each histogram near 26 KB, against 180 KB with three, at 1% value resolution
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    private static final long DEFAULT_IDLE_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private static final class Key {
+        private final String tableName;
+        private final Operation operation;
+        private final int statusCode;
+
+        Key(String tableName, Operation operation, int statusCode) {
+            this.tableName = tableName;
+            this.operation = operation;
+            this.statusCode = statusCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return this.statusCode == other.statusCode && this.operation == other.operation && this.tableName.equals(other.tableName);
+        }
+
+        @Override
+        public int hashCode() {
+            return (this.tableName.hashCode() * 31 + this.operation.hashCode()) * 31 + this.statusCode;
+        }
+    }
+
+    /**
+     * The request being sent on the current thread. The storage client raises all events of a request
+     * on the thread that executes it.
+     */
+    private static final class InFlight {
+        private long startNanos;
+        private String tableName;
+        private Operation operation;
+        private OperationMetrics last;
+    }
+
+    /**
+     * The metrics of one table, operation and status code.
+     */
+    private static final class OperationMetrics implements OperationMetricsMXBean {
+        private final Key key;
+        private final Recorder recorder = new Recorder(LOWEST_LATENCY_NANOS, HIGHEST_LATENCY_NANOS, SIGNIFICANT_DIGITS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder bytesSent = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+        private final LongAdder retryCount = new LongAdder();
+
+        // Guarded by this: the totals and the part not yet exported
+        private final Histogram total = new Histogram(LOWEST_LATENCY_NANOS, HIGHEST_LATENCY_NANOS, SIGNIFICANT_DIGITS);
+        private final Histogram unexported = new Histogram(LOWEST_LATENCY_NANOS, HIGHEST_LATENCY_NANOS, SIGNIFICANT_DIGITS);
+        private Histogram interval;
+        private long exportedCount;
+        private long exportedBytesSent;
+        private long exportedBytesReceived;
+        private long exportedRetryCount;
+
+        // Guarded by the eviction lock: the requests counted by the last sweep and when they last changed
+        private long sweptCount;
+        private long activeAtNanos = System.nanoTime();
+
+        OperationMetrics(Key key) {
+            this.key = key;
+        }
+
+        void record(long latencyNanos, long sent, long received) {
+            this.recorder.recordValue(Math.min(Math.max(latencyNanos, LOWEST_LATENCY_NANOS), HIGHEST_LATENCY_NANOS));
+            this.count.increment();
+            if (sent > 0) {
+                this.bytesSent.add(sent);
+            }
+            if (received > 0) {
+                this.bytesReceived.add(received);
+            }
+        }
+
+        /**
+         * Moves the latencies recorded since the last call into the histograms of the reader side.
+         */
+        private void drain() {
+            this.interval = this.recorder.getIntervalHistogram(this.interval);
+            this.total.add(this.interval);
+            this.unexported.add(this.interval);
+        }
+
+        synchronized OperationStats totals() {
+            this.drain();
+            return new OperationStats(this.key.tableName, this.key.operation, this.key.statusCode, this.count.sum(),
+                    this.bytesSent.sum(), this.bytesReceived.sum(), this.retryCount.sum(), this.total.copy());
+        }
+
+        synchronized OperationStats sinceLastExport() {
+            this.drain();
+            long count = this.count.sum();
+            long bytesSent = this.bytesSent.sum();
+            long bytesReceived = this.bytesReceived.sum();
+            long retryCount = this.retryCount.sum();
+            OperationStats stats = new OperationStats(this.key.tableName, this.key.operation, this.key.statusCode,
+                    count - this.exportedCount, bytesSent - this.exportedBytesSent, bytesReceived - this.exportedBytesReceived,
+                    retryCount - this.exportedRetryCount, this.unexported.copy());
+            this.unexported.reset();
+            this.exportedCount = count;
+            this.exportedBytesSent = bytesSent;
+            this.exportedBytesReceived = bytesReceived;
+            this.exportedRetryCount = retryCount;
+            return stats;
+        }
+
+        @Override
+        public String getTableName() {
+            return this.key.tableName;
+        }
+
+        @Override
+        public String getOperation() {
+            return this.key.operation.toString();
+        }
+
+        @Override
+        public int getStatusCode() {
+            return this.key.statusCode;
+        }
+
+        @Override
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        @Override
+        public long getBytesSent() {
+            return this.bytesSent.sum();
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return this.bytesReceived.sum();
+        }
+
+        @Override
+        public long getRetryCount() {
+            return this.retryCount.sum();
+        }
+
+        @Override
+        public double getMeanLatencyMicros() {
+            return this.totals().getMeanLatency(TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        public double getLatencyP50Micros() {
+            return this.totals().getLatency(50, TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        public double getLatencyP90Micros() {
+            return this.totals().getLatency(90, TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        public double getLatencyP99Micros() {
+            return this.totals().getLatency(99, TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        public double getLatencyP999Micros() {
+            return this.totals().getLatency(99.9, TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        public double getMaxLatencyMicros() {
+            return this.totals().getMaxLatency(TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private final ConcurrentMap<Key, OperationMetrics> metrics = new ConcurrentHashMap<Key, OperationMetrics>();
+    private final ThreadLocal<InFlight> inFlight = ThreadLocal.withInitial(InFlight::new);
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private final Object evictionLock = new Object();
+    private volatile long idleTimeoutNanos = DEFAULT_IDLE_TIMEOUT_NANOS;
+    private long lastSweepNanos = System.nanoTime();
+
+    private final StorageEvent<SendingRequestEvent> sendingListener = new StorageEvent<SendingRequestEvent>() {
+        @Override
+        public void eventOccurred(SendingRequestEvent event) {
+            TableMetrics.this.requestSending((HttpURLConnection) event.getConnectionObject());
+        }
+    };
+
+    private final StorageEvent<RequestCompletedEvent> completedListener = new StorageEvent<RequestCompletedEvent>() {
+        @Override
+        public void eventOccurred(RequestCompletedEvent event) {
+            TableMetrics.this.requestCompleted((HttpURLConnection) event.getConnectionObject(), event.getRequestResult().getStatusCode());
+        }
+    };
+
+    private final StorageEvent<RetryingEvent> retryingListener = new StorageEvent<RetryingEvent>() {
+        @Override
+        public void eventOccurred(RetryingEvent event) {
+            // The attempt that is retried completed on this thread just before
+            OperationMetrics last = TableMetrics.this.inFlight.get().last;
+            if (last != null) {
+                last.retryCount.increment();
+            }
+        }
+    };
+
+    private boolean installed;
+    private ScheduledExecutorService exportScheduler;
+    private MetricsExporter exporter;
+
+    // Registration is guarded separately, so new combinations are not blocked by a slow exporter
+    private final Object jmxLock = new Object();
+    private MBeanServer mbeanServer;
+
+    /**
+     * Starts recording the requests of all storage clients in this JVM.
+     */
+    synchronized void install() {
+        if (!this.installed) {
+            OperationContext.getGlobalSendingRequestEventHandler().addListener(this.sendingListener);
+            OperationContext.getGlobalRequestCompletedEventHandler().addListener(this.completedListener);
+            OperationContext.getGlobalRetryingEventHandler().addListener(this.retryingListener);
+            this.installed = true;
+        }
+    }
+
+    /**
+     * Sets how long a table, operation and status code is kept without requests before its metrics are
+     * dropped. The timeout should be longer than the export period, or requests recorded since the last
+     * export are lost with them. Defaults to ten minutes.
+     *
+     * @param idleTimeout The idle timeout
+     * @param unit The unit of the idle timeout
+     */
+    void setIdleTimeout(long idleTimeout, TimeUnit unit) {
+        if (idleTimeout <= 0) {
+            throw new IllegalArgumentException("idleTimeout must be positive.");
+        }
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+    }
+
+    /**
+     * Registers an MXBean for every table, operation and status code with the platform MBean server,
+     * under the domain {@link #JMX_DOMAIN}. Combinations seen later are registered when they first occur.
+     */
+    void registerMBeans() {
+        synchronized (this.jmxLock) {
+            if (this.mbeanServer == null) {
+                this.mbeanServer = ManagementFactory.getPlatformMBeanServer();
+                for (OperationMetrics operationMetrics : this.metrics.values()) {
+                    this.registerMBean(operationMetrics);
+                }
+            }
+        }
+    }
+
+    /**
+     * Exports the requests of every interval.
+     *
+     * @param exporter The exporter, which replaces any earlier one
+     * @param period The length of the intervals
+     * @param unit The unit of the period
+     */
+    synchronized void startExporting(MetricsExporter exporter, long period, TimeUnit unit) {
+        this.stopExporting();
+        this.exporter = exporter;
+        this.exportScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "table-metrics-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.exportScheduler.scheduleAtFixedRate(this::export, period, period, unit);
+    }
+
+    /**
+     * Passes the requests recorded since the previous export to the exporter, for example before the
+     * application exits.
+     */
+    synchronized void export() {
+        if (this.exporter == null) {
+            return;
+        }
+        this.evictIdle();
+        List<OperationStats> stats = new ArrayList<OperationStats>(this.metrics.size());
+        for (OperationMetrics operationMetrics : this.metrics.values()) {
+            OperationStats operationStats = operationMetrics.sinceLastExport();
+            if (operationStats.getCount() > 0 || operationStats.getRetryCount() > 0) {
+                stats.add(operationStats);
+            }
+        }
+        try {
+            this.exporter.export(stats);
+        }
+        catch (RuntimeException e) {
+            // A failing exporter must not stop later exports
+            PrintHelper.printException(e);
+        }
+    }
+
+    /**
+     * Returns the totals since installation.
+     *
+     * @return One entry per table, operation and status code
+     */
+    List<OperationStats> snapshot() {
+        List<OperationStats> stats = new ArrayList<OperationStats>(this.metrics.size());
+        for (OperationMetrics operationMetrics : this.metrics.values()) {
+            stats.add(operationMetrics.totals());
+        }
+        stats.sort(Comparator.comparing(OperationStats::getTableName)
+                .thenComparing(OperationStats::getOperation)
+                .thenComparingInt(OperationStats::getStatusCode));
+        return stats;
+    }
+
+    /**
+     * @return The number of requests the service throttled with 503 (Server Busy) or 429 (Too Many Requests)
+     */
+    long getThrottledCount() {
+        return this.throttledCount.get();
+    }
+
+    /**
+     * @return The number of table, operation and status code combinations dropped after being idle
+     */
+    long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    /**
+     * Stops recording and exporting, and unregisters the MXBeans.
+     */
+    @Override
+    public synchronized void close() {
+        this.stopExporting();
+        if (this.installed) {
+            OperationContext.getGlobalSendingRequestEventHandler().removeListener(this.sendingListener);
+            OperationContext.getGlobalRequestCompletedEventHandler().removeListener(this.completedListener);
+            OperationContext.getGlobalRetryingEventHandler().removeListener(this.retryingListener);
+            this.installed = false;
+        }
+        synchronized (this.jmxLock) {
+            if (this.mbeanServer != null) {
+                for (OperationMetrics operationMetrics : this.metrics.values()) {
+                    this.unregisterMBean(operationMetrics);
+                }
+                this.mbeanServer = null;
+            }
+        }
+    }
+
+    /**
+     * Records a request.
+     *
+     * @param tableName The table name, or an empty string
+     * @param operation The kind of request
+     * @param statusCode The HTTP status code, or -1 if no response was received
+     * @param latencyNanos The time from sending the request to completing the response
+     * @param bytesSent The size of the request body
+     * @param bytesReceived The size of the response body
+     */
+    void record(String tableName, Operation operation, int statusCode, long latencyNanos, long bytesSent, long bytesReceived) {
+        this.recordRequest(tableName, operation, statusCode, latencyNanos, bytesSent, bytesReceived);
+    }
+
+    private OperationMetrics recordRequest(String tableName, Operation operation, int statusCode, long latencyNanos, long bytesSent, long bytesReceived) {
+        OperationMetrics operationMetrics = this.metrics(new Key(tableName, operation, statusCode));
+        operationMetrics.record(latencyNanos, bytesSent, bytesReceived);
+        if (AdaptiveRateLimiter.isThrottled(statusCode)) {
+            this.throttledCount.incrementAndGet();
+        }
+        return operationMetrics;
+    }
+
+    private void requestSending(HttpURLConnection connection) {
+        InFlight request = this.inFlight.get();
+        String path = connection.getURL().getPath();
+        String query = connection.getURL().getQuery();
+
+        // The resource is the last segment of the path, row and partition keys may contain slashes
+        int keys = path.indexOf('(');
+        String resource = path.substring(path.lastIndexOf('/', keys < 0 ? path.length() : keys) + 1);
+        int resourceKeys = resource.indexOf('(');
+        String name = resourceKeys < 0 ? resource : resource.substring(0, resourceKeys);
+        String method = connection.getRequestMethod();
+
+        if (resource.equals("$batch")) {
+            request.tableName = "";
+            request.operation = Operation.BATCH;
+        } else if (name.equals("Tables")) {
+            if (resourceKeys < 0) {
+                request.tableName = "";
+                request.operation = "POST".equals(method) ? Operation.CREATE_TABLE : Operation.LIST_TABLES;
+            } else {
+                request.tableName = resource.substring(resourceKeys + 1, resource.length() - 1).replace("'", "");
+                request.operation = "DELETE".equals(method) ? Operation.DELETE_TABLE : Operation.GET_TABLE;
+            }
+        } else if (name.isEmpty() || (query != null && query.contains("comp="))) {
+            request.tableName = name;
+            request.operation = Operation.OTHER;
+        } else {
+            request.tableName = name;
+            request.operation = entityOperation(connection, method, resourceKeys >= 0 && !resource.endsWith("()"));
+        }
+        request.startNanos = System.nanoTime();
+    }
+
+    private static Operation entityOperation(HttpURLConnection connection, String method, boolean addressesEntity) {
+        switch (method) {
+            case "GET":
+                return addressesEntity ? Operation.RETRIEVE : Operation.QUERY;
+            case "PUT":
+                return connection.getRequestProperty("If-Match") == null ? Operation.INSERT_OR_REPLACE : Operation.REPLACE;
+            case "DELETE":
+                return Operation.DELETE;
+            case "POST":
+                if ("MERGE".equals(connection.getRequestProperty("X-HTTP-Method"))) {
+                    return connection.getRequestProperty("If-Match") == null ? Operation.INSERT_OR_MERGE : Operation.MERGE;
+                }
+                return Operation.INSERT;
+            default:
+                return Operation.OTHER;
+        }
+    }
+
+    private void requestCompleted(HttpURLConnection connection, int statusCode) {
+        InFlight request = this.inFlight.get();
+        if (request.operation == null) {
+            return;
+        }
+        long latencyNanos = System.nanoTime() - request.startNanos;
+
+        // Without a response, reading a response header would connect again
+        long bytesReceived = statusCode > 0 ? connection.getHeaderFieldLong("Content-Length", 0) : 0;
+        long bytesSent = 0;
+        try {
+            // The JDK sets the length once the body is written
+            String contentLength = connection.getRequestProperty("Content-Length");
+            bytesSent = contentLength == null ? 0 : Long.parseLong(contentLength);
+        }
+        catch (IllegalStateException | NumberFormatException e) {
+            // Not available from this connection implementation
+        }
+
+        request.last = this.recordRequest(request.tableName, request.operation, statusCode, latencyNanos, bytesSent, bytesReceived);
+        request.operation = null;
+    }
+
+    private OperationMetrics metrics(Key key) {
+        OperationMetrics operationMetrics = this.metrics.get(key);
+        if (operationMetrics == null) {
+            OperationMetrics created = new OperationMetrics(key);
+            operationMetrics = this.metrics.putIfAbsent(key, created);
+            if (operationMetrics == null) {
+                operationMetrics = created;
+                synchronized (this.jmxLock) {
+                    if (this.mbeanServer != null) {
+                        this.registerMBean(created);
+                    }
+                }
+                this.evictIdle();
+            }
+        }
+        return operationMetrics;
+    }
+
+    /**
+     * Drops the combinations whose request count has not changed for the idle timeout. Sweeps run at
+     * most twice per idle timeout, so a combination is dropped after one to one and a half timeouts.
+     * A request recorded by a thread that looked up the metrics just before they were dropped is lost.
+     */
+    private void evictIdle() {
+        long nowNanos = System.nanoTime();
+        long idleTimeoutNanos = this.idleTimeoutNanos;
+        synchronized (this.evictionLock) {
+            if (nowNanos - this.lastSweepNanos < idleTimeoutNanos / 2) {
+                return;
+            }
+            this.lastSweepNanos = nowNanos;
+            for (OperationMetrics operationMetrics : this.metrics.values()) {
+                long count = operationMetrics.count.sum() + operationMetrics.retryCount.sum();
+                if (count != operationMetrics.sweptCount) {
+                    operationMetrics.sweptCount = count;
+                    operationMetrics.activeAtNanos = nowNanos;
+                } else if (nowNanos - operationMetrics.activeAtNanos >= idleTimeoutNanos
+                        && this.metrics.remove(operationMetrics.key, operationMetrics)) {
+                    this.evictionCount.incrementAndGet();
+                    synchronized (this.jmxLock) {
+                        if (this.mbeanServer != null) {
+                            this.unregisterMBean(operationMetrics);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void registerMBean(OperationMetrics operationMetrics) {
+        try {
+            this.mbeanServer.registerMBean(operationMetrics, objectName(operationMetrics.key));
+        }
+        catch (JMException e) {
+            PrintHelper.printException(e);
+        }
+    }
+
+    private void unregisterMBean(OperationMetrics operationMetrics) {
+        try {
+            this.mbeanServer.unregisterMBean(objectName(operationMetrics.key));
+        }
+        catch (JMException e) {
+            // Already unregistered
+        }
+    }
+
+    private void stopExporting() {
+        if (this.exportScheduler != null) {
+            this.exportScheduler.shutdown();
+            this.exportScheduler = null;
+        }
+    }
+
+    private static ObjectName objectName(Key key) throws JMException {
+        return new ObjectName(String.format("%s:type=TableMetrics,table=%s,operation=%s,status=%d",
+                JMX_DOMAIN, ObjectName.quote(key.tableName), key.operation, key.statusCode));
+    }
+}
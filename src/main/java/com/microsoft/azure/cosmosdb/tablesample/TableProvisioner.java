@@ -0,0 +1,375 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.CloudTableClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes sure that the tables an application depends on exist, without paying one round trip per
+ * table at every start.
+ *
+ * Tables that are not known to exist yet are created concurrently. Every table confirmed by the
+ * service is remembered in memory and, when a registry file is set, in that file, so a restarted
+ * process skips the tables it has already confirmed. A table that was deleted after it was confirmed
+ * is noticed when a request through {@link #execute(String, TableCall)} fails with TableNotFound,
+ * at which point it is created again and the request is retried once.
+ *
+ * Each table is created with a single request that treats TableAlreadyExists as success, instead of
+ * {@link CloudTable#createIfNotExists()}, which sends an existence check before the create.
+ */
+final class TableProvisioner {
+
+    /**
+     * A request against a table.
+     *
+     * @param <R> The result type
+     */
+    interface TableCall<R> {
+        R call(CloudTable table) throws StorageException;
+    }
+
+    /**
+     * The outcome of making sure a set of tables exists.
+     */
+    static final class WarmUpResult {
+        private final int tableCount;
+        private final int registeredCount;
+        private final int createdCount;
+        private final long elapsedNanos;
+
+        WarmUpResult(int tableCount, int registeredCount, int createdCount, long elapsedNanos) {
+            this.tableCount = tableCount;
+            this.registeredCount = registeredCount;
+            this.createdCount = createdCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        int getTableCount() {
+            return this.tableCount;
+        }
+
+        /**
+         * @return The number of tables that were known to exist and were not checked with the service
+         */
+        int getRegisteredCount() {
+            return this.registeredCount;
+        }
+
+        int getCreatedCount() {
+            return this.createdCount;
+        }
+
+        /**
+         * @return The number of tables that the service reported as already existing
+         */
+        int getExistingCount() {
+            return this.tableCount - this.registeredCount - this.createdCount;
+        }
+
+        long getElapsedNanos() {
+            return this.elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d tables ready in %d ms: %d known from the registry, %d created, %d already existed",
+                    this.tableCount, TimeUnit.NANOSECONDS.toMillis(this.elapsedNanos), this.registeredCount,
+                    this.createdCount, this.getExistingCount());
+        }
+    }
+
+    private static final String ENDPOINT_PROPERTY = "endpoint";
+    private static final String TABLE_PROPERTY_PREFIX = "table.";
+
+    private final CloudTableClient tableClient;
+    private final String endpoint;
+    private final Set<String> confirmedTables = ConcurrentHashMap.newKeySet();
+    private int parallelism = 16;
+    private Path registryFile;
+
+    /**
+     * Creates a provisioner for the tables of a storage account.
+     *
+     * @param tableClient The {@link CloudTableClient} object
+     */
+    TableProvisioner(CloudTableClient tableClient) {
+        if (tableClient == null) {
+            throw new IllegalArgumentException("tableClient");
+        }
+        this.tableClient = tableClient;
+        this.endpoint = tableClient.getStorageUri().getPrimaryUri().toString();
+    }
+
+    /**
+     * Sets the number of tables created at the same time. Defaults to 16.
+     *
+     * @param parallelism The number of concurrent create requests
+     */
+    void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1.");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Remembers the confirmed tables in a file. The tables already listed in the file for the same
+     * endpoint are treated as existing; the file is rewritten when tables are confirmed.
+     *
+     * @param registryFile The registry file, which does not need to exist yet
+     *
+     * @throws IOException
+     */
+    synchronized void setRegistryFile(Path registryFile) throws IOException {
+        this.registryFile = registryFile;
+        if (registryFile == null) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream input = Files.newInputStream(registryFile)) {
+            properties.load(input);
+        }
+        catch (NoSuchFileException e) {
+            return;
+        }
+
+        // A registry written for another account says nothing about this one
+        if (this.endpoint.equals(properties.getProperty(ENDPOINT_PROPERTY))) {
+            for (String name : properties.stringPropertyNames()) {
+                if (name.startsWith(TABLE_PROPERTY_PREFIX)) {
+                    this.confirmedTables.add(name.substring(TABLE_PROPERTY_PREFIX.length()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether a table is known to exist.
+     *
+     * @param tableName The table name
+     * @return true if the table was confirmed by the service and not found missing since
+     */
+    boolean isConfirmed(String tableName) {
+        return this.confirmedTables.contains(normalize(tableName));
+    }
+
+    /**
+     * Forgets that a table exists, so the next warm-up checks it with the service.
+     *
+     * @param tableName The table name
+     */
+    void invalidate(String tableName) {
+        this.confirmedTables.remove(normalize(tableName));
+    }
+
+    /**
+     * Makes sure all given tables exist. Tables that are not known to exist are created concurrently.
+     *
+     * @param tableNames The names of the tables
+     * @return The number of tables checked and created, and the time it took
+     *
+     * @throws StorageException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    WarmUpResult ensureTables(Collection<String> tableNames) throws StorageException, IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        Set<String> names = new LinkedHashSet<String>();
+        for (String tableName : tableNames) {
+            names.add(normalize(tableName));
+        }
+
+        List<String> unknown = new ArrayList<String>();
+        for (String name : names) {
+            if (!this.confirmedTables.contains(name)) {
+                unknown.add(name);
+            }
+        }
+        if (unknown.isEmpty()) {
+            return new WarmUpResult(names.size(), names.size(), 0, System.nanoTime() - startNanos);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.parallelism, unknown.size()), r -> {
+            Thread thread = new Thread(r, "table-provisioner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int createdCount = 0;
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(unknown.size());
+            for (final String name : unknown) {
+                futures.add(executor.submit(() -> this.create(name)));
+            }
+            executor.shutdown();
+
+            StorageException failure = null;
+            for (Future<Boolean> future : futures) {
+                try {
+                    if (future.get()) {
+                        createdCount++;
+                    }
+                }
+                catch (ExecutionException e) {
+                    // Only storage failures are collected, anything else is rethrown as it was thrown
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    if (!(e.getCause() instanceof StorageException)) {
+                        throw new IllegalStateException(e.getCause());
+                    }
+                    if (failure == null) {
+                        failure = (StorageException) e.getCause();
+                    } else {
+                        failure.addSuppressed(e.getCause());
+                    }
+                }
+            }
+
+            // The tables confirmed before the failure are still worth remembering
+            this.saveRegistry();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return new WarmUpResult(names.size(), names.size() - unknown.size(), createdCount, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns a reference to a table without checking that it exists.
+     *
+     * @param tableName The table name
+     * @return The {@link CloudTable} object
+     *
+     * @throws StorageException
+     */
+    CloudTable getTable(String tableName) throws StorageException {
+        try {
+            return this.tableClient.getTableReference(tableName);
+        }
+        catch (URISyntaxException e) {
+            throw new IllegalArgumentException(String.format("\"%s\" is not a valid table name.", tableName), e);
+        }
+    }
+
+    /**
+     * Runs a request against a table. When the table turns out not to exist, it is created and the
+     * request is run once more.
+     *
+     * @param tableName The table name
+     * @param call The request
+     * @return The result of the request
+     *
+     * @throws StorageException
+     */
+    <R> R execute(String tableName, TableCall<R> call) throws StorageException {
+        CloudTable table = this.getTable(tableName);
+        try {
+            return call.call(table);
+        }
+        catch (StorageException e) {
+            if (e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND || !"TableNotFound".equals(e.getErrorCode())) {
+                throw e;
+            }
+        }
+
+        this.invalidate(tableName);
+        this.create(normalize(tableName));
+        return call.call(table);
+    }
+
+    /**
+     * Creates a table with one request.
+     *
+     * @param name The normalized table name
+     * @return true if the table was created, false if it already existed
+     *
+     * @throws StorageException
+     */
+    private boolean create(String name) throws StorageException {
+        boolean created;
+        try {
+            this.getTable(name).create();
+            created = true;
+        }
+        catch (StorageException e) {
+            if (e.getHttpStatusCode() != HttpURLConnection.HTTP_CONFLICT || !"TableAlreadyExists".equals(e.getErrorCode())) {
+                throw e;
+            }
+            created = false;
+        }
+        this.confirmedTables.add(name);
+        return created;
+    }
+
+    private synchronized void saveRegistry() throws IOException {
+        if (this.registryFile == null) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty(ENDPOINT_PROPERTY, this.endpoint);
+        for (String name : this.confirmedTables) {
+            properties.setProperty(TABLE_PROPERTY_PREFIX + name, "");
+        }
+
+        // Replace the file in one step so that a crash never leaves a half written registry
+        Path temporary = this.registryFile.resolveSibling(this.registryFile.getFileName() + ".tmp");
+        try (OutputStream output = Files.newOutputStream(temporary)) {
+            properties.store(output, null);
+        }
+        Files.move(temporary, this.registryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Table names are case-insensitive.
+     */
+    private static String normalize(String tableName) {
+        if (tableName == null) {
+            throw new IllegalArgumentException("tableName");
+        }
+        return tableName.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket with an adjustable rate.
+ *
+ * Instead of counting tokens the bucket keeps the time at which the tokens handed out so far have
+ * been refilled (the generic cell rate algorithm). A caller may take permits as long as that time
+ * is at most one full bucket ahead of now; otherwise it is told how long to wait.
+ */
+final class TokenBucket {
+
+    private final double capacity;
+    private double ratePerSecond;
+    private long refilledAtNanos;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param ratePerSecond The number of permits added per second
+     * @param capacity The maximum number of permits that can be taken at once after an idle period
+     */
+    TokenBucket(double ratePerSecond, double capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive.");
+        }
+        this.capacity = capacity;
+        this.setRate(ratePerSecond);
+        this.refilledAtNanos = System.nanoTime();
+    }
+
+    synchronized double getRate() {
+        return this.ratePerSecond;
+    }
+
+    synchronized void setRate(double ratePerSecond) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("ratePerSecond must be positive.");
+        }
+        this.ratePerSecond = ratePerSecond;
+    }
+
+    /**
+     * Takes permits, possibly ahead of time.
+     *
+     * @param permits The number of permits
+     * @return The time in nanoseconds the caller has to wait before using the permits
+     */
+    synchronized long reserve(int permits) {
+        long now = System.nanoTime();
+        long start = Math.max(this.refilledAtNanos, now);
+        this.refilledAtNanos = start + this.nanosFor(permits);
+        return Math.max(0, this.refilledAtNanos - now - this.nanosFor(this.capacity));
+    }
+
+    /**
+     * Takes permits only if they are available right away.
+     *
+     * @param permits The number of permits
+     * @return Whether the permits were taken
+     */
+    synchronized boolean tryAcquire(int permits) {
+        long now = System.nanoTime();
+        long refilledAt = Math.max(this.refilledAtNanos, now) + this.nanosFor(permits);
+        if (refilledAt - now > this.nanosFor(this.capacity)) {
+            return false;
+        }
+        this.refilledAtNanos = refilledAt;
+        return true;
+    }
+
+    private long nanosFor(double permits) {
+        return (long) (permits * TimeUnit.SECONDS.toNanos(1) / this.ratePerSecond);
+    }
+}
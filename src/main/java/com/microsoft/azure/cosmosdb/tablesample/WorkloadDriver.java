@@ -0,0 +1,952 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.CloudTableClient;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.microsoft.azure.storage.table.TableQuery.QueryComparisons;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.LongStream;
+
+/**
+ * Generates load on a table of {@link CustomerEntity} records for capacity planning, modeled on the
+ * core workloads of the Yahoo! Cloud Serving Benchmark (YCSB).
+ *
+ * Every operation is drawn from a mix of reads, inserts, merges, replaces, deletes and partition
+ * scans, and the keys it touches follow a uniform, Zipfian or latest distribution. Closed-loop runs
+ * issue the next operation of a thread as soon as the previous one completes. Open-loop runs issue
+ * operations at a fixed rate; the latency of an operation is measured from the time it was scheduled
+ * rather than the time it was sent, so a stalled table shows up in the latencies instead of only
+ * lowering the rate (coordinated omission). An open-loop run continues until every operation
+ * scheduled before its end has been executed. Operations issued during the warm-up are executed
+ * but not recorded.
+ *
+ * Record i has the partition key Customer(i mod partitions) and the row key i, so the most popular
+ * records of the Zipfian distribution are spread over the partitions. The settings use the property
+ * names of YCSB where one exists, see {@link #configure(Properties)}.
+ */
+final class WorkloadDriver {
+
+    /**
+     * The operations of a workload.
+     */
+    enum Operation {
+        READ,
+        INSERT,
+        MERGE,
+        REPLACE,
+        DELETE,
+        SCAN
+    }
+
+    /**
+     * How the records touched by an operation are chosen.
+     */
+    enum KeyDistribution {
+        /** Every record is equally likely. */
+        UNIFORM,
+        /** A few records receive most operations, the records with the lowest numbers first. */
+        ZIPFIAN,
+        /** The most recently inserted records receive most operations. */
+        LATEST
+    }
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private static final long LOWEST_LATENCY_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long HIGHEST_LATENCY_NANOS = TimeUnit.HOURS.toNanos(1);
+    private static final int SIGNIFICANT_DIGITS = 2;
+    private static final double[] REPORTED_PERCENTILES = { 50, 90, 95, 99, 99.9 };
+
+    private static final FilterTemplate SCAN = FilterTemplate.compile(FilterTemplate.and(
+            FilterTemplate.condition("PartitionKey", QueryComparisons.EQUAL, FilterTemplate.ParameterType.STRING),
+            FilterTemplate.condition("RowKey", QueryComparisons.GREATER_THAN_OR_EQUAL, FilterTemplate.ParameterType.STRING)));
+
+    /**
+     * The outcome of an operation.
+     */
+    private enum Outcome {
+        SUCCEEDED,
+        // The record did not exist, or existed for an insert
+        MISSED,
+        FAILED
+    }
+
+    /**
+     * The latencies and outcomes of one operation. Recording is lock free; the totals are only
+     * touched by the thread that drains the recorders.
+     */
+    private static final class OperationRecorder {
+        private final Recorder latencyRecorder = new Recorder(LOWEST_LATENCY_NANOS, HIGHEST_LATENCY_NANOS, SIGNIFICANT_DIGITS);
+        private final Recorder serviceTimeRecorder = new Recorder(LOWEST_LATENCY_NANOS, HIGHEST_LATENCY_NANOS, SIGNIFICANT_DIGITS);
+        private final LongAdder succeededCount = new LongAdder();
+        private final LongAdder missedCount = new LongAdder();
+        private final LongAdder failedCount = new LongAdder();
+        private volatile String lastFailure;
+
+        // Guarded by this
+        private final Histogram latencies = new Histogram(LOWEST_LATENCY_NANOS, HIGHEST_LATENCY_NANOS, SIGNIFICANT_DIGITS);
+        private final Histogram serviceTimes = new Histogram(LOWEST_LATENCY_NANOS, HIGHEST_LATENCY_NANOS, SIGNIFICANT_DIGITS);
+        private Histogram latencyInterval;
+        private Histogram serviceTimeInterval;
+
+        void record(Outcome outcome, long latencyNanos, long serviceTimeNanos) {
+            this.latencyRecorder.recordValue(clamp(latencyNanos));
+            this.serviceTimeRecorder.recordValue(clamp(serviceTimeNanos));
+            if (outcome == Outcome.SUCCEEDED) {
+                this.succeededCount.increment();
+            } else if (outcome == Outcome.MISSED) {
+                this.missedCount.increment();
+            } else {
+                this.failedCount.increment();
+            }
+        }
+
+        /**
+         * Moves the latencies recorded since the last call into the totals.
+         *
+         * @return The latencies of the interval, valid until the next call
+         */
+        synchronized Histogram drain() {
+            this.serviceTimeInterval = this.serviceTimeRecorder.getIntervalHistogram(this.serviceTimeInterval);
+            this.serviceTimes.add(this.serviceTimeInterval);
+            this.latencyInterval = this.latencyRecorder.getIntervalHistogram(this.latencyInterval);
+            this.latencies.add(this.latencyInterval);
+            return this.latencyInterval;
+        }
+
+        synchronized OperationResult result(Operation operation) {
+            this.drain();
+            return new OperationResult(operation, this.succeededCount.sum(), this.missedCount.sum(), this.failedCount.sum(),
+                    this.lastFailure, this.latencies.copy(), this.serviceTimes.copy());
+        }
+
+        private static long clamp(long nanos) {
+            return Math.min(Math.max(nanos, LOWEST_LATENCY_NANOS), HIGHEST_LATENCY_NANOS);
+        }
+    }
+
+    /**
+     * The outcomes and latencies of one operation over the measured part of a run.
+     */
+    static final class OperationResult {
+        private final Operation operation;
+        private final long succeededCount;
+        private final long missedCount;
+        private final long failedCount;
+        private final String lastFailure;
+        private final Histogram latencies;
+        private final Histogram serviceTimes;
+
+        OperationResult(Operation operation, long succeededCount, long missedCount, long failedCount, String lastFailure,
+                Histogram latencies, Histogram serviceTimes) {
+            this.operation = operation;
+            this.succeededCount = succeededCount;
+            this.missedCount = missedCount;
+            this.failedCount = failedCount;
+            this.lastFailure = lastFailure;
+            this.latencies = latencies;
+            this.serviceTimes = serviceTimes;
+        }
+
+        Operation getOperation() {
+            return this.operation;
+        }
+
+        long getCount() {
+            return this.succeededCount + this.missedCount + this.failedCount;
+        }
+
+        long getSucceededCount() {
+            return this.succeededCount;
+        }
+
+        /**
+         * @return The number of operations on records that did not exist, or inserts of records that existed
+         */
+        long getMissedCount() {
+            return this.missedCount;
+        }
+
+        long getFailedCount() {
+            return this.failedCount;
+        }
+
+        /**
+         * @return The latencies in nanoseconds, measured from the time the operations were scheduled
+         */
+        Histogram getLatencies() {
+            return this.latencies;
+        }
+
+        /**
+         * @return The latencies in nanoseconds, measured from the time the operations were sent
+         */
+        Histogram getServiceTimes() {
+            return this.serviceTimes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: count=%d, missed=%d, failed=%d, p50=%.1f ms, p99=%.1f ms, max=%.1f ms, service time p99=%.1f ms",
+                    this.operation, this.getCount(), this.missedCount, this.failedCount,
+                    this.latencies.getValueAtPercentile(50) / 1e6, this.latencies.getValueAtPercentile(99) / 1e6,
+                    this.latencies.getMaxValue() / 1e6, this.serviceTimes.getValueAtPercentile(99) / 1e6);
+        }
+
+        void writeJson(JsonGenerator generator) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("operation", this.operation.name());
+            generator.writeNumberField("count", this.getCount());
+            generator.writeNumberField("succeeded", this.succeededCount);
+            generator.writeNumberField("missed", this.missedCount);
+            generator.writeNumberField("failed", this.failedCount);
+            if (this.lastFailure != null) {
+                generator.writeStringField("lastFailure", this.lastFailure);
+            }
+            writeHistogram(generator, "latencyMicros", this.latencies);
+            writeHistogram(generator, "serviceTimeMicros", this.serviceTimes);
+            generator.writeEndObject();
+        }
+
+        private static void writeHistogram(JsonGenerator generator, String name, Histogram histogram) throws IOException {
+            generator.writeObjectFieldStart(name);
+            generator.writeNumberField("mean", Math.round(histogram.getMean()) / 1e3);
+            generator.writeNumberField("min", histogram.getMinValue() / 1e3);
+            for (double percentile : REPORTED_PERCENTILES) {
+                // p50, p90, p95, p99, p999
+                generator.writeNumberField("p" + String.valueOf(percentile).replace(".0", "").replace(".", ""),
+                        histogram.getValueAtPercentile(percentile) / 1e3);
+            }
+            generator.writeNumberField("max", histogram.getMaxValue() / 1e3);
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * The result of a run: the settings, the measured time and the results of every operation that
+     * was issued.
+     */
+    static final class Report {
+        private final Map<String, String> settings;
+        private final long elapsedNanos;
+        private final List<OperationResult> results;
+
+        Report(Map<String, String> settings, long elapsedNanos, List<OperationResult> results) {
+            this.settings = settings;
+            this.elapsedNanos = elapsedNanos;
+            this.results = results;
+        }
+
+        List<OperationResult> getResults() {
+            return this.results;
+        }
+
+        long getElapsedNanos() {
+            return this.elapsedNanos;
+        }
+
+        long getOperationCount() {
+            long count = 0;
+            for (OperationResult result : this.results) {
+                count += result.getCount();
+            }
+            return count;
+        }
+
+        double getThroughput() {
+            return this.getOperationCount() * 1e9 / Math.max(this.elapsedNanos, 1);
+        }
+
+        /**
+         * Writes the report as a JSON document.
+         *
+         * @param out The stream to write to, which is left open
+         *
+         * @throws IOException
+         */
+        void writeJson(OutputStream out) throws IOException {
+            try (JsonGenerator generator = FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                generator.useDefaultPrettyPrinter();
+                generator.writeStartObject();
+                generator.writeObjectFieldStart("settings");
+                for (Map.Entry<String, String> setting : this.settings.entrySet()) {
+                    generator.writeStringField(setting.getKey(), setting.getValue());
+                }
+                generator.writeEndObject();
+                generator.writeNumberField("runtimeMillis", TimeUnit.NANOSECONDS.toMillis(this.elapsedNanos));
+                generator.writeNumberField("operations", this.getOperationCount());
+                generator.writeNumberField("throughput", this.getThroughput());
+                generator.writeArrayFieldStart("results");
+                for (OperationResult result : this.results) {
+                    result.writeJson(generator);
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            out.write('\n');
+            out.flush();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(String.format("%d operations in %d ms, %.1f operations/sec",
+                    this.getOperationCount(), TimeUnit.NANOSECONDS.toMillis(this.elapsedNanos), this.getThroughput()));
+            for (OperationResult result : this.results) {
+                builder.append(System.lineSeparator()).append("  ").append(result);
+            }
+            return builder.toString();
+        }
+    }
+
+    private final CloudTable table;
+    private final EnumMap<Operation, Double> proportions = new EnumMap<Operation, Double>(Operation.class);
+    private long recordCount = 1000;
+    private int partitionCount = 10;
+    private KeyDistribution keyDistribution = KeyDistribution.ZIPFIAN;
+    private int maxScanLength = 100;
+    private int threadCount = 8;
+    private boolean virtualThreads;
+    private double targetOperationsPerSecond;
+    private long operationCount;
+    private long warmUpNanos = TimeUnit.SECONDS.toNanos(5);
+    private long durationNanos = TimeUnit.SECONDS.toNanos(30);
+    private long statusIntervalNanos = TimeUnit.SECONDS.toNanos(10);
+
+    // State of a run
+    private final EnumMap<Operation, OperationRecorder> recorders = new EnumMap<Operation, OperationRecorder>(Operation.class);
+    private Operation[] operations;
+    private double[] cumulativeProportions;
+    private ZipfianGenerator zipfian;
+    private final AtomicLong nextInsertedRecord = new AtomicLong();
+    private final AtomicLong lastInsertedRecord = new AtomicLong();
+    private final AtomicLong measuredOperationCount = new AtomicLong();
+
+    /**
+     * Creates a driver with the mix of YCSB workload B: 95% reads and 5% updates, here merges.
+     *
+     * @param table The {@link CloudTable} object, which must exist
+     */
+    WorkloadDriver(CloudTable table) {
+        this.table = table;
+        this.proportions.put(Operation.READ, 0.95);
+        this.proportions.put(Operation.MERGE, 0.05);
+    }
+
+    /**
+     * Sets the number of records loaded by {@link #load()} and read by the operations.
+     *
+     * @param recordCount The number of records
+     */
+    void setRecordCount(long recordCount) {
+        if (recordCount < 1) {
+            throw new IllegalArgumentException("recordCount must be at least 1.");
+        }
+        this.recordCount = recordCount;
+    }
+
+    /**
+     * Sets the number of partitions the records are spread over.
+     *
+     * @param partitionCount The number of partitions
+     */
+    void setPartitionCount(int partitionCount) {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("partitionCount must be at least 1.");
+        }
+        this.partitionCount = partitionCount;
+    }
+
+    /**
+     * Sets the share of an operation in the mix. The shares do not need to add up to 1.
+     *
+     * @param operation The operation
+     * @param proportion The share, or 0 to leave the operation out
+     */
+    void setProportion(Operation operation, double proportion) {
+        if (proportion < 0) {
+            throw new IllegalArgumentException("proportion must not be negative.");
+        }
+        this.proportions.put(operation, proportion);
+    }
+
+    void setKeyDistribution(KeyDistribution keyDistribution) {
+        this.keyDistribution = keyDistribution;
+    }
+
+    /**
+     * Sets the maximum number of records returned by a scan. The length of a scan is uniformly
+     * distributed between 1 and this number.
+     *
+     * @param maxScanLength The maximum length
+     */
+    void setMaxScanLength(int maxScanLength) {
+        if (maxScanLength < 1) {
+            throw new IllegalArgumentException("maxScanLength must be at least 1.");
+        }
+        this.maxScanLength = maxScanLength;
+    }
+
+    /**
+     * Sets the number of threads issuing operations.
+     *
+     * @param threadCount The number of threads
+     * @param virtualThreads Whether the threads are virtual threads, which needs Java 21 or later
+     */
+    void setThreadCount(int threadCount, boolean virtualThreads) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be at least 1.");
+        }
+        this.threadCount = threadCount;
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Sets the rate at which operations are issued.
+     *
+     * @param operationsPerSecond The rate over all threads, or 0 for a closed loop
+     */
+    void setTarget(double operationsPerSecond) {
+        if (operationsPerSecond < 0) {
+            throw new IllegalArgumentException("operationsPerSecond must not be negative.");
+        }
+        this.targetOperationsPerSecond = operationsPerSecond;
+    }
+
+    /**
+     * Ends the run after the given number of measured operations, or after its duration if that is
+     * reached first.
+     *
+     * @param operationCount The number of operations, or 0 to run for the duration
+     */
+    void setOperationCount(long operationCount) {
+        this.operationCount = operationCount;
+    }
+
+    /**
+     * Sets how long operations are issued without being recorded, so connections are open and the
+     * code is compiled once the measurement starts.
+     *
+     * @param warmUp The warm-up time
+     * @param unit The unit of the warm-up time
+     */
+    void setWarmUp(long warmUp, TimeUnit unit) {
+        this.warmUpNanos = unit.toNanos(warmUp);
+    }
+
+    /**
+     * Sets how long operations are recorded after the warm-up.
+     *
+     * @param duration The measured time
+     * @param unit The unit of the measured time
+     */
+    void setDuration(long duration, TimeUnit unit) {
+        if (duration <= 0) {
+            throw new IllegalArgumentException("duration must be positive.");
+        }
+        this.durationNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * Sets how often the throughput and latencies of the last interval are printed to the standard
+     * error stream.
+     *
+     * @param statusInterval The interval, or 0 to print no status
+     * @param unit The unit of the interval
+     */
+    void setStatusInterval(long statusInterval, TimeUnit unit) {
+        this.statusIntervalNanos = unit.toNanos(statusInterval);
+    }
+
+    /**
+     * Applies the settings held by the given properties, using the names of YCSB where one exists:
+     * recordcount, operationcount, partitioncount, readproportion, insertproportion, mergeproportion,
+     * replaceproportion, deleteproportion, scanproportion, maxscanlength, requestdistribution
+     * (uniform, zipfian or latest), threadcount, virtualthreads, target (operations per second),
+     * warmuptime and maxexecutiontime (seconds) and statusinterval (seconds). The YCSB name
+     * updateproportion is accepted for mergeproportion. Missing settings keep their value.
+     *
+     * @param properties The settings
+     */
+    void configure(Properties properties) {
+        if (properties.containsKey("recordcount")) {
+            this.setRecordCount(Long.parseLong(properties.getProperty("recordcount").trim()));
+        }
+        if (properties.containsKey("operationcount")) {
+            this.setOperationCount(Long.parseLong(properties.getProperty("operationcount").trim()));
+        }
+        if (properties.containsKey("partitioncount")) {
+            this.setPartitionCount(Integer.parseInt(properties.getProperty("partitioncount").trim()));
+        }
+        if (properties.containsKey("updateproportion")) {
+            this.setProportion(Operation.MERGE, Double.parseDouble(properties.getProperty("updateproportion").trim()));
+        }
+        for (Operation operation : Operation.values()) {
+            String name = operation.name().toLowerCase(Locale.ROOT) + "proportion";
+            if (properties.containsKey(name)) {
+                this.setProportion(operation, Double.parseDouble(properties.getProperty(name).trim()));
+            }
+        }
+        if (properties.containsKey("maxscanlength")) {
+            this.setMaxScanLength(Integer.parseInt(properties.getProperty("maxscanlength").trim()));
+        }
+        if (properties.containsKey("requestdistribution")) {
+            this.setKeyDistribution(KeyDistribution.valueOf(properties.getProperty("requestdistribution").trim().toUpperCase(Locale.ROOT)));
+        }
+        if (properties.containsKey("threadcount") || properties.containsKey("virtualthreads")) {
+            this.setThreadCount(Integer.parseInt(properties.getProperty("threadcount", String.valueOf(this.threadCount)).trim()),
+                    Boolean.parseBoolean(properties.getProperty("virtualthreads", String.valueOf(this.virtualThreads)).trim()));
+        }
+        if (properties.containsKey("target")) {
+            this.setTarget(Double.parseDouble(properties.getProperty("target").trim()));
+        }
+        if (properties.containsKey("warmuptime")) {
+            this.setWarmUp(Long.parseLong(properties.getProperty("warmuptime").trim()), TimeUnit.SECONDS);
+        }
+        if (properties.containsKey("maxexecutiontime")) {
+            this.setDuration(Long.parseLong(properties.getProperty("maxexecutiontime").trim()), TimeUnit.SECONDS);
+        }
+        if (properties.containsKey("statusinterval")) {
+            this.setStatusInterval(Long.parseLong(properties.getProperty("statusinterval").trim()), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Runs a workload from the command line: workload [-P file]... [-p name=value]...
+     *
+     * A -P file holds settings in properties format, it is looked up on the file system and then on
+     * the class path, where the workloads folder holds the core workloads of YCSB. -p sets a single
+     * setting and takes precedence. Besides the settings of {@link #configure(Properties)} the run
+     * reads table (an existing table; by default a new table is created, loaded and deleted), load
+     * (whether the records are inserted first) and reportfile (where the JSON report is written; by
+     * default the standard output stream).
+     *
+     * @param args The command line arguments after "workload"
+     */
+    static void runCommandLine(String[] args) throws Exception {
+        Properties properties = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            if ("-P".equals(args[i]) && i + 1 < args.length) {
+                loadProperties(properties, args[++i]);
+            } else if ("-p".equals(args[i]) && i + 1 < args.length && args[i + 1].contains("=")) {
+                String setting = args[++i];
+                properties.setProperty(setting.substring(0, setting.indexOf('=')).trim(), setting.substring(setting.indexOf('=') + 1).trim());
+            } else {
+                throw new IllegalArgumentException(String.format("Unexpected argument %s, expected -P file or -p name=value.", args[i]));
+            }
+        }
+
+        CloudTableClient tableClient = TableClientProvider.getTableClientReference();
+        String tableName = properties.getProperty("table");
+        CloudTable table = tableClient.getTableReference(tableName != null
+                ? tableName : "workload" + UUID.randomUUID().toString().replace("-", ""));
+        boolean temporary = tableName == null;
+        try {
+            table.createIfNotExists();
+            WorkloadDriver driver = new WorkloadDriver(table);
+            driver.configure(properties);
+
+            if (Boolean.parseBoolean(properties.getProperty("load", String.valueOf(temporary)).trim())) {
+                System.err.printf("Loading %d records into %s%n", driver.recordCount, table.getName());
+                System.err.println(driver.load());
+            }
+
+            Report report = driver.run();
+            System.err.println(report);
+            String reportFile = properties.getProperty("reportfile");
+            if (reportFile == null) {
+                report.writeJson(System.out);
+            } else {
+                try (OutputStream out = Files.newOutputStream(Paths.get(reportFile.trim()))) {
+                    report.writeJson(out);
+                }
+            }
+        }
+        finally {
+            if (temporary) {
+                table.deleteIfExists();
+            }
+        }
+    }
+
+    private static void loadProperties(Properties properties, String name) throws IOException {
+        Path path = Paths.get(name);
+        if (Files.exists(path)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                properties.load(in);
+            }
+            return;
+        }
+        try (InputStream in = WorkloadDriver.class.getClassLoader().getResourceAsStream(name)) {
+            if (in == null) {
+                throw new FileNotFoundException(name);
+            }
+            properties.load(in);
+        }
+    }
+
+    /**
+     * Inserts the records the operations work on.
+     *
+     * @return The result of the load
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    BulkLoadResult load() throws StorageException, InterruptedException {
+        return new TableBulkLoader(this.table, Math.min(this.threadCount, 64))
+                .load(LongStream.range(0, this.recordCount).mapToObj(this::newCustomer));
+    }
+
+    /**
+     * Issues operations for the warm-up and the measured time, and returns the measured results.
+     *
+     * @return The report of the run
+     *
+     * @throws InterruptedException
+     */
+    Report run() throws InterruptedException {
+        this.prepare();
+        ExecutorService executor = this.newExecutor();
+        ScheduledExecutorService status = null;
+
+        long startNanos = System.nanoTime();
+        final long measureStartNanos = startNanos + this.warmUpNanos;
+        final long endNanos = measureStartNanos + this.durationNanos;
+        try {
+            if (this.statusIntervalNanos > 0) {
+                status = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "table-workload-status");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                status.scheduleAtFixedRate(() -> this.printStatus(startNanos, measureStartNanos),
+                        this.statusIntervalNanos, this.statusIntervalNanos, TimeUnit.NANOSECONDS);
+            }
+
+            List<Future<?>> workers = new ArrayList<Future<?>>(this.threadCount);
+            for (int i = 0; i < this.threadCount; i++) {
+                final int index = i;
+                workers.add(executor.submit(() -> this.work(index, startNanos, measureStartNanos, endNanos)));
+            }
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get();
+                }
+                catch (ExecutionException e) {
+                    throw new IllegalStateException("A workload thread failed.", e.getCause());
+                }
+            }
+        }
+        finally {
+            if (status != null) {
+                status.shutdownNow();
+            }
+            executor.shutdownNow();
+        }
+
+        long elapsedNanos = System.nanoTime() - Math.max(measureStartNanos, startNanos);
+        List<OperationResult> results = new ArrayList<OperationResult>();
+        for (Map.Entry<Operation, OperationRecorder> recorder : this.recorders.entrySet()) {
+            OperationResult result = recorder.getValue().result(recorder.getKey());
+            if (result.getCount() > 0) {
+                results.add(result);
+            }
+        }
+        return new Report(this.getSettings(), elapsedNanos, results);
+    }
+
+    /**
+     * @return The settings of this driver by their property names
+     */
+    Map<String, String> getSettings() {
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        settings.put("table", this.table.getName());
+        settings.put("recordcount", String.valueOf(this.recordCount));
+        settings.put("operationcount", String.valueOf(this.operationCount));
+        settings.put("partitioncount", String.valueOf(this.partitionCount));
+        for (Operation operation : Operation.values()) {
+            Double proportion = this.proportions.get(operation);
+            settings.put(operation.name().toLowerCase(Locale.ROOT) + "proportion", String.valueOf(proportion == null ? 0.0 : proportion));
+        }
+        settings.put("maxscanlength", String.valueOf(this.maxScanLength));
+        settings.put("requestdistribution", this.keyDistribution.name().toLowerCase(Locale.ROOT));
+        settings.put("threadcount", String.valueOf(this.threadCount));
+        settings.put("virtualthreads", String.valueOf(this.virtualThreads));
+        settings.put("target", String.valueOf(this.targetOperationsPerSecond));
+        settings.put("warmuptime", String.valueOf(TimeUnit.NANOSECONDS.toSeconds(this.warmUpNanos)));
+        settings.put("maxexecutiontime", String.valueOf(TimeUnit.NANOSECONDS.toSeconds(this.durationNanos)));
+        return settings;
+    }
+
+    private void prepare() {
+        List<Operation> operations = new ArrayList<Operation>();
+        List<Double> cumulative = new ArrayList<Double>();
+        double sum = 0;
+        for (Map.Entry<Operation, Double> proportion : this.proportions.entrySet()) {
+            if (proportion.getValue() > 0) {
+                sum += proportion.getValue();
+                operations.add(proportion.getKey());
+                cumulative.add(sum);
+            }
+        }
+        if (operations.isEmpty()) {
+            throw new IllegalStateException("The workload has no operations.");
+        }
+
+        this.operations = operations.toArray(new Operation[operations.size()]);
+        this.cumulativeProportions = new double[this.operations.length];
+        for (int i = 0; i < this.operations.length; i++) {
+            this.cumulativeProportions[i] = cumulative.get(i) / sum;
+        }
+
+        this.recorders.clear();
+        for (Operation operation : this.operations) {
+            this.recorders.put(operation, new OperationRecorder());
+        }
+        this.zipfian = this.keyDistribution == KeyDistribution.UNIFORM ? null : new ZipfianGenerator(this.recordCount);
+        this.nextInsertedRecord.set(this.recordCount);
+        this.lastInsertedRecord.set(this.recordCount - 1);
+        this.measuredOperationCount.set(0);
+    }
+
+    private ExecutorService newExecutor() {
+        if (this.virtualThreads) {
+            // Looked up at run time, the sample is compiled for Java 8
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (ReflectiveOperationException e) {
+                throw new UnsupportedOperationException("Virtual threads need Java 21 or later.", e);
+            }
+        }
+        return Executors.newFixedThreadPool(this.threadCount, r -> {
+            Thread thread = new Thread(r, "table-workload");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Issues operations until the end of the run. In an open loop every thread issues its share of
+     * the target rate on a fixed schedule, and falls behind it rather than skipping operations.
+     */
+    private void work(int index, long startNanos, long measureStartNanos, long endNanos) {
+        long intervalNanos = this.targetOperationsPerSecond > 0 ? (long) (this.threadCount * 1e9 / this.targetOperationsPerSecond) : 0;
+        // The threads of an open loop are staggered, so their operations do not arrive in bursts
+        long intendedNanos = startNanos + intervalNanos * index / this.threadCount;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            long nowNanos = System.nanoTime();
+            if (intervalNanos > 0) {
+                if (intendedNanos - endNanos >= 0) {
+                    break;
+                }
+                while (intendedNanos - nowNanos > 0) {
+                    LockSupport.parkNanos(intendedNanos - nowNanos);
+                    nowNanos = System.nanoTime();
+                }
+            } else {
+                if (nowNanos - endNanos >= 0) {
+                    break;
+                }
+                intendedNanos = nowNanos;
+            }
+
+            boolean measured = intendedNanos - measureStartNanos >= 0;
+            if (measured && this.operationCount > 0 && this.measuredOperationCount.incrementAndGet() > this.operationCount) {
+                break;
+            }
+
+            Operation operation = this.nextOperation();
+            long sentNanos = System.nanoTime();
+            Outcome outcome = this.execute(operation);
+            long completedNanos = System.nanoTime();
+            if (measured) {
+                this.recorders.get(operation).record(outcome, completedNanos - intendedNanos, completedNanos - sentNanos);
+            }
+            intendedNanos += intervalNanos;
+        }
+    }
+
+    private Operation nextOperation() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        for (int i = 0; i < this.operations.length - 1; i++) {
+            if (u < this.cumulativeProportions[i]) {
+                return this.operations[i];
+            }
+        }
+        return this.operations[this.operations.length - 1];
+    }
+
+    /**
+     * Returns the record an operation works on.
+     */
+    private long nextRecord() {
+        switch (this.keyDistribution) {
+            case UNIFORM:
+                return ThreadLocalRandom.current().nextLong(this.lastInsertedRecord.get() + 1);
+            case LATEST:
+                // The Zipfian popularity is counted back from the latest insert
+                return Math.max(0, this.lastInsertedRecord.get() - this.zipfian.next());
+            default:
+                return this.zipfian.next();
+        }
+    }
+
+    private Outcome execute(Operation operation) {
+        try {
+            switch (operation) {
+                case READ: {
+                    long record = this.nextRecord();
+                    CustomerEntity customer = this.table.execute(TableOperation.retrieve(
+                            this.partitionKey(record), rowKey(record), CustomerEntity.class)).getResultAsType();
+                    return customer == null ? Outcome.MISSED : Outcome.SUCCEEDED;
+                }
+                case INSERT: {
+                    long record = this.nextInsertedRecord.getAndIncrement();
+                    this.table.execute(TableOperation.insert(this.newCustomer(record)));
+                    this.lastInsertedRecord.accumulateAndGet(record, Math::max);
+                    return Outcome.SUCCEEDED;
+                }
+                case MERGE: {
+                    long record = this.nextRecord();
+                    DynamicTableEntity change = new DynamicTableEntity(this.partitionKey(record), rowKey(record));
+                    change.getProperties().put("WorkPhoneNumber", new EntityProperty(
+                            String.format("425-556-%04d", ThreadLocalRandom.current().nextInt(10000))));
+                    change.setEtag("*");
+                    this.table.execute(TableOperation.merge(change));
+                    return Outcome.SUCCEEDED;
+                }
+                case REPLACE: {
+                    CustomerEntity customer = this.newCustomer(this.nextRecord());
+                    customer.setEtag("*");
+                    this.table.execute(TableOperation.replace(customer));
+                    return Outcome.SUCCEEDED;
+                }
+                case DELETE: {
+                    long record = this.nextRecord();
+                    DynamicTableEntity customer = new DynamicTableEntity(this.partitionKey(record), rowKey(record));
+                    customer.setEtag("*");
+                    this.table.execute(TableOperation.delete(customer));
+                    return Outcome.SUCCEEDED;
+                }
+                default: {
+                    long record = this.nextRecord();
+                    int length = ThreadLocalRandom.current().nextInt(this.maxScanLength) + 1;
+                    TableQuery<CustomerEntity> query = SCAN.createQuery(CustomerEntity.class, this.partitionKey(record), rowKey(record)).take(length);
+                    int count = 0;
+                    // Stop before the results of the next segment are requested
+                    for (CustomerEntity customer : this.table.execute(query)) {
+                        if (++count == length) {
+                            break;
+                        }
+                    }
+                    return count == 0 ? Outcome.MISSED : Outcome.SUCCEEDED;
+                }
+            }
+        }
+        catch (StorageException e) {
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND
+                    || e.getHttpStatusCode() == HttpURLConnection.HTTP_CONFLICT
+                    || e.getHttpStatusCode() == HttpURLConnection.HTTP_PRECON_FAILED) {
+                return Outcome.MISSED;
+            }
+            return this.failed(operation, e);
+        }
+        catch (RuntimeException e) {
+            // Query iterators wrap the storage exception of a failed segment
+            return this.failed(operation, e);
+        }
+    }
+
+    private Outcome failed(Operation operation, Exception e) {
+        OperationRecorder recorder = this.recorders.get(operation);
+        recorder.lastFailure = e.getMessage() == null ? e.toString() : e.getMessage();
+        return Outcome.FAILED;
+    }
+
+    private void printStatus(long startNanos, long measureStartNanos) {
+        long nowNanos = System.nanoTime();
+        StringBuilder builder = new StringBuilder(String.format("%d s%s:", TimeUnit.NANOSECONDS.toSeconds(nowNanos - startNanos),
+                nowNanos - measureStartNanos < 0 ? " (warm-up)" : ""));
+        double seconds = this.statusIntervalNanos / 1e9;
+        boolean recorded = false;
+        for (Map.Entry<Operation, OperationRecorder> recorder : this.recorders.entrySet()) {
+            synchronized (recorder.getValue()) {
+                Histogram interval = recorder.getValue().drain();
+                if (interval.getTotalCount() > 0) {
+                    recorded = true;
+                    builder.append(String.format(" %s %.1f/s p50=%.1f ms p99=%.1f ms;", recorder.getKey(),
+                            interval.getTotalCount() / seconds, interval.getValueAtPercentile(50) / 1e6, interval.getValueAtPercentile(99) / 1e6));
+                }
+            }
+        }
+        // An open loop that fell behind is still executing the operations scheduled for the warm-up
+        System.err.println(recorded ? builder : builder.append(" no operations recorded"));
+    }
+
+    private CustomerEntity newCustomer(long record) {
+        CustomerEntity customer = new CustomerEntity(this.partitionKey(record), rowKey(record));
+        customer.setEmail(String.format("customer%d@contoso.com", record));
+        customer.setHomePhoneNumber(String.format("425-555-%04d", record % 10000));
+        customer.setWorkPhoneNumber(String.format("425-556-%04d", record % 10000));
+        return customer;
+    }
+
+    private String partitionKey(long record) {
+        return String.format("Customer%04d", record % this.partitionCount);
+    }
+
+    private static String rowKey(long record) {
+        return String.format("%010d", record);
+    }
+}
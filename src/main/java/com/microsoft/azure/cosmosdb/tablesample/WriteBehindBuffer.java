@@ -0,0 +1,407 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.TableBatchOperation;
+import com.microsoft.azure.storage.table.TableEntity;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableResult;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers single entity writes and sends them to the service as entity group transactions.
+ *
+ * Writes are grouped per partition key into batches that are sent when they reach 100 operations or
+ * the payload budget, when they have waited for the linger time, or on an explicit flush. At most one
+ * batch per partition is in flight and batches of a partition are sent in submission order, so the
+ * writes of a key are applied in order. A batch may not contain two operations for the same key;
+ * unconditional upserts of a key that is already pending are collapsed into one operation, any other
+ * repeated write of a key starts a new batch.
+ *
+ * Every write returns a future that completes with the result of its operation, or with the result
+ * of the operation it was collapsed into.
+ */
+final class WriteBehindBuffer implements AutoCloseable {
+
+    /**
+     * The supported single entity operations.
+     */
+    enum WriteOperation {
+        INSERT,
+        INSERT_OR_MERGE,
+        INSERT_OR_REPLACE,
+        MERGE,
+        REPLACE,
+        DELETE
+    }
+
+    /**
+     * A pending write and the futures of all submissions collapsed into it.
+     */
+    private static final class PendingWrite {
+        private final WriteOperation operation;
+        private final TableEntity entity;
+        private final int size;
+        private final List<CompletableFuture<TableResult>> futures;
+
+        PendingWrite(WriteOperation operation, TableEntity entity, int size, List<CompletableFuture<TableResult>> futures) {
+            this.operation = operation;
+            this.entity = entity;
+            this.size = size;
+            this.futures = futures;
+        }
+    }
+
+    private static final class Batch {
+        private final List<PendingWrite> writes = new ArrayList<PendingWrite>();
+        private final Map<String, Integer> indexByRowKey = new HashMap<String, Integer>();
+        private int payloadBytes;
+        private boolean sealed;
+    }
+
+    private static final class PartitionBuffer {
+        private final String partitionKey;
+        private final Deque<Batch> sealedBatches = new ArrayDeque<Batch>();
+        private Batch openBatch;
+        private boolean inFlight;
+
+        PartitionBuffer(String partitionKey) {
+            this.partitionKey = partitionKey;
+        }
+    }
+
+    private final CloudTable table;
+    private final long lingerMillis;
+    private final Map<String, PartitionBuffer> partitions = new HashMap<String, PartitionBuffer>();
+    private final Semaphore bufferedWrites;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private boolean closed;
+
+    /**
+     * Creates a write-behind buffer for the given table.
+     *
+     * @param table The {@link CloudTable} object
+     * @param lingerMillis How long a batch waits for more writes before it is sent
+     * @param maxConcurrentBatches The maximum number of batches in flight across all partitions
+     * @param maxBufferedWrites The maximum number of unfinished writes; submitting blocks beyond it
+     */
+    WriteBehindBuffer(CloudTable table, long lingerMillis, int maxConcurrentBatches, int maxBufferedWrites) {
+        if (table == null) {
+            throw new IllegalArgumentException("table");
+        }
+        if (maxConcurrentBatches < 1 || maxBufferedWrites < 1) {
+            throw new IllegalArgumentException("maxConcurrentBatches and maxBufferedWrites must be at least 1.");
+        }
+        this.table = table;
+        this.lingerMillis = lingerMillis;
+        this.bufferedWrites = new Semaphore(maxBufferedWrites);
+        this.executor = Executors.newFixedThreadPool(maxConcurrentBatches, r -> {
+            Thread thread = new Thread(r, "table-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "table-write-behind-linger");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    CompletableFuture<TableResult> insert(TableEntity entity) {
+        return this.submit(WriteOperation.INSERT, entity);
+    }
+
+    CompletableFuture<TableResult> insertOrMerge(TableEntity entity) {
+        return this.submit(WriteOperation.INSERT_OR_MERGE, entity);
+    }
+
+    CompletableFuture<TableResult> insertOrReplace(TableEntity entity) {
+        return this.submit(WriteOperation.INSERT_OR_REPLACE, entity);
+    }
+
+    CompletableFuture<TableResult> merge(TableEntity entity) {
+        return this.submit(WriteOperation.MERGE, entity);
+    }
+
+    CompletableFuture<TableResult> replace(TableEntity entity) {
+        return this.submit(WriteOperation.REPLACE, entity);
+    }
+
+    CompletableFuture<TableResult> delete(TableEntity entity) {
+        return this.submit(WriteOperation.DELETE, entity);
+    }
+
+    /**
+     * Buffers a write. Blocks while the maximum number of unfinished writes is reached.
+     *
+     * @param operation The operation to perform
+     * @param entity The entity to write
+     * @return A future completed with the result of the operation
+     */
+    CompletableFuture<TableResult> submit(WriteOperation operation, TableEntity entity) {
+        CompletableFuture<TableResult> future = new CompletableFuture<TableResult>();
+        int size;
+        try {
+            size = BatchPayloadEstimator.estimateBytes(entity);
+        }
+        catch (StorageException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        this.bufferedWrites.acquireUninterruptibly();
+        future.whenComplete((r, t) -> this.bufferedWrites.release());
+
+        synchronized (this) {
+            if (this.closed) {
+                future.completeExceptionally(new IllegalStateException("The buffer is closed."));
+                return future;
+            }
+
+            PartitionBuffer partition = this.partitions.get(entity.getPartitionKey());
+            if (partition == null) {
+                partition = new PartitionBuffer(entity.getPartitionKey());
+                this.partitions.put(partition.partitionKey, partition);
+            }
+
+            List<CompletableFuture<TableResult>> futures = new ArrayList<CompletableFuture<TableResult>>(1);
+            futures.add(future);
+            PendingWrite write = new PendingWrite(operation, entity, size, futures);
+
+            Batch batch = partition.openBatch;
+            if (batch != null) {
+                Integer index = batch.indexByRowKey.get(entity.getRowKey());
+                if (index != null) {
+                    PendingWrite previous = batch.writes.get(index);
+                    PendingWrite collapsed = collapse(previous, write);
+                    if (collapsed != null
+                            && batch.payloadBytes - previous.size + collapsed.size <= BatchPayloadEstimator.MAX_BATCH_PAYLOAD_BYTES) {
+                        batch.writes.set(index, collapsed);
+                        batch.payloadBytes += collapsed.size - previous.size;
+                        return future;
+                    }
+                    // The key is already part of this batch, so the write has to go into the next one
+                    this.seal(partition);
+                    batch = null;
+                } else if (batch.writes.size() >= BatchPayloadEstimator.MAX_BATCH_OPERATIONS
+                        || batch.payloadBytes + size > BatchPayloadEstimator.MAX_BATCH_PAYLOAD_BYTES) {
+                    this.seal(partition);
+                    batch = null;
+                }
+            }
+
+            if (batch == null) {
+                batch = this.open(partition);
+            }
+
+            batch.indexByRowKey.put(entity.getRowKey(), batch.writes.size());
+            batch.writes.add(write);
+            batch.payloadBytes += size;
+            if (batch.writes.size() >= BatchPayloadEstimator.MAX_BATCH_OPERATIONS) {
+                this.seal(partition);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Sends all buffered writes without waiting for the linger time.
+     *
+     * @return A future completed once every write buffered before the call has finished
+     */
+    CompletableFuture<Void> flush() {
+        List<CompletableFuture<TableResult>> pending = new ArrayList<CompletableFuture<TableResult>>();
+        synchronized (this) {
+            for (PartitionBuffer partition : new ArrayList<PartitionBuffer>(this.partitions.values())) {
+                if (partition.openBatch != null) {
+                    this.seal(partition);
+                }
+                for (Batch batch : partition.sealedBatches) {
+                    for (PendingWrite write : batch.writes) {
+                        pending.addAll(write.futures);
+                    }
+                }
+            }
+        }
+
+        // Writes already in flight are not tracked here; they finish before any later batch of their partition
+        CompletableFuture<?>[] futures = pending.toArray(new CompletableFuture<?>[pending.size()]);
+        return CompletableFuture.allOf(futures).handle((v, t) -> null);
+    }
+
+    /**
+     * Flushes the buffered writes, waits for them and releases the threads of the buffer.
+     */
+    @Override
+    public void close() {
+        CompletableFuture<Void> flushed;
+        synchronized (this) {
+            this.closed = true;
+            flushed = this.flush();
+        }
+        flushed.join();
+        this.scheduler.shutdownNow();
+        this.executor.shutdown();
+    }
+
+    private Batch open(final PartitionBuffer partition) {
+        final Batch batch = new Batch();
+        partition.openBatch = batch;
+        this.scheduler.schedule(() -> {
+            synchronized (this) {
+                if (!batch.sealed && partition.openBatch == batch) {
+                    this.seal(partition);
+                }
+            }
+        }, this.lingerMillis, TimeUnit.MILLISECONDS);
+        return batch;
+    }
+
+    // Must be called while holding the lock of this buffer
+    private void seal(PartitionBuffer partition) {
+        Batch batch = partition.openBatch;
+        partition.openBatch = null;
+        batch.sealed = true;
+        partition.sealedBatches.add(batch);
+        this.drain(partition);
+    }
+
+    // Must be called while holding the lock of this buffer
+    private void drain(final PartitionBuffer partition) {
+        if (partition.inFlight || partition.sealedBatches.isEmpty()) {
+            if (!partition.inFlight && partition.openBatch == null) {
+                this.partitions.remove(partition.partitionKey);
+            }
+            return;
+        }
+
+        final Batch batch = partition.sealedBatches.poll();
+        partition.inFlight = true;
+        this.executor.execute(() -> {
+            try {
+                this.execute(batch);
+            }
+            finally {
+                // Whatever the batch threw, the partition must send its next batch
+                synchronized (this) {
+                    partition.inFlight = false;
+                    this.drain(partition);
+                }
+            }
+        });
+    }
+
+    private void execute(Batch batch) {
+        List<TableResult> results;
+        try {
+            if (batch.writes.size() == 1) {
+                PendingWrite write = batch.writes.get(0);
+                results = Collections.singletonList(this.table.execute(toOperation(write)));
+            } else {
+                TableBatchOperation batchOperation = new TableBatchOperation();
+                for (PendingWrite write : batch.writes) {
+                    batchOperation.add(toOperation(write));
+                }
+                results = this.table.execute(batchOperation);
+            }
+        }
+        catch (Throwable t) {
+            // A batch succeeds or fails as a whole
+            for (PendingWrite write : batch.writes) {
+                for (CompletableFuture<TableResult> future : write.futures) {
+                    future.completeExceptionally(t);
+                }
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            return;
+        }
+
+        for (int i = 0; i < batch.writes.size(); i++) {
+            for (CompletableFuture<TableResult> future : batch.writes.get(i).futures) {
+                future.complete(results.get(i));
+            }
+        }
+    }
+
+    /**
+     * Combines two unconditional upserts of the same entity into one operation with the same effect.
+     *
+     * @return The combined write, or null if the writes cannot be combined
+     */
+    private static PendingWrite collapse(PendingWrite first, PendingWrite second) {
+        boolean firstIsUpsert = first.operation == WriteOperation.INSERT_OR_REPLACE || first.operation == WriteOperation.INSERT_OR_MERGE;
+        if (!firstIsUpsert) {
+            return null;
+        }
+
+        List<CompletableFuture<TableResult>> futures = new ArrayList<CompletableFuture<TableResult>>(first.futures);
+        futures.addAll(second.futures);
+
+        if (second.operation == WriteOperation.INSERT_OR_REPLACE) {
+            // The second write replaces whatever the first one wrote
+            return new PendingWrite(second.operation, second.entity, second.size, futures);
+        }
+        if (second.operation == WriteOperation.INSERT_OR_MERGE) {
+            // Merging over an upsert keeps the operation of the first write with the combined properties
+            try {
+                HashMap<String, EntityProperty> properties = new HashMap<String, EntityProperty>();
+                EntitySnapshot.putNonNull(properties, first.entity.writeEntity(null));
+                EntitySnapshot.putNonNull(properties, second.entity.writeEntity(null));
+                DynamicTableEntity combined = new DynamicTableEntity(second.entity.getPartitionKey(), second.entity.getRowKey(), properties);
+                return new PendingWrite(first.operation, combined, BatchPayloadEstimator.estimateBytes(combined), futures);
+            }
+            catch (StorageException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static TableOperation toOperation(PendingWrite write) {
+        switch (write.operation) {
+            case INSERT:
+                return TableOperation.insert(write.entity);
+            case INSERT_OR_MERGE:
+                return TableOperation.insertOrMerge(write.entity);
+            case INSERT_OR_REPLACE:
+                return TableOperation.insertOrReplace(write.entity);
+            case MERGE:
+                return TableOperation.merge(write.entity);
+            case REPLACE:
+                return TableOperation.replace(write.entity);
+            default:
+                return TableOperation.delete(write.entity);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package com.microsoft.azure.cosmosdb.tablesample;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates item numbers between 0 and n - 1 following a Zipfian distribution, where item 0 is the
+ * most popular one. This is the algorithm of Gray et al., "Quickly Generating Billion-Record Synthetic
+ * Databases", also used by YCSB: the setup is linear in the number of items, every draw is constant time.
+ */
+final class ZipfianGenerator {
+
+    /**
+     * The skew used by YCSB, with which about 20% of the items receive 80% of the draws for small n.
+     */
+    static final double DEFAULT_THETA = 0.99;
+
+    private final long items;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+    private final double halfPowTheta;
+
+    ZipfianGenerator(long items) {
+        this(items, DEFAULT_THETA);
+    }
+
+    /**
+     * Creates a generator.
+     *
+     * @param items The number of items
+     * @param theta The skew, between 0 (exclusive) and 1 (exclusive)
+     */
+    ZipfianGenerator(long items, double theta) {
+        if (items < 1) {
+            throw new IllegalArgumentException("items must be at least 1.");
+        }
+        if (theta <= 0 || theta >= 1) {
+            throw new IllegalArgumentException("theta must be between 0 and 1.");
+        }
+        this.items = items;
+        this.theta = theta;
+        this.zetaN = zeta(items, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / this.zetaN);
+        this.halfPowTheta = 1 + Math.pow(0.5, theta);
+    }
+
+    long getItemCount() {
+        return this.items;
+    }
+
+    double getTheta() {
+        return this.theta;
+    }
+
+    /**
+     * Returns the next item.
+     */
+    long next() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        double uz = u * this.zetaN;
+        if (uz < 1.0) {
+            return 0;
+        }
+        if (uz < this.halfPowTheta) {
+            return Math.min(1, this.items - 1);
+        }
+        return Math.min(this.items - 1, (long) (this.items * Math.pow(this.eta * u - this.eta + 1, this.alpha)));
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}